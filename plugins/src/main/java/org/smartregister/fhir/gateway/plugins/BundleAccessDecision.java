@@ -0,0 +1,227 @@
+package org.smartregister.fhir.gateway.plugins;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.client.BasicResponseHandler;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.helper.CacheInvalidator;
+import org.smartregister.fhir.gateway.plugins.helper.FhirClientRegistry;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.fhir.gateway.interfaces.AccessDecision;
+import com.google.fhir.gateway.interfaces.RequestDetailsReader;
+import com.google.fhir.gateway.interfaces.RequestMutation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.FhirTerser;
+import jakarta.annotation.Nullable;
+
+/**
+ * Grants a transaction or batch Bundle POST, and invalidates the cached entries built from the
+ * resources it wrote. The upstream response is only read if the Bundle writes one of the {@link
+ * CacheInvalidator#RESOURCE_TYPES}, otherwise it is passed on untouched.
+ */
+public class BundleAccessDecision implements AccessDecision {
+    private static final Logger logger = LoggerFactory.getLogger(BundleAccessDecision.class);
+    private final FhirContext fhirContext;
+    private final IParser fhirJsonParser;
+
+    public BundleAccessDecision(FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+        this.fhirJsonParser = fhirContext.newJsonParser();
+    }
+
+    @Override
+    public boolean canAccess() {
+        return true;
+    }
+
+    @Override
+    public RequestMutation getRequestMutation(RequestDetailsReader requestDetailsReader) {
+        return null;
+    }
+
+    /** NOTE: Returns null, and so skips post-processing, if no cached resource type was written */
+    @Override
+    public String postProcess(RequestDetailsReader request, HttpResponse response)
+            throws IOException {
+        if (response.getStatusLine() == null
+                || response.getStatusLine().getStatusCode() >= HttpStatus.SC_MULTIPLE_CHOICES) {
+            return null;
+        }
+        byte[] requestContents = request.loadRequestContents();
+        Bundle requestBundle =
+                parseBundle(
+                        requestContents != null
+                                ? new String(requestContents, StandardCharsets.UTF_8)
+                                : null);
+        if (requestBundle == null || !writesCachedResourceType(requestBundle)) {
+            return null;
+        }
+
+        String resultContent = new BasicResponseHandler().handleResponse(response);
+        Bundle responseBundle = parseBundle(resultContent);
+        if (responseBundle != null) {
+            publishResourceChanges(requestBundle, responseBundle, getFhirClient());
+        }
+        return resultContent;
+    }
+
+    /**
+     * Reports the entries of the request Bundle that were written successfully to the {@link
+     * CacheInvalidator}, all at once. The entries of a transaction or batch response are in the
+     * order of the request entries, a created resource's id is only known from the response
+     * location.
+     */
+    @VisibleForTesting
+    void publishResourceChanges(
+            Bundle requestBundle, Bundle responseBundle, @Nullable IGenericClient fhirClient) {
+        List<Bundle.BundleEntryComponent> requestEntries = requestBundle.getEntry();
+        List<Bundle.BundleEntryComponent> responseEntries = responseBundle.getEntry();
+        Map<String, String> assignedIds = getAssignedIds(requestEntries, responseEntries);
+        List<CacheInvalidator.ResourceChange> changes = new ArrayList<>();
+        for (int i = 0; i < requestEntries.size() && i < responseEntries.size(); i++) {
+            Bundle.BundleEntryComponent requestEntry = requestEntries.get(i);
+            Bundle.BundleEntryResponseComponent entryResponse =
+                    responseEntries.get(i).getResponse();
+            String resourceType = getResourceType(requestEntry);
+            if (!CacheInvalidator.RESOURCE_TYPES.contains(resourceType)
+                    || !StringUtils.startsWith(entryResponse.getStatus(), "2")) {
+                continue;
+            }
+
+            String resourceId = null;
+            if (StringUtils.isNotBlank(entryResponse.getLocation())) {
+                resourceId = new IdType(entryResponse.getLocation()).getIdPart();
+            } else if (isResourceUrl(requestEntry)) {
+                resourceId = new IdType(requestEntry.getRequest().getUrl()).getIdPart();
+            }
+            if (StringUtils.isBlank(resourceId)) {
+                continue;
+            }
+            if (requestEntry.getRequest().getMethod() == Bundle.HTTPVerb.DELETE) {
+                changes.add(CacheInvalidator.ResourceChange.deleted(resourceType, resourceId));
+            } else {
+                changes.add(
+                        CacheInvalidator.ResourceChange.written(
+                                resourceType,
+                                resourceId,
+                                withAssignedIds(
+                                        requestEntry.getResource(), resourceId, assignedIds)));
+            }
+        }
+        CacheInvalidator.INSTANCE.onResourcesChanged(fhirClient, changes);
+    }
+
+    /**
+     * The ids the server assigned to the created resources, as relative references keyed by the
+     * full urls, e.g. {@code urn:uuid:} placeholders, the other entries refer to them by.
+     */
+    @VisibleForTesting
+    static Map<String, String> getAssignedIds(
+            List<Bundle.BundleEntryComponent> requestEntries,
+            List<Bundle.BundleEntryComponent> responseEntries) {
+        Map<String, String> assignedIds = new HashMap<>();
+        for (int i = 0; i < requestEntries.size() && i < responseEntries.size(); i++) {
+            String fullUrl = requestEntries.get(i).getFullUrl();
+            String location = responseEntries.get(i).getResponse().getLocation();
+            if (StringUtils.isNotBlank(fullUrl) && StringUtils.isNotBlank(location)) {
+                IdType assignedId = new IdType(location).toUnqualifiedVersionless();
+                if (assignedId.hasResourceType() && assignedId.hasIdPart()) {
+                    assignedIds.put(fullUrl, assignedId.getValue());
+                }
+            }
+        }
+        return assignedIds;
+    }
+
+    /**
+     * A copy of the written resource with the id it was stored under and its references to other
+     * resources of the Bundle resolved, so that e.g. a created Location is indexed under its
+     * parent.
+     */
+    @VisibleForTesting
+    static @Nullable Resource withAssignedIds(
+            @Nullable Resource resource, String resourceId, Map<String, String> assignedIds) {
+        if (resource == null) {
+            return null;
+        }
+        Resource copy = resource.copy();
+        copy.setId(resourceId);
+        if (!assignedIds.isEmpty()) {
+            FhirTerser terser = FhirContext.forR4Cached().newTerser();
+            for (Reference reference :
+                    terser.getAllPopulatedChildElementsOfType(copy, Reference.class)) {
+                String assignedId = assignedIds.get(reference.getReference());
+                if (assignedId != null) {
+                    reference.setReference(assignedId);
+                }
+            }
+        }
+        return copy;
+    }
+
+    private static boolean writesCachedResourceType(Bundle bundle) {
+        return (bundle.getType() == Bundle.BundleType.TRANSACTION
+                        || bundle.getType() == Bundle.BundleType.BATCH)
+                && bundle.getEntry().stream()
+                        .map(BundleAccessDecision::getResourceType)
+                        .anyMatch(CacheInvalidator.RESOURCE_TYPES::contains);
+    }
+
+    private static String getResourceType(Bundle.BundleEntryComponent entry) {
+        Resource resource = entry.getResource();
+        if (resource != null) {
+            return resource.fhirType();
+        }
+        // The url of an entry without a resource is [type]/[id] or [type]?[search]
+        return StringUtils.defaultString(entry.getRequest().getUrl()).split("[/?]", 2)[0];
+    }
+
+    // A url naming the resource, not a search of a conditional write
+    private static boolean isResourceUrl(Bundle.BundleEntryComponent entry) {
+        String url = entry.getRequest().getUrl();
+        return StringUtils.contains(url, '/') && !StringUtils.contains(url, '?');
+    }
+
+    @Nullable
+    private Bundle parseBundle(@Nullable String contents) {
+        if (StringUtils.isBlank(contents)) {
+            return null;
+        }
+        try {
+            IBaseResource resource = fhirJsonParser.parseResource(contents);
+            return resource instanceof Bundle ? (Bundle) resource : null;
+        } catch (DataFormatException e) {
+            logger.debug("Could not parse the Bundle", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private IGenericClient getFhirClient() {
+        try {
+            return FhirClientRegistry.INSTANCE.getClient(fhirContext);
+        } catch (NullPointerException e) {
+            logger.error(e.getMessage());
+            return null;
+        }
+    }
+}
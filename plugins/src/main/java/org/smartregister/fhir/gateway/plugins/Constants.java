@@ -20,6 +20,14 @@ public class Constants {
     public static final String DEFAULT_ADMIN_LEVEL_TYPE_URL =
             "https://smartregister.org/codes/administrative-level";
     public static final String AUTHORIZATION = "Authorization";
+    public static final String ACCEPT = "Accept";
+    public static final String LINK = "Link";
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String VARY = "Vary";
+    public static final String ETAG = "ETag";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String GZIP = "gzip";
     public static final String KEYCLOAK_UUID = "keycloak-uuid";
     public static final String IDENTIFIER = "_id";
     public static final String MIN_ADMIN_LEVEL = "administrativeLevelMin";
@@ -34,6 +42,13 @@ public class Constants {
     public static final String PAGINATION_PAGE_NUMBER = "_page";
     public static final int PAGINATION_DEFAULT_PAGE_SIZE = 20;
     public static final int PAGINATION_DEFAULT_PAGE_NUMBER = 1;
+    public static final String PAGINATION_CURSOR = "_cursor";
+    public static final String PAGINATION_PAGE_TOKEN = "_pageToken";
+    public static final String EXPORT = "_export";
+    public static final String FORMAT = "_format";
+    public static final String NDJSON_FORMAT = "ndjson";
+    public static final String NDJSON_CONTENT_TYPE = "application/fhir+ndjson";
+    public static final String PRETTY = "_pretty";
     public static final String SYNC_LOCATIONS_SEARCH_PARAM = "_syncLocations";
     public static final String RELATED_ENTITY_TAG_URL_ENV = "RELATED_ENTITY_TAG_URL";
     public static final String DEFAULT_RELATED_ENTITY_TAG_URL =
@@ -54,6 +69,7 @@ public class Constants {
     public static final String UNDERSCORE = "_";
     public static final String[] CLIENT_ROLES = {ROLE_WEB_CLIENT, ROLE_ANDROID_CLIENT};
     public static final String FILTER_MODE_LINEAGE = "filter_mode_lineage";
+    public static final String FILTER_MODE_LINEAGE_ROOTS = "roots";
 
     public interface Literals {
         String EQUALS = "=";
@@ -73,6 +89,14 @@ public class Constants {
 
     public interface ResourceType {
         String LOCATION = "Location";
+        String CARE_TEAM = "CareTeam";
+        String ORGANIZATION = "Organization";
+        String ORGANIZATION_AFFILIATION = "OrganizationAffiliation";
+        String PRACTITIONER_ROLE = "PractitionerRole";
+        String PRACTITIONER = "Practitioner";
+        String GROUP = "Group";
+        String COMPOSITION = "Composition";
+        String BINARY = "Binary";
     }
 
     public interface HttpMethods {
@@ -80,6 +104,7 @@ public class Constants {
         String GET = "GET";
         String PUT = "PUT";
         String PATCH = "PATCH";
+        String DELETE = "DELETE";
     }
 
     public interface Header {
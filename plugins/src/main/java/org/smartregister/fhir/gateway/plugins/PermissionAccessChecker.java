@@ -13,14 +13,14 @@ import java.util.stream.Collectors;
 import javax.inject.Named;
 
 import org.apache.commons.lang3.StringUtils;
-import org.hl7.fhir.r4.model.Binary;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CareTeam;
-import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.Organization;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.helper.ApplicationConfigRegistry;
 import org.smartregister.fhir.gateway.plugins.helper.CacheHelper;
+import org.smartregister.fhir.gateway.plugins.helper.FhirClientRegistry;
 import org.smartregister.fhir.gateway.plugins.helper.LocationHierarchyEndpointHelper;
 import org.smartregister.fhir.gateway.plugins.helper.PractitionerDetailsEndpointHelper;
 import org.smartregister.fhir.gateway.plugins.implementation.ResourceFinder;
@@ -43,7 +43,6 @@ import com.google.fhir.gateway.interfaces.RequestDetailsReader;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
-import ca.uhn.fhir.rest.api.SearchStyleEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import jakarta.annotation.Nonnull;
@@ -118,22 +117,22 @@ public class PermissionAccessChecker implements AccessChecker {
                             fhirContext, jwt.getSubject(), true, syncStrategyIds, "", userRoles);
             return;
         }
-        Composition composition = fetchComposition();
-        String syncStrategy = readSyncStrategyFromComposition(composition);
+        String syncStrategy = ApplicationConfigRegistry.INSTANCE.getSyncStrategy(applicationId);
 
+        // A copy, the ids may be refreshed in the background after the request is done
+        Map<String, String[]> parameters = new HashMap<>(requestDetailsReader.getParameters());
+        String subject = jwt.getSubject();
         if (CacheHelper.INSTANCE.skipCache()) {
-            syncStrategyIds =
-                    getSyncStrategyIds(jwt.getSubject(), syncStrategy, requestDetailsReader);
+            syncStrategyIds = getSyncStrategyIds(subject, syncStrategy, parameters);
         } else {
             syncStrategyIds =
-                    CacheHelper.INSTANCE.cache.get(
+                    CacheHelper.INSTANCE.getSyncStrategyIds(
                             generateSyncStrategyIdsCacheKey(
-                                    jwt.getSubject(),
+                                    subject,
                                     syncStrategy,
-                                    requestDetailsReader.getParameters()),
-                            key ->
-                                    getSyncStrategyIds(
-                                            jwt.getSubject(), syncStrategy, requestDetailsReader));
+                                    parameters,
+                                    userRoles.contains(Constants.ROLE_ALL_LOCATIONS)),
+                            () -> getSyncStrategyIds(subject, syncStrategy, parameters));
         }
 
         this.syncAccessDecision =
@@ -146,11 +145,26 @@ public class PermissionAccessChecker implements AccessChecker {
                         userRoles);
     }
 
+    /** Generates the sync strategy ids key of a user with the ALL_LOCATIONS role. */
     public static String generateSyncStrategyIdsCacheKey(
             String userId, String syncStrategy, Map<String, String[]> parameters) {
+        return generateSyncStrategyIdsCacheKey(userId, syncStrategy, parameters, true);
+    }
+
+    /**
+     * Generates the key the sync strategy ids of a request are cached under. The ids of the
+     * requested sync locations only depend on the locations, so users with the ALL_LOCATIONS role
+     * share them under a hash of the locations. Other users are given the ids of their assigned
+     * locations whatever they request, so their ids are cached under their user id.
+     */
+    public static String generateSyncStrategyIdsCacheKey(
+            String userId,
+            String syncStrategy,
+            Map<String, String[]> parameters,
+            boolean allLocations) {
 
         String key = null;
-        if (syncStrategy.equals(Constants.SyncStrategy.RELATED_ENTITY_LOCATION)) {
+        if (syncStrategy.equals(Constants.SyncStrategy.RELATED_ENTITY_LOCATION) && allLocations) {
             try {
                 String[] syncLocations =
                         parameters.getOrDefault(
@@ -167,6 +181,11 @@ public class PermissionAccessChecker implements AccessChecker {
             key = userId;
         }
 
+        // Roots only ids must not be served to requests that expect the descendants
+        if (key != null && Utils.isFilterModeLineageRoots(parameters)) {
+            key = key + Constants.UNDERSCORE + Constants.FILTER_MODE_LINEAGE_ROOTS;
+        }
+
         return key;
     }
 
@@ -221,7 +240,7 @@ public class PermissionAccessChecker implements AccessChecker {
         }
 
         return (isDevMode() && !hasMissingRole) || !isDevMode()
-                ? NoOpAccessDecision.accessGranted()
+                ? new BundleAccessDecision(fhirContext)
                 : NoOpAccessDecision.accessDenied();
     }
 
@@ -242,21 +261,6 @@ public class PermissionAccessChecker implements AccessChecker {
         return existingRoles.contains(roleName);
     }
 
-    private Composition readCompositionResource(String applicationId, FhirContext fhirContext) {
-        IGenericClient client = Utils.createFhirClientForR4(fhirContext);
-
-        Bundle compositionBundle =
-                client.search()
-                        .forResource(Composition.class)
-                        .where(Composition.IDENTIFIER.exactly().identifier(applicationId))
-                        .usingStyle(SearchStyleEnum.POST)
-                        .returnBundle(Bundle.class)
-                        .execute();
-
-        Bundle.BundleEntryComponent compositionEntry = compositionBundle.getEntryFirstRep();
-        return compositionEntry != null ? (Composition) compositionEntry.getResource() : null;
-    }
-
     PractitionerDetails fetchPractitionerDetails(String subject) {
         fhirContext.registerCustomType(PractitionerDetails.class);
 
@@ -274,28 +278,12 @@ public class PermissionAccessChecker implements AccessChecker {
         return practitionerDetails;
     }
 
-    private Composition fetchComposition() {
-        Composition composition = readCompositionResource(applicationId, fhirContext);
-        if (composition == null)
-            throw new IllegalStateException(
-                    "No Composition resource found for application id '" + applicationId + "'");
-
-        return composition;
-    }
-
-    private String readSyncStrategyFromComposition(Composition composition) {
-        String binaryResourceReference = Utils.getBinaryResourceReference(composition, logger);
-        Binary binary =
-                Utils.readApplicationConfigBinaryResource(binaryResourceReference, fhirContext);
-        return Utils.findSyncStrategy(binary);
-    }
-
     private Map<String, List<String>> getSyncStrategyIds(
-            String subjectId, String syncStrategy, RequestDetailsReader requestDetailsReader) {
+            String subjectId, String syncStrategy, Map<String, String[]> parameters) {
 
         PractitionerDetails practitionerDetails = fetchPractitionerDetails(subjectId);
 
-        return collateSyncStrategyIds(syncStrategy, practitionerDetails, requestDetailsReader);
+        return collateSyncStrategyIds(syncStrategy, practitionerDetails, parameters);
     }
 
     private List<String> getLocationUuids(String[] syncLocations) {
@@ -312,6 +300,12 @@ public class PermissionAccessChecker implements AccessChecker {
         return locationUuids;
     }
 
+    private Set<String> getPractitionerLocationIds(PractitionerDetails practitionerDetails) {
+        return practitionerDetails.getFhirPractitionerDetails().getLocations().stream()
+                .map(location -> location.getIdElement().getIdPart())
+                .collect(Collectors.toSet());
+    }
+
     private Set<String> getPractitionerLocationHierarchyDescendants(
             PractitionerDetails practitionerDetails) {
         List<String> locationIds =
@@ -332,7 +326,7 @@ public class PermissionAccessChecker implements AccessChecker {
     @Deprecated(since = "3.0.0", forRemoval = true)
     private Set<String> getPractitionerLocationHierarchyDescendantsBackwardCompatibility(
             PractitionerDetails practitionerDetails) {
-        IGenericClient client = Utils.createFhirClientForR4(FhirContext.forR4());
+        IGenericClient client = FhirClientRegistry.INSTANCE.getClient();
         PractitionerDetailsEndpointHelper practitionerDetailsEndpointHelper =
                 new PractitionerDetailsEndpointHelper(client);
         return PractitionerDetailsEndpointHelper.getAttributedLocations(
@@ -346,18 +340,16 @@ public class PermissionAccessChecker implements AccessChecker {
     private Map<String, List<String>> collateSyncStrategyIds(
             String syncStrategy,
             PractitionerDetails practitionerDetails,
-            RequestDetailsReader requestDetailsReader) {
+            Map<String, String[]> parameters) {
         Map<String, List<String>> resultMap;
         Set<String> syncStrategyIds;
 
         boolean filterModeLineage =
-                requestDetailsReader.getParameters().containsKey(Constants.FILTER_MODE_LINEAGE)
-                        && (StringUtils.isBlank(
-                                        requestDetailsReader.getParameters()
-                                                .get(Constants.FILTER_MODE_LINEAGE)[0])
+                parameters.containsKey(Constants.FILTER_MODE_LINEAGE)
+                        && (StringUtils.isBlank(parameters.get(Constants.FILTER_MODE_LINEAGE)[0])
                                 || Boolean.parseBoolean(
-                                        requestDetailsReader.getParameters()
-                                                .get(Constants.FILTER_MODE_LINEAGE)[0]));
+                                        parameters.get(Constants.FILTER_MODE_LINEAGE)[0]));
+        boolean filterModeLineageRoots = Utils.isFilterModeLineageRoots(parameters);
 
         if (StringUtils.isNotBlank(syncStrategy)) {
             if (Constants.SyncStrategy.CARE_TEAM.equalsIgnoreCase(syncStrategy)) {
@@ -389,28 +381,36 @@ public class PermissionAccessChecker implements AccessChecker {
                                 .collect(Collectors.toSet());
 
             } else if (Constants.SyncStrategy.LOCATION.equalsIgnoreCase(syncStrategy)) {
-                syncStrategyIds =
-                        practitionerDetails != null
-                                        && practitionerDetails.getFhirPractitionerDetails() != null
-                                ? filterModeLineage
-                                        ? getPractitionerLocationHierarchyDescendants(
-                                                practitionerDetails)
-                                        : getPractitionerLocationHierarchyDescendantsBackwardCompatibility(
-                                                practitionerDetails)
-                                : new HashSet<>();
+                if (practitionerDetails == null
+                        || practitionerDetails.getFhirPractitionerDetails() == null) {
+                    syncStrategyIds = new HashSet<>();
+                } else if (filterModeLineageRoots) {
+                    syncStrategyIds = getPractitionerLocationIds(practitionerDetails);
+                } else {
+                    syncStrategyIds =
+                            filterModeLineage
+                                    ? getPractitionerLocationHierarchyDescendants(
+                                            practitionerDetails)
+                                    : getPractitionerLocationHierarchyDescendantsBackwardCompatibility(
+                                            practitionerDetails);
+                }
 
             } else if (Constants.SyncStrategy.RELATED_ENTITY_LOCATION.equalsIgnoreCase(
                     syncStrategy)) {
 
-                Map<String, String[]> parameters =
-                        new HashMap<>(requestDetailsReader.getParameters());
                 String[] syncLocations = parameters.get(Constants.SYNC_LOCATIONS_SEARCH_PARAM);
 
                 if (this.userRoles.contains(Constants.ROLE_ALL_LOCATIONS)
+                        && syncLocations != null
+                        && filterModeLineageRoots) {
+                    // Selected locations, their descendants match through the lineage tags
+                    syncStrategyIds = new HashSet<>(getLocationUuids(syncLocations));
+
+                } else if (this.userRoles.contains(Constants.ROLE_ALL_LOCATIONS)
                         && syncLocations != null) {
                     // Selected locations
                     List<String> locationUuids = getLocationUuids(syncLocations);
-                    IGenericClient client = Utils.createFhirClientForR4(FhirContext.forR4());
+                    IGenericClient client = FhirClientRegistry.INSTANCE.getClient();
                     PractitionerDetailsEndpointHelper practitionerDetailsEndpointHelper =
                             new PractitionerDetailsEndpointHelper(client);
                     syncStrategyIds =
@@ -418,6 +418,15 @@ public class PermissionAccessChecker implements AccessChecker {
                                     practitionerDetailsEndpointHelper.getLocationsHierarchy(
                                             locationUuids));
 
+                } else if (filterModeLineageRoots) {
+                    // Assigned locations, their descendants match through the lineage tags
+                    syncStrategyIds =
+                            practitionerDetails != null
+                                            && practitionerDetails.getFhirPractitionerDetails()
+                                                    != null
+                                    ? getPractitionerLocationIds(practitionerDetails)
+                                    : new HashSet<>();
+
                 } else {
 
                     // Assigned locations
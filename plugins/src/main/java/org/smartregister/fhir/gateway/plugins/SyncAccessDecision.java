@@ -3,30 +3,40 @@ package org.smartregister.fhir.gateway.plugins;
 import static ca.uhn.fhir.rest.api.Constants.PARAM_SUMMARY;
 import static org.smartregister.fhir.gateway.plugins.utils.EnvUtil.getEnvironmentVar;
 
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.impl.client.BasicResponseHandler;
 import org.apache.http.util.TextUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.Location;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.helper.CacheInvalidator;
+import org.smartregister.fhir.gateway.plugins.helper.FhirClientRegistry;
 import org.smartregister.fhir.gateway.plugins.helper.PractitionerDetailsEndpointHelper;
+import org.smartregister.fhir.gateway.plugins.helper.UpstreamExecutor;
 import org.smartregister.fhir.gateway.plugins.utils.Utils;
 import org.smartregister.helpers.LocationHelper;
 
@@ -39,6 +49,7 @@ import com.google.fhir.gateway.interfaces.RequestMutation;
 import com.google.gson.Gson;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
@@ -52,13 +63,16 @@ public class SyncAccessDecision implements AccessDecision {
             "SYNC_FILTER_IGNORE_RESOURCES_FILE";
     public static final String MATCHES_ANY_VALUE = "ANY_VALUE";
     private static final Logger logger = LoggerFactory.getLogger(SyncAccessDecision.class);
+    private static final long IGNORED_RESOURCES_CONFIG_CHECK_INTERVAL_MILLIS = 5_000;
+    private static final Map<String, LoadedIgnoredResourcesConfig> IGNORED_RESOURCES_CONFIGS =
+            new ConcurrentHashMap<>();
+    private static final Gson gson = new Gson();
     private final String syncStrategy;
     private final boolean accessGranted;
     private final Map<String, List<String>> syncStrategyIdsMap;
     private final List<String> roles;
     private IgnoredResourcesConfig config;
     private final String keycloakUUID;
-    private final Gson gson = new Gson();
     private FhirContext fhirR4Context;
     private final IParser fhirR4JsonParser;
     private IGenericClient fhirR4Client;
@@ -80,8 +94,7 @@ public class SyncAccessDecision implements AccessDecision {
         this.config = getSkippedResourcesConfigs();
         this.roles = roles;
         try {
-            setFhirR4Client(
-                    fhirR4Context.newRestfulGenericClient(System.getenv(Constants.PROXY_TO_ENV)));
+            setFhirR4Client(FhirClientRegistry.INSTANCE.getClient(fhirR4Context));
         } catch (NullPointerException e) {
             logger.error(e.getMessage());
         }
@@ -126,6 +139,8 @@ public class SyncAccessDecision implements AccessDecision {
                         forbiddenOperationException);
             }
 
+            boolean filterModeLineageRoots =
+                    Utils.isFilterModeLineageRoots(requestDetailsReader.getParameters());
             List<String> syncFilterParameterValues;
             if (Constants.SyncStrategy.RELATED_ENTITY_LOCATION.equals(syncStrategy)) {
 
@@ -147,10 +162,15 @@ public class SyncAccessDecision implements AccessDecision {
                                         this.syncStrategy,
                                         Map.of(
                                                 Constants.SyncStrategy.RELATED_ENTITY_LOCATION,
-                                                syncStrategyIdSubList)));
+                                                syncStrategyIdSubList),
+                                        filterModeLineageRoots));
             } else {
                 syncFilterParameterValues =
-                        addSyncFilters(getSyncTags(this.syncStrategy, this.syncStrategyIdsMap));
+                        addSyncFilters(
+                                getSyncTags(
+                                        this.syncStrategy,
+                                        this.syncStrategyIdsMap,
+                                        filterModeLineageRoots));
             }
 
             requestMutation =
@@ -248,12 +268,75 @@ public class SyncAccessDecision implements AccessDecision {
             if (StringUtils.isNotBlank(locationId)) {
                 Location location = LocationHelper.updateLocationLineage(fhirR4Client, locationId);
                 resultContent = this.fhirR4JsonParser.encodeResourceToString(location);
+                CacheInvalidator.INSTANCE.onResourceChanged(
+                        fhirR4Client, Constants.ResourceType.LOCATION, locationId, location);
             }
+        } else if (isCachedResourceWrite(request)) {
+            publishResourceChange(request, response);
         }
 
         return resultContent;
     }
 
+    private boolean isCachedResourceWrite(RequestDetailsReader request) {
+        if (StringUtils.isBlank(request.getResourceName())
+                || !CacheInvalidator.RESOURCE_TYPES.contains(request.getResourceName())
+                || request.getRequestType() == null) {
+            return false;
+        }
+        String requestType = request.getRequestType().name();
+        return Constants.HttpMethods.POST.equals(requestType)
+                || Constants.HttpMethods.PUT.equals(requestType)
+                || Constants.HttpMethods.PATCH.equals(requestType)
+                || Constants.HttpMethods.DELETE.equals(requestType);
+    }
+
+    /**
+     * Invalidates the cached entries built from the written resource. The resource is read from the
+     * request body, so the upstream response is passed on untouched.
+     */
+    private void publishResourceChange(RequestDetailsReader request, HttpResponse response) {
+        if (response.getStatusLine() == null
+                || response.getStatusLine().getStatusCode() >= HttpStatus.SC_MULTIPLE_CHOICES) {
+            return;
+        }
+        String requestType = request.getRequestType().name();
+        IBaseResource resource = null;
+        if (Constants.HttpMethods.POST.equals(requestType)
+                || Constants.HttpMethods.PUT.equals(requestType)) {
+            byte[] requestContents = request.loadRequestContents();
+            if (requestContents != null && requestContents.length > 0) {
+                try {
+                    resource =
+                            this.fhirR4JsonParser.parseResource(
+                                    new String(requestContents, StandardCharsets.UTF_8));
+                } catch (DataFormatException e) {
+                    logger.debug("Could not parse the written {}", request.getResourceName(), e);
+                }
+            }
+        }
+
+        String resourceId = request.getId() != null ? request.getId().getIdPart() : null;
+        if (StringUtils.isBlank(resourceId)) {
+            // The id of a created resource is only known from the Location header
+            Header locationHeader = response.getFirstHeader(HttpHeaders.LOCATION);
+            if (locationHeader != null) {
+                resourceId = new IdType(locationHeader.getValue()).getIdPart();
+            }
+        }
+        if (StringUtils.isBlank(resourceId)) {
+            return;
+        }
+        if (Constants.HttpMethods.DELETE.equals(requestType)) {
+            CacheInvalidator.INSTANCE.onResourceDeleted(
+                    fhirR4Client, request.getResourceName(), resourceId);
+        } else {
+            // A PATCH, or a body that cannot be parsed, leaves the resource unknown
+            CacheInvalidator.INSTANCE.onResourceChanged(
+                    fhirR4Client, request.getResourceName(), resourceId, resource);
+        }
+    }
+
     @VisibleForTesting
     protected String getLocationId(String requestPath, String resultContent) {
         String locationId;
@@ -271,9 +354,6 @@ public class SyncAccessDecision implements AccessDecision {
     private IBaseResource processRelatedEntityLocationSyncStrategy(
             RequestDetailsReader request, HttpResponse response) throws IOException {
         String resultContent;
-        fhirR4Client.getFhirContext().getRestfulClientFactory().setConnectionRequestTimeout(300000);
-        fhirR4Client.getFhirContext().getRestfulClientFactory().setSocketTimeout(300000);
-
         List<Bundle.BundleEntryComponent> allResults = new ArrayList<>();
         int totalResultMatches = 0;
 
@@ -282,48 +362,26 @@ public class SyncAccessDecision implements AccessDecision {
                         + "?"
                         + getRequestParametersString(request.getParameters());
 
+        List<String> relatedEntityLocationIds =
+                syncStrategyIdsMap.get(Constants.SyncStrategy.RELATED_ENTITY_LOCATION);
+        List<List<String>> chunks = new ArrayList<>();
         for (int startIndex = SyncAccessDecisionConstants.REL_LOCATION_INITIAL_CHUNK_SIZE;
-                startIndex
-                        < syncStrategyIdsMap
-                                .get(Constants.SyncStrategy.RELATED_ENTITY_LOCATION)
-                                .size();
+                startIndex < relatedEntityLocationIds.size();
                 startIndex += SyncAccessDecisionConstants.REL_LOCATION_CHUNK_SIZE) {
-
             int endIndex =
                     Math.min(
                             startIndex + SyncAccessDecisionConstants.REL_LOCATION_CHUNK_SIZE,
-                            syncStrategyIdsMap
-                                    .get(Constants.SyncStrategy.RELATED_ENTITY_LOCATION)
-                                    .size());
-
-            List<String> entries =
-                    syncStrategyIdsMap
-                            .get(Constants.SyncStrategy.RELATED_ENTITY_LOCATION)
-                            .subList(startIndex, endIndex);
-
-            Bundle requestBundle = new Bundle();
-            requestBundle.setType(Bundle.BundleType.BATCH);
-            for (String entry : entries) {
-                // When using RELATED_ENTITY_LOCATION tag, also include location-lineage tags
-                // to match resources (e.g., Group) that have either tag system
-                String relatedEntityTag = Constants.DEFAULT_RELATED_ENTITY_TAG_URL + "%7C" + entry;
-                String locationLineageTag =
-                        Constants.Meta.Tag.SYSTEM_LOCATION_HIERARCHY + "%7C" + entry;
-                // Combine both tag systems with comma (OR logic in FHIR)
-                String tagParam = relatedEntityTag + "," + locationLineageTag;
-                requestBundle.addEntry(
-                        createBundleEntryComponent(
-                                Bundle.HTTPVerb.GET, requestPath + "&_tag=" + tagParam, null));
-            }
-
-            Bundle res = fhirR4Client.transaction().withBundle(requestBundle).execute();
-
-            List<Bundle.BundleEntryComponent> entryComponentList =
-                    res.getEntry().parallelStream()
-                            .map(it -> (Bundle) it.getResource())
-                            .flatMap(it -> it.getEntry().stream())
-                            .collect(Collectors.toList());
+                            relatedEntityLocationIds.size());
+            chunks.add(relatedEntityLocationIds.subList(startIndex, endIndex));
+        }
 
+        // The batches are independent, a failed batch cancels the others and fails the request
+        List<List<Bundle.BundleEntryComponent>> chunkResults =
+                UpstreamExecutor.INSTANCE.mapAll(
+                        chunks,
+                        entries -> fetchRelatedEntityLocationChunk(requestPath, entries),
+                        getRelatedEntityLocationConcurrency());
+        for (List<Bundle.BundleEntryComponent> entryComponentList : chunkResults) {
             allResults.addAll(entryComponentList);
             totalResultMatches += entryComponentList.size();
         }
@@ -351,6 +409,49 @@ public class SyncAccessDecision implements AccessDecision {
         return responseResource;
     }
 
+    private List<Bundle.BundleEntryComponent> fetchRelatedEntityLocationChunk(
+            String requestPath, List<String> entries) {
+        Bundle requestBundle = new Bundle();
+        requestBundle.setType(Bundle.BundleType.BATCH);
+        for (String entry : entries) {
+            // When using RELATED_ENTITY_LOCATION tag, also include location-lineage tags
+            // to match resources (e.g., Group) that have either tag system
+            String relatedEntityTag = Constants.DEFAULT_RELATED_ENTITY_TAG_URL + "%7C" + entry;
+            String locationLineageTag =
+                    Constants.Meta.Tag.SYSTEM_LOCATION_HIERARCHY + "%7C" + entry;
+            // Combine both tag systems with comma (OR logic in FHIR)
+            String tagParam = relatedEntityTag + "," + locationLineageTag;
+            requestBundle.addEntry(
+                    createBundleEntryComponent(
+                            Bundle.HTTPVerb.GET, requestPath + "&_tag=" + tagParam, null));
+        }
+
+        Bundle res = fhirR4Client.transaction().withBundle(requestBundle).execute();
+
+        return res.getEntry().stream()
+                .map(it -> (Bundle) it.getResource())
+                .flatMap(it -> it.getEntry().stream())
+                .collect(Collectors.toList());
+    }
+
+    private int getRelatedEntityLocationConcurrency() {
+        String concurrency =
+                getEnvironmentVar(
+                        SyncAccessDecisionConstants.REL_LOCATION_CONCURRENCY_ENV,
+                        String.valueOf(
+                                SyncAccessDecisionConstants.DEFAULT_REL_LOCATION_CONCURRENCY));
+        try {
+            return Math.max(1, Integer.parseInt(concurrency.trim()));
+        } catch (NumberFormatException e) {
+            logger.warn(
+                    "Invalid {} value '{}', using {}",
+                    SyncAccessDecisionConstants.REL_LOCATION_CONCURRENCY_ENV,
+                    concurrency,
+                    SyncAccessDecisionConstants.DEFAULT_REL_LOCATION_CONCURRENCY);
+            return SyncAccessDecisionConstants.DEFAULT_REL_LOCATION_CONCURRENCY;
+        }
+    }
+
     private String getRequestParametersString(Map<String, String[]> parameters) {
 
         StringBuilder queryString = new StringBuilder();
@@ -541,7 +642,9 @@ public class SyncAccessDecision implements AccessDecision {
      * @return Pair of URL to [Code.url, [Code.Value]] map. The URL is complete url
      */
     private Map<String, String[]> getSyncTags(
-            String syncStrategy, Map<String, List<String>> syncStrategyIds) {
+            String syncStrategy,
+            Map<String, List<String>> syncStrategyIds,
+            boolean filterModeLineageRoots) {
         StringBuilder sb = new StringBuilder();
         Map<String, String[]> map = new HashMap<>();
 
@@ -552,8 +655,11 @@ public class SyncAccessDecision implements AccessDecision {
         if (tagUrl != null) {
             addTags(tagUrl, syncStrategyIds.get(syncStrategy), map, sb);
             // When using RELATED_ENTITY_LOCATION tag, also include location-lineage tags
-            // to match resources (e.g., Group) that have either tag system
-            if (Constants.SyncStrategy.RELATED_ENTITY_LOCATION.equalsIgnoreCase(syncStrategy)) {
+            // to match resources (e.g., Group) that have either tag system. When filtering by
+            // the lineage roots only the lineage tags match the descendants of the locations
+            if (Constants.SyncStrategy.RELATED_ENTITY_LOCATION.equalsIgnoreCase(syncStrategy)
+                    || (filterModeLineageRoots
+                            && Constants.SyncStrategy.LOCATION.equalsIgnoreCase(syncStrategy))) {
                 addTags(
                         Constants.Meta.Tag.SYSTEM_LOCATION_HIERARCHY,
                         syncStrategyIds.get(syncStrategy),
@@ -619,28 +725,54 @@ public class SyncAccessDecision implements AccessDecision {
     @VisibleForTesting
     protected IgnoredResourcesConfig getIgnoredResourcesConfigFileConfiguration(String configFile) {
         if (configFile != null && !configFile.isEmpty()) {
-            try {
-                config = gson.fromJson(new FileReader(configFile), IgnoredResourcesConfig.class);
-                if (config == null || config.entries == null) {
-                    throw new IllegalArgumentException(
-                            "A map with a single `entries` array expected!");
-                }
-                for (IgnoredResourcesConfig entry : config.entries) {
-                    if (entry.getPath() == null) {
-                        throw new IllegalArgumentException(
-                                "Allow-list entries should have a path.");
-                    }
-                }
-
-            } catch (IOException e) {
-                logger.error(
-                        "IO error while reading sync-filter skip-list config file {}", configFile);
-            }
+            config = loadIgnoredResourcesConfig(configFile, config);
         }
 
         return config;
     }
 
+    /**
+     * Returns the parsed config of the given file. The file is only parsed again once it has been
+     * modified, which is checked at most every {@link
+     * #IGNORED_RESOURCES_CONFIG_CHECK_INTERVAL_MILLIS} so that requests do not hit the disk.
+     */
+    private static IgnoredResourcesConfig loadIgnoredResourcesConfig(
+            String configFile, IgnoredResourcesConfig fallbackConfig) {
+        long now = System.currentTimeMillis();
+        LoadedIgnoredResourcesConfig loadedConfig = IGNORED_RESOURCES_CONFIGS.get(configFile);
+        if (loadedConfig != null
+                && now - loadedConfig.checkedAt < IGNORED_RESOURCES_CONFIG_CHECK_INTERVAL_MILLIS) {
+            return loadedConfig.config;
+        }
+
+        long lastModified = new File(configFile).lastModified();
+        if (loadedConfig != null && loadedConfig.lastModified == lastModified) {
+            loadedConfig.checkedAt = now;
+            return loadedConfig.config;
+        }
+
+        try (FileReader reader = new FileReader(configFile)) {
+            IgnoredResourcesConfig parsedConfig =
+                    gson.fromJson(reader, IgnoredResourcesConfig.class);
+            if (parsedConfig == null || parsedConfig.entries == null) {
+                throw new IllegalArgumentException(
+                        "A map with a single `entries` array expected!");
+            }
+            for (IgnoredResourcesConfig entry : parsedConfig.entries) {
+                if (entry.getPath() == null) {
+                    throw new IllegalArgumentException("Allow-list entries should have a path.");
+                }
+            }
+            parsedConfig.compile();
+            IGNORED_RESOURCES_CONFIGS.put(
+                    configFile, new LoadedIgnoredResourcesConfig(parsedConfig, lastModified, now));
+            return parsedConfig;
+        } catch (IOException e) {
+            logger.error("IO error while reading sync-filter skip-list config file {}", configFile);
+            return loadedConfig != null ? loadedConfig.config : fallbackConfig;
+        }
+    }
+
     @VisibleForTesting
     protected IgnoredResourcesConfig getSkippedResourcesConfigs() {
         return getIgnoredResourcesConfigFileConfiguration(
@@ -652,44 +784,25 @@ public class SyncAccessDecision implements AccessDecision {
      * in the hapi_sync_filter_ignored_queries configuration
      */
     private boolean shouldSkipDataFiltering(RequestDetailsReader requestDetailsReader) {
-        if (config == null) return false;
-
-        for (IgnoredResourcesConfig entry : config.entries) {
-
-            if (!entry.getPath().equals(requestDetailsReader.getRequestPath())) {
-                continue;
-            }
-
-            if (entry.getMethodType() != null
-                    && !entry.getMethodType()
-                            .equals(requestDetailsReader.getRequestType().name())) {
-                continue;
-            }
-
-            for (Map.Entry<String, Object> expectedParam : entry.getQueryParams().entrySet()) {
-                String[] actualQueryValue =
-                        requestDetailsReader.getParameters().get(expectedParam.getKey());
-
-                if (actualQueryValue == null) {
-                    return true;
-                }
-
-                if (MATCHES_ANY_VALUE.equals(expectedParam.getValue())) {
-                    return true;
-                } else {
-                    if (actualQueryValue.length != 1) {
-                        // We currently do not support multivalued query params in skip-lists.
-                        return false;
-                    }
-
-                    if (expectedParam.getValue() instanceof List) {
-                        return CollectionUtils.isEqualCollection(
-                                (List) expectedParam.getValue(),
-                                Arrays.asList(actualQueryValue[0].split(",")));
-
-                    } else if (actualQueryValue[0].equals(expectedParam.getValue())) {
-                        return true;
-                    }
+        if (config == null || requestDetailsReader.getRequestType() == null) return false;
+
+        List<IgnoredResourcesConfig> entries =
+                config.getEntriesByRequest()
+                        .get(
+                                IgnoredResourcesConfig.getRequestKey(
+                                        requestDetailsReader.getRequestType().name(),
+                                        requestDetailsReader.getRequestPath()));
+        if (entries == null) return false;
+
+        for (IgnoredResourcesConfig entry : entries) {
+            for (QueryParamMatcher queryParamMatcher : entry.queryParamMatchers) {
+                Boolean skip =
+                        queryParamMatcher.matches(
+                                requestDetailsReader
+                                        .getParameters()
+                                        .get(queryParamMatcher.getName()));
+                if (skip != null) {
+                    return skip;
                 }
             }
         }
@@ -711,12 +824,53 @@ public class SyncAccessDecision implements AccessDecision {
         this.fhirR4Client = fhirR4Client;
     }
 
-    class IgnoredResourcesConfig {
+    static class IgnoredResourcesConfig {
         @Getter List<IgnoredResourcesConfig> entries;
         @Getter private String path;
         @Getter private String methodType;
         @Getter private Map<String, Object> queryParams;
 
+        // Entries keyed by request method and path, entries without a method are listed under
+        // every method. The file order is kept for entries sharing a key.
+        private transient volatile Map<String, List<IgnoredResourcesConfig>> entriesByRequest;
+        private transient List<QueryParamMatcher> queryParamMatchers;
+
+        Map<String, List<IgnoredResourcesConfig>> getEntriesByRequest() {
+            if (entriesByRequest == null) {
+                compile();
+            }
+            return entriesByRequest;
+        }
+
+        private void compile() {
+            Map<String, List<IgnoredResourcesConfig>> index = new HashMap<>();
+            if (entries != null) {
+                for (IgnoredResourcesConfig entry : entries) {
+                    List<QueryParamMatcher> matchers = new ArrayList<>();
+                    if (entry.queryParams != null) {
+                        entry.queryParams.forEach(
+                                (name, value) -> matchers.add(new QueryParamMatcher(name, value)));
+                    }
+                    entry.queryParamMatchers = matchers;
+
+                    if (entry.methodType != null) {
+                        String requestKey = getRequestKey(entry.methodType, entry.path);
+                        index.computeIfAbsent(requestKey, key -> new ArrayList<>()).add(entry);
+                    } else {
+                        for (RequestTypeEnum requestType : RequestTypeEnum.values()) {
+                            String requestKey = getRequestKey(requestType.name(), entry.path);
+                            index.computeIfAbsent(requestKey, key -> new ArrayList<>()).add(entry);
+                        }
+                    }
+                }
+            }
+            entriesByRequest = index;
+        }
+
+        static String getRequestKey(String methodType, String path) {
+            return methodType + " " + path;
+        }
+
         @Override
         public String toString() {
             return "SkippedFilesConfig{"
@@ -729,6 +883,61 @@ public class SyncAccessDecision implements AccessDecision {
         }
     }
 
+    /** Query parameter expectation of an ignored resources entry, prepared once per config. */
+    static class QueryParamMatcher {
+        @Getter private final String name;
+        private final boolean matchesAnyValue;
+        private final Object expectedValue;
+        private final Map<?, Integer> expectedValueCardinality;
+
+        QueryParamMatcher(String name, Object expectedValue) {
+            this.name = name;
+            this.expectedValue = expectedValue;
+            this.matchesAnyValue = MATCHES_ANY_VALUE.equals(expectedValue);
+            this.expectedValueCardinality =
+                    expectedValue instanceof List
+                            ? CollectionUtils.getCardinalityMap((List<?>) expectedValue)
+                            : null;
+        }
+
+        /**
+         * @return whether the filtering should be skipped or {@code null} if this parameter does
+         *     not decide it
+         */
+        @Nullable
+        Boolean matches(String[] actualQueryValue) {
+            if (actualQueryValue == null || matchesAnyValue) {
+                return true;
+            }
+            if (actualQueryValue.length != 1) {
+                // We currently do not support multivalued query params in skip-lists.
+                return false;
+            }
+            if (expectedValueCardinality != null) {
+                return expectedValueCardinality.equals(
+                        CollectionUtils.getCardinalityMap(
+                                Arrays.asList(actualQueryValue[0].split(","))));
+            }
+            if (actualQueryValue[0].equals(expectedValue)) {
+                return true;
+            }
+            return null;
+        }
+    }
+
+    private static class LoadedIgnoredResourcesConfig {
+        private final IgnoredResourcesConfig config;
+        private final long lastModified;
+        private volatile long checkedAt;
+
+        private LoadedIgnoredResourcesConfig(
+                IgnoredResourcesConfig config, long lastModified, long checkedAt) {
+            this.config = config;
+            this.lastModified = lastModified;
+            this.checkedAt = checkedAt;
+        }
+    }
+
     public static final class SyncAccessDecisionConstants {
         public static final String LIST_ENTRIES = "list-entries";
         public static final String ROLE_SUPERVISOR = "SUPERVISOR";
@@ -737,5 +946,8 @@ public class SyncAccessDecision implements AccessDecision {
                 100; // Magic Number Alert - Do not change value for maximum stability
         private static final int REL_LOCATION_INITIAL_CHUNK_SIZE =
                 20; // Magic Number Alert - Do not change value for maximum stability
+        public static final String REL_LOCATION_CONCURRENCY_ENV =
+                "OPENSRP_RELATED_ENTITY_LOCATION_CONCURRENCY";
+        private static final int DEFAULT_REL_LOCATION_CONCURRENCY = 4;
     }
 }
@@ -0,0 +1,144 @@
+package org.smartregister.fhir.gateway.plugins.actuator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.smartregister.fhir.gateway.plugins.helper.CacheHelper;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import lombok.Getter;
+
+/**
+ * Actuator endpoint to inspect and flush the {@link CacheHelper} caches at runtime, exposed as
+ * {@code /actuator/gatewaycaches} once it is included in {@code
+ * management.endpoints.web.exposure.include}.
+ *
+ * <p>A {@code DELETE} of a cache drops a single key with {@code ?key=}, all keys starting with a
+ * prefix with {@code ?prefix=}, e.g. the entries of a practitioner or of a location and its
+ * subtree, or the whole cache otherwise. The entries shared with the other replicas through the
+ * second level cache are dropped as well. Since it cannot be searched by prefix, the shared entries
+ * of a prefix are the ones tagged with the id the prefix starts with or with one of the dropped
+ * keys.
+ */
+@Component
+@Endpoint(id = "gatewaycaches")
+public class CacheAdminEndpoint {
+
+    // Characters that cannot be part of a resource id or a Keycloak user id
+    private static final Pattern KEY_SEPARATORS = Pattern.compile("[^A-Za-z0-9.\\-]");
+
+    private final Map<String, Cache<String, ?>> caches;
+
+    public CacheAdminEndpoint() {
+        this(CacheHelper.INSTANCE.getCaches());
+    }
+
+    CacheAdminEndpoint(Map<String, Cache<String, ?>> caches) {
+        this.caches = caches;
+    }
+
+    @ReadOperation
+    public Map<String, CacheDescriptor> caches() {
+        Map<String, CacheDescriptor> descriptors = new LinkedHashMap<>();
+        caches.forEach((name, cache) -> descriptors.put(name, new CacheDescriptor(name, cache)));
+        return descriptors;
+    }
+
+    /** Returns the cache statistics, or a 404 if there is no cache with the name. */
+    @ReadOperation
+    public @Nullable CacheDescriptor cache(@Selector String name) {
+        Cache<String, ?> cache = caches.get(name);
+        return cache != null ? new CacheDescriptor(name, cache) : null;
+    }
+
+    /** Invalidates the key, the keys with the prefix or the whole cache. */
+    @DeleteOperation
+    public @Nullable InvalidationResult invalidate(
+            @Selector String name, @Nullable String key, @Nullable String prefix) {
+        Cache<String, ?> cache = caches.get(name);
+        if (cache == null) {
+            return null;
+        }
+        long sizeBefore = cache.estimatedSize();
+        if (StringUtils.isNotEmpty(key)) {
+            cache.invalidate(key);
+            CacheHelper.INSTANCE.invalidateShared(name, key);
+        } else if (StringUtils.isNotEmpty(prefix)) {
+            List<String> keys = new ArrayList<>();
+            for (String cacheKey : cache.asMap().keySet()) {
+                if (cacheKey.startsWith(prefix)) {
+                    keys.add(cacheKey);
+                }
+            }
+            cache.invalidateAll(keys);
+            Set<String> tags = new LinkedHashSet<>(keys);
+            String prefixId = KEY_SEPARATORS.split(prefix, 2)[0];
+            if (!prefixId.isEmpty()) {
+                tags.add(prefixId);
+            }
+            CacheHelper.INSTANCE.invalidateSharedTagged(name, tags);
+        } else {
+            cache.invalidateAll();
+            CacheHelper.INSTANCE.invalidateAllShared(name);
+        }
+        cache.cleanUp();
+        return new InvalidationResult(name, Math.max(0, sizeBefore - cache.estimatedSize()));
+    }
+
+    @Getter
+    public static final class CacheDescriptor {
+        private final String name;
+        private final long size;
+        private final @Nullable Long weight;
+        private final long hitCount;
+        private final long missCount;
+        private final double hitRate;
+        private final long loadSuccessCount;
+        private final long loadFailureCount;
+        private final double averageLoadPenaltyMillis;
+        private final long evictionCount;
+        private final long evictionWeight;
+
+        CacheDescriptor(String name, Cache<String, ?> cache) {
+            CacheStats stats = cache.stats();
+            OptionalLong cacheWeight = CacheHelper.getWeight(cache);
+            this.name = name;
+            this.size = cache.estimatedSize();
+            this.weight = cacheWeight.isPresent() ? cacheWeight.getAsLong() : null;
+            this.hitCount = stats.hitCount();
+            this.missCount = stats.missCount();
+            this.hitRate = stats.hitRate();
+            this.loadSuccessCount = stats.loadSuccessCount();
+            this.loadFailureCount = stats.loadFailureCount();
+            this.averageLoadPenaltyMillis = stats.averageLoadPenalty() / 1_000_000d;
+            this.evictionCount = stats.evictionCount();
+            this.evictionWeight = stats.evictionWeight();
+        }
+    }
+
+    @Getter
+    public static final class InvalidationResult {
+        private final String name;
+        private final long invalidated;
+
+        InvalidationResult(String name, long invalidated) {
+            this.name = name;
+            this.invalidated = invalidated;
+        }
+    }
+}
@@ -5,16 +5,29 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpStatus;
+import org.hl7.fhir.r4.model.Bundle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.Constants;
+import org.smartregister.fhir.gateway.plugins.helper.CachedResponse;
+import org.smartregister.fhir.gateway.plugins.helper.ETagHelper;
 import org.smartregister.fhir.gateway.plugins.helper.FhirClientPool;
+import org.smartregister.fhir.gateway.plugins.helper.ResponseEncoder;
+import org.smartregister.fhir.gateway.plugins.helper.StreamingResponseHelper;
 import org.smartregister.fhir.gateway.plugins.utils.RestUtils;
 
+import com.auth0.jwt.interfaces.DecodedJWT;
 import com.google.fhir.gateway.TokenVerifier;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
+import jakarta.annotation.Nullable;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -24,8 +37,12 @@ public abstract class BaseEndpoint extends HttpServlet {
 
     protected static TokenVerifier tokenVerifier;
     protected final FhirContext fhirR4Context = FhirContext.forR4Cached();
-    protected final IParser fhirR4JsonParser = fhirR4Context.newJsonParser().setPrettyPrint(true);
+    protected final IParser fhirR4JsonParser = fhirR4Context.newJsonParser().setPrettyPrint(false);
+    protected final IParser fhirR4PrettyJsonParser =
+            fhirR4Context.newJsonParser().setPrettyPrint(true);
     protected final FhirClientPool fhirClientPool = FhirClientPool.getInstance(fhirR4Context);
+    protected final StreamingResponseHelper streamingResponseHelper =
+            new StreamingResponseHelper(fhirR4JsonParser);
 
     static {
         try {
@@ -42,6 +59,164 @@ public abstract class BaseEndpoint extends HttpServlet {
 
     protected BaseEndpoint() {}
 
+    /**
+     * Writes the Bundle as JSON, or its entries as newline delimited JSON if requested. The Bundle
+     * is compressed if the client accepts it and indented only with {@code _pretty=true}.
+     */
+    protected void writeBundle(
+            HttpServletRequest request, HttpServletResponse response, Bundle bundle)
+            throws IOException {
+        writeBundle(request, response, bundle, null, List.of());
+    }
+
+    /**
+     * Writes the Bundle like {@link #writeBundle(HttpServletRequest, HttpServletResponse, Bundle)}
+     * with an ETag. The body is left out with a 304 if the If-None-Match header of the request
+     * holds the ETag. The ETag is cached under the response key, if given, for {@link
+     * #sendNotModifiedIfCached} to answer the next conditional request without the Bundle, and so
+     * is the encoded JSON body for {@link #sendCachedResponse}. The body is shared with the other
+     * replicas tagged with the dependency ids, see {@link #getDependencyIds}.
+     *
+     * <p>The body is encoded once and hashed as it is encoded, NDJSON included, so it is buffered
+     * rather than streamed. The random Bundle id is dropped first, so the same content is always
+     * sent with the same ETag.
+     */
+    protected void writeBundle(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            Bundle bundle,
+            @Nullable String responseKey,
+            Collection<String> dependencyIds)
+            throws IOException {
+        String representation = getRepresentation(request);
+        boolean gzipped = ResponseEncoder.isGzipAccepted(request);
+        String cacheKey =
+                responseKey != null
+                        ? getResponseCacheKey(responseKey, representation, gzipped)
+                        : null;
+        if (StreamingResponseHelper.isNdjsonRequested(request)) {
+            CachedResponse ndjsonResponse =
+                    CachedResponse.encodeNdjson(fhirR4JsonParser, bundle, gzipped);
+            // Only the ETag is cached, the body is sent with the links of the Bundle in a header
+            if (cacheKey != null) {
+                ETagHelper.cacheETag(cacheKey, ndjsonResponse.getETag());
+            }
+            if (!sendNotModified(request, response, ndjsonResponse.getETag())) {
+                streamingResponseHelper.setLinkHeader(response, bundle);
+                ndjsonResponse.writeTo(response);
+            }
+            return;
+        }
+        IParser parser =
+                ResponseEncoder.isPrettyRequested(request)
+                        ? fhirR4PrettyJsonParser
+                        : fhirR4JsonParser;
+        bundle.setIdElement(null);
+        CachedResponse cachedResponse =
+                CachedResponse.encode(parser, bundle, "application/json", gzipped);
+        if (cacheKey != null) {
+            ETagHelper.cacheETag(cacheKey, cachedResponse.getETag());
+            CachedResponse.cache(cacheKey, cachedResponse, dependencyIds);
+        }
+        if (!sendNotModified(request, response, cachedResponse.getETag())) {
+            cachedResponse.writeTo(response);
+        }
+    }
+
+    /**
+     * Answers a conditional request with a 304 if the ETag cached for the response key is in its
+     * If-None-Match header. Returns whether the response was sent, in which case the Bundle does
+     * not need to be built.
+     */
+    protected boolean sendNotModifiedIfCached(
+            HttpServletRequest request, HttpServletResponse response, String responseKey) {
+        if (request.getHeader(Constants.IF_NONE_MATCH) == null) {
+            return false;
+        }
+        String eTag =
+                ETagHelper.getCachedETag(
+                        getResponseCacheKey(
+                                responseKey,
+                                getRepresentation(request),
+                                ResponseEncoder.isGzipAccepted(request)));
+        return eTag != null && sendNotModified(request, response, eTag);
+    }
+
+    /**
+     * Writes the encoded body cached for the response key, if any, or a 304 if the If-None-Match
+     * header of the request holds its ETag. Returns whether the response was sent, in which case
+     * the Bundle does not need to be built. NDJSON responses are streamed and are not cached.
+     */
+    protected boolean sendCachedResponse(
+            HttpServletRequest request, HttpServletResponse response, String responseKey)
+            throws IOException {
+        String representation = getRepresentation(request);
+        if (Constants.NDJSON_FORMAT.equals(representation)) {
+            return false;
+        }
+        String cacheKey =
+                getResponseCacheKey(
+                        responseKey, representation, ResponseEncoder.isGzipAccepted(request));
+        CachedResponse cachedResponse = CachedResponse.getCached(cacheKey);
+        if (cachedResponse == null) {
+            return false;
+        }
+        // The response may have come from another replica, or outlived the cached ETag
+        ETagHelper.cacheETag(cacheKey, cachedResponse.getETag());
+        if (!sendNotModified(request, response, cachedResponse.getETag())) {
+            cachedResponse.writeTo(response);
+        }
+        return true;
+    }
+
+    /**
+     * The ids a response depends on: the user it is built for and the resource ids passed in the
+     * parameters. A write of one of the resources, or of a resource linked to the user, drops the
+     * response on every replica.
+     */
+    protected static List<String> getDependencyIds(
+            HttpServletRequest request, DecodedJWT jwt, String... idParameters) {
+        List<String> dependencyIds = new ArrayList<>();
+        if (StringUtils.isNotBlank(jwt.getSubject())) {
+            dependencyIds.add(jwt.getSubject());
+        }
+        for (String idParameter : idParameters) {
+            String ids = request.getParameter(idParameter);
+            if (StringUtils.isBlank(ids)) {
+                continue;
+            }
+            for (String id : ids.split(",")) {
+                if (StringUtils.isNotBlank(id)) {
+                    dependencyIds.add(id.trim());
+                }
+            }
+        }
+        return dependencyIds;
+    }
+
+    /** Sends a 304 with the ETag if the If-None-Match header of the request holds it. */
+    private static boolean sendNotModified(
+            HttpServletRequest request, HttpServletResponse response, String eTag) {
+        if (!ETagHelper.matches(request.getHeader(Constants.IF_NONE_MATCH), eTag)) {
+            return false;
+        }
+        response.setHeader(Constants.ETAG, eTag);
+        response.setStatus(HttpStatus.SC_NOT_MODIFIED);
+        return true;
+    }
+
+    private static String getResponseCacheKey(
+            String responseKey, String representation, boolean gzipped) {
+        return responseKey + "|" + representation + (gzipped ? "|gzip" : "");
+    }
+
+    private static String getRepresentation(HttpServletRequest request) {
+        if (StreamingResponseHelper.isNdjsonRequested(request)) {
+            return Constants.NDJSON_FORMAT;
+        }
+        return ResponseEncoder.isPrettyRequested(request) ? "json-pretty" : "json";
+    }
+
     protected void writeUTF8StringToStream(OutputStream fileOutputStream, String content) {
         try (OutputStreamWriter outputStreamWriter =
                         new OutputStreamWriter(fileOutputStream, StandardCharsets.UTF_8);
@@ -11,6 +11,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smartregister.fhir.gateway.plugins.Constants;
 import org.smartregister.fhir.gateway.plugins.helper.LocationHierarchyEndpointHelper;
+import org.smartregister.fhir.gateway.plugins.utils.JwtUtils;
 import org.smartregister.fhir.gateway.plugins.utils.RestUtils;
 
 import com.auth0.jwt.interfaces.DecodedJWT;
@@ -55,14 +56,30 @@ public class LocationHierarchyEndpoint extends BaseEndpoint {
 
             // Always enable streaming when mode=list for better performance
             boolean useStreaming = Constants.LIST.equals(request.getParameter(Constants.MODE));
+            String responseKey =
+                    "LocationHierarchy|"
+                            + request.getQueryString()
+                            + "|"
+                            + JwtUtils.getAccessKeyFromJWT(verifiedJwt);
+            List<String> dependencyIds =
+                    getDependencyIds(
+                            request,
+                            verifiedJwt,
+                            Constants.IDENTIFIER,
+                            Constants.SYNC_LOCATIONS_SEARCH_PARAM);
 
+            // Set before the body is written so that a 304 can still replace it
+            response.setStatus(HttpStatus.SC_OK);
+            if (!useStreaming
+                    && (sendNotModifiedIfCached(request, response, responseKey)
+                            || sendCachedResponse(request, response, responseKey))) {
+                return;
+            }
             if (identifier != null && !identifier.isEmpty()) {
                 Bundle resultBundle =
                         locationHierarchyEndpointHelper.handleIdentifierRequest(
                                 request, identifier);
-                String resultContent = fhirR4JsonParser.encodeResourceToString(resultBundle);
-                response.setContentType("application/json");
-                writeUTF8StringToStream(response.getOutputStream(), resultContent);
+                writeBundle(request, response, resultBundle, responseKey, dependencyIds);
             } else if (useStreaming) {
                 // Use streaming for list mode (automatically enabled when mode=list)
                 // Extract location IDs as in the non-streaming path
@@ -75,11 +92,8 @@ public class LocationHierarchyEndpoint extends BaseEndpoint {
                 Bundle resultBundle =
                         locationHierarchyEndpointHelper.handleNonIdentifierRequest(
                                 request, verifiedJwt);
-                String resultContent = fhirR4JsonParser.encodeResourceToString(resultBundle);
-                response.setContentType("application/json");
-                writeUTF8StringToStream(response.getOutputStream(), resultContent);
+                writeBundle(request, response, resultBundle, responseKey, dependencyIds);
             }
-            response.setStatus(HttpStatus.SC_OK);
         } catch (AuthenticationException authenticationException) {
             response.setContentType("application/json");
             writeUTF8StringToStream(
@@ -6,12 +6,15 @@ import static org.smartregister.fhir.gateway.plugins.Constants.KEYCLOAK_UUID;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import org.apache.http.HttpStatus;
 import org.hl7.fhir.r4.model.Bundle;
-import org.smartregister.fhir.gateway.plugins.Constants;
+import org.hl7.fhir.r4.model.Resource;
 import org.smartregister.fhir.gateway.plugins.SyncAccessDecision;
+import org.smartregister.fhir.gateway.plugins.helper.FhirClientRegistry;
 import org.smartregister.fhir.gateway.plugins.helper.PractitionerDetailsEndpointHelper;
+import org.smartregister.fhir.gateway.plugins.helper.StreamingResponseHelper;
 import org.smartregister.fhir.gateway.plugins.utils.JwtUtils;
 import org.smartregister.fhir.gateway.plugins.utils.RestUtils;
 import org.smartregister.fhir.gateway.plugins.utils.Utils;
@@ -32,8 +35,7 @@ public class PractitionerDetailEndpoint extends BaseEndpoint {
     public PractitionerDetailEndpoint() {
         this.practitionerDetailsEndpointHelper =
                 new PractitionerDetailsEndpointHelper(
-                        fhirR4Context.newRestfulGenericClient(
-                                System.getenv(Constants.PROXY_TO_ENV)));
+                        FhirClientRegistry.INSTANCE.getClient(fhirR4Context));
     }
 
     @Override
@@ -47,13 +49,34 @@ public class PractitionerDetailEndpoint extends BaseEndpoint {
             DecodedJWT jwt = JWT.decode(token);
             List<String> roles = JwtUtils.getUserRolesFromJWT(jwt);
             String keycloakUuid = request.getParameter(KEYCLOAK_UUID);
+            String responseKey =
+                    "PractitionerDetail|"
+                            + request.getQueryString()
+                            + "|"
+                            + JwtUtils.getAccessKeyFromJWT(jwt);
+            List<String> dependencyIds = getDependencyIds(request, jwt, KEYCLOAK_UUID);
 
-            Bundle bundle = getPractitionerDetailsBundle(keycloakUuid, roles, request);
-            String resultContent = fhirR4JsonParser.encodeResourceToString(bundle);
-
-            response.setContentType("application/json");
-            writeUTF8StringToStream(response.getOutputStream(), resultContent);
+            // Set before the body is written so that a 304 can still replace it
             response.setStatus(HttpStatus.SC_OK);
+            if (sendNotModifiedIfCached(request, response, responseKey)
+                    || sendCachedResponse(request, response, responseKey)) {
+                return;
+            }
+            if (StreamingResponseHelper.isNdjsonRequested(request)) {
+                // The resources are written as they are, without a Bundle around them
+                streamingResponseHelper.streamResourcesAsNdjson(
+                        request,
+                        response,
+                        getPractitionerDetailsResources(keycloakUuid, roles),
+                        null);
+            } else {
+                writeBundle(
+                        request,
+                        response,
+                        getPractitionerDetailsBundle(keycloakUuid, roles, request),
+                        responseKey,
+                        dependencyIds);
+            }
         } catch (AuthenticationException authenticationException) {
             response.setContentType("application/json");
             writeUTF8StringToStream(
@@ -66,6 +89,25 @@ public class PractitionerDetailEndpoint extends BaseEndpoint {
         }
     }
 
+    private List<Resource> getPractitionerDetailsResources(
+            String keycloakUuid, List<String> roles) {
+        if (roles.contains(SyncAccessDecision.SyncAccessDecisionConstants.ROLE_SUPERVISOR)) {
+            Bundle bundle =
+                    practitionerDetailsEndpointHelper.getSupervisorPractitionerDetailsByKeycloakId(
+                            keycloakUuid);
+            return bundle.getEntry().stream()
+                    .map(Bundle.BundleEntryComponent::getResource)
+                    .collect(Collectors.toList());
+        }
+        PractitionerDetails practitionerDetails =
+                practitionerDetailsEndpointHelper.getPractitionerDetailsByKeycloakId(keycloakUuid);
+        if (org.smartregister.utils.Constants.PRACTITIONER_NOT_FOUND.equals(
+                practitionerDetails.getId())) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(practitionerDetails);
+    }
+
     private Bundle getPractitionerDetailsBundle(
             String keycloakUuid, List<String> roles, HttpServletRequest request) {
         if (roles.contains(SyncAccessDecision.SyncAccessDecisionConstants.ROLE_SUPERVISOR)) {
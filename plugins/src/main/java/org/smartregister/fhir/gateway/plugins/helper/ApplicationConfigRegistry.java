@@ -0,0 +1,176 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.utils.EnvUtil;
+import org.smartregister.fhir.gateway.plugins.utils.Utils;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.JsonObject;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.SearchStyleEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import jakarta.annotation.Nullable;
+
+/**
+ * Registry of the application configs keyed by the {@code fhir_core_app_id}. For every application
+ * it holds the Composition, the application config Binary and the parsed config so that the sync
+ * strategy is not fetched from the FHIR server on every request.
+ *
+ * <p>Entries are refreshed in the background on the {@link UpstreamExecutor} once they are older
+ * than {@link #OPENSRP_APP_CONFIG_REFRESH_SECONDS}, requests keep being served the previous config
+ * while the refresh runs. Configs of applications that are no longer used are evicted after {@link
+ * #OPENSRP_APP_CONFIG_EXPIRY_SECONDS}.
+ */
+public enum ApplicationConfigRegistry {
+    INSTANCE;
+
+    public static final String OPENSRP_APP_CONFIG_REFRESH_SECONDS =
+            "OPENSRP_APP_CONFIG_REFRESH_SECONDS";
+    public static final String OPENSRP_APP_CONFIG_EXPIRY_SECONDS =
+            "OPENSRP_APP_CONFIG_EXPIRY_SECONDS";
+    private static final long DEFAULT_REFRESH_SECONDS = 300;
+    private static final long DEFAULT_EXPIRY_SECONDS = 3600;
+    private static final int MAX_APPLICATIONS = 1_000;
+
+    // Not static, enum constants are created before the static fields are initialised
+    private final Logger logger = LoggerFactory.getLogger(ApplicationConfigRegistry.class);
+    private final LoadingCache<String, ApplicationConfig> applicationConfigs;
+
+    ApplicationConfigRegistry() {
+        long refreshSeconds =
+                getDurationInSeconds(OPENSRP_APP_CONFIG_REFRESH_SECONDS, DEFAULT_REFRESH_SECONDS);
+        long expirySeconds =
+                Math.max(
+                        refreshSeconds,
+                        getDurationInSeconds(
+                                OPENSRP_APP_CONFIG_EXPIRY_SECONDS, DEFAULT_EXPIRY_SECONDS));
+        applicationConfigs =
+                Caffeine.newBuilder()
+                        .refreshAfterWrite(Math.max(1, refreshSeconds), TimeUnit.SECONDS)
+                        .expireAfterAccess(Math.max(1, expirySeconds), TimeUnit.SECONDS)
+                        .maximumSize(MAX_APPLICATIONS)
+                        .executor(UpstreamExecutor.INSTANCE)
+                        .build(this::loadApplicationConfig);
+    }
+
+    public ApplicationConfig getApplicationConfig(String applicationId) {
+        if (StringUtils.isBlank(applicationId)) {
+            throw new IllegalStateException(
+                    "No Composition resource found for application id '" + applicationId + "'");
+        }
+
+        if (CacheHelper.INSTANCE.skipCache()) {
+            return loadApplicationConfig(applicationId);
+        }
+        return applicationConfigs.get(applicationId);
+    }
+
+    public String getSyncStrategy(String applicationId) {
+        return getApplicationConfig(applicationId).getSyncStrategy();
+    }
+
+    /** Drops the config of the application so that the next lookup fetches it again. */
+    public void invalidate(String applicationId) {
+        applicationConfigs.invalidate(applicationId);
+    }
+
+    public void invalidateAll() {
+        applicationConfigs.invalidateAll();
+    }
+
+    /** Drops the configs of the applications whose Composition or config Binary has the id. */
+    public void invalidateResource(String resourceId) {
+        applicationConfigs
+                .asMap()
+                .values()
+                .removeIf(
+                        applicationConfig ->
+                                hasId(applicationConfig.getComposition(), resourceId)
+                                        || hasId(applicationConfig.getBinary(), resourceId));
+    }
+
+    private static boolean hasId(@Nullable IBaseResource resource, String resourceId) {
+        return resource != null && resourceId.equals(resource.getIdElement().getIdPart());
+    }
+
+    @VisibleForTesting
+    void put(String applicationId, ApplicationConfig applicationConfig) {
+        applicationConfigs.put(applicationId, applicationConfig);
+    }
+
+    private ApplicationConfig loadApplicationConfig(String applicationId) {
+        logger.info("Loading application config for application id {}", applicationId);
+        FhirContext fhirContext = FhirContext.forR4Cached();
+        IGenericClient client = Utils.createFhirClientForR4(fhirContext);
+
+        Bundle compositionBundle =
+                client.search()
+                        .forResource(Composition.class)
+                        .where(Composition.IDENTIFIER.exactly().identifier(applicationId))
+                        .usingStyle(SearchStyleEnum.POST)
+                        .returnBundle(Bundle.class)
+                        .execute();
+        Composition composition = (Composition) compositionBundle.getEntryFirstRep().getResource();
+        if (composition == null) {
+            throw new IllegalStateException(
+                    "No Composition resource found for application id '" + applicationId + "'");
+        }
+
+        String binaryResourceReference = Utils.getBinaryResourceReference(composition, logger);
+        Binary binary =
+                Utils.readApplicationConfigBinaryResource(binaryResourceReference, fhirContext);
+        return new ApplicationConfig(composition, binary, Utils.readApplicationConfig(binary));
+    }
+
+    private long getDurationInSeconds(String envVariable, long defaultSeconds) {
+        String seconds = EnvUtil.getEnvironmentVar(envVariable, String.valueOf(defaultSeconds));
+        try {
+            return Long.parseLong(seconds.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid {} value '{}', using {}", envVariable, seconds, defaultSeconds);
+            return defaultSeconds;
+        }
+    }
+
+    /** The resolved configuration of a single application. */
+    public static final class ApplicationConfig {
+        private final Composition composition;
+        private final Binary binary;
+        private final JsonObject config;
+        private final String syncStrategy;
+
+        public ApplicationConfig(Composition composition, Binary binary, JsonObject config) {
+            this.composition = composition;
+            this.binary = binary;
+            this.config = config;
+            this.syncStrategy = Utils.findSyncStrategy(config);
+        }
+
+        public Composition getComposition() {
+            return composition;
+        }
+
+        public Binary getBinary() {
+            return binary;
+        }
+
+        public JsonObject getConfig() {
+            return config;
+        }
+
+        public String getSyncStrategy() {
+            return syncStrategy;
+        }
+    }
+}
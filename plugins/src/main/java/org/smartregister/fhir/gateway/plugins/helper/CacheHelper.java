@@ -1,50 +1,341 @@
 package org.smartregister.fhir.gateway.plugins.helper;
 
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.DomainResource;
 import org.hl7.fhir.r4.model.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.implementation.RedisL2Cache;
+import org.smartregister.fhir.gateway.plugins.interfaces.L2Cache;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.Nullable;
 
 public enum CacheHelper {
     INSTANCE;
-    public final Cache<String, Map<String, List<String>>> cache;
+    public final LoadingCache<String, Map<String, List<String>>> cache;
     final Cache<String, DomainResource> resourceCache;
     final Cache<String, List<Location>> locationListCache;
-    final Cache<String, String> stringCache;
     final Cache<String, List<String>> listStringCache;
+    final Cache<String, Boolean> inventoryCache;
+    final Cache<String, String> eTagCache;
+    final Cache<String, CachedResponse> responseCache;
+    private final Map<String, Cache<String, ?>> caches;
+    private final RefreshAheadLoader<Map<String, List<String>>> syncStrategyIdsLoader;
+    private volatile @Nullable L2Cache l2Cache;
 
     CacheHelper() {
-        cache =
-                Caffeine.newBuilder()
-                        .expireAfterWrite(getCacheExpiryDurationInSeconds(), TimeUnit.SECONDS)
-                        .maximumSize(DEFAULT_CACHE_SIZE)
-                        .build();
+        long expirySeconds = getCacheExpiryDurationInSeconds();
+        // The ids of active users are recomputed in the background before they expire
+        CacheSpec syncIdsSpec =
+                CacheSpec.fromEnvironment(
+                        "SYNC_IDS", expirySeconds, 0, DEFAULT_MAX_IDS, expirySeconds / 2);
+        syncStrategyIdsLoader =
+                new RefreshAheadLoader<>(syncIdsSpec.getExpirySeconds(), MAX_REFRESH_LOADERS);
+        Caffeine<String, Map<String, List<String>>> syncIdsBuilder =
+                syncIdsSpec.withRefresh(
+                        syncIdsSpec.newWeightedBuilder(CacheWeighers.ID_MAP),
+                        UpstreamExecutor.INSTANCE);
+        cache = syncIdsBuilder.build(syncStrategyIdsLoader);
         resourceCache =
-                Caffeine.newBuilder()
-                        .expireAfterWrite(getCacheExpiryDurationInSeconds(), TimeUnit.SECONDS)
-                        .maximumSize(DEFAULT_CACHE_SIZE)
+                CacheSpec.fromEnvironment("RESOURCE", expirySeconds, 0, DEFAULT_MAX_RESOURCES)
+                        .newWeightedBuilder(CacheWeighers.RESOURCE)
                         .build();
         locationListCache =
-                Caffeine.newBuilder()
-                        .expireAfterWrite(getCacheExpiryDurationInSeconds(), TimeUnit.SECONDS)
-                        .maximumSize(DEFAULT_CACHE_SIZE)
-                        .build();
-        stringCache =
-                Caffeine.newBuilder()
-                        .expireAfterWrite(getCacheExpiryDurationInSeconds(), TimeUnit.SECONDS)
-                        .maximumSize(DEFAULT_CACHE_SIZE)
+                CacheSpec.fromEnvironment("LOCATION_LIST", expirySeconds, 0, DEFAULT_MAX_LOCATIONS)
+                        .<String, List<Location>>newWeightedBuilder(CacheWeighers.LIST)
                         .build();
         listStringCache =
-                Caffeine.newBuilder()
-                        .expireAfterWrite(getCacheExpiryDurationInSeconds(), TimeUnit.SECONDS)
-                        .maximumSize(DEFAULT_CACHE_SIZE)
+                CacheSpec.fromEnvironment("ID_LIST", expirySeconds, 0, DEFAULT_MAX_IDS)
+                        .<String, List<String>>newWeightedBuilder(CacheWeighers.LIST)
+                        .build();
+        inventoryCache =
+                CacheSpec.fromEnvironment("INVENTORY", expirySeconds, DEFAULT_CACHE_SIZE, 0)
+                        .newBuilder()
                         .build();
+        eTagCache =
+                CacheSpec.fromEnvironment("ETAG", expirySeconds, DEFAULT_CACHE_SIZE, 0)
+                        .newBuilder()
+                        .build();
+        // Weighed by the size of the encoded bodies in bytes
+        responseCache =
+                CacheSpec.fromEnvironment("RESPONSE", expirySeconds, 0, DEFAULT_MAX_RESPONSE_BYTES)
+                        .newWeightedBuilder(CacheWeighers.RESPONSE)
+                        .build();
+
+        Map<String, Cache<String, ?>> namedCaches = new LinkedHashMap<>();
+        namedCaches.put(SYNC_IDS_CACHE, cache);
+        namedCaches.put(RESOURCE_CACHE, resourceCache);
+        namedCaches.put("location_list", locationListCache);
+        namedCaches.put("id_list", listStringCache);
+        namedCaches.put("inventory", inventoryCache);
+        namedCaches.put("etag", eTagCache);
+        namedCaches.put(RESPONSE_CACHE, responseCache);
+        caches = Collections.unmodifiableMap(namedCaches);
+        bindMetrics(Metrics.globalRegistry);
+        l2Cache = RedisL2Cache.fromEnvironment();
+    }
+
+    /**
+     * Returns the sync strategy ids cached under the key, computing them with the loader on a miss.
+     * The loader is kept with the key, so that the ids are recomputed in the background once they
+     * are older than the refresh interval while the cached ids are still served.
+     */
+    public Map<String, List<String>> getSyncStrategyIds(
+            String key, Supplier<Map<String, List<String>>> loader) {
+        // Computed ids, including refreshed ones, are shared with the other replicas, tagged with
+        // the user and, unless there are too many, the ids for the invalidation after a change
+        Supplier<Map<String, List<String>>> sharingLoader =
+                () -> {
+                    Map<String, List<String>> ids = loader.get();
+                    Set<String> tags = new LinkedHashSet<>();
+                    tags.add(CacheInvalidator.getUserKey(key));
+                    if (ids.values().stream().mapToInt(List::size).sum() <= MAX_ID_TAGS) {
+                        ids.values().forEach(tags::addAll);
+                    }
+                    putShared(SYNC_IDS_CACHE, key, toJsonBytes(ids), tags);
+                    return ids;
+                };
+        syncStrategyIdsLoader.register(key, sharingLoader);
+        return cache.get(
+                key,
+                cacheKey -> {
+                    Map<String, List<String>> sharedIds =
+                            getShared(SYNC_IDS_CACHE, cacheKey, CacheHelper::fromJsonBytes);
+                    return sharedIds != null ? sharedIds : sharingLoader.get();
+                });
+    }
+
+    /**
+     * Returns the hierarchy, location or practitioner details cached under the key, reading it from
+     * the second level cache or computing it with the loader on a miss. Computed resources are
+     * shared with the other replicas, tagged with the ids {@link CacheInvalidator} drops them by.
+     */
+    @Nullable
+    DomainResource getResource(String key, Supplier<? extends DomainResource> loader) {
+        return resourceCache.get(
+                key,
+                cacheKey -> {
+                    DomainResource sharedResource =
+                            getShared(RESOURCE_CACHE, cacheKey, CacheSnapshotStore::decodeResource);
+                    if (sharedResource != null) {
+                        return sharedResource;
+                    }
+                    DomainResource resource = loader.get();
+                    byte[] value =
+                            resource != null ? CacheSnapshotStore.encodeResource(resource) : null;
+                    if (value != null) {
+                        putShared(
+                                RESOURCE_CACHE,
+                                cacheKey,
+                                value,
+                                CacheInvalidator.getResourceTags(cacheKey, resource));
+                    }
+                    return resource;
+                });
+    }
+
+    /**
+     * Replaces the second level cache shared by the gateway replicas, e.g. with another {@link
+     * L2Cache} implementation. Null disables it.
+     */
+    public void setL2Cache(@Nullable L2Cache l2Cache) {
+        this.l2Cache = l2Cache;
+    }
+
+    /**
+     * Reads the entry of the named cache from the second level cache. Returns null if there is no
+     * second level cache, no entry or the entry cannot be read.
+     */
+    @Nullable
+    <V> V getShared(String cacheName, String key, Function<byte[], V> deserializer) {
+        L2Cache sharedCache = getSharedCache(cacheName);
+        Long generation = getSharedGeneration(sharedCache, cacheName);
+        if (sharedCache == null || generation == null) {
+            return null;
+        }
+        byte[] value = sharedCache.get(getSharedKey(cacheName, generation, key));
+        if (value == null) {
+            return null;
+        }
+        try {
+            return deserializer.apply(value);
+        } catch (RuntimeException e) {
+            logger.warn("Ignoring unreadable {} entry of the second level cache", cacheName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the entry of the named cache to the second level cache, with the cache's expiry. The
+     * entry is tagged with the tags for {@link #invalidateSharedTagged}.
+     */
+    void putShared(String cacheName, String key, byte[] value, Collection<String> tags) {
+        L2Cache sharedCache = getSharedCache(cacheName);
+        Long generation = getSharedGeneration(sharedCache, cacheName);
+        if (sharedCache == null || generation == null) {
+            return;
+        }
+        long ttlSeconds =
+                getExpirySeconds(caches.get(cacheName)).orElse(DEFAULT_SHARED_TTL_SECONDS);
+        List<String> tagKeys = new ArrayList<>(tags.size());
+        for (String tag : tags) {
+            tagKeys.add(getSharedTagKey(cacheName, generation, tag));
+        }
+        sharedCache.put(getSharedKey(cacheName, generation, key), value, ttlSeconds, tagKeys);
+    }
+
+    /** Drops the entry of the named cache from the second level cache. */
+    public void invalidateShared(String cacheName, String key) {
+        L2Cache sharedCache = getSharedCache(cacheName);
+        Long generation = getSharedGeneration(sharedCache, cacheName);
+        if (sharedCache != null && generation != null) {
+            sharedCache.invalidate(getSharedKey(cacheName, generation, key));
+        }
+    }
+
+    /**
+     * Drops the entries of the named cache that were tagged with one of the tags from the second
+     * level cache, whether or not they are cached by this replica.
+     */
+    public void invalidateSharedTagged(String cacheName, Collection<String> tags) {
+        L2Cache sharedCache = getSharedCache(cacheName);
+        if (sharedCache == null || tags.isEmpty()) {
+            return;
+        }
+        Long generation = getSharedGeneration(sharedCache, cacheName);
+        if (generation != null) {
+            List<String> tagKeys = new ArrayList<>(tags.size());
+            for (String tag : tags) {
+                tagKeys.add(getSharedTagKey(cacheName, generation, tag));
+            }
+            sharedCache.invalidateMembers(tagKeys);
+        }
+    }
+
+    /**
+     * Drops all the entries of the named cache from the second level cache. The entries are not
+     * deleted one by one, the generation in their keys is moved on so that they are no longer read
+     * and expire on their own.
+     */
+    public void invalidateAllShared(String cacheName) {
+        L2Cache sharedCache = getSharedCache(cacheName);
+        if (sharedCache != null
+                && sharedCache.increment(getSharedGenerationKey(cacheName), 1) == null) {
+            logger.warn("Failed to invalidate the {} entries of the second level cache", cacheName);
+        }
+    }
+
+    /** The time to live of the entries of the cache, if they expire after they were written. */
+    static OptionalLong getExpirySeconds(Cache<?, ?> cache) {
+        return cache.policy()
+                .expireAfterWrite()
+                .map(expiration -> OptionalLong.of(expiration.getExpiresAfter(TimeUnit.SECONDS)))
+                .orElse(OptionalLong.empty());
+    }
+
+    /** Whether there is a second level cache shared by the gateway replicas. */
+    boolean hasL2Cache() {
+        return l2Cache != null;
+    }
+
+    /** The second level cache, if there is one and the named cache is shared through it. */
+    private @Nullable L2Cache getSharedCache(String cacheName) {
+        return SHARED_CACHES.contains(cacheName) ? l2Cache : null;
+    }
+
+    /** The current generation of the entries of the named cache, null if it cannot be read. */
+    private static @Nullable Long getSharedGeneration(
+            @Nullable L2Cache sharedCache, String cacheName) {
+        return sharedCache != null
+                ? sharedCache.increment(getSharedGenerationKey(cacheName), 0)
+                : null;
+    }
+
+    private static String getSharedGenerationKey(String cacheName) {
+        return SHARED_KEY_PREFIX + cacheName + ":generation";
+    }
+
+    private static String getSharedKey(String cacheName, long generation, String key) {
+        return SHARED_KEY_PREFIX + cacheName + ":" + generation + ":" + key;
+    }
+
+    private static String getSharedTagKey(String cacheName, long generation, String tag) {
+        return SHARED_KEY_PREFIX + cacheName + ":tags:" + generation + ":" + tag;
+    }
+
+    static byte[] toJsonBytes(Map<String, List<String>> ids) {
+        return GSON.toJson(ids).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static Map<String, List<String>> fromJsonBytes(byte[] json) {
+        return GSON.fromJson(new String(json, StandardCharsets.UTF_8), SYNC_IDS_TYPE);
+    }
+
+    /**
+     * Drops the entries of all caches, and of the second level cache, e.g. when the changes to
+     * apply are not known.
+     */
+    public void invalidateAll() {
+        caches.values().forEach(Cache::invalidateAll);
+        SHARED_CACHES.forEach(this::invalidateAllShared);
+    }
+
+    /** The caches by name, in the order they are listed by the admin endpoint. */
+    public Map<String, Cache<String, ?>> getCaches() {
+        return caches;
+    }
+
+    /**
+     * Binds the statistics of every cache, tagged with the cache name, and the weight of the
+     * weighed caches as {@value #WEIGHT_METRIC_NAME}.
+     */
+    private void bindMetrics(MeterRegistry meterRegistry) {
+        caches.forEach(
+                (name, namedCache) -> {
+                    CaffeineCacheMetrics.monitor(meterRegistry, namedCache, name);
+                    if (getWeight(namedCache).isPresent()) {
+                        Gauge.builder(WEIGHT_METRIC_NAME, namedCache, it -> getWeight(it).orElse(0))
+                                .description("Estimated weight of the cache entries")
+                                .tag("cache", name)
+                                .register(meterRegistry);
+                    }
+                });
+    }
+
+    /** Returns the total weight of the entries of a weighed cache, empty for other caches. */
+    public static OptionalLong getWeight(Cache<?, ?> cache) {
+        Optional<? extends Policy.Eviction<?, ?>> eviction = cache.policy().eviction();
+        if (eviction.isEmpty() || !eviction.get().isWeighted()) {
+            return OptionalLong.empty();
+        }
+        return eviction.get().weightedSize();
     }
 
     private int getCacheExpiryDurationInSeconds() {
@@ -83,6 +374,28 @@ public enum CacheHelper {
             "opensrp_cache_timeout_seconds"; // Fixed typo
     public static final String OPENSRP_CACHE_EXPIRY_SECONDS_LEGACY =
             "openrsp_cache_timeout_seconds"; // Legacy name for backward compatibility
+    static final String WEIGHT_METRIC_NAME = "opensrp.cache.weight";
+    public static final String SYNC_IDS_CACHE = "sync_ids";
+    public static final String RESPONSE_CACHE = "response";
+    public static final String RESOURCE_CACHE = "resource";
+    private static final Logger logger = LoggerFactory.getLogger(CacheHelper.class);
+    // The caches whose entries are shared through the second level cache
+    private static final Set<String> SHARED_CACHES =
+            Set.of(SYNC_IDS_CACHE, RESOURCE_CACHE, RESPONSE_CACHE);
+    private static final String SHARED_KEY_PREFIX = "opensrp:";
+    private static final long DEFAULT_SHARED_TTL_SECONDS = 300;
+    // Every tag is a set the put adds the key to, entries holding more ids than this are tagged
+    // with their user or their own id only
+    static final int MAX_ID_TAGS = 100;
+    private static final Gson GSON = new Gson();
+    private static final Type SYNC_IDS_TYPE =
+            new TypeToken<Map<String, List<String>>>() {}.getType();
+    // Default bounds of the weighed caches, in the units of their CacheWeighers
+    private static final long DEFAULT_MAX_IDS = 1_000_000;
+    private static final long MAX_REFRESH_LOADERS = 50_000;
+    private static final long DEFAULT_MAX_RESOURCES = 1_000_000;
+    private static final long DEFAULT_MAX_LOCATIONS = 200_000;
+    private static final long DEFAULT_MAX_RESPONSE_BYTES = 64L * 1024 * 1024;
     private static final int DEFAULT_CACHE_SIZE =
             5_000; // Increased from 1,000 to 5,000 for better performance
 }
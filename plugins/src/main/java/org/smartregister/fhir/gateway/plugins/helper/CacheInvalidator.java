@@ -0,0 +1,692 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.Constants;
+import org.smartregister.model.location.LocationHierarchy;
+import org.smartregister.model.practitioner.FhirPractitionerDetails;
+import org.smartregister.model.practitioner.PractitionerDetails;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.FhirTerser;
+import jakarta.annotation.Nullable;
+
+/**
+ * Applies changes of the resources the cached hierarchies, practitioner details and sync strategy
+ * ids are built from to the {@link CacheHelper} caches, so that a write is visible on the next
+ * request instead of once the entries expire.
+ *
+ * <p>Only the entries affected by the change are dropped. They are found from the ids the changed
+ * resource is linked to: the location and its old and new ancestors for a Location, the resource
+ * and the resources it references otherwise. Hierarchies rooted at one of the locations, entries
+ * holding one of the ids and the responses of the users of those entries are invalidated, locally
+ * and in the second level cache.
+ */
+public enum CacheInvalidator {
+    INSTANCE;
+
+    /** The resource types whose changes are applied to the caches. */
+    public static final Set<String> RESOURCE_TYPES =
+            Set.of(
+                    Constants.ResourceType.LOCATION,
+                    Constants.ResourceType.CARE_TEAM,
+                    Constants.ResourceType.ORGANIZATION,
+                    Constants.ResourceType.ORGANIZATION_AFFILIATION,
+                    Constants.ResourceType.PRACTITIONER_ROLE,
+                    Constants.ResourceType.PRACTITIONER,
+                    Constants.ResourceType.GROUP);
+
+    private static final String LOCATION_KEY_PREFIX = "location_";
+    // Characters that cannot be part of a resource id or a Keycloak user id
+    private static final Pattern KEY_SEPARATORS = Pattern.compile("[^A-Za-z0-9.\\-]+");
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheInvalidator.class);
+
+    private volatile Executor executor = UpstreamExecutor.INSTANCE;
+
+    /**
+     * Invalidates the entries affected by the write of the resource.
+     *
+     * @param fhirClient used to look up the users of practitioners that are referenced by the
+     *     resource but not cached, and a Location whose state is unknown, may be null to skip the
+     *     look ups
+     * @param resource the resource as it is after the write, null if it is unknown, e.g. after a
+     *     PATCH
+     */
+    public void onResourceChanged(
+            @Nullable IGenericClient fhirClient,
+            String resourceType,
+            String resourceId,
+            @Nullable IBaseResource resource) {
+        onResourcesChanged(
+                fhirClient, List.of(ResourceChange.written(resourceType, resourceId, resource)));
+    }
+
+    /** Invalidates the entries affected by the deletion of the resource. */
+    public void onResourceDeleted(
+            @Nullable IGenericClient fhirClient, String resourceType, String resourceId) {
+        onResourcesChanged(fhirClient, List.of(ResourceChange.deleted(resourceType, resourceId)));
+    }
+
+    /**
+     * Invalidates the entries affected by the changes, e.g. the writes of a transaction Bundle, in
+     * a single pass over the local caches. The look ups on the FHIR server and the invalidation of
+     * the second level cache run on the {@link UpstreamExecutor} instead of the caller's thread,
+     * the entries the look ups find are invalidated once they complete.
+     *
+     * @param fhirClient used for the look ups, see {@link #onResourceChanged}, may be null to skip
+     *     them
+     */
+    public void onResourcesChanged(
+            @Nullable IGenericClient fhirClient, Collection<ResourceChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        Invalidation invalidation = new Invalidation();
+        Map<String, Location> indexChanges = new HashMap<>();
+        List<String> unknownLocationIds = new ArrayList<>();
+        Set<String> practitionerIds = new HashSet<>();
+        for (ResourceChange change : changes) {
+            invalidation.addChange(change, practitionerIds);
+            if (!Constants.ResourceType.LOCATION.equals(change.resourceType)) {
+                continue;
+            }
+            if (change.resource instanceof Location) {
+                indexChanges.put(change.resourceId, (Location) change.resource);
+            } else if (change.deleted) {
+                indexChanges.put(change.resourceId, null);
+            } else {
+                // Removing a location whose state is unknown would drop its subtree from the
+                // index, it is read back instead
+                unknownLocationIds.add(change.resourceId);
+            }
+        }
+        LocationGraphIndex.INSTANCE.updateAll(indexChanges);
+
+        boolean skipCache = CacheHelper.INSTANCE.skipCache();
+        List<String> uncachedPractitionerIds =
+                skipCache
+                        ? List.of()
+                        : addCachedUserIds(
+                                practitionerIds,
+                                CacheHelper.INSTANCE.resourceCache.asMap(),
+                                invalidation.userIds);
+        if (!skipCache) {
+            int invalidated = invalidate(invalidation);
+            logger.debug(
+                    "Invalidated {} cache entries after {} resource changes",
+                    invalidated,
+                    changes.size());
+        }
+
+        Set<String> sharedTags = invalidation.getResponseIds();
+        boolean shared = !skipCache && CacheHelper.INSTANCE.hasL2Cache();
+        if (!unknownLocationIds.isEmpty() || !uncachedPractitionerIds.isEmpty() || shared) {
+            executor.execute(
+                    () ->
+                            completeInvalidation(
+                                    fhirClient,
+                                    unknownLocationIds,
+                                    uncachedPractitionerIds,
+                                    sharedTags));
+        }
+    }
+
+    /**
+     * Reads the Locations whose state is unknown into the index and the users of the practitioners
+     * that are not cached, invalidates the entries they are linked to, and then the entries of the
+     * second level cache tagged with one of the ids.
+     */
+    private void completeInvalidation(
+            @Nullable IGenericClient fhirClient,
+            List<String> unknownLocationIds,
+            List<String> practitionerIds,
+            Set<String> sharedTags) {
+        Invalidation invalidation = new Invalidation();
+        Map<String, Location> indexChanges = new HashMap<>();
+        boolean readAllLocations = true;
+        for (String locationId : unknownLocationIds) {
+            Location location = readLocation(fhirClient, locationId);
+            if (location != null) {
+                indexChanges.put(locationId, location);
+                invalidation.addResource(locationId);
+                invalidation.addLocation(locationId, location);
+            } else {
+                readAllLocations = false;
+            }
+        }
+        if (readAllLocations) {
+            LocationGraphIndex.INSTANCE.updateAll(indexChanges);
+        } else {
+            // The index is rebuilt on its next use instead
+            LocationGraphIndex.INSTANCE.invalidate();
+        }
+        if (CacheHelper.INSTANCE.skipCache()) {
+            return;
+        }
+
+        invalidation.userIds.addAll(readUserIds(fhirClient, practitionerIds));
+        if (!invalidation.isEmpty()) {
+            int invalidated = invalidate(invalidation);
+            logger.debug("Invalidated {} more cache entries after the look ups", invalidated);
+        }
+
+        // Shared entries are tagged with the users and ids they depend on, which also finds the
+        // ones this replica does not hold
+        Set<String> tags = new HashSet<>(sharedTags);
+        tags.addAll(invalidation.getResponseIds());
+        CacheHelper.INSTANCE.invalidateSharedTagged(CacheHelper.SYNC_IDS_CACHE, tags);
+        CacheHelper.INSTANCE.invalidateSharedTagged(CacheHelper.RESOURCE_CACHE, tags);
+        CacheHelper.INSTANCE.invalidateSharedTagged(CacheHelper.RESPONSE_CACHE, tags);
+    }
+
+    /**
+     * Removes the entries affected by the changes from entries that are not cached yet, e.g. read
+     * from a cache snapshot, so that they can be cached without serving a stale value first. The
+     * look ups run on the caller's thread.
+     */
+    void removeAffected(
+            @Nullable IGenericClient fhirClient,
+            Collection<ResourceChange> changes,
+            Map<String, DomainResource> resources,
+            Map<String, List<String>> userLocationIds,
+            Map<String, Map<String, List<String>>> syncStrategyIds,
+            Map<String, CachedResponse> responses) {
+        Invalidation invalidation = new Invalidation();
+        Set<String> practitionerIds = new HashSet<>();
+        for (ResourceChange change : changes) {
+            invalidation.addChange(change, practitionerIds);
+            // The ancestors the location had when the entries were built
+            DomainResource location = resources.get(LOCATION_KEY_PREFIX + change.resourceId);
+            if (location instanceof Location) {
+                invalidation.addLocation(change.resourceId, location);
+            }
+        }
+        List<String> uncachedPractitionerIds =
+                addCachedUserIds(practitionerIds, resources, invalidation.userIds);
+        invalidation.userIds.addAll(readUserIds(fhirClient, uncachedPractitionerIds));
+        int removed =
+                removeAffected(
+                        invalidation, resources, userLocationIds, syncStrategyIds, responses);
+        logger.debug("Removed {} entries affected by {} resource changes", removed, changes.size());
+    }
+
+    /** Runs the look ups and the invalidation of the second level cache, e.g. synchronously. */
+    @VisibleForTesting
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    private static int invalidate(Invalidation invalidation) {
+        CacheHelper cacheHelper = CacheHelper.INSTANCE;
+        int invalidated =
+                removeAffected(
+                        invalidation,
+                        cacheHelper.resourceCache.asMap(),
+                        cacheHelper.listStringCache.asMap(),
+                        cacheHelper.cache.asMap(),
+                        cacheHelper.responseCache.asMap());
+        for (String locationId : invalidation.locationIds) {
+            if (cacheHelper.locationListCache.asMap().remove(locationId) != null) {
+                invalidated++;
+            }
+        }
+        cacheHelper.inventoryCache.invalidateAll(invalidation.resourceIds);
+        Set<String> responseIds = invalidation.getResponseIds();
+        cacheHelper.eTagCache.asMap().keySet().removeIf(key -> keyContainsAny(key, responseIds));
+        return invalidated;
+    }
+
+    /**
+     * Removes the entries affected by the invalidation from the maps of the resource, user location
+     * ids, sync strategy ids and response caches, and returns the number of removed entries. The
+     * users of the removed entries are added to the invalidation on the way.
+     */
+    private static int removeAffected(
+            Invalidation invalidation,
+            Map<String, DomainResource> resources,
+            Map<String, List<String>> userLocationIds,
+            Map<String, Map<String, List<String>>> syncStrategyIds,
+            Map<String, CachedResponse> responses) {
+        Set<String> locationIds = invalidation.locationIds;
+        Set<String> affectedIds = invalidation.affectedIds;
+        Set<String> userIds = invalidation.userIds;
+
+        // Hierarchies rooted at the locations and practitioner details holding one of the ids
+        List<Map.Entry<String, DomainResource>> affectedResources = new ArrayList<>();
+        for (Map.Entry<String, DomainResource> entry : resources.entrySet()) {
+            String key = entry.getKey();
+            boolean affected =
+                    isLocationKey(key, invalidation.resourceIds)
+                            || startsWithLocationId(key, locationIds);
+            if (!affected && entry.getValue() instanceof PractitionerDetails) {
+                PractitionerDetails practitionerDetails = (PractitionerDetails) entry.getValue();
+                affected =
+                        affectedIds.contains(key)
+                                || referencesAny(practitionerDetails, affectedIds);
+                if (affected) {
+                    userIds.addAll(getUserIds(practitionerDetails));
+                }
+            }
+            if (affected) {
+                affectedResources.add(entry);
+            }
+        }
+        int removed = removeEntries(resources, affectedResources);
+
+        // The location ids of the users, keyed by user id
+        List<Map.Entry<String, List<String>>> affectedUsers = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : userLocationIds.entrySet()) {
+            if (userIds.contains(entry.getKey()) || containsAny(entry.getValue(), affectedIds)) {
+                userIds.add(entry.getKey());
+                affectedUsers.add(entry);
+            }
+        }
+        removed += removeEntries(userLocationIds, affectedUsers);
+
+        // Sync strategy ids are keyed by user id, or by a hash of the requested sync locations
+        List<Map.Entry<String, Map<String, List<String>>>> affectedSyncStrategyIds =
+                new ArrayList<>();
+        for (Map.Entry<String, Map<String, List<String>>> entry : syncStrategyIds.entrySet()) {
+            if (userIds.contains(getUserKey(entry.getKey()))
+                    || containsAny(entry.getValue().values(), affectedIds)) {
+                affectedSyncStrategyIds.add(entry);
+            }
+        }
+        removed += removeEntries(syncStrategyIds, affectedSyncStrategyIds);
+
+        // Response keys hold the query string and the user the response was built for
+        Set<String> responseIds = invalidation.getResponseIds();
+        List<Map.Entry<String, CachedResponse>> affectedResponses = new ArrayList<>();
+        for (Map.Entry<String, CachedResponse> entry : responses.entrySet()) {
+            if (keyContainsAny(entry.getKey(), responseIds)) {
+                affectedResponses.add(entry);
+            }
+        }
+        removed += removeEntries(responses, affectedResponses);
+        return removed;
+    }
+
+    /**
+     * Removes the entries once the map was gone through, unless their value was replaced since, and
+     * returns the number of removed entries.
+     */
+    private static <V> int removeEntries(Map<String, V> map, List<Map.Entry<String, V>> entries) {
+        int removed = 0;
+        for (Map.Entry<String, V> entry : entries) {
+            if (map.remove(entry.getKey(), entry.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /** The location with its ancestors before and after the change. */
+    private static Set<String> getLineage(String locationId, @Nullable IBaseResource resource) {
+        Set<String> lineage = new LinkedHashSet<>();
+        lineage.add(locationId);
+        if (resource instanceof Location) {
+            addAncestorIds((Location) resource, lineage);
+        }
+        DomainResource cachedLocation =
+                CacheHelper.INSTANCE.resourceCache.getIfPresent(LOCATION_KEY_PREFIX + locationId);
+        if (cachedLocation instanceof Location) {
+            addAncestorIds((Location) cachedLocation, lineage);
+        }
+        lineage.addAll(LocationGraphIndex.INSTANCE.getAncestorIds(locationId));
+        return lineage;
+    }
+
+    private static void addAncestorIds(Location location, Set<String> lineage) {
+        for (Coding tag : location.getMeta().getTag()) {
+            if (Constants.Meta.Tag.SYSTEM_LOCATION_HIERARCHY.equals(tag.getSystem())
+                    && StringUtils.isNotBlank(tag.getCode())) {
+                lineage.add(tag.getCode());
+            }
+        }
+        if (location.hasPartOf()) {
+            String parentId = location.getPartOf().getReferenceElement().getIdPart();
+            if (StringUtils.isNotBlank(parentId)) {
+                lineage.add(parentId);
+            }
+        }
+    }
+
+    /** The current state of the location, null if it cannot be read. */
+    private static @Nullable Location readLocation(
+            @Nullable IGenericClient fhirClient, String locationId) {
+        if (fhirClient == null) {
+            return null;
+        }
+        try {
+            return fhirClient.read().resource(Location.class).withId(locationId).execute();
+        } catch (RuntimeException e) {
+            logger.warn(
+                    "Failed to read Location/{} to update the location index: {}",
+                    locationId,
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    private static void collectReferencedIds(
+            IBaseResource resource, Set<String> referencedIds, Set<String> practitionerIds) {
+        FhirTerser terser = FhirContext.forR4Cached().newTerser();
+        List<Reference> references =
+                terser.getAllPopulatedChildElementsOfType(resource, Reference.class);
+        for (Reference reference : references) {
+            IIdType referenceElement = reference.getReferenceElement();
+            String id = referenceElement.getIdPart();
+            if (StringUtils.isBlank(id)) {
+                continue;
+            }
+            referencedIds.add(id);
+            if (Constants.ResourceType.PRACTITIONER.equals(referenceElement.getResourceType())) {
+                practitionerIds.add(id);
+            }
+        }
+    }
+
+    /**
+     * Adds the users of the practitioners whose details are among the cached resources, and returns
+     * the ids of the other practitioners. The users are the identifiers of the practitioners, which
+     * hold their Keycloak user ids.
+     */
+    private static List<String> addCachedUserIds(
+            Set<String> practitionerIds,
+            Map<String, DomainResource> resources,
+            Set<String> userIds) {
+        List<String> uncachedPractitionerIds = new ArrayList<>();
+        for (String practitionerId : practitionerIds) {
+            DomainResource cached = resources.get(practitionerId);
+            if (cached instanceof PractitionerDetails) {
+                userIds.addAll(getUserIds((PractitionerDetails) cached));
+            } else {
+                uncachedPractitionerIds.add(practitionerId);
+            }
+        }
+        return uncachedPractitionerIds;
+    }
+
+    /** The users of the practitioners, read from the FHIR server. */
+    private static Set<String> readUserIds(
+            @Nullable IGenericClient fhirClient, List<String> practitionerIds) {
+        Set<String> userIds = new HashSet<>();
+        if (fhirClient == null) {
+            return userIds;
+        }
+        for (String practitionerId : practitionerIds) {
+            try {
+                Practitioner practitioner =
+                        fhirClient
+                                .read()
+                                .resource(Practitioner.class)
+                                .withId(practitionerId)
+                                .execute();
+                addIdentifierValues(practitioner, userIds);
+            } catch (RuntimeException e) {
+                logger.warn(
+                        "Failed to look up Practitioner/{} to invalidate the caches of its"
+                                + " user: {}",
+                        practitionerId,
+                        e.getMessage());
+            }
+        }
+        return userIds;
+    }
+
+    private static Set<String> getUserIds(PractitionerDetails practitionerDetails) {
+        Set<String> userIds = new HashSet<>();
+        FhirPractitionerDetails details = practitionerDetails.getFhirPractitionerDetails();
+        if (details != null && details.getPractitioners() != null) {
+            for (Practitioner practitioner : details.getPractitioners()) {
+                addIdentifierValues(practitioner, userIds);
+            }
+        }
+        return userIds;
+    }
+
+    private static void addIdentifierValues(@Nullable Practitioner practitioner, Set<String> ids) {
+        if (practitioner == null) {
+            return;
+        }
+        for (Identifier identifier : practitioner.getIdentifier()) {
+            if (StringUtils.isNotBlank(identifier.getValue())) {
+                ids.add(identifier.getValue());
+            }
+        }
+    }
+
+    private static boolean referencesAny(PractitionerDetails practitionerDetails, Set<String> ids) {
+        return !Collections.disjoint(getReferencedIds(practitionerDetails), ids);
+    }
+
+    /** The ids of the resources and hierarchies the practitioner details are built from. */
+    private static Set<String> getReferencedIds(PractitionerDetails practitionerDetails) {
+        Set<String> referencedIds = new HashSet<>();
+        FhirPractitionerDetails details = practitionerDetails.getFhirPractitionerDetails();
+        if (details == null) {
+            return referencedIds;
+        }
+        if (details.getLocationHierarchyList() != null) {
+            for (LocationHierarchy locationHierarchy : details.getLocationHierarchyList()) {
+                if (locationHierarchy.getLocationId() != null
+                        && locationHierarchy.getLocationId().getValue() != null) {
+                    referencedIds.add(locationHierarchy.getLocationId().getValue());
+                }
+            }
+        }
+        addResourceIds(details.getPractitioners(), referencedIds);
+        addResourceIds(details.getCareTeams(), referencedIds);
+        addResourceIds(details.getGroups(), referencedIds);
+        addResourceIds(details.getOrganizations(), referencedIds);
+        addResourceIds(details.getOrganizationAffiliations(), referencedIds);
+        addResourceIds(details.getPractitionerRoles(), referencedIds);
+        addResourceIds(details.getLocations(), referencedIds);
+        return referencedIds;
+    }
+
+    private static void addResourceIds(
+            @Nullable List<? extends Resource> resources, Set<String> ids) {
+        if (resources != null) {
+            for (Resource resource : resources) {
+                if (resource.getIdElement().hasIdPart()) {
+                    ids.add(resource.getIdElement().getIdPart());
+                }
+            }
+        }
+    }
+
+    /**
+     * The ids a shared resource cache entry is tagged with, the ids its local copy is dropped by:
+     * the location of a cached Location or the root of a hierarchy, and the practitioner, its users
+     * and, unless there are too many, the resources of practitioner details.
+     */
+    static Set<String> getResourceTags(String key, DomainResource resource) {
+        Set<String> tags = new LinkedHashSet<>();
+        if (key.startsWith(LOCATION_KEY_PREFIX)) {
+            tags.add(key.substring(LOCATION_KEY_PREFIX.length()));
+        } else if (resource instanceof PractitionerDetails) {
+            PractitionerDetails practitionerDetails = (PractitionerDetails) resource;
+            tags.add(key);
+            tags.addAll(getUserIds(practitionerDetails));
+            Set<String> referencedIds = getReferencedIds(practitionerDetails);
+            if (referencedIds.size() <= CacheHelper.MAX_ID_TAGS) {
+                tags.addAll(referencedIds);
+            }
+        } else if (key.indexOf(Constants.UNDERSCORE) > 0) {
+            tags.add(key.substring(0, key.indexOf(Constants.UNDERSCORE)));
+        }
+        return tags;
+    }
+
+    private static boolean containsAny(Collection<List<String>> idLists, Set<String> ids) {
+        for (List<String> idList : idLists) {
+            if (containsAny(idList, ids)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsAny(@Nullable List<String> idList, Set<String> ids) {
+        if (idList == null) {
+            return false;
+        }
+        for (String id : idList) {
+            if (ids.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Whether one of the ids is a token of the response key. */
+    private static boolean keyContainsAny(String key, Set<String> ids) {
+        for (String token : getKeyTokens(key)) {
+            if (ids.contains(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The tokens of a response key, its query string decoded, which hold the ids it depends on. */
+    private static Set<String> getKeyTokens(String key) {
+        String decodedKey;
+        try {
+            decodedKey = URLDecoder.decode(key, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            decodedKey = key;
+        }
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String token : KEY_SEPARATORS.split(decodedKey)) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /** Whether the key is the one a location with one of the ids is cached under. */
+    private static boolean isLocationKey(String key, Set<String> ids) {
+        return key.startsWith(LOCATION_KEY_PREFIX)
+                && ids.contains(key.substring(LOCATION_KEY_PREFIX.length()));
+    }
+
+    /** Whether the key is one of a hierarchy rooted at one of the locations. */
+    private static boolean startsWithLocationId(String key, Set<String> locationIds) {
+        int separator = key.indexOf(Constants.UNDERSCORE);
+        return separator > 0 && locationIds.contains(key.substring(0, separator));
+    }
+
+    /** The user id of a sync strategy ids key, without the lineage roots suffix. */
+    static String getUserKey(String key) {
+        String rootsSuffix = Constants.UNDERSCORE + Constants.FILTER_MODE_LINEAGE_ROOTS;
+        return key.endsWith(rootsSuffix)
+                ? key.substring(0, key.length() - rootsSuffix.length())
+                : key;
+    }
+
+    /** The write or the deletion of a resource, see {@link #onResourcesChanged}. */
+    public static final class ResourceChange {
+        private final String resourceType;
+        private final String resourceId;
+        private final @Nullable IBaseResource resource;
+        private final boolean deleted;
+
+        private ResourceChange(
+                String resourceType,
+                String resourceId,
+                @Nullable IBaseResource resource,
+                boolean deleted) {
+            this.resourceType = resourceType;
+            this.resourceId = resourceId;
+            this.resource = resource;
+            this.deleted = deleted;
+        }
+
+        /**
+         * A write of the resource, with the resource as it is after the write, null if it is
+         * unknown, e.g. after a PATCH.
+         */
+        public static ResourceChange written(
+                String resourceType, String resourceId, @Nullable IBaseResource resource) {
+            return new ResourceChange(resourceType, resourceId, resource, false);
+        }
+
+        public static ResourceChange deleted(String resourceType, String resourceId) {
+            return new ResourceChange(resourceType, resourceId, null, true);
+        }
+    }
+
+    /** The ids the entries to invalidate are found from. */
+    private static final class Invalidation {
+        private final Set<String> resourceIds = new HashSet<>();
+        private final Set<String> locationIds = new LinkedHashSet<>();
+        private final Set<String> affectedIds = new HashSet<>();
+        private final Set<String> userIds = new HashSet<>();
+
+        /** Adds the ids of the change, and the practitioners the changed resource references. */
+        private void addChange(ResourceChange change, Set<String> practitionerIds) {
+            addResource(change.resourceId);
+            if (Constants.ResourceType.LOCATION.equals(change.resourceType)) {
+                addLocation(change.resourceId, change.resource);
+            } else if (change.resource != null) {
+                collectReferencedIds(change.resource, affectedIds, practitionerIds);
+                if (change.resource instanceof Practitioner) {
+                    addIdentifierValues((Practitioner) change.resource, userIds);
+                }
+            }
+        }
+
+        private void addResource(String resourceId) {
+            resourceIds.add(resourceId);
+            affectedIds.add(resourceId);
+        }
+
+        private void addLocation(String locationId, @Nullable IBaseResource resource) {
+            Set<String> lineage = getLineage(locationId, resource);
+            locationIds.addAll(lineage);
+            affectedIds.addAll(lineage);
+        }
+
+        private boolean isEmpty() {
+            return affectedIds.isEmpty() && userIds.isEmpty();
+        }
+
+        /** The ids responses depend on, which their keys and shared tags hold. */
+        private Set<String> getResponseIds() {
+            Set<String> responseIds = new HashSet<>(affectedIds);
+            responseIds.addAll(userIds);
+            return responseIds;
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.utils.EnvUtil;
+import org.smartregister.model.location.LocationHierarchy;
+import org.smartregister.model.practitioner.PractitionerDetails;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Writes the most expensive caches to a local file so that a restarted gateway does not start with
+ * cold caches and recompute every hierarchy, sync strategy id list and response at once.
+ *
+ * <p>The snapshot is written every {@link #OPENSRP_CACHE_SNAPSHOT_INTERVAL_SECONDS} and on
+ * shutdown, to a temporary file that then replaces the previous snapshot. On startup it is
+ * memory-mapped and restored in the background, so requests served before that simply miss the
+ * caches. A snapshot of a different format is ignored, and so are the entries that were written
+ * longer ago than the expiry of their cache. Since the FHIR server may have changed while the
+ * gateway was down, the {@code _history} since the snapshot was written is read through the {@link
+ * ChangeFeedPoller} before anything is restored, and the entries affected by a change are left out.
+ * Nothing is restored if the changes cannot all be read. The snapshot is disabled unless {@link
+ * #OPENSRP_CACHE_SNAPSHOT_PATH} is set.
+ */
+@Component
+public class CacheSnapshotStore {
+    private static final Logger logger = LoggerFactory.getLogger(CacheSnapshotStore.class);
+
+    public static final String OPENSRP_CACHE_SNAPSHOT_PATH = "OPENSRP_CACHE_SNAPSHOT_PATH";
+    public static final String OPENSRP_CACHE_SNAPSHOT_INTERVAL_SECONDS =
+            "OPENSRP_CACHE_SNAPSHOT_INTERVAL_SECONDS";
+    private static final long DEFAULT_INTERVAL_SECONDS = 300;
+    static final int MAGIC = 0x4f535243;
+    static final int FORMAT_VERSION = 2;
+
+    private static final Gson GSON = new Gson();
+    private static final Type ID_LIST_TYPE = new TypeToken<List<String>>() {}.getType();
+
+    /** The types of the cached resources that are written to and restored from the snapshot. */
+    private static final List<Class<? extends DomainResource>> RESOURCE_TYPES =
+            List.of(Location.class, LocationHierarchy.class, PractitionerDetails.class);
+
+    private final @Nullable Path path;
+    private final Supplier<IGenericClient> clientSupplier;
+    private final Map<String, Section<?>> sections = new LinkedHashMap<>();
+    private final Section<CachedResponse> responses;
+    private final Section<Map<String, List<String>>> syncStrategyIds;
+    private final Section<List<String>> userLocationIds;
+    private final Section<DomainResource> resources;
+    private @Nullable ScheduledExecutorService scheduler;
+
+    public CacheSnapshotStore() {
+        this(getSnapshotPath(), () -> FhirClientRegistry.INSTANCE.getClient());
+    }
+
+    CacheSnapshotStore(@Nullable Path path, Supplier<IGenericClient> clientSupplier) {
+        this.path = path;
+        this.clientSupplier = clientSupplier;
+        CacheHelper cacheHelper = CacheHelper.INSTANCE;
+        responses =
+                addSection(
+                        CacheHelper.RESPONSE_CACHE,
+                        cacheHelper.responseCache,
+                        CachedResponse::toBytes,
+                        CachedResponse::fromBytes);
+        syncStrategyIds =
+                addSection(
+                        CacheHelper.SYNC_IDS_CACHE,
+                        cacheHelper.cache,
+                        CacheHelper::toJsonBytes,
+                        CacheHelper::fromJsonBytes);
+        userLocationIds =
+                addSection(
+                        "id_list",
+                        cacheHelper.listStringCache,
+                        ids -> GSON.toJson(ids).getBytes(StandardCharsets.UTF_8),
+                        json ->
+                                GSON.fromJson(
+                                        new String(json, StandardCharsets.UTF_8), ID_LIST_TYPE));
+        resources =
+                addSection(
+                        CacheHelper.RESOURCE_CACHE,
+                        cacheHelper.resourceCache,
+                        CacheSnapshotStore::encodeResource,
+                        CacheSnapshotStore::decodeResource);
+    }
+
+    @PostConstruct
+    public synchronized void start() {
+        if (path == null || CacheHelper.INSTANCE.skipCache() || scheduler != null) {
+            return;
+        }
+        long intervalSeconds = getIntervalSeconds();
+        scheduler =
+                Executors.newSingleThreadScheduledExecutor(
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "opensrp-cache-snapshot");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        scheduler.execute(this::loadSafely);
+        scheduler.scheduleWithFixedDelay(
+                this::saveSafely, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        logger.info("Writing a cache snapshot to {} every {} seconds", path, intervalSeconds);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        saveSafely();
+    }
+
+    /** Writes the entries of the snapshotted caches and returns the number of entries written. */
+    @VisibleForTesting
+    synchronized int save() throws IOException {
+        if (path == null) {
+            return 0;
+        }
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tempFile = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        int entries = 0;
+        try (DataOutputStream outputStream =
+                new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            long nowMillis = Instant.now().toEpochMilli();
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(FORMAT_VERSION);
+            outputStream.writeLong(nowMillis);
+            outputStream.writeInt(sections.size());
+            for (Section<?> section : sections.values()) {
+                entries += section.write(outputStream, nowMillis);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        Files.move(
+                tempFile,
+                path,
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        logger.debug("Wrote {} cache entries to {}", entries, path);
+        return entries;
+    }
+
+    /**
+     * Restores the entries of the snapshot that are not cached yet, have not expired and are not
+     * affected by the changes since the snapshot was written, and returns the number of restored
+     * entries. Nothing is restored from a snapshot that cannot be read.
+     */
+    @VisibleForTesting
+    synchronized int load() throws IOException {
+        if (path == null || !Files.isRegularFile(path)) {
+            return 0;
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        // Read the whole snapshot before restoring anything, so that a truncated file is ignored
+        Instant writtenAt;
+        List<Runnable> stages = new ArrayList<>();
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                logger.warn("Ignoring cache snapshot {} of an unsupported format", path);
+                return 0;
+            }
+            writtenAt = Instant.ofEpochMilli(buffer.getLong());
+            Instant now = Instant.now();
+            int sectionCount = buffer.getInt();
+            for (int i = 0; i < sectionCount; i++) {
+                String name = new String(readBytes(buffer), StandardCharsets.UTF_8);
+                Section<?> section = sections.get(name);
+                int entryCount = buffer.getInt();
+                for (int j = 0; j < entryCount; j++) {
+                    String key = new String(readBytes(buffer), StandardCharsets.UTF_8);
+                    Instant entryWrittenAt = Instant.ofEpochMilli(buffer.getLong());
+                    byte[] value = readBytes(buffer);
+                    if (section != null && isFresh(section.cache, entryWrittenAt, now)) {
+                        stages.add(() -> section.stage(key, value));
+                    }
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            logger.warn("Ignoring corrupt cache snapshot {}", path);
+            return 0;
+        }
+
+        try {
+            int staged = 0;
+            for (Runnable stage : stages) {
+                try {
+                    stage.run();
+                    staged++;
+                } catch (RuntimeException e) {
+                    logger.debug("Skipping unreadable cache snapshot entry: {}", e.getMessage());
+                }
+            }
+            if (staged == 0 || !removeChangedSince(writtenAt)) {
+                return 0;
+            }
+            int restored = 0;
+            for (Section<?> section : sections.values()) {
+                restored += section.restoreStaged();
+            }
+            logger.info("Restored {} cache entries written at {}", restored, writtenAt);
+            return restored;
+        } finally {
+            for (Section<?> section : sections.values()) {
+                section.staged.clear();
+            }
+        }
+    }
+
+    /**
+     * Removes the staged entries affected by the resources changed since the snapshot was written,
+     * before any of them can be served. Returns false if the changes cannot all be read.
+     */
+    @VisibleForTesting
+    boolean removeChangedSince(Instant writtenAt) {
+        try {
+            IGenericClient client = clientSupplier.get();
+            ChangeFeedPoller.Changes changes =
+                    new ChangeFeedPoller(clientSupplier, writtenAt).readChanges(client);
+            if (!changes.isComplete()) {
+                logger.warn("Too many changes since the cache snapshot, restoring nothing");
+                return false;
+            }
+            CacheInvalidator.INSTANCE.removeAffected(
+                    client,
+                    changes.getResourceChanges(),
+                    resources.staged,
+                    userLocationIds.staged,
+                    syncStrategyIds.staged,
+                    responses.staged);
+            return true;
+        } catch (RuntimeException e) {
+            logger.warn(
+                    "Failed to read the changes since the cache snapshot, restoring nothing: {}",
+                    e.getMessage());
+            return false;
+        }
+    }
+
+    private <V> Section<V> addSection(
+            String name,
+            Cache<String, V> cache,
+            Function<V, byte[]> encoder,
+            Function<byte[], V> decoder) {
+        Section<V> section = new Section<>(name, cache, encoder, decoder);
+        sections.put(name, section);
+        return section;
+    }
+
+    private void loadSafely() {
+        try {
+            load();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to load the cache snapshot {}: {}", path, e.getMessage());
+        }
+    }
+
+    private void saveSafely() {
+        try {
+            save();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to write the cache snapshot {}: {}", path, e.getMessage());
+        }
+    }
+
+    /** Entries older than the expiry of their cache would already have been evicted. */
+    private static boolean isFresh(Cache<?, ?> cache, Instant writtenAt, Instant now) {
+        return CacheHelper.getExpirySeconds(cache).orElse(Long.MAX_VALUE)
+                > Duration.between(writtenAt, now).getSeconds();
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream outputStream, byte[] bytes)
+            throws IOException {
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    /**
+     * Writes the resource as its type name and its JSON, separated by a line break, also for the
+     * second level cache. Returns null for other resource types.
+     */
+    static @Nullable byte[] encodeResource(DomainResource resource) {
+        if (!RESOURCE_TYPES.contains(resource.getClass())) {
+            return null;
+        }
+        String json =
+                FhirContext.forR4Cached().newJsonParser().encodeResourceToString(resource);
+        String value = resource.getClass().getSimpleName() + "\n" + json;
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static DomainResource decodeResource(byte[] bytes) {
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        String typeName = StringUtils.substringBefore(value, "\n");
+        for (Class<? extends DomainResource> type : RESOURCE_TYPES) {
+            if (type.getSimpleName().equals(typeName)) {
+                return FhirContext.forR4Cached()
+                        .newJsonParser()
+                        .parseResource(type, StringUtils.substringAfter(value, "\n"));
+            }
+        }
+        throw new IllegalArgumentException("Unsupported resource type " + typeName);
+    }
+
+    private static @Nullable Path getSnapshotPath() {
+        String path = EnvUtil.getEnvironmentVar(OPENSRP_CACHE_SNAPSHOT_PATH, "");
+        return StringUtils.isNotBlank(path) ? Paths.get(path.trim()) : null;
+    }
+
+    private static long getIntervalSeconds() {
+        String seconds =
+                EnvUtil.getEnvironmentVar(
+                        OPENSRP_CACHE_SNAPSHOT_INTERVAL_SECONDS,
+                        String.valueOf(DEFAULT_INTERVAL_SECONDS));
+        try {
+            return Math.max(1, Long.parseLong(seconds.trim()));
+        } catch (NumberFormatException e) {
+            logger.warn(
+                    "Invalid {} value '{}', using {}",
+                    OPENSRP_CACHE_SNAPSHOT_INTERVAL_SECONDS,
+                    seconds,
+                    DEFAULT_INTERVAL_SECONDS);
+            return DEFAULT_INTERVAL_SECONDS;
+        }
+    }
+
+    /**
+     * A snapshotted cache, how its values are serialized, and the entries read from the snapshot
+     * that are not restored yet.
+     */
+    private static final class Section<V> {
+        private final String name;
+        private final Cache<String, V> cache;
+        private final Function<V, byte[]> encoder;
+        private final Function<byte[], V> decoder;
+        private final Map<String, V> staged = new HashMap<>();
+
+        private Section(
+                String name,
+                Cache<String, V> cache,
+                Function<V, byte[]> encoder,
+                Function<byte[], V> decoder) {
+            this.name = name;
+            this.cache = cache;
+            this.encoder = encoder;
+            this.decoder = decoder;
+        }
+
+        /**
+         * Writes the entries with the time they were cached at, so that the restored entries do not
+         * outlive the expiry they had when the snapshot was written.
+         */
+        private int write(DataOutputStream outputStream, long nowMillis) throws IOException {
+            // Encoded up front since the entry count precedes the entries
+            ByteArrayOutputStream entriesBytes = new ByteArrayOutputStream();
+            DataOutputStream entriesStream = new DataOutputStream(entriesBytes);
+            int entryCount = 0;
+            for (Map.Entry<String, V> entry : cache.asMap().entrySet()) {
+                byte[] value;
+                try {
+                    value = encoder.apply(entry.getValue());
+                } catch (RuntimeException e) {
+                    logger.debug("Skipping cache entry {}: {}", entry.getKey(), e.getMessage());
+                    continue;
+                }
+                if (value != null) {
+                    writeBytes(entriesStream, entry.getKey().getBytes(StandardCharsets.UTF_8));
+                    entriesStream.writeLong(nowMillis - getAgeMillis(entry.getKey()));
+                    writeBytes(entriesStream, value);
+                    entryCount++;
+                }
+            }
+            writeBytes(outputStream, name.getBytes(StandardCharsets.UTF_8));
+            outputStream.writeInt(entryCount);
+            entriesBytes.writeTo(outputStream);
+            return entryCount;
+        }
+
+        private long getAgeMillis(String key) {
+            return cache.policy()
+                    .expireAfterWrite()
+                    .map(expiration -> expiration.ageOf(key, TimeUnit.MILLISECONDS))
+                    .orElse(OptionalLong.empty())
+                    .orElse(0);
+        }
+
+        private void stage(String key, byte[] value) {
+            staged.put(key, decoder.apply(value));
+        }
+
+        /** Restores the staged entries that are not cached yet and returns how many were. */
+        private int restoreStaged() {
+            // The caches expire a fixed time after the write, which cannot be shortened per entry,
+            // so a restored entry expires at most one expiry after the restore
+            int restored = 0;
+            for (Map.Entry<String, V> entry : staged.entrySet()) {
+                if (cache.asMap().putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+                    restored++;
+                }
+            }
+            return restored;
+        }
+    }
+}
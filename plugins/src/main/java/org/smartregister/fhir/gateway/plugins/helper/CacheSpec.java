@@ -0,0 +1,120 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.utils.EnvUtil;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Weigher;
+
+import lombok.Getter;
+
+/**
+ * Expiry, bounds and refresh interval of one of the {@link CacheHelper} caches. Each value can be
+ * overridden with an {@code OPENSRP_CACHE_<NAME>_*} environment variable, e.g. {@code
+ * OPENSRP_CACHE_RESOURCE_MAX_WEIGHT}.
+ *
+ * <p>A cache with a weigher is bounded by the total weight of its entries, a cache without one by
+ * the number of entries. The refresh interval only applies to caches that load their own values,
+ * {@code 0} disables refreshing.
+ */
+@Getter
+final class CacheSpec {
+    private static final Logger logger = LoggerFactory.getLogger(CacheSpec.class);
+
+    static final String ENV_PREFIX = "OPENSRP_CACHE_";
+
+    private final String name;
+    private final long expirySeconds;
+    private final long maximumSize;
+    private final long maximumWeight;
+    private final long refreshSeconds;
+
+    CacheSpec(
+            String name,
+            long expirySeconds,
+            long maximumSize,
+            long maximumWeight,
+            long refreshSeconds) {
+        this.name = name;
+        this.expirySeconds = expirySeconds;
+        this.maximumSize = maximumSize;
+        this.maximumWeight = maximumWeight;
+        this.refreshSeconds = refreshSeconds;
+    }
+
+    /**
+     * Reads the spec of the named cache from the environment, falling back to the given defaults.
+     */
+    static CacheSpec fromEnvironment(
+            String name,
+            long defaultExpirySeconds,
+            long defaultMaximumSize,
+            long defaultMaximumWeight) {
+        return fromEnvironment(
+                name, defaultExpirySeconds, defaultMaximumSize, defaultMaximumWeight, 0);
+    }
+
+    static CacheSpec fromEnvironment(
+            String name,
+            long defaultExpirySeconds,
+            long defaultMaximumSize,
+            long defaultMaximumWeight,
+            long defaultRefreshSeconds) {
+        String prefix = ENV_PREFIX + name.toUpperCase(Locale.ROOT) + "_";
+        return new CacheSpec(
+                name,
+                getLongEnvironmentVar(prefix + "EXPIRY_SECONDS", defaultExpirySeconds),
+                getLongEnvironmentVar(prefix + "MAX_SIZE", defaultMaximumSize),
+                getLongEnvironmentVar(prefix + "MAX_WEIGHT", defaultMaximumWeight),
+                getLongEnvironmentVar(prefix + "REFRESH_SECONDS", defaultRefreshSeconds));
+    }
+
+    /**
+     * Creates a builder with the expiry of the spec, bounded by the number of entries. The cache
+     * records its statistics.
+     */
+    Caffeine<Object, Object> newBuilder() {
+        return Caffeine.newBuilder()
+                .expireAfterWrite(Math.max(1, expirySeconds), TimeUnit.SECONDS)
+                .maximumSize(maximumSize)
+                .recordStats();
+    }
+
+    /**
+     * Creates a builder with the expiry of the spec, bounded by the weight of the entries. The
+     * cache records its statistics.
+     */
+    <K, V> Caffeine<K, V> newWeightedBuilder(Weigher<? super K, ? super V> weigher) {
+        return Caffeine.newBuilder()
+                .expireAfterWrite(Math.max(1, expirySeconds), TimeUnit.SECONDS)
+                .maximumWeight(maximumWeight)
+                .recordStats()
+                .weigher(weigher);
+    }
+
+    /**
+     * Refreshes the values once they are older than the refresh interval of the spec, on the given
+     * executor. The refresh is left out if it is disabled or would only happen after the expiry.
+     */
+    <K, V> Caffeine<K, V> withRefresh(Caffeine<K, V> builder, Executor executor) {
+        if (refreshSeconds <= 0 || refreshSeconds >= expirySeconds) {
+            return builder;
+        }
+        return builder.refreshAfterWrite(refreshSeconds, TimeUnit.SECONDS).executor(executor);
+    }
+
+    private static long getLongEnvironmentVar(String envVariable, long defaultValue) {
+        String value = EnvUtil.getEnvironmentVar(envVariable, String.valueOf(defaultValue));
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid {} value '{}', using {}", envVariable, value, defaultValue);
+            return defaultValue;
+        }
+    }
+}
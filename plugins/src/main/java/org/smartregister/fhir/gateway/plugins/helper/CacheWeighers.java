@@ -0,0 +1,103 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.DomainResource;
+import org.smartregister.model.location.LocationHierarchy;
+import org.smartregister.model.location.ParentChildrenMap;
+import org.smartregister.model.practitioner.FhirPractitionerDetails;
+import org.smartregister.model.practitioner.PractitionerDetails;
+
+import com.github.benmanes.caffeine.cache.Weigher;
+
+/**
+ * Weighers of the {@link CacheHelper} caches. The weights are rough estimates of the number of
+ * resources or ids an entry holds, so that a few large location hierarchies take the room of many
+ * small entries instead of counting as one entry each. Every entry weighs at least {@code 1}.
+ */
+final class CacheWeighers {
+
+    private CacheWeighers() {}
+
+    /** Weighs a resource by the number of locations, practitioners etc. it holds. */
+    static final Weigher<String, DomainResource> RESOURCE =
+            (key, resource) -> toWeight(1 + getNestedCount(resource));
+
+    static final Weigher<String, List<?>> LIST = (key, list) -> toWeight(1 + list.size());
+
+    /** Weighs the sync strategy ids by the number of ids of all strategies. */
+    static final Weigher<String, Map<String, List<String>>> ID_MAP =
+            (key, idsByStrategy) -> toWeight(1 + getIdCount(idsByStrategy));
+
+    static final Weigher<String, CachedResponse> RESPONSE = (key, response) -> response.getWeight();
+
+    private static long getNestedCount(DomainResource resource) {
+        if (resource instanceof LocationHierarchy) {
+            return getNodeCount((LocationHierarchy) resource);
+        }
+        if (resource instanceof PractitionerDetails) {
+            return getResourceCount(((PractitionerDetails) resource).getFhirPractitionerDetails());
+        }
+        return resource.getContained().size();
+    }
+
+    private static long getIdCount(Map<String, List<String>> idsByStrategy) {
+        long count = 0;
+        for (List<String> ids : idsByStrategy.values()) {
+            count += size(ids);
+        }
+        return count;
+    }
+
+    private static long getNodeCount(LocationHierarchy locationHierarchy) {
+        if (locationHierarchy.getLocationHierarchyTree() == null
+                || locationHierarchy.getLocationHierarchyTree().getLocationsHierarchy() == null) {
+            return 0;
+        }
+        List<ParentChildrenMap> parentChildren =
+                locationHierarchy
+                        .getLocationHierarchyTree()
+                        .getLocationsHierarchy()
+                        .getParentChildren();
+        long count = 0;
+        for (ParentChildrenMap parentChildrenMap : parentChildren) {
+            count += size(parentChildrenMap.getChildIdentifiers());
+        }
+        return count;
+    }
+
+    private static long getResourceCount(FhirPractitionerDetails details) {
+        if (details == null) {
+            return 0;
+        }
+        return size(details.getPractitioners())
+                + size(details.getCareTeams())
+                + size(details.getGroups())
+                + size(details.getOrganizations())
+                + size(details.getOrganizationAffiliations())
+                + size(details.getPractitionerRoles())
+                + size(details.getLocations())
+                + getLocationHierarchyNodeCount(details.getLocationHierarchyList());
+    }
+
+    private static long getLocationHierarchyNodeCount(List<LocationHierarchy> hierarchies) {
+        if (hierarchies == null) {
+            return 0;
+        }
+        long count = 0;
+        for (LocationHierarchy locationHierarchy : hierarchies) {
+            count += 1 + getNodeCount(locationHierarchy);
+        }
+        return count;
+    }
+
+    private static long size(Collection<?> collection) {
+        return collection == null ? 0 : collection.size();
+    }
+
+    private static int toWeight(long weight) {
+        return (int) Math.min(Integer.MAX_VALUE, weight);
+    }
+}
@@ -0,0 +1,197 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.zip.GZIPOutputStream;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.smartregister.fhir.gateway.plugins.Constants;
+
+import ca.uhn.fhir.parser.IParser;
+import jakarta.annotation.Nullable;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * A response body as it was sent to the client, encoded and compressed if the client accepted gzip.
+ * Cache hits are written to the servlet stream as they are, so they are neither rebuilt nor
+ * reserialized, and no shared HAPI objects are handed to other threads.
+ */
+public final class CachedResponse {
+
+    // Rough size of the object, its fields and the array header on a 64-bit JVM
+    private static final int OVERHEAD_BYTES = 128;
+    private static final int FORMAT_VERSION = 1;
+
+    private final byte[] body;
+    private final String contentType;
+    private final String eTag;
+    private final boolean gzipped;
+
+    public CachedResponse(byte[] body, String contentType, String eTag, boolean gzipped) {
+        this.body = body;
+        this.contentType = contentType;
+        this.eTag = eTag;
+        this.gzipped = gzipped;
+    }
+
+    /**
+     * Encodes the resource with the parser, compressing it with gzip if requested. The JSON is
+     * hashed on its way to the compressor, so the ETag comes out of the same single encode.
+     */
+    public static CachedResponse encode(
+            IParser parser, IBaseResource resource, String contentType, boolean gzipped) {
+        return encode(
+                contentType, gzipped, writer -> parser.encodeResourceToWriter(resource, writer));
+    }
+
+    /**
+     * Encodes the resources of the Bundle as newline delimited JSON, one resource per line, hashed
+     * like {@link #encode(IParser, IBaseResource, String, boolean)}. The Bundle id and links are
+     * not part of the body, so the same resources always get the same ETag.
+     */
+    public static CachedResponse encodeNdjson(IParser parser, Bundle bundle, boolean gzipped) {
+        return encode(
+                Constants.NDJSON_CONTENT_TYPE,
+                gzipped,
+                writer -> {
+                    // The parser flushes and closes the writer it is handed once it is done
+                    Writer resourceWriter = new NonClosingWriter(writer);
+                    for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                        if (entry.getResource() != null) {
+                            parser.encodeResourceToWriter(entry.getResource(), resourceWriter);
+                            writer.write("\n");
+                        }
+                    }
+                });
+    }
+
+    private static CachedResponse encode(
+            String contentType, boolean gzipped, BodyWriter bodyWriter) {
+        MessageDigest digest = ETagHelper.newDigest();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (OutputStream outputStream = gzipped ? new GZIPOutputStream(body) : body;
+                Writer writer =
+                        new OutputStreamWriter(
+                                new DigestOutputStream(outputStream, digest),
+                                StandardCharsets.UTF_8)) {
+            bodyWriter.write(writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        String eTag = ETagHelper.toETag(digest, gzipped);
+        return new CachedResponse(body.toByteArray(), contentType, eTag, gzipped);
+    }
+
+    /**
+     * Returns the cached response for the key, if any. Responses cached by other replicas are read
+     * from the second level cache on a miss.
+     */
+    public static @Nullable CachedResponse getCached(String key) {
+        if (CacheHelper.INSTANCE.skipCache()) {
+            return null;
+        }
+        return CacheHelper.INSTANCE.responseCache.get(
+                key,
+                cacheKey ->
+                        CacheHelper.INSTANCE.getShared(
+                                CacheHelper.RESPONSE_CACHE, cacheKey, CachedResponse::fromBytes));
+    }
+
+    /**
+     * Caches the response under the key, and shares it with the other replicas tagged with the ids
+     * it depends on, the user it was built for and the requested resources, for {@link
+     * CacheInvalidator}.
+     */
+    public static void cache(
+            String key, CachedResponse cachedResponse, Collection<String> dependencyIds) {
+        if (!CacheHelper.INSTANCE.skipCache()) {
+            CacheHelper.INSTANCE.responseCache.put(key, cachedResponse);
+            CacheHelper.INSTANCE.putShared(
+                    CacheHelper.RESPONSE_CACHE, key, cachedResponse.toBytes(), dependencyIds);
+        }
+    }
+
+    /** Serializes the response for the second level cache. */
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + OVERHEAD_BYTES);
+        try (DataOutputStream outputStream = new DataOutputStream(bytes)) {
+            outputStream.writeByte(FORMAT_VERSION);
+            outputStream.writeBoolean(gzipped);
+            outputStream.writeUTF(contentType);
+            outputStream.writeUTF(eTag);
+            outputStream.writeInt(body.length);
+            outputStream.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static CachedResponse fromBytes(byte[] bytes) {
+        try (DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int version = inputStream.readByte();
+            if (version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported cached response format " + version);
+            }
+            boolean gzipped = inputStream.readBoolean();
+            String contentType = inputStream.readUTF();
+            String eTag = inputStream.readUTF();
+            byte[] body = new byte[inputStream.readInt()];
+            inputStream.readFully(body);
+            return new CachedResponse(body, contentType, eTag, gzipped);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Writes the headers and the body to the response. */
+    public void writeTo(HttpServletResponse response) throws IOException {
+        response.addHeader(Constants.VARY, Constants.ACCEPT_ENCODING);
+        if (gzipped) {
+            response.setHeader(Constants.CONTENT_ENCODING, Constants.GZIP);
+        }
+        response.setHeader(Constants.ETAG, eTag);
+        response.setContentType(contentType);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /** The approximate number of heap bytes held by the response, used to weigh the cache. */
+    public int getWeight() {
+        return body.length + OVERHEAD_BYTES;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public boolean isGzipped() {
+        return gzipped;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    /** Writes the body to the writer of the encoded and hashed stream. */
+    private interface BodyWriter {
+        void write(Writer writer) throws IOException;
+    }
+}
@@ -0,0 +1,327 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.Constants;
+import org.smartregister.fhir.gateway.plugins.utils.EnvUtil;
+import org.springframework.stereotype.Component;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Polls the FHIR server for changes of the resources the caches are built from, so that writes that
+ * do not go through this gateway replica, e.g. made on another replica or directly on the FHIR
+ * server, are seen without waiting for the cached entries to expire.
+ *
+ * <p>Every {@link #OPENSRP_CHANGE_FEED_INTERVAL_SECONDS} the {@code _history} of each of the {@link
+ * #RESOURCE_TYPES} is read since the previous poll, which is a cheap indexed query that usually
+ * returns nothing. The changes, deletions included, are applied through the {@link
+ * CacheInvalidator}, which also patches the {@link LocationGraphIndex}. Changed Compositions and
+ * Binaries drop the application configs that use them. If there are more changes than a poll reads,
+ * all caches are flushed instead. The poller is disabled by default, see {@link
+ * #OPENSRP_CHANGE_FEED_ENABLED}.
+ */
+@Component
+public class ChangeFeedPoller {
+    private static final Logger logger = LoggerFactory.getLogger(ChangeFeedPoller.class);
+
+    public static final String OPENSRP_CHANGE_FEED_ENABLED = "OPENSRP_CHANGE_FEED_ENABLED";
+    public static final String OPENSRP_CHANGE_FEED_INTERVAL_SECONDS =
+            "OPENSRP_CHANGE_FEED_INTERVAL_SECONDS";
+    private static final long DEFAULT_INTERVAL_SECONDS = 30;
+    private static final int PAGE_SIZE = 500;
+    private static final int MAX_PAGES_PER_TYPE = 10;
+
+    /** The resource types the caches, the location index and the application configs depend on. */
+    static final List<String> RESOURCE_TYPES =
+            List.of(
+                    Constants.ResourceType.LOCATION,
+                    Constants.ResourceType.CARE_TEAM,
+                    Constants.ResourceType.ORGANIZATION,
+                    Constants.ResourceType.ORGANIZATION_AFFILIATION,
+                    Constants.ResourceType.PRACTITIONER_ROLE,
+                    Constants.ResourceType.PRACTITIONER,
+                    Constants.ResourceType.GROUP,
+                    Constants.ResourceType.COMPOSITION,
+                    Constants.ResourceType.BINARY);
+
+    private final Supplier<IGenericClient> clientSupplier;
+    // Server time, null until the first poll read it
+    private volatile @Nullable Instant since;
+    private @Nullable ScheduledExecutorService scheduler;
+
+    public ChangeFeedPoller() {
+        this(() -> FhirClientRegistry.INSTANCE.getClient(), null);
+    }
+
+    ChangeFeedPoller(Supplier<IGenericClient> clientSupplier, @Nullable Instant since) {
+        this.clientSupplier = clientSupplier;
+        this.since = since;
+    }
+
+    @PostConstruct
+    public synchronized void start() {
+        if (!isEnabled() || scheduler != null) {
+            return;
+        }
+        long intervalSeconds = getIntervalSeconds();
+        scheduler =
+                Executors.newSingleThreadScheduledExecutor(
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "opensrp-change-feed");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        // The first poll only reads the position to poll from, so it runs right away
+        scheduler.scheduleWithFixedDelay(this::pollSafely, 0, intervalSeconds, TimeUnit.SECONDS);
+        logger.info("Polling the FHIR server for changes every {} seconds", intervalSeconds);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Applies the changes made since the previous poll and returns the number of changed resources.
+     * The next poll starts from the latest change seen, changes made at that instant are read
+     * again, which is harmless since applying a change twice only invalidates twice. The positions
+     * are timestamps of the FHIR server, the first poll only reads the position to start from, see
+     * {@link #getServerTime}.
+     */
+    @VisibleForTesting
+    int poll() {
+        IGenericClient client = clientSupplier.get();
+        if (since == null) {
+            since = getServerTime(fetchLatestHistory(client));
+            logger.debug("Polling the FHIR server for changes since {}", since);
+            return 0;
+        }
+        Changes changes = readChanges(client);
+        if (!changes.complete) {
+            invalidateAll();
+            // Changes after the first history read may not have been seen before the flush
+            since = changes.readAt != null ? changes.readAt : changes.latest;
+            return changes.count;
+        }
+        for (String resourceId : changes.configResourceIds) {
+            ApplicationConfigRegistry.INSTANCE.invalidateResource(resourceId);
+        }
+        CacheInvalidator.INSTANCE.onResourcesChanged(client, changes.resourceChanges);
+        since = changes.latest;
+        if (changes.count > 0) {
+            logger.info("Applied {} upstream changes to the caches", changes.count);
+        }
+        return changes.count;
+    }
+
+    /**
+     * Reads the changes made since the previous poll without applying them. The changes are
+     * incomplete if there are more than a poll reads.
+     */
+    Changes readChanges(IGenericClient client) {
+        Instant pollSince = since;
+        Changes changes = new Changes(pollSince);
+        for (String resourceType : RESOURCE_TYPES) {
+            // The history is newest first, so the first entry of a resource is its current state
+            Map<String, Bundle.BundleEntryComponent> changedResources = new LinkedHashMap<>();
+            Bundle page = fetchHistory(client, resourceType, Date.from(pollSince));
+            if (changes.readAt == null && page != null && page.getMeta().hasLastUpdated()) {
+                changes.readAt = page.getMeta().getLastUpdated().toInstant();
+            }
+            for (int pages = 0; page != null; pages++) {
+                if (pages == MAX_PAGES_PER_TYPE) {
+                    logger.warn(
+                            "More than {} changes of {} since {}",
+                            PAGE_SIZE * MAX_PAGES_PER_TYPE,
+                            resourceType,
+                            pollSince);
+                    changes.complete = false;
+                    return changes;
+                }
+                for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                    String resourceId = getResourceId(entry);
+                    if (StringUtils.isNotBlank(resourceId)) {
+                        changedResources.putIfAbsent(resourceId, entry);
+                    }
+                    Instant changedAt = getChangedAt(entry);
+                    if (changedAt != null && changedAt.isAfter(changes.latest)) {
+                        changes.latest = changedAt;
+                    }
+                }
+                page = page.getLink(Bundle.LINK_NEXT) != null ? loadNextPage(client, page) : null;
+            }
+
+            for (Map.Entry<String, Bundle.BundleEntryComponent> change :
+                    changedResources.entrySet()) {
+                changes.add(resourceType, change.getKey(), change.getValue());
+            }
+        }
+        return changes;
+    }
+
+    @VisibleForTesting
+    Bundle fetchHistory(IGenericClient client, String resourceType, Date since) {
+        return client.history()
+                .onType(resourceType)
+                .returnBundle(Bundle.class)
+                .since(since)
+                .count(PAGE_SIZE)
+                .execute();
+    }
+
+    /** The latest change of a Location, which also carries the time of the server. */
+    @VisibleForTesting
+    Bundle fetchLatestHistory(IGenericClient client) {
+        return client.history()
+                .onType(Constants.ResourceType.LOCATION)
+                .returnBundle(Bundle.class)
+                .count(1)
+                .execute();
+    }
+
+    @VisibleForTesting
+    Bundle loadNextPage(IGenericClient client, Bundle page) {
+        return client.loadPage().next(page).execute();
+    }
+
+    /**
+     * The time the history Bundle was read at on the server, or the time of its latest change if
+     * the server does not report it. The gateway's clock is only used if the server has neither,
+     * i.e. there is no history yet.
+     */
+    private static Instant getServerTime(Bundle history) {
+        if (history.getMeta().hasLastUpdated()) {
+            return history.getMeta().getLastUpdated().toInstant();
+        }
+        for (Bundle.BundleEntryComponent entry : history.getEntry()) {
+            Instant changedAt = getChangedAt(entry);
+            if (changedAt != null) {
+                return changedAt;
+            }
+        }
+        return Instant.now();
+    }
+
+    private void invalidateAll() {
+        CacheHelper.INSTANCE.invalidateAll();
+        ApplicationConfigRegistry.INSTANCE.invalidateAll();
+        LocationGraphIndex.INSTANCE.invalidate();
+    }
+
+    private void pollSafely() {
+        try {
+            poll();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to poll the FHIR server for changes: {}", e.getMessage());
+        }
+    }
+
+    private static @Nullable String getResourceId(Bundle.BundleEntryComponent entry) {
+        if (entry.getResource() != null && entry.getResource().getIdElement().hasIdPart()) {
+            return entry.getResource().getIdElement().getIdPart();
+        }
+        String url = entry.hasRequest() ? entry.getRequest().getUrl() : entry.getFullUrl();
+        return StringUtils.isNotBlank(url) ? new IdType(url).getIdPart() : null;
+    }
+
+    private static @Nullable Instant getChangedAt(Bundle.BundleEntryComponent entry) {
+        if (entry.getResource() != null && entry.getResource().getMeta().hasLastUpdated()) {
+            return entry.getResource().getMeta().getLastUpdated().toInstant();
+        }
+        if (entry.hasResponse() && entry.getResponse().hasLastModified()) {
+            return entry.getResponse().getLastModified().toInstant();
+        }
+        return null;
+    }
+
+    private static boolean isEnabled() {
+        return Boolean.parseBoolean(
+                EnvUtil.getEnvironmentVar(OPENSRP_CHANGE_FEED_ENABLED, "false").trim());
+    }
+
+    private static long getIntervalSeconds() {
+        String seconds =
+                EnvUtil.getEnvironmentVar(
+                        OPENSRP_CHANGE_FEED_INTERVAL_SECONDS,
+                        String.valueOf(DEFAULT_INTERVAL_SECONDS));
+        try {
+            return Math.max(1, Long.parseLong(seconds.trim()));
+        } catch (NumberFormatException e) {
+            logger.warn(
+                    "Invalid {} value '{}', using {}",
+                    OPENSRP_CHANGE_FEED_INTERVAL_SECONDS,
+                    seconds,
+                    DEFAULT_INTERVAL_SECONDS);
+            return DEFAULT_INTERVAL_SECONDS;
+        }
+    }
+
+    /**
+     * The changes read since a position: the changes applied to the caches and the Compositions and
+     * Binaries whose application configs are dropped.
+     */
+    static final class Changes {
+        private final List<CacheInvalidator.ResourceChange> resourceChanges = new ArrayList<>();
+        private final List<String> configResourceIds = new ArrayList<>();
+        // The server time of the first history read, if the server reports it
+        private @Nullable Instant readAt;
+        private Instant latest;
+        private boolean complete = true;
+        private int count;
+
+        private Changes(Instant since) {
+            this.latest = since;
+        }
+
+        private void add(
+                String resourceType, String resourceId, Bundle.BundleEntryComponent entry) {
+            // Deleted resources have no resource in their history entry
+            Resource resource = entry.getResource();
+            if (Constants.ResourceType.COMPOSITION.equals(resourceType)
+                    || Constants.ResourceType.BINARY.equals(resourceType)) {
+                configResourceIds.add(resourceId);
+            } else if (resource == null) {
+                resourceChanges.add(
+                        CacheInvalidator.ResourceChange.deleted(resourceType, resourceId));
+            } else {
+                resourceChanges.add(
+                        CacheInvalidator.ResourceChange.written(
+                                resourceType, resourceId, resource));
+            }
+            count++;
+        }
+
+        List<CacheInvalidator.ResourceChange> getResourceChanges() {
+            return resourceChanges;
+        }
+
+        /** Whether every change was read, otherwise all the caches have to be dropped. */
+        boolean isComplete() {
+            return complete;
+        }
+    }
+}
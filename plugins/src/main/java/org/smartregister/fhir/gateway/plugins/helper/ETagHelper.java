@@ -0,0 +1,76 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import org.apache.commons.lang3.StringUtils;
+
+import jakarta.annotation.Nullable;
+
+/**
+ * Strong ETags for the Bundle responses of the custom endpoints. The ETag is a hash of the body as
+ * it is encoded, so it only changes when the content does. A gzip compressed body has different
+ * bytes and gets a {@code -gzip} suffix.
+ *
+ * <p>The ETag of a response is also cached under a key of the request, which lets a conditional
+ * request that already holds the current ETag be answered before the response is built. The ETags
+ * expire with the other caches of {@link CacheHelper}, so a 304 is never sent for content the
+ * caches would no longer serve.
+ */
+public final class ETagHelper {
+
+    private static final int ETAG_BYTES = 16;
+    private static final String GZIP_SUFFIX = "-gzip";
+
+    private ETagHelper() {}
+
+    /** Formats the digest of the uncompressed body as a strong ETag. */
+    static String toETag(MessageDigest digest, boolean gzipped) {
+        String hash = HexFormat.of().formatHex(digest.digest(), 0, ETAG_BYTES);
+        return "\"" + hash + (gzipped ? GZIP_SUFFIX : "") + "\"";
+    }
+
+    /**
+     * Whether the If-None-Match header holds the ETag. Weak validators match as well since the
+     * comparison for If-None-Match is weak.
+     */
+    public static boolean matches(@Nullable String ifNoneMatch, String eTag) {
+        if (StringUtils.isBlank(ifNoneMatch)) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if ("*".equals(value) || eTag.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the cached ETag of the response key, if any. */
+    public static @Nullable String getCachedETag(String responseKey) {
+        if (CacheHelper.INSTANCE.skipCache()) {
+            return null;
+        }
+        return CacheHelper.INSTANCE.eTagCache.getIfPresent(responseKey);
+    }
+
+    public static void cacheETag(String responseKey, String eTag) {
+        if (!CacheHelper.INSTANCE.skipCache()) {
+            CacheHelper.INSTANCE.eTagCache.put(responseKey, eTag);
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
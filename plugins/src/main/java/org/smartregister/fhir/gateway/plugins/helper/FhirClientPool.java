@@ -1,40 +1,124 @@
 package org.smartregister.fhir.gateway.plugins.helper;
 
+import java.util.Deque;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smartregister.fhir.gateway.plugins.Constants;
+import org.smartregister.fhir.gateway.plugins.utils.EnvUtil;
+
+import com.google.common.annotations.VisibleForTesting;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import lombok.Getter;
 
 /**
  * Connection pool manager for FHIR clients to improve performance and resource utilization. This
  * class manages a pool of FHIR clients to avoid creating new connections for each request.
+ *
+ * <p>The number of leased clients is bounded by a fair semaphore, callers waiting for a client are
+ * served in FIFO order as soon as a client is returned instead of polling the pool. Every lease is
+ * tracked by its client so that returning a client is a constant time lookup.
+ *
+ * <p>The pool size, the leases and the time spent waiting for a client are exported through
+ * Micrometer with the {@value #METRIC_PREFIX} prefix.
  */
 public class FhirClientPool {
     private static final Logger logger = LoggerFactory.getLogger(FhirClientPool.class);
 
-    private static final int MAX_POOL_SIZE = 10;
-    private static final int MIN_POOL_SIZE = 2;
-    private static final long ACQUISITION_TIMEOUT_SECONDS = 30;
-    private static final long CLIENT_LEASE_TIMEOUT_SECONDS = 300; // 5 minutes
+    public static final String OPENSRP_FHIR_CLIENT_POOL_MAX_SIZE =
+            "OPENSRP_FHIR_CLIENT_POOL_MAX_SIZE";
+    public static final String OPENSRP_FHIR_CLIENT_POOL_MIN_SIZE =
+            "OPENSRP_FHIR_CLIENT_POOL_MIN_SIZE";
+    public static final String OPENSRP_FHIR_CLIENT_POOL_ACQUISITION_TIMEOUT_SECONDS =
+            "OPENSRP_FHIR_CLIENT_POOL_ACQUISITION_TIMEOUT_SECONDS";
 
-    private final ConcurrentMap<String, PooledFhirClient> clientPool = new ConcurrentHashMap<>();
-    private final AtomicInteger activeClients = new AtomicInteger(0);
+    private static final int DEFAULT_MAX_POOL_SIZE = 10;
+    private static final int DEFAULT_MIN_POOL_SIZE = 2;
+    private static final int DEFAULT_ACQUISITION_TIMEOUT_SECONDS = 30;
+    private static final long CLIENT_LEASE_TIMEOUT_SECONDS = 300; // 5 minutes
+    static final String METRIC_PREFIX = "opensrp.fhir.client.pool";
+
+    private final int maxPoolSize;
+    private final int minPoolSize;
+    private final long acquisitionTimeoutSeconds;
+    private final Semaphore permits;
+    private final Deque<IGenericClient> idleClients = new ConcurrentLinkedDeque<>();
+    private final Map<IGenericClient, Lease> leases = new ConcurrentHashMap<>();
+    private final AtomicInteger totalClients = new AtomicInteger(0);
     private final FhirContext fhirContext;
     private final String baseUrl;
+    private final Timer acquisitionTimer;
+    private final Timer leaseTimer;
+    private final Counter forcedReleaseCounter;
 
     private static volatile FhirClientPool instance;
 
-    private FhirClientPool(FhirContext fhirContext, String baseUrl) {
+    @VisibleForTesting
+    FhirClientPool(FhirContext fhirContext, String baseUrl) {
+        this(fhirContext, baseUrl, Metrics.globalRegistry);
+    }
+
+    @VisibleForTesting
+    FhirClientPool(FhirContext fhirContext, String baseUrl, MeterRegistry meterRegistry) {
         this.fhirContext = fhirContext;
         this.baseUrl = baseUrl;
+        this.maxPoolSize =
+                Math.max(
+                        1,
+                        getIntEnvironmentVar(
+                                OPENSRP_FHIR_CLIENT_POOL_MAX_SIZE, DEFAULT_MAX_POOL_SIZE));
+        this.minPoolSize =
+                Math.min(
+                        maxPoolSize,
+                        getIntEnvironmentVar(
+                                OPENSRP_FHIR_CLIENT_POOL_MIN_SIZE, DEFAULT_MIN_POOL_SIZE));
+        this.acquisitionTimeoutSeconds =
+                getIntEnvironmentVar(
+                        OPENSRP_FHIR_CLIENT_POOL_ACQUISITION_TIMEOUT_SECONDS,
+                        DEFAULT_ACQUISITION_TIMEOUT_SECONDS);
+        this.permits = new Semaphore(maxPoolSize, true);
+
+        Gauge.builder(METRIC_PREFIX + ".size", totalClients, AtomicInteger::get)
+                .description("Number of FHIR clients created by the pool")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".max", () -> maxPoolSize)
+                .description("Maximum number of leased FHIR clients")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".active", leases, Map::size)
+                .description("Number of leased FHIR clients")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".idle", idleClients, Deque::size)
+                .description("Number of FHIR clients available for lease")
+                .register(meterRegistry);
+        this.acquisitionTimer =
+                Timer.builder(METRIC_PREFIX + ".acquire")
+                        .description("Time spent waiting for a FHIR client")
+                        .publishPercentileHistogram()
+                        .register(meterRegistry);
+        this.leaseTimer =
+                Timer.builder(METRIC_PREFIX + ".lease")
+                        .description("Time a FHIR client was leased for")
+                        .publishPercentileHistogram()
+                        .register(meterRegistry);
+        this.forcedReleaseCounter =
+                Counter.builder(METRIC_PREFIX + ".forced.releases")
+                        .description("Leases released after exceeding the lease timeout")
+                        .register(meterRegistry);
+
         // Only initialize pool if we have a valid base URL
         if (baseUrl != null && !baseUrl.trim().isEmpty()) {
             initializePool();
@@ -57,10 +141,11 @@ public class FhirClientPool {
 
     /** Initialize the client pool with a minimum number of clients */
     private void initializePool() {
-        for (int i = 0; i < MIN_POOL_SIZE; i++) {
-            createAndAddClient();
+        for (int i = 0; i < minPoolSize; i++) {
+            idleClients.offerFirst(createClient());
         }
-        logger.info("Initialized FHIR client pool with {} clients", MIN_POOL_SIZE);
+        logger.info(
+                "Initialized FHIR client pool with {} clients (max {})", minPoolSize, maxPoolSize);
     }
 
     /** Get a FHIR client from the pool with bounded wait and timeout */
@@ -69,38 +154,83 @@ public class FhirClientPool {
         if (baseUrl == null || baseUrl.trim().isEmpty()) {
             return fhirContext.newRestfulGenericClient("http://localhost:8080/fhir");
         }
+        return acquire().getClient();
+    }
 
-        // Try to get an available client
-        for (PooledFhirClient pooledClient : clientPool.values()) {
-            if (pooledClient.tryAcquire()) {
-                return pooledClient.getClient();
-            }
+    /**
+     * Leases a client from the pool, waiting up to the acquisition timeout for one to be returned.
+     * The lease must be closed, e.g. with try-with-resources, to hand the client back to the pool.
+     */
+    public Lease acquire() {
+        long waitStart = System.nanoTime();
+        try {
+            acquirePermit();
+        } finally {
+            acquisitionTimer.record(System.nanoTime() - waitStart, TimeUnit.NANOSECONDS);
         }
-
-        // If no available client and we haven't reached max pool size, create a new one
-        if (activeClients.get() < MAX_POOL_SIZE) {
-            return createAndAddClient().getClient();
+        try {
+            IGenericClient client = idleClients.pollFirst();
+            if (client == null) {
+                client = createClient();
+            }
+            Lease lease = new Lease(client);
+            leases.put(client, lease);
+            return lease;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
         }
-
-        // Wait for an available client with bounded timeout
-        return waitForAvailableClientWithTimeout();
     }
 
     /** Return a client to the pool */
     public void returnClient(IGenericClient client) {
-        // Find the pooled client and release it
-        for (PooledFhirClient pooledClient : clientPool.values()) {
-            if (pooledClient.getClient() == client) {
-                pooledClient.release();
+        Lease lease = client != null ? leases.get(client) : null;
+        if (lease == null) {
+            logger.warn("Attempted to return unknown client to pool");
+            return;
+        }
+        lease.close();
+    }
+
+    private void acquirePermit() {
+        try {
+            // A zero timeout, unlike tryAcquire(), does not jump ahead of the queued waiters
+            if (permits.tryAcquire(0, TimeUnit.SECONDS)) {
+                return;
+            }
+            reclaimExpiredLeases();
+            if (permits.tryAcquire(acquisitionTimeoutSeconds, TimeUnit.SECONDS)) {
                 return;
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for FHIR client", e);
         }
-        logger.warn("Attempted to return unknown client to pool");
+
+        throw new RuntimeException(
+                String.format(
+                        "Timeout waiting for FHIR client after %d seconds. Pool stats: %s",
+                        acquisitionTimeoutSeconds, getStats()));
     }
 
-    /** Create a new client and add it to the pool */
-    private PooledFhirClient createAndAddClient() {
-        IGenericClient client = fhirContext.newRestfulGenericClient(baseUrl);
+    private boolean release(Lease lease, boolean reusable) {
+        if (!leases.remove(lease.getClient(), lease)) {
+            // Already released or reclaimed after the lease timed out
+            return false;
+        }
+        leaseTimer.record(System.currentTimeMillis() - lease.acquiredAt, TimeUnit.MILLISECONDS);
+        if (reusable) {
+            idleClients.offerFirst(lease.getClient());
+        } else {
+            totalClients.decrementAndGet();
+        }
+        permits.release();
+        return true;
+    }
+
+    /** Create a new client for the pool */
+    private IGenericClient createClient() {
+        IGenericClient client = FhirClientRegistry.INSTANCE.newClient(fhirContext, baseUrl);
 
         // Add logging interceptor for debugging
         if (logger.isDebugEnabled()) {
@@ -110,84 +240,40 @@ public class FhirClientPool {
             client.registerInterceptor(loggingInterceptor);
         }
 
-        PooledFhirClient pooledClient = new PooledFhirClient(client);
-        String clientId = "client-" + activeClients.incrementAndGet();
-        clientPool.put(clientId, pooledClient);
-
-        logger.debug("Created new FHIR client: {}", clientId);
-        return pooledClient;
+        logger.debug("Created new FHIR client: client-{}", totalClients.incrementAndGet());
+        return client;
     }
 
-    /** Wait for an available client with bounded timeout */
-    private IGenericClient waitForAvailableClientWithTimeout() {
-        long startTime = System.currentTimeMillis();
-        long timeoutMs = ACQUISITION_TIMEOUT_SECONDS * 1000;
-
-        while (System.currentTimeMillis() - startTime < timeoutMs) {
-            // Try to acquire any available client
-            for (PooledFhirClient pooledClient : clientPool.values()) {
-                if (pooledClient.tryAcquire()) {
-                    return pooledClient.getClient();
-                }
-            }
-
-            // Check for clients that have exceeded their lease timeout
-            cleanupExpiredClients();
-
-            // Try to acquire again after cleanup
-            for (PooledFhirClient pooledClient : clientPool.values()) {
-                if (pooledClient.tryAcquire()) {
-                    return pooledClient.getClient();
-                }
-            }
+    /**
+     * Releases the permits of leases held for longer than the lease timeout. Their clients are
+     * dropped rather than handed out again as the original holder may still be using them.
+     */
+    private void reclaimExpiredLeases() {
+        long currentTime = System.currentTimeMillis();
+        long leaseTimeoutMs = TimeUnit.SECONDS.toMillis(CLIENT_LEASE_TIMEOUT_SECONDS);
 
-            // Wait before retrying
-            try {
-                Thread.sleep(50); // Short sleep before retry
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException("Interrupted while waiting for FHIR client", e);
+        for (Lease lease : leases.values()) {
+            if (lease.hasExceededLeaseTimeout(currentTime, leaseTimeoutMs)
+                    && release(lease, false)) {
+                logger.warn("Force released FHIR client due to lease timeout");
+                forcedReleaseCounter.increment();
             }
         }
-
-        // Timeout reached - throw exception instead of creating temporary client
-        throw new RuntimeException(
-                String.format(
-                        "Timeout waiting for FHIR client after %d seconds. Pool stats: %s",
-                        ACQUISITION_TIMEOUT_SECONDS, getStats()));
-    }
-
-    /** Clean up clients that have exceeded their lease timeout */
-    private void cleanupExpiredClients() {
-        long currentTime = System.currentTimeMillis();
-        long leaseTimeoutMs = CLIENT_LEASE_TIMEOUT_SECONDS * 1000;
-
-        clientPool
-                .entrySet()
-                .removeIf(
-                        entry -> {
-                            PooledFhirClient pooledClient = entry.getValue();
-                            if (pooledClient.isInUse()
-                                    && pooledClient.hasExceededLeaseTimeout(
-                                            currentTime, leaseTimeoutMs)) {
-                                logger.warn(
-                                        "Force releasing client {} due to lease timeout",
-                                        entry.getKey());
-                                pooledClient.forceRelease();
-                                return false; // Don't remove from pool, just release it
-                            }
-                            return false;
-                        });
     }
 
     /** Get pool statistics for monitoring */
     public PoolStats getStats() {
-        int totalClients = clientPool.size();
-        int availableClients =
-                (int) clientPool.values().stream().filter(PooledFhirClient::isAvailable).count();
-        int activeClients = this.activeClients.get();
+        return new PoolStats(totalClients.get(), idleClients.size(), leases.size());
+    }
 
-        return new PoolStats(totalClients, availableClients, activeClients);
+    private static int getIntEnvironmentVar(String envVariable, int defaultValue) {
+        String value = EnvUtil.getEnvironmentVar(envVariable, String.valueOf(defaultValue));
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid {} value '{}', using {}", envVariable, value, defaultValue);
+            return defaultValue;
+        }
     }
 
     /** Pool statistics for monitoring */
@@ -222,41 +308,22 @@ public class FhirClientPool {
         }
     }
 
-    /** Wrapper for a pooled FHIR client with acquisition tracking and lease timeout */
-    private static class PooledFhirClient {
+    /** Handle of a leased FHIR client, closing it returns the client to the pool */
+    public final class Lease implements AutoCloseable {
         @Getter private final IGenericClient client;
-        @Getter private volatile boolean inUse = false;
-        private volatile long acquiredAt = 0;
+        private final long acquiredAt = System.currentTimeMillis();
 
-        public PooledFhirClient(IGenericClient client) {
+        private Lease(IGenericClient client) {
             this.client = client;
         }
 
-        public synchronized boolean tryAcquire() {
-            if (!inUse) {
-                inUse = true;
-                acquiredAt = System.currentTimeMillis();
-                return true;
-            }
-            return false;
+        private boolean hasExceededLeaseTimeout(long currentTime, long leaseTimeoutMs) {
+            return (currentTime - acquiredAt) > leaseTimeoutMs;
         }
 
-        public synchronized void release() {
-            inUse = false;
-            acquiredAt = 0;
-        }
-
-        public synchronized void forceRelease() {
-            inUse = false;
-            acquiredAt = 0;
-        }
-
-        public boolean isAvailable() {
-            return !inUse;
-        }
-
-        public boolean hasExceededLeaseTimeout(long currentTime, long leaseTimeoutMs) {
-            return inUse && (currentTime - acquiredAt) > leaseTimeoutMs;
+        @Override
+        public void close() {
+            release(this, true);
         }
     }
 }
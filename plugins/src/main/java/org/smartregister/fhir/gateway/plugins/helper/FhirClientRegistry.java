@@ -0,0 +1,183 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.Constants;
+import org.smartregister.fhir.gateway.plugins.utils.EnvUtil;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Hands out shared, thread-safe FHIR clients instead of building a new client (and at times a new
+ * {@link FhirContext}) per request. Every client is backed by a single Apache HttpClient whose
+ * connection pool, keep-alive and timeouts are configurable through environment variables, so that
+ * connections to the FHIR server are reused across all requests. The latency of the requests is
+ * recorded by the {@link UpstreamMetricsInterceptor}.
+ */
+public enum FhirClientRegistry {
+    INSTANCE;
+
+    public static final String OPENSRP_FHIR_CLIENT_MAX_CONNECTIONS =
+            "OPENSRP_FHIR_CLIENT_MAX_CONNECTIONS";
+    public static final String OPENSRP_FHIR_CLIENT_MAX_CONNECTIONS_PER_ROUTE =
+            "OPENSRP_FHIR_CLIENT_MAX_CONNECTIONS_PER_ROUTE";
+    public static final String OPENSRP_FHIR_CLIENT_KEEP_ALIVE_SECONDS =
+            "OPENSRP_FHIR_CLIENT_KEEP_ALIVE_SECONDS";
+    public static final String OPENSRP_FHIR_CLIENT_CONNECT_TIMEOUT_MS =
+            "OPENSRP_FHIR_CLIENT_CONNECT_TIMEOUT_MS";
+    public static final String OPENSRP_FHIR_CLIENT_CONNECTION_REQUEST_TIMEOUT_MS =
+            "OPENSRP_FHIR_CLIENT_CONNECTION_REQUEST_TIMEOUT_MS";
+    public static final String OPENSRP_FHIR_CLIENT_SOCKET_TIMEOUT_MS =
+            "OPENSRP_FHIR_CLIENT_SOCKET_TIMEOUT_MS";
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 100;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 50;
+    private static final int DEFAULT_KEEP_ALIVE_SECONDS = 60;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 10_000;
+    // Large related entity location syncs take minutes on the FHIR server
+    private static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MS = 300_000;
+    private static final int DEFAULT_SOCKET_TIMEOUT_MS = 300_000;
+
+    // Not static, enum constants are created before the static fields are initialised
+    private final Logger logger = LoggerFactory.getLogger(FhirClientRegistry.class);
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final HttpClient httpClient;
+    private final UpstreamMetricsInterceptor metricsInterceptor =
+            new UpstreamMetricsInterceptor(Metrics.globalRegistry);
+    private final Map<FhirContext, Map<String, IGenericClient>> clients =
+            new ConcurrentHashMap<>();
+
+    FhirClientRegistry() {
+        int keepAliveSeconds =
+                getIntEnvironmentVar(
+                        OPENSRP_FHIR_CLIENT_KEEP_ALIVE_SECONDS, DEFAULT_KEEP_ALIVE_SECONDS);
+        long keepAliveMillis = TimeUnit.SECONDS.toMillis(keepAliveSeconds);
+
+        connectionManager =
+                new PoolingHttpClientConnectionManager(keepAliveSeconds, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(
+                getIntEnvironmentVar(OPENSRP_FHIR_CLIENT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS));
+        connectionManager.setDefaultMaxPerRoute(
+                getIntEnvironmentVar(
+                        OPENSRP_FHIR_CLIENT_MAX_CONNECTIONS_PER_ROUTE,
+                        DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+
+        RequestConfig requestConfig =
+                RequestConfig.custom()
+                        .setConnectTimeout(
+                                getIntEnvironmentVar(
+                                        OPENSRP_FHIR_CLIENT_CONNECT_TIMEOUT_MS,
+                                        DEFAULT_CONNECT_TIMEOUT_MS))
+                        .setConnectionRequestTimeout(
+                                getIntEnvironmentVar(
+                                        OPENSRP_FHIR_CLIENT_CONNECTION_REQUEST_TIMEOUT_MS,
+                                        DEFAULT_CONNECTION_REQUEST_TIMEOUT_MS))
+                        .setSocketTimeout(
+                                getIntEnvironmentVar(
+                                        OPENSRP_FHIR_CLIENT_SOCKET_TIMEOUT_MS,
+                                        DEFAULT_SOCKET_TIMEOUT_MS))
+                        .build();
+
+        // Honour a shorter Keep-Alive advertised by the server, otherwise use the configured one
+        ConnectionKeepAliveStrategy keepAliveStrategy =
+                (response, context) -> {
+                    long serverKeepAlive =
+                            DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(
+                                    response, context);
+                    return serverKeepAlive > 0
+                            ? Math.min(serverKeepAlive, keepAliveMillis)
+                            : keepAliveMillis;
+                };
+
+        httpClient =
+                HttpClients.custom()
+                        .setConnectionManager(connectionManager)
+                        .setDefaultRequestConfig(requestConfig)
+                        .setKeepAliveStrategy(keepAliveStrategy)
+                        .evictExpiredConnections()
+                        .evictIdleConnections(keepAliveSeconds, TimeUnit.SECONDS)
+                        .disableCookieManagement()
+                        .build();
+        logger.info(
+                "Initialized shared FHIR HTTP client with {} connections ({} per route)",
+                connectionManager.getMaxTotal(),
+                connectionManager.getDefaultMaxPerRoute());
+    }
+
+    /** The shared R4 context, the model scan is done only once per process. */
+    public FhirContext getFhirContext() {
+        return FhirContext.forR4Cached();
+    }
+
+    /** Client of the shared R4 context for the FHIR server the gateway proxies to. */
+    public IGenericClient getClient() {
+        return getClient(getFhirContext());
+    }
+
+    /** Client of the given context for the FHIR server the gateway proxies to. */
+    public IGenericClient getClient(FhirContext fhirContext) {
+        return getClient(fhirContext, System.getenv(Constants.PROXY_TO_ENV));
+    }
+
+    /** Shared client of the given context for the server base URL. */
+    public IGenericClient getClient(FhirContext fhirContext, String serverBase) {
+        Objects.requireNonNull(serverBase, "The FHIR server base URL is not configured");
+        Map<String, IGenericClient> contextClients =
+                clients.computeIfAbsent(fhirContext, this::configure);
+        return contextClients.computeIfAbsent(
+                serverBase, key -> createClient(fhirContext, serverBase));
+    }
+
+    /**
+     * Creates a new client for the server base URL that is backed by the shared HTTP client. Use
+     * this for clients that need their own interceptors, the clients returned by {@link
+     * #getClient(FhirContext, String)} are shared.
+     */
+    public IGenericClient newClient(FhirContext fhirContext, String serverBase) {
+        clients.computeIfAbsent(fhirContext, this::configure);
+        return createClient(fhirContext, serverBase);
+    }
+
+    private IGenericClient createClient(FhirContext fhirContext, String serverBase) {
+        IGenericClient client = fhirContext.newRestfulGenericClient(serverBase);
+        client.registerInterceptor(metricsInterceptor);
+        return client;
+    }
+
+    private Map<String, IGenericClient> configure(FhirContext fhirContext) {
+        IRestfulClientFactory restfulClientFactory = fhirContext.getRestfulClientFactory();
+        if (restfulClientFactory instanceof ApacheRestfulClientFactory) {
+            ((ApacheRestfulClientFactory) restfulClientFactory).setHttpClient(httpClient);
+        } else {
+            logger.warn(
+                    "Unable to share the HTTP client with {}",
+                    restfulClientFactory.getClass().getName());
+        }
+        return new ConcurrentHashMap<>();
+    }
+
+    private int getIntEnvironmentVar(String envVariable, int defaultValue) {
+        String value = EnvUtil.getEnvironmentVar(envVariable, String.valueOf(defaultValue));
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid {} value '{}', using {}", envVariable, value, defaultValue);
+            return defaultValue;
+        }
+    }
+}
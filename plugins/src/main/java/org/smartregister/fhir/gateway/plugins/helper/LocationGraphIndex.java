@@ -0,0 +1,362 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.Constants;
+import org.smartregister.fhir.gateway.plugins.utils.EnvUtil;
+import org.smartregister.fhir.gateway.plugins.utils.Utils;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.impl.GenericClient;
+import jakarta.annotation.Nullable;
+
+/**
+ * Process-wide adjacency index of all Location resources. The index is built from a single paged
+ * scan of the Location resource type and holds the parent → children and child → parent links so
+ * that hierarchy descendants can be resolved in memory instead of issuing one {@code partof} search
+ * per node.
+ *
+ * <p>The index is opt-in (see {@link #OPENSRP_LOCATION_INDEX_ENABLED}) and is rebuilt once it is
+ * older than {@link #OPENSRP_LOCATION_INDEX_REFRESH_SECONDS}. While a rebuild is running other
+ * callers keep being served from the previous snapshot. Callers fall back to querying the FHIR
+ * server whenever a lookup returns {@code null}.
+ */
+public enum LocationGraphIndex {
+    INSTANCE;
+
+    private static final Logger logger = LoggerFactory.getLogger(LocationGraphIndex.class);
+
+    public static final String OPENSRP_LOCATION_INDEX_ENABLED = "OPENSRP_LOCATION_INDEX_ENABLED";
+    public static final String OPENSRP_LOCATION_INDEX_REFRESH_SECONDS =
+            "OPENSRP_LOCATION_INDEX_REFRESH_SECONDS";
+    private static final String DEFAULT_REFRESH_SECONDS = "300";
+    private static final int SCAN_PAGE_SIZE = 1000;
+
+    private final ReentrantLock buildLock = new ReentrantLock();
+    private volatile Snapshot snapshot;
+
+    public boolean isEnabled() {
+        return Boolean.parseBoolean(
+                EnvUtil.getEnvironmentVar(OPENSRP_LOCATION_INDEX_ENABLED, "false").trim());
+    }
+
+    /**
+     * Returns the location followed by its descendants, walking only through children that match
+     * the given admin levels. This mirrors the recursive {@code partof} search semantics.
+     *
+     * @return the descendants or {@code null} if the index could not be loaded or does not know
+     *     the location yet
+     */
+    public @Nullable List<Location> getDescendants(
+            IGenericClient fhirClient,
+            String locationId,
+            @Nullable Location parentLocation,
+            @Nullable List<String> adminLevels) {
+        Snapshot current = ensureLoaded(fhirClient);
+        if (current == null || !current.locations.containsKey(locationId)) {
+            return null;
+        }
+
+        List<Location> result = new ArrayList<>();
+        if (parentLocation != null) {
+            result.add(parentLocation);
+        }
+        Deque<String> queue = new ArrayDeque<>();
+        Set<String> visited = new HashSet<>();
+        queue.add(locationId);
+        visited.add(locationId);
+        while (!queue.isEmpty()) {
+            for (String childId : current.getChildren(queue.poll())) {
+                Location child = current.locations.get(childId);
+                if (child != null
+                        && matchesAdminLevels(child, adminLevels)
+                        && visited.add(childId)) {
+                    result.add(child);
+                    queue.add(childId);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns every descendant (at any depth) of the given locations whose type matches the admin
+     * levels. The locations themselves are not included. This mirrors the location lineage tag
+     * search semantics.
+     *
+     * @return the descendants or {@code null} if the index could not be loaded or does not know one
+     *     of the locations yet
+     */
+    public @Nullable List<Location> getLineageDescendants(
+            IGenericClient fhirClient,
+            List<String> locationIds,
+            @Nullable List<String> adminLevels) {
+        Snapshot current = ensureLoaded(fhirClient);
+        if (current == null) {
+            return null;
+        }
+        for (String locationId : locationIds) {
+            if (!current.locations.containsKey(locationId)) {
+                return null;
+            }
+        }
+
+        List<Location> result = new ArrayList<>();
+        Set<String> visited = new HashSet<>(locationIds);
+        Deque<String> queue = new ArrayDeque<>(locationIds);
+        while (!queue.isEmpty()) {
+            for (String childId : current.getChildren(queue.poll())) {
+                if (visited.add(childId)) {
+                    queue.add(childId);
+                    Location child = current.locations.get(childId);
+                    if (child != null && matchesAdminLevels(child, adminLevels)) {
+                        result.add(child);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    public @Nullable Location getLocation(IGenericClient fhirClient, String locationId) {
+        Snapshot current = ensureLoaded(fhirClient);
+        return current != null ? current.locations.get(locationId) : null;
+    }
+
+    public @Nullable String getParentId(IGenericClient fhirClient, String locationId) {
+        Snapshot current = ensureLoaded(fhirClient);
+        return current != null ? current.parents.get(locationId) : null;
+    }
+
+    /**
+     * Returns the ids of the ancestors of the location, nearest first, as far as the current
+     * snapshot knows them. The index is not loaded for this, so the result is empty until it is.
+     */
+    public List<String> getAncestorIds(String locationId) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            return Collections.emptyList();
+        }
+        List<String> ancestorIds = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        visited.add(locationId);
+        String parentId = current.parents.get(locationId);
+        while (parentId != null && visited.add(parentId)) {
+            ancestorIds.add(parentId);
+            parentId = current.parents.get(parentId);
+        }
+        return ancestorIds;
+    }
+
+    /**
+     * Adds the location to the current snapshot or replaces it there, e.g. after it was written
+     * through the gateway, without rescanning the Location resources. Does nothing if the index is
+     * not loaded.
+     */
+    public void update(Location location) {
+        String locationId = location.getIdElement().getIdPart();
+        if (locationId != null) {
+            replace(Collections.singletonMap(locationId, location));
+        }
+    }
+
+    /** Removes the location from the current snapshot, its children are kept. */
+    public void remove(String locationId) {
+        replace(Collections.singletonMap(locationId, null));
+    }
+
+    /**
+     * Applies the changes of several locations to the current snapshot at once, see {@link #update}
+     * and {@link #remove}. The locations are keyed by id, an id mapped to null is removed.
+     */
+    public void updateAll(Map<String, Location> locations) {
+        if (!locations.isEmpty()) {
+            replace(locations);
+        }
+    }
+
+    /** Drops the current snapshot so that the next lookup rebuilds the index. */
+    public void invalidate() {
+        snapshot = null;
+    }
+
+    private void replace(Map<String, Location> changes) {
+        buildLock.lock();
+        try {
+            Snapshot current = snapshot;
+            if (current == null) {
+                return;
+            }
+            List<Location> locations = new ArrayList<>(current.locations.size() + changes.size());
+            for (Map.Entry<String, Location> entry : current.locations.entrySet()) {
+                if (!changes.containsKey(entry.getKey())) {
+                    locations.add(entry.getValue());
+                } else if (changes.get(entry.getKey()) != null) {
+                    locations.add(changes.get(entry.getKey()));
+                }
+            }
+            for (Map.Entry<String, Location> change : changes.entrySet()) {
+                if (change.getValue() != null && !current.locations.containsKey(change.getKey())) {
+                    locations.add(change.getValue());
+                }
+            }
+            // The snapshot keeps its age, the periodic rebuild still picks up other changes
+            snapshot = new Snapshot(locations, current.builtAt);
+        } finally {
+            buildLock.unlock();
+        }
+    }
+
+    @VisibleForTesting
+    void load(List<Location> locations) {
+        snapshot = new Snapshot(locations, System.currentTimeMillis());
+    }
+
+    private @Nullable Snapshot ensureLoaded(IGenericClient fhirClient) {
+        Snapshot current = snapshot;
+        if (current != null && !current.isStale(getRefreshMillis())) {
+            return current;
+        }
+
+        if (current != null) {
+            // Keep serving the stale snapshot while another thread rebuilds the index
+            if (!buildLock.tryLock()) {
+                return current;
+            }
+        } else {
+            buildLock.lock();
+        }
+
+        try {
+            current = snapshot;
+            if (current == null || current.isStale(getRefreshMillis())) {
+                long start = System.currentTimeMillis();
+                Snapshot rebuilt =
+                        new Snapshot(fetchAllLocations(fhirClient), System.currentTimeMillis());
+                logger.info(
+                        "Built Location index with {} locations in {} ms",
+                        rebuilt.locations.size(),
+                        System.currentTimeMillis() - start);
+                snapshot = rebuilt;
+                current = rebuilt;
+            }
+            return current;
+        } catch (Exception e) {
+            logger.error("Failed to build Location index", e);
+            return current;
+        } finally {
+            buildLock.unlock();
+        }
+    }
+
+    private List<Location> fetchAllLocations(IGenericClient fhirClient) {
+        List<Location> locations = new ArrayList<>();
+        Bundle page =
+                fhirClient
+                        .search()
+                        .forResource(Location.class)
+                        .count(SCAN_PAGE_SIZE)
+                        .returnBundle(Bundle.class)
+                        .execute();
+
+        Set<String> visitedNextLinks = new HashSet<>();
+        while (page != null) {
+            for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                if (entry.getResource() instanceof Location) {
+                    locations.add((Location) entry.getResource());
+                }
+            }
+
+            Bundle.BundleLinkComponent nextLink = page.getLink(Bundle.LINK_NEXT);
+            if (nextLink == null
+                    || StringUtils.isBlank(nextLink.getUrl())
+                    || !visitedNextLinks.add(nextLink.getUrl())) {
+                break;
+            }
+            if (fhirClient instanceof GenericClient) {
+                Utils.cleanUpBundlePaginationNextLinkServerBaseUrl(
+                        (GenericClient) fhirClient, page);
+            }
+            page = fhirClient.loadPage().next(page).execute();
+        }
+        return locations;
+    }
+
+    private long getRefreshMillis() {
+        String seconds =
+                EnvUtil.getEnvironmentVar(
+                        OPENSRP_LOCATION_INDEX_REFRESH_SECONDS, DEFAULT_REFRESH_SECONDS);
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(seconds.trim()));
+        } catch (NumberFormatException e) {
+            logger.warn(
+                    "Invalid {} value '{}', using default",
+                    OPENSRP_LOCATION_INDEX_REFRESH_SECONDS,
+                    seconds);
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(DEFAULT_REFRESH_SECONDS));
+        }
+    }
+
+    private static boolean matchesAdminLevels(Location location, List<String> adminLevels) {
+        if (adminLevels == null || adminLevels.isEmpty()) {
+            return true;
+        }
+        return location.getType().stream()
+                .flatMap(codeableConcept -> codeableConcept.getCoding().stream())
+                .anyMatch(
+                        coding ->
+                                Constants.DEFAULT_ADMIN_LEVEL_TYPE_URL.equals(coding.getSystem())
+                                        && adminLevels.contains(coding.getCode()));
+    }
+
+    private static final class Snapshot {
+        private final long builtAt;
+        private final Map<String, Location> locations = new LinkedHashMap<>();
+        private final Map<String, List<String>> children = new LinkedHashMap<>();
+        private final Map<String, String> parents = new HashMap<>();
+
+        private Snapshot(List<Location> allLocations, long builtAt) {
+            this.builtAt = builtAt;
+            for (Location location : allLocations) {
+                String id = location.getIdElement().getIdPart();
+                if (id == null) {
+                    continue;
+                }
+                locations.put(id, location);
+                if (location.hasPartOf()) {
+                    String parentId = location.getPartOf().getReferenceElement().getIdPart();
+                    if (parentId != null) {
+                        parents.put(id, parentId);
+                        children.computeIfAbsent(parentId, key -> new ArrayList<>()).add(id);
+                    }
+                }
+            }
+        }
+
+        private List<String> getChildren(String locationId) {
+            return children.getOrDefault(locationId, Collections.emptyList());
+        }
+
+        private boolean isStale(long refreshMillis) {
+            return System.currentTimeMillis() - builtAt > refreshMillis;
+        }
+    }
+}
@@ -4,7 +4,7 @@ import static org.smartregister.utils.Constants.LOCATION_RESOURCE;
 import static org.smartregister.utils.Constants.LOCATION_RESOURCE_NOT_FOUND;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.Writer;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
@@ -12,16 +12,17 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
-import org.hl7.fhir.r4.model.Binary;
 import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.Location;
 import org.hl7.fhir.r4.model.Resource;
@@ -36,6 +37,7 @@ import org.smartregister.model.location.LocationHierarchy;
 import org.smartregister.model.location.LocationHierarchyTree;
 
 import com.auth0.jwt.interfaces.DecodedJWT;
+import com.github.benmanes.caffeine.cache.Cache;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.api.SearchStyleEnum;
@@ -47,11 +49,15 @@ import ca.uhn.fhir.rest.gclient.TokenClientParam;
 import jakarta.annotation.Nullable;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import lombok.Getter;
 
 public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
 
     private static final Logger logger =
             LoggerFactory.getLogger(LocationHierarchyEndpointHelper.class);
+    private static final String LOCATION_SNAPSHOT_ATTRIBUTE =
+            LocationHierarchyEndpointHelper.class.getName() + ".locationSnapshot";
+    private static final int EXPORT_PAGE_SIZE = 500;
 
     private final StreamingResponseHelper streamingHelper;
     private final PractitionerDetailsEndpointHelper practitionerDetailsEndpointHelper;
@@ -60,7 +66,7 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
         super(fhirClient);
         this.streamingHelper =
                 new StreamingResponseHelper(
-                        FhirContext.forR4Cached().newJsonParser().setPrettyPrint(true));
+                        FhirContext.forR4Cached().newJsonParser().setPrettyPrint(false));
         this.practitionerDetailsEndpointHelper = new PractitionerDetailsEndpointHelper(fhirClient);
     }
 
@@ -98,9 +104,9 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
         } else {
             // Use resourceCache for LocationHierarchy objects
             return (LocationHierarchy)
-                    CacheHelper.INSTANCE.resourceCache.get(
+                    CacheHelper.INSTANCE.getResource(
                             cacheKey,
-                            key ->
+                            () ->
                                     getLocationHierarchyCore(
                                             locationId,
                                             preFetchAdminLevels,
@@ -120,16 +126,15 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
 
         locationIds = locationIds != null ? locationIds : Collections.emptyList();
 
-        return locationIds.parallelStream()
-                .map(
-                        locationId ->
-                                getLocationHierarchy(
-                                        locationId,
-                                        preFetchAdminLevels,
-                                        postFetchAdminLevels,
-                                        filterInventory,
-                                        lastUpdated))
-                .collect(Collectors.toList());
+        return UpstreamExecutor.INSTANCE.mapAll(
+                locationIds,
+                locationId ->
+                        getLocationHierarchy(
+                                locationId,
+                                preFetchAdminLevels,
+                                postFetchAdminLevels,
+                                filterInventory,
+                                lastUpdated));
     }
 
     public LocationHierarchy getLocationHierarchyCore(
@@ -187,13 +192,48 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
 
     public List<Location> getDescendants(
             String locationId, Location parentLocation, List<String> adminLevels) {
+        if (LocationGraphIndex.INSTANCE.isEnabled()) {
+            List<Location> indexedDescendants =
+                    LocationGraphIndex.INSTANCE.getDescendants(
+                            getFhirClientForR4(), locationId, parentLocation, adminLevels);
+            if (indexedDescendants != null) {
+                return indexedDescendants;
+            }
+        }
+
+        List<Location> allLocations = new ArrayList<>();
+        if (parentLocation != null) {
+            allLocations.add(parentLocation);
+        }
+
+        // Walk the hierarchy breadth first, fetching the children of a whole level at once
+        Set<String> visitedLocationIds = new HashSet<>();
+        visitedLocationIds.add(locationId);
+        List<String> currentLevelIds = Collections.singletonList(locationId);
+        while (!currentLevelIds.isEmpty()) {
+            List<String> nextLevelIds = new ArrayList<>();
+            for (Location childLocation : getChildLocations(currentLevelIds, adminLevels)) {
+                String childLocationId = childLocation.getIdElement().getIdPart();
+                if (visitedLocationIds.add(childLocationId)) {
+                    allLocations.add(childLocation);
+                    nextLevelIds.add(childLocationId);
+                }
+            }
+            currentLevelIds = nextLevelIds;
+        }
+
+        return allLocations;
+    }
+
+    private List<Location> getChildLocations(
+            List<String> parentLocationIds, List<String> adminLevels) {
         IQuery<IBaseBundle> query =
                 getFhirClientForR4()
                         .search()
                         .forResource(Location.class)
                         .where(
                                 new ReferenceClientParam(Location.SP_PARTOF)
-                                        .hasAnyOfIds(locationId));
+                                        .hasAnyOfIds(parentLocationIds));
 
         if (adminLevels != null && !adminLevels.isEmpty()) {
             TokenClientParam adminLevelParam = new TokenClientParam(Constants.TYPE_SEARCH_PARAM);
@@ -216,27 +256,16 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
                         .returnBundle(Bundle.class)
                         .execute();
 
-        List<Location> allLocations = Collections.synchronizedList(new ArrayList<>());
-        if (parentLocation != null) {
-            allLocations.add(parentLocation);
-        }
+        List<Location> childLocations = new ArrayList<>();
         if (childLocationBundle != null) {
             Utils.fetchAllBundlePagesAndInject(r4FHIRClient, childLocationBundle);
-            childLocationBundle.getEntry().parallelStream()
-                    .forEach(
-                            childLocation -> {
-                                Location childLocationEntity =
-                                        (Location) childLocation.getResource();
-                                allLocations.add(childLocationEntity);
-                                allLocations.addAll(
-                                        getDescendants(
-                                                childLocationEntity.getIdElement().getIdPart(),
-                                                null,
-                                                adminLevels));
-                            });
+            for (Bundle.BundleEntryComponent entry : childLocationBundle.getEntry()) {
+                if (entry.getResource() instanceof Location) {
+                    childLocations.add((Location) entry.getResource());
+                }
+            }
         }
-
-        return allLocations;
+        return childLocations;
     }
 
     public @Nullable Location getLocationByIdWithCache(String locationId) {
@@ -244,8 +273,8 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
             return getLocationById(locationId);
         } else {
             return (Location)
-                    CacheHelper.INSTANCE.resourceCache.get(
-                            "location_" + locationId, key -> getLocationById(locationId));
+                    CacheHelper.INSTANCE.getResource(
+                            "location_" + locationId, () -> getLocationById(locationId));
         }
     }
 
@@ -369,15 +398,7 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
     }
 
     public String getSyncStrategyByAppId(String applicationId) {
-        String syncStrategy;
-        if (CacheHelper.INSTANCE.skipCache()) {
-            syncStrategy = getSyncStrategy(applicationId);
-        } else {
-            syncStrategy =
-                    CacheHelper.INSTANCE.stringCache.get(
-                            applicationId, key -> getSyncStrategy(applicationId));
-        }
-        return syncStrategy;
+        return ApplicationConfigRegistry.INSTANCE.getSyncStrategy(applicationId);
     }
 
     /**
@@ -418,31 +439,6 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
         return envVar != null && !envVar.isEmpty() && envVar.equals(tagUrl);
     }
 
-    private String getSyncStrategy(String applicationId) {
-        FhirContext fhirContext = FhirContext.forR4();
-        IGenericClient client = Utils.createFhirClientForR4(fhirContext);
-
-        Bundle compositionBundle =
-                client.search()
-                        .forResource(Composition.class)
-                        .where(Composition.IDENTIFIER.exactly().identifier(applicationId))
-                        .usingStyle(SearchStyleEnum.POST)
-                        .returnBundle(Bundle.class)
-                        .execute();
-
-        Bundle.BundleEntryComponent compositionEntry = compositionBundle.getEntryFirstRep();
-        Composition composition;
-        if (compositionEntry != null) {
-            composition = (Composition) compositionEntry.getResource();
-        } else {
-            composition = null;
-        }
-        String binaryResourceReference = Utils.getBinaryResourceReference(composition, logger);
-        Binary binary =
-                Utils.readApplicationConfigBinaryResource(binaryResourceReference, fhirContext);
-        return Utils.findSyncStrategy(binary);
-    }
-
     public Bundle getPaginatedLocations(
             HttpServletRequest request, List<String> locationIds, String tagUrl) {
         String pageSize = request.getParameter(Constants.PAGINATION_PAGE_SIZE);
@@ -469,31 +465,19 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
 
         int start = Math.max(0, (page - 1)) * count;
 
-        // Fetch all descendants for all location IDs in a single query
-        // Use provided tag URL or default to location hierarchy tag
-        Bundle allDescendantsBundle = fetchAllDescendants(locationIds, preFetchAdminLevels, tagUrl);
-        List<Location> resourceLocations = collectAllLocations(allDescendantsBundle);
-
-        // Get the parents
-        Bundle parentLocation = getLocationsById(locationIds);
-        if (parentLocation != null) {
-            List<Bundle.BundleEntryComponent> locationBundleEntryComponents =
-                    parentLocation.getEntry();
-            for (Bundle.BundleEntryComponent locationBundleEntryComponent :
-                    locationBundleEntryComponents) {
-                resourceLocations.add((Location) locationBundleEntryComponent.getResource());
-            }
-        }
-
-        // Apply the post filter
-        resourceLocations =
-                postFetchFilters(
-                        resourceLocations, postFetchAdminLevels, filterInventory, lastUpdated);
+        LocationSnapshotStore.LocationSnapshot snapshot =
+                getLocationSnapshot(
+                        request,
+                        locationIds,
+                        preFetchAdminLevels,
+                        postFetchAdminLevels,
+                        filterInventory,
+                        lastUpdated,
+                        tagUrl);
 
-        int totalEntries = resourceLocations.size();
+        int totalEntries = snapshot.size();
 
-        int end = Math.min(start + count, resourceLocations.size());
-        List<Location> paginatedResourceLocations = resourceLocations.subList(start, end);
+        List<Location> paginatedResourceLocations = snapshot.getLocations(start, count);
         Bundle resultBundle;
         if (Constants.COUNT.equals(summary)) {
             resultBundle =
@@ -503,11 +487,15 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
             return resultBundle;
         }
 
-        if (resourceLocations.isEmpty()) {
+        if (totalEntries == 0) {
             resultBundle =
                     Utils.createEmptyBundle(
                             request.getRequestURL() + "?" + request.getQueryString());
         } else {
+            // Serve the other pages from the same snapshot
+            if (totalEntries > count && LocationSnapshotStore.INSTANCE.put(snapshot)) {
+                parameters.put(Constants.PAGINATION_CURSOR, new String[] {snapshot.getToken()});
+            }
             resultBundle = Utils.createBundle(paginatedResourceLocations);
             StringBuilder urlBuilder = new StringBuilder(request.getRequestURL());
             Utils.addPaginationLinks(
@@ -561,27 +549,61 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
             }
         }
 
-        // Fetch all descendants for all location IDs in a single query
-        Bundle allDescendantsBundle = fetchAllDescendants(locationIds, preFetchAdminLevels, tagUrl);
-        List<Location> resourceLocations = collectAllLocations(allDescendantsBundle);
-
-        // Get the parents
-        Bundle parentLocation = getLocationsById(locationIds);
-        if (parentLocation != null) {
-            List<Bundle.BundleEntryComponent> locationBundleEntryComponents =
-                    parentLocation.getEntry();
-            for (Bundle.BundleEntryComponent locationBundleEntryComponent :
-                    locationBundleEntryComponents) {
-                resourceLocations.add((Location) locationBundleEntryComponent.getResource());
+        // An export streams all the locations in one response, page by page from upstream
+        if (Boolean.parseBoolean(request.getParameter(Constants.EXPORT))) {
+            LocationExportPages locationPages =
+                    new LocationExportPages(
+                            locationIds,
+                            preFetchAdminLevels,
+                            postFetchAdminLevels,
+                            filterInventory,
+                            lastUpdated,
+                            tagUrl);
+            try {
+                streamingHelper.streamLocationExport(request, response, locationPages);
+            } finally {
+                // Nothing reads the page requested ahead once writing to the client failed
+                locationPages.cancel();
             }
+            return;
         }
 
-        // Apply the post filter
-        resourceLocations =
-                postFetchFilters(
-                        resourceLocations, postFetchAdminLevels, filterInventory, lastUpdated);
+        // A page linked from a streamed page continues from the upstream page that follows
+        String queryKey =
+                getLocationQueryKey(
+                        locationIds,
+                        preFetchAdminLevels,
+                        postFetchAdminLevels,
+                        filterInventory,
+                        lastUpdated,
+                        tagUrl);
+        String pageToken = request.getParameter(Constants.PAGINATION_PAGE_TOKEN);
+        if (LocationSnapshotStore.INSTANCE.getPageLink(pageToken, queryKey) != null) {
+            streamPaginatedLocationsMemoryEfficient(
+                    request,
+                    response,
+                    locationIds,
+                    preFetchAdminLevels,
+                    postFetchAdminLevels,
+                    filterInventory,
+                    lastUpdated,
+                    page,
+                    count,
+                    tagUrl);
+            return;
+        }
 
-        int totalEntries = resourceLocations.size();
+        // Kept on the request so that getPaginatedLocations does not fetch the locations again
+        int totalEntries =
+                getLocationSnapshot(
+                                request,
+                                locationIds,
+                                preFetchAdminLevels,
+                                postFetchAdminLevels,
+                                filterInventory,
+                                lastUpdated,
+                                tagUrl)
+                        .size();
 
         // Check if we should use streaming based on dataset size
         int streamingThreshold = 1000; // Use streaming for datasets larger than 1000 locations
@@ -605,19 +627,89 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
             // For smaller datasets, use regular pagination
             logger.info("Using regular pagination for dataset with {} locations", totalEntries);
             Bundle resultBundle = getPaginatedLocations(request, locationIds, tagUrl);
-            response.setContentType("application/json");
-            response.setCharacterEncoding("UTF-8");
-            try (PrintWriter writer = response.getWriter()) {
-                writer.write(
-                        FhirContext.forR4Cached()
-                                .newJsonParser()
-                                .setPrettyPrint(true)
-                                .encodeResourceToString(resultBundle));
+            if (StreamingResponseHelper.isNdjsonRequested(request)) {
+                streamingHelper.streamBundleAsNdjson(request, response, resultBundle);
+                return;
             }
+            try (Writer writer =
+                    ResponseEncoder.openWriter(request, response, "application/json")) {
+                FhirContext.forR4Cached()
+                        .newJsonParser()
+                        .setPrettyPrint(ResponseEncoder.isPrettyRequested(request))
+                        .encodeResourceToWriter(resultBundle, writer);
+            }
+        }
+    }
+
+    /**
+     * Returns the filtered locations of the request. The snapshot of the request's cursor is reused
+     * when it was built for the same query, otherwise the locations are fetched from the FHIR
+     * server.
+     */
+    private LocationSnapshotStore.LocationSnapshot getLocationSnapshot(
+            HttpServletRequest request,
+            List<String> locationIds,
+            List<String> preFetchAdminLevels,
+            List<String> postFetchAdminLevels,
+            Boolean filterInventory,
+            String lastUpdated,
+            String tagUrl) {
+        String queryKey =
+                getLocationQueryKey(
+                        locationIds,
+                        preFetchAdminLevels,
+                        postFetchAdminLevels,
+                        filterInventory,
+                        lastUpdated,
+                        tagUrl);
+
+        Object requestSnapshot = request.getAttribute(LOCATION_SNAPSHOT_ATTRIBUTE);
+        if (requestSnapshot instanceof LocationSnapshotStore.LocationSnapshot
+                && queryKey.equals(
+                        ((LocationSnapshotStore.LocationSnapshot) requestSnapshot).getQueryKey())) {
+            return (LocationSnapshotStore.LocationSnapshot) requestSnapshot;
         }
+
+        LocationSnapshotStore.LocationSnapshot snapshot =
+                LocationSnapshotStore.INSTANCE.get(
+                        request.getParameter(Constants.PAGINATION_CURSOR), queryKey);
+        if (snapshot == null) {
+            List<Location> resourceLocations =
+                    getLocationsWithDescendants(locationIds, preFetchAdminLevels, tagUrl);
+
+            // Apply the post filter
+            resourceLocations =
+                    postFetchFilters(
+                            resourceLocations, postFetchAdminLevels, filterInventory, lastUpdated);
+            snapshot = new LocationSnapshotStore.LocationSnapshot(queryKey, resourceLocations);
+        }
+        request.setAttribute(LOCATION_SNAPSHOT_ATTRIBUTE, snapshot);
+        return snapshot;
     }
 
-    /** Memory-efficient streaming that fetches and processes data in chunks. */
+    private String getLocationQueryKey(
+            List<String> locationIds,
+            List<String> preFetchAdminLevels,
+            List<String> postFetchAdminLevels,
+            Boolean filterInventory,
+            String lastUpdated,
+            String tagUrl) {
+        return String.join(
+                "|",
+                String.valueOf(locationIds),
+                String.valueOf(preFetchAdminLevels),
+                String.valueOf(postFetchAdminLevels),
+                String.valueOf(filterInventory),
+                String.valueOf(lastUpdated),
+                String.valueOf(tagUrl));
+    }
+
+    /**
+     * Memory-efficient streaming that fetches a single page of locations from the FHIR server. The
+     * next link carries a page token of the upstream next link, so the following page is loaded
+     * from the FHIR server's own paging instead of an {@code _offset} search, which gets slower the
+     * deeper the page. The total is taken from the same search when the server reports it.
+     */
     private void streamPaginatedLocationsMemoryEfficient(
             HttpServletRequest request,
             HttpServletResponse response,
@@ -630,51 +722,74 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
             int pageSize,
             String tagUrl)
             throws IOException {
-
-        // First, get total count without loading all data
-        int totalCount =
-                getLocationCount(
+        String queryKey =
+                getLocationQueryKey(
                         locationIds,
                         preFetchAdminLevels,
                         postFetchAdminLevels,
                         filterInventory,
                         lastUpdated,
                         tagUrl);
+        LocationSnapshotStore.PageLink pageLink =
+                LocationSnapshotStore.INSTANCE.getPageLink(
+                        request.getParameter(Constants.PAGINATION_PAGE_TOKEN), queryKey);
+
+        LocationPage locationPage;
+        if (pageLink != null) {
+            logger.debug("Continuing location stream from upstream page link");
+            locationPage =
+                    loadLocationPage(
+                            pageLink.getUpstreamUrl(),
+                            postFetchAdminLevels,
+                            filterInventory,
+                            lastUpdated);
+        } else {
+            int offset = Math.max(0, page - 1) * pageSize;
+            logger.debug("Fetching location chunk with offset={}, limit={}", offset, pageSize);
+            locationPage =
+                    fetchLocationChunk(
+                            locationIds,
+                            preFetchAdminLevels,
+                            postFetchAdminLevels,
+                            filterInventory,
+                            lastUpdated,
+                            offset,
+                            pageSize,
+                            tagUrl);
+        }
 
+        int totalCount;
+        if (locationPage.getTotal() != null) {
+            totalCount = locationPage.getTotal();
+        } else if (pageLink != null) {
+            totalCount = pageLink.getTotal();
+        } else {
+            totalCount =
+                    getLocationCount(
+                            locationIds,
+                            preFetchAdminLevels,
+                            postFetchAdminLevels,
+                            filterInventory,
+                            lastUpdated,
+                            tagUrl);
+        }
         logger.info("Total locations to stream: {}", totalCount);
 
-        // Create a data provider function that fetches data using offset and limit
-        // The provider accepts (offset, limit) where:
-        // - offset: the starting position in the result set (0-based)
-        // - limit: the maximum number of items to return
-        String finalTagUrl = tagUrl; // Capture for lambda
-        java.util.function.BiFunction<Integer, Integer, List<Location>> dataProvider =
-                (offset, limit) -> {
-                    try {
-                        logger.debug(
-                                "Fetching location chunk with offset={}, limit={}", offset, limit);
-                        return fetchLocationChunk(
-                                locationIds,
-                                preFetchAdminLevels,
-                                postFetchAdminLevels,
-                                filterInventory,
-                                lastUpdated,
-                                offset,
-                                limit,
-                                finalTagUrl);
-                    } catch (Exception e) {
-                        logger.error(
-                                "Error fetching location chunk with offset={}, limit={}",
-                                offset,
-                                limit,
-                                e);
-                        return new ArrayList<>();
-                    }
-                };
+        String nextPageToken =
+                locationPage.getNextUrl() != null
+                        ? LocationSnapshotStore.INSTANCE.putPageLink(
+                                queryKey, locationPage.getNextUrl(), totalCount)
+                        : null;
 
-        // Use the memory-efficient streaming method
+        // The page is already fetched, the provider only hands it to the streaming helper
         streamingHelper.streamLocationBundleWithChunking(
-                request, response, dataProvider, totalCount, page, pageSize);
+                request,
+                response,
+                (offset, limit) -> locationPage.getLocations(),
+                totalCount,
+                page,
+                pageSize,
+                nextPageToken);
     }
 
     /** Get total count of locations without loading all data into memory. */
@@ -762,7 +877,8 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
     }
 
     /**
-     * Fetch a chunk of locations for streaming using offset-based pagination.
+     * Fetch a chunk of locations for streaming. The first chunk is a plain search so that the FHIR
+     * server pages the results itself, the other chunks fall back to offset-based pagination.
      *
      * @param locationIds List of location IDs to filter by
      * @param preFetchAdminLevels Admin levels to filter by in the query
@@ -772,9 +888,9 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
      * @param offset The starting position in the result set (0-based)
      * @param limit The maximum number of items to return
      * @param tagUrl The tag URL to use for filtering locations (null for default)
-     * @return List of locations matching the criteria
+     * @return Page of locations matching the criteria
      */
-    private List<Location> fetchLocationChunk(
+    private LocationPage fetchLocationChunk(
             List<String> locationIds,
             List<String> preFetchAdminLevels,
             List<String> postFetchAdminLevels,
@@ -787,9 +903,13 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
             // Build FHIR query with offset-based pagination
             // _offset: starting position in the result set (0-based)
             // _count: maximum number of results to return
+            // _total: the total is returned with the page, no separate count query is needed
             StringBuilder queryStringFilter = new StringBuilder("Location?");
             queryStringFilter.append("_count=").append(limit);
-            queryStringFilter.append("&_offset=").append(offset);
+            queryStringFilter.append("&_total=accurate");
+            if (offset > 0) {
+                queryStringFilter.append("&_offset=").append(offset);
+            }
 
             // Use provided tag URL or default to location hierarchy tag
             String tagSystem =
@@ -831,19 +951,62 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
                                     .search()
                                     .byUrl(queryStringFilter.toString())
                                     .execute();
-            List<Location> locations =
-                    chunkBundle.getEntry().stream()
-                            .map(
-                                    bundleEntryComponent ->
-                                            (Location) bundleEntryComponent.getResource())
-                            .collect(Collectors.toList());
-
-            // Apply post-fetch filters
-            return postFetchFilters(locations, postFetchAdminLevels, filterInventory, lastUpdated);
-        } catch (Exception e) {
+            return toLocationPage(chunkBundle, postFetchAdminLevels, filterInventory, lastUpdated);
+        } catch (RuntimeException e) {
+            // An empty page would end the stream as if every location had been sent
             logger.error("Error fetching location chunk", e);
-            return new ArrayList<>();
+            throw e;
+        }
+    }
+
+    /** Loads the page of an upstream next link, which costs the same whatever the page number. */
+    private LocationPage loadLocationPage(
+            String upstreamUrl,
+            List<String> postFetchAdminLevels,
+            Boolean filterInventory,
+            String lastUpdated) {
+        try {
+            Bundle pageBundle =
+                    getFhirClientForR4()
+                            .loadPage()
+                            .byUrl(upstreamUrl)
+                            .andReturnBundle(Bundle.class)
+                            .execute();
+            return toLocationPage(pageBundle, postFetchAdminLevels, filterInventory, lastUpdated);
+        } catch (RuntimeException e) {
+            logger.error("Error loading location page", e);
+            throw e;
+        }
+    }
+
+    private LocationPage toLocationPage(
+            Bundle bundle,
+            List<String> postFetchAdminLevels,
+            Boolean filterInventory,
+            String lastUpdated) {
+        List<Location> locations = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof Location) {
+                locations.add((Location) entry.getResource());
+            }
+        }
+
+        String nextUrl = null;
+        Bundle.BundleLinkComponent nextLink = bundle.getLink(Bundle.LINK_NEXT);
+        if (nextLink != null && StringUtils.isNotBlank(nextLink.getUrl())) {
+            IGenericClient fhirClient = getFhirClientForR4();
+            if (fhirClient instanceof GenericClient) {
+                Utils.cleanUpBundlePaginationNextLinkServerBaseUrl(
+                        (GenericClient) fhirClient, bundle);
+            }
+            nextUrl = bundle.getLink(Bundle.LINK_NEXT).getUrl();
         }
+
+        // Apply post-fetch filters
+        return new LocationPage(
+                postFetchFilters(locations, postFetchAdminLevels, filterInventory, lastUpdated),
+                bundle.hasTotal() ? bundle.getTotal() : null,
+                nextUrl);
     }
 
     @Deprecated(since = "3.0.0", forRemoval = true)
@@ -874,16 +1037,18 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
         int start = Math.max(0, (page - 1)) * count;
 
         List<Resource> resourceLocations =
-                locationIds.parallelStream()
-                        .flatMap(
+                UpstreamExecutor.INSTANCE
+                        .mapAll(
+                                locationIds,
                                 identifier ->
                                         getLocationHierarchyLocations(
                                                 identifier,
                                                 preFetchAdminLevels,
                                                 postFetchAdminLevels,
                                                 filterInventory,
-                                                lastUpdated)
-                                                .stream())
+                                                lastUpdated))
+                        .stream()
+                        .flatMap(List::stream)
                         .collect(Collectors.toList());
         int totalEntries = resourceLocations.size();
 
@@ -912,6 +1077,51 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
         return resultBundle;
     }
 
+    /**
+     * Collects the descendants of the given locations together with the locations themselves. The
+     * location lineage is resolved from the {@link LocationGraphIndex} when it is enabled and via a
+     * tag search on the FHIR server otherwise.
+     */
+    private List<Location> getLocationsWithDescendants(
+            List<String> locationIds, List<String> preFetchAdminLevels, String tagUrl) {
+        // The index only knows the location lineage, other tag systems are resolved upstream
+        boolean lineageTag =
+                tagUrl == null || Constants.Meta.Tag.SYSTEM_LOCATION_HIERARCHY.equals(tagUrl);
+        if (lineageTag && LocationGraphIndex.INSTANCE.isEnabled()) {
+            IGenericClient fhirClient = getFhirClientForR4();
+            List<Location> indexedLocations =
+                    LocationGraphIndex.INSTANCE.getLineageDescendants(
+                            fhirClient, locationIds, preFetchAdminLevels);
+            if (indexedLocations != null) {
+                List<Location> resourceLocations = new ArrayList<>(indexedLocations);
+                for (String locationId : locationIds) {
+                    Location location =
+                            LocationGraphIndex.INSTANCE.getLocation(fhirClient, locationId);
+                    if (location != null) {
+                        resourceLocations.add(location);
+                    }
+                }
+                return resourceLocations;
+            }
+        }
+
+        // Use provided tag URL or default to location hierarchy tag
+        Bundle allDescendantsBundle = fetchAllDescendants(locationIds, preFetchAdminLevels, tagUrl);
+        List<Location> resourceLocations = collectAllLocations(allDescendantsBundle);
+
+        // Get the parents
+        Bundle parentLocation = getLocationsById(locationIds);
+        if (parentLocation != null) {
+            List<Bundle.BundleEntryComponent> locationBundleEntryComponents =
+                    parentLocation.getEntry();
+            for (Bundle.BundleEntryComponent locationBundleEntryComponent :
+                    locationBundleEntryComponents) {
+                resourceLocations.add((Location) locationBundleEntryComponent.getResource());
+            }
+        }
+        return resourceLocations;
+    }
+
     public Bundle fetchAllDescendants(
             List<String> locationIds, List<String> preFetchAdminLevels, String tagUrl) {
         StringBuilder queryStringFilter = new StringBuilder("Location?");
@@ -1006,18 +1216,29 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
             List<String> postFetchAdminLevels,
             boolean filterByInventory,
             String lastUpdated) {
-        return locations.stream()
-                .filter(
-                        location ->
-                                postFetchAdminLevels == null
-                                        || postFetchAdminLevels.isEmpty()
-                                        || adminLevelFilter(location, postFetchAdminLevels))
+        List<Location> filteredLocations =
+                locations.stream()
+                        .filter(
+                                location ->
+                                        postFetchAdminLevels == null
+                                                || postFetchAdminLevels.isEmpty()
+                                                || adminLevelFilter(location, postFetchAdminLevels))
+                        .filter(
+                                location ->
+                                        lastUpdated == null
+                                                || lastUpdated.isBlank()
+                                                || lastUpdatedFilter(location, lastUpdated))
+                        .collect(Collectors.toList());
+        if (!filterByInventory || filteredLocations.isEmpty()) {
+            return filteredLocations;
+        }
+
+        Set<String> locationIdsWithInventory = getLocationIdsWithInventory(filteredLocations);
+        return filteredLocations.stream()
                 .filter(
                         location ->
-                                lastUpdated == null
-                                        || lastUpdated.isBlank()
-                                        || lastUpdatedFilter(location, lastUpdated))
-                .filter(location -> !filterByInventory || inventoryFilter(location))
+                                locationIdsWithInventory.contains(
+                                        location.getIdElement().getIdPart()))
                 .collect(Collectors.toList());
     }
 
@@ -1039,20 +1260,85 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
     }
 
     public boolean inventoryFilter(Location location) {
-        String locationId = location.getIdElement().getIdPart();
-        String locationReference =
-                Constants.SyncStrategy.LOCATION + Constants.FORWARD_SLASH + locationId;
+        return getLocationIdsWithInventory(Collections.singletonList(location))
+                .contains(location.getIdElement().getIdPart());
+    }
+
+    /**
+     * Returns the ids of the given locations that are the subject of an inventory List. The
+     * locations are looked up in chunks of {@code REL_LOCATION_CHUNK_SIZE} subjects per search and
+     * the result of every location is cached, whether it has an inventory or not.
+     */
+    public Set<String> getLocationIdsWithInventory(List<Location> locations) {
+        Set<String> locationIdsWithInventory = new HashSet<>();
+        List<String> uncachedLocationIds = new ArrayList<>();
+        boolean skipCache = CacheHelper.INSTANCE.skipCache();
+        Cache<String, Boolean> inventoryCache = CacheHelper.INSTANCE.inventoryCache;
+        for (Location location : locations) {
+            String locationId = location.getIdElement().getIdPart();
+            if (!skipCache && inventoryCache.getIfPresent(locationId) != null) {
+                locationIdsWithInventory.add(locationId);
+            } else {
+                uncachedLocationIds.add(locationId);
+            }
+        }
+
+        int chunkSize = SyncAccessDecision.SyncAccessDecisionConstants.REL_LOCATION_CHUNK_SIZE;
+        for (int startIndex = 0; startIndex < uncachedLocationIds.size(); startIndex += chunkSize) {
+            int endIndex = Math.min(startIndex + chunkSize, uncachedLocationIds.size());
+            List<String> chunk = uncachedLocationIds.subList(startIndex, endIndex);
+            Set<String> chunkIdsWithInventory = getInventorySubjectIds(chunk);
+            // Only found inventories are cached, List writes do not invalidate the cache so a
+            // location without one is searched again and a new inventory is seen right away
+            for (String locationId : chunk) {
+                if (chunkIdsWithInventory.contains(locationId)) {
+                    locationIdsWithInventory.add(locationId);
+                    if (!skipCache) {
+                        inventoryCache.put(locationId, Boolean.TRUE);
+                    }
+                }
+            }
+        }
+        return locationIdsWithInventory;
+    }
+
+    private Set<String> getInventorySubjectIds(List<String> locationIds) {
+        List<String> locationReferences =
+                locationIds.stream()
+                        .map(
+                                locationId ->
+                                        Constants.SyncStrategy.LOCATION
+                                                + Constants.FORWARD_SLASH
+                                                + locationId)
+                        .collect(Collectors.toList());
 
         Bundle listBundle =
                 getFhirClientForR4()
                         .search()
                         .forResource(ListResource.class)
-                        .where(new ReferenceClientParam(Constants.SUBJECT).hasId(locationReference))
+                        .where(
+                                new ReferenceClientParam(Constants.SUBJECT)
+                                        .hasAnyOfIds(locationReferences))
                         .usingStyle(SearchStyleEnum.POST)
+                        .elementsSubset(Constants.SUBJECT)
+                        .count(locationIds.size())
                         .returnBundle(Bundle.class)
                         .execute();
 
-        return listBundle != null && !listBundle.getEntry().isEmpty();
+        Set<String> subjectIds = new HashSet<>();
+        if (listBundle == null) {
+            return subjectIds;
+        }
+        Utils.fetchAllBundlePagesAndInject(r4FHIRClient, listBundle);
+        for (Bundle.BundleEntryComponent entry : listBundle.getEntry()) {
+            if (entry.getResource() instanceof ListResource) {
+                ListResource inventoryList = (ListResource) entry.getResource();
+                if (inventoryList.hasSubject()) {
+                    subjectIds.add(inventoryList.getSubject().getReferenceElement().getIdPart());
+                }
+            }
+        }
+        return subjectIds;
     }
 
     @Override
@@ -1064,4 +1350,124 @@ public class LocationHierarchyEndpointHelper extends BaseFhirEndpointHelper {
         return practitionerDetailsEndpointHelper.getPractitionerLocationIdsByKeycloakIdCore(
                 practitionerId);
     }
+
+    /**
+     * Pages of a location export. The requested locations come first, followed by the pages of the
+     * descendant search. The upstream page that follows is requested while the current page is
+     * written, so at most two pages are held in memory.
+     */
+    private final class LocationExportPages implements Iterator<List<Location>> {
+        private final List<String> locationIds;
+        private final List<String> postFetchAdminLevels;
+        private final Boolean filterInventory;
+        private final String lastUpdated;
+        private final Set<String> requestedLocationIds;
+        private boolean requestedLocationsReturned;
+        @Nullable private CompletableFuture<LocationPage> pendingPage;
+
+        private LocationExportPages(
+                List<String> locationIds,
+                List<String> preFetchAdminLevels,
+                List<String> postFetchAdminLevels,
+                Boolean filterInventory,
+                String lastUpdated,
+                String tagUrl) {
+            this.locationIds = locationIds != null ? locationIds : Collections.emptyList();
+            this.postFetchAdminLevels = postFetchAdminLevels;
+            this.filterInventory = filterInventory;
+            this.lastUpdated = lastUpdated;
+            this.requestedLocationIds = new HashSet<>(this.locationIds);
+            this.pendingPage =
+                    CompletableFuture.supplyAsync(
+                            () ->
+                                    fetchLocationChunk(
+                                            this.locationIds,
+                                            preFetchAdminLevels,
+                                            postFetchAdminLevels,
+                                            filterInventory,
+                                            lastUpdated,
+                                            0,
+                                            EXPORT_PAGE_SIZE,
+                                            tagUrl),
+                            UpstreamExecutor.INSTANCE);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !requestedLocationsReturned || pendingPage != null;
+        }
+
+        @Override
+        public List<Location> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (!requestedLocationsReturned) {
+                requestedLocationsReturned = true;
+                return getRequestedLocations();
+            }
+
+            LocationPage locationPage = pendingPage.join();
+            String nextUrl = locationPage.getNextUrl();
+            pendingPage =
+                    nextUrl != null
+                            ? CompletableFuture.supplyAsync(
+                                    () ->
+                                            loadLocationPage(
+                                                    nextUrl,
+                                                    postFetchAdminLevels,
+                                                    filterInventory,
+                                                    lastUpdated),
+                                    UpstreamExecutor.INSTANCE)
+                            : null;
+
+            // The requested locations were already written with the first page
+            return locationPage.getLocations().stream()
+                    .filter(
+                            location ->
+                                    !requestedLocationIds.contains(
+                                            location.getIdElement().getIdPart()))
+                    .collect(Collectors.toList());
+        }
+
+        /** Cancels the upstream page requested ahead, unless it is already being fetched. */
+        private void cancel() {
+            if (pendingPage != null) {
+                pendingPage.cancel(true);
+                pendingPage = null;
+            }
+        }
+
+        private List<Location> getRequestedLocations() {
+            if (locationIds.isEmpty()) {
+                return Collections.emptyList();
+            }
+            Bundle requestedLocations = getLocationsById(locationIds);
+            if (requestedLocations == null) {
+                return Collections.emptyList();
+            }
+            List<Location> locations = new ArrayList<>();
+            for (Bundle.BundleEntryComponent entry : requestedLocations.getEntry()) {
+                if (entry.getResource() instanceof Location) {
+                    locations.add((Location) entry.getResource());
+                }
+            }
+            return postFetchFilters(locations, postFetchAdminLevels, filterInventory, lastUpdated);
+        }
+    }
+
+    /** Page of locations fetched for streaming and the upstream paging state of the page. */
+    @Getter
+    private static final class LocationPage {
+        private final List<Location> locations;
+        @Nullable private final Integer total;
+        @Nullable private final String nextUrl;
+
+        private LocationPage(
+                List<Location> locations, @Nullable Integer total, @Nullable String nextUrl) {
+            this.locations = locations;
+            this.total = total;
+            this.nextUrl = nextUrl;
+        }
+    }
 }
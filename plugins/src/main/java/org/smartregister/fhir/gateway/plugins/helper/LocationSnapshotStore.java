@@ -0,0 +1,181 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.utils.EnvUtil;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import jakarta.annotation.Nullable;
+import lombok.Getter;
+
+/**
+ * Keeps the filtered location list of a paginated LocationHierarchy request so that the following
+ * pages are served from memory instead of fetching the whole hierarchy from the FHIR server again.
+ * A snapshot is identified by the cursor token that is added to the pagination links and is only
+ * handed out for the same query it was built for.
+ *
+ * <p>Streamed pages are not kept, instead the upstream link of the page that follows is stored
+ * under a page token so that the next page continues from where the FHIR server left off.
+ *
+ * <p>Snapshots and page links expire {@link #OPENSRP_LOCATION_SNAPSHOT_TTL_SECONDS} after they were
+ * created and the snapshots held at once are capped at {@link
+ * #OPENSRP_LOCATION_SNAPSHOT_MAX_LOCATIONS} locations in total. A TTL of 0 disables both.
+ */
+public enum LocationSnapshotStore {
+    INSTANCE;
+
+    public static final String OPENSRP_LOCATION_SNAPSHOT_TTL_SECONDS =
+            "OPENSRP_LOCATION_SNAPSHOT_TTL_SECONDS";
+    public static final String OPENSRP_LOCATION_SNAPSHOT_MAX_LOCATIONS =
+            "OPENSRP_LOCATION_SNAPSHOT_MAX_LOCATIONS";
+
+    private static final int DEFAULT_TTL_SECONDS = 300;
+    private static final int DEFAULT_MAX_LOCATIONS = 100_000;
+    private static final int MAX_PAGE_LINKS = 10_000;
+
+    // Not static, enum constants are created before the static fields are initialised
+    private final Logger logger = LoggerFactory.getLogger(LocationSnapshotStore.class);
+    private final int ttlSeconds;
+    private final Cache<String, LocationSnapshot> snapshots;
+    private final Cache<String, PageLink> pageLinks;
+
+    LocationSnapshotStore() {
+        ttlSeconds =
+                getIntEnvironmentVar(OPENSRP_LOCATION_SNAPSHOT_TTL_SECONDS, DEFAULT_TTL_SECONDS);
+        snapshots =
+                Caffeine.newBuilder()
+                        .expireAfterWrite(Math.max(0, ttlSeconds), TimeUnit.SECONDS)
+                        .maximumWeight(
+                                getIntEnvironmentVar(
+                                        OPENSRP_LOCATION_SNAPSHOT_MAX_LOCATIONS,
+                                        DEFAULT_MAX_LOCATIONS))
+                        .weigher(
+                                (String token, LocationSnapshot snapshot) ->
+                                        Math.max(1, snapshot.size()))
+                        .build();
+        pageLinks =
+                Caffeine.newBuilder()
+                        .expireAfterWrite(Math.max(0, ttlSeconds), TimeUnit.SECONDS)
+                        .maximumSize(MAX_PAGE_LINKS)
+                        .build();
+    }
+
+    public boolean isEnabled() {
+        return ttlSeconds > 0;
+    }
+
+    /**
+     * Returns the snapshot of the cursor token if it has not expired and was built for the query.
+     */
+    public @Nullable LocationSnapshot get(@Nullable String cursor, String queryKey) {
+        if (!isEnabled() || StringUtils.isBlank(cursor)) {
+            return null;
+        }
+        LocationSnapshot snapshot = snapshots.getIfPresent(cursor);
+        return snapshot != null && snapshot.getQueryKey().equals(queryKey) ? snapshot : null;
+    }
+
+    /**
+     * Keeps the snapshot for the following pages.
+     *
+     * @return whether the snapshot can be looked up by its token
+     */
+    public boolean put(LocationSnapshot snapshot) {
+        if (!isEnabled()) {
+            return false;
+        }
+        snapshots.asMap().putIfAbsent(snapshot.getToken(), snapshot);
+        return true;
+    }
+
+    /**
+     * Keeps the upstream link of the page that follows a streamed page.
+     *
+     * @return the page token of the link or {@code null} if page links are disabled
+     */
+    public @Nullable String putPageLink(String queryKey, String upstreamUrl, int total) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String token = UUID.randomUUID().toString();
+        pageLinks.put(token, new PageLink(queryKey, upstreamUrl, total));
+        return token;
+    }
+
+    /** Returns the page link of the token if it has not expired and was stored for the query. */
+    public @Nullable PageLink getPageLink(@Nullable String pageToken, String queryKey) {
+        if (!isEnabled() || StringUtils.isBlank(pageToken)) {
+            return null;
+        }
+        PageLink pageLink = pageLinks.getIfPresent(pageToken);
+        return pageLink != null && pageLink.getQueryKey().equals(queryKey) ? pageLink : null;
+    }
+
+    void invalidateAll() {
+        snapshots.invalidateAll();
+        pageLinks.invalidateAll();
+    }
+
+    private int getIntEnvironmentVar(String envVariable, int defaultValue) {
+        String value = EnvUtil.getEnvironmentVar(envVariable, String.valueOf(defaultValue));
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid {} value '{}', using {}", envVariable, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /** Upstream link of the next page of a query and the total reported with the first page. */
+    @Getter
+    public static final class PageLink {
+        private final String queryKey;
+        private final String upstreamUrl;
+        private final int total;
+
+        private PageLink(String queryKey, String upstreamUrl, int total) {
+            this.queryKey = queryKey;
+            this.upstreamUrl = upstreamUrl;
+            this.total = total;
+        }
+    }
+
+    /** Deduplicated locations of a query in the order they were first returned. */
+    public static final class LocationSnapshot {
+        @Getter private final String token = UUID.randomUUID().toString();
+        @Getter private final String queryKey;
+        private final List<Location> locations;
+
+        public LocationSnapshot(String queryKey, List<Location> locations) {
+            this.queryKey = queryKey;
+            Map<String, Location> locationsById = new LinkedHashMap<>();
+            for (Location location : locations) {
+                locationsById.putIfAbsent(location.getIdElement().getIdPart(), location);
+            }
+            this.locations = Collections.unmodifiableList(new ArrayList<>(locationsById.values()));
+        }
+
+        public int size() {
+            return locations.size();
+        }
+
+        /** Returns up to {@code count} locations starting at {@code start}. */
+        public List<Location> getLocations(int start, int count) {
+            int fromIndex = Math.min(Math.max(0, start), locations.size());
+            int toIndex = Math.min(fromIndex + Math.max(0, count), locations.size());
+            return locations.subList(fromIndex, toIndex);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.io.FilterWriter;
+import java.io.Writer;
+
+/**
+ * Writer handed to the FHIR parser, which flushes and closes the writer it encodes a resource to.
+ * The underlying writer is left open and is only flushed by its owner, e.g. once per chunk of a
+ * streamed response instead of after every resource.
+ */
+class NonClosingWriter extends FilterWriter {
+
+    NonClosingWriter(Writer writer) {
+        super(writer);
+    }
+
+    @Override
+    public void flush() {
+        // Flushed by the owner of the underlying writer
+    }
+
+    @Override
+    public void close() {
+        // Closed by the owner of the underlying writer
+    }
+}
@@ -230,9 +230,9 @@ public class PractitionerDetailsEndpointHelper extends BaseFhirEndpointHelper {
         } else {
             practitionerDetails =
                     (PractitionerDetails)
-                            CacheHelper.INSTANCE.resourceCache.get(
+                            CacheHelper.INSTANCE.getResource(
                                     practitionerId,
-                                    key ->
+                                    () ->
                                             getPractitionerDetailsByPractitionerCore(
                                                     practitionerId, practitioner));
         }
@@ -610,12 +610,15 @@ public class PractitionerDetailsEndpointHelper extends BaseFhirEndpointHelper {
     }
 
     public List<LocationHierarchy> getLocationsHierarchy(List<String> locationsIdentifiers) {
-        return locationsIdentifiers.parallelStream()
-                .map(
+        LocationHierarchyEndpointHelper locationHierarchyEndpointHelper =
+                new LocationHierarchyEndpointHelper(getFhirClientForR4());
+        return UpstreamExecutor.INSTANCE
+                .mapAll(
+                        locationsIdentifiers,
                         locationsIdentifier ->
-                                new LocationHierarchyEndpointHelper(getFhirClientForR4())
-                                        .getLocationHierarchy(
-                                                locationsIdentifier, null, null, false, ""))
+                                locationHierarchyEndpointHelper.getLocationHierarchy(
+                                        locationsIdentifier, null, null, false, ""))
+                .stream()
                 .filter(
                         locationHierarchy ->
                                 !org.smartregister.utils.Constants.LOCATION_RESOURCE_NOT_FOUND
@@ -0,0 +1,44 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Loader of a cache whose values are computed from request details the key does not hold, e.g. the
+ * roles and query parameters the sync strategy ids depend on. The caller registers how to compute
+ * the value of a key before reading it, which lets the cache recompute the value in the background
+ * with {@code refreshAfterWrite} after the request is gone.
+ *
+ * <p>Loaders of keys that are not read for the expiry of the cache are dropped. A refresh of a key
+ * without a loader fails, which leaves the cached value in place until it expires.
+ */
+final class RefreshAheadLoader<V> implements CacheLoader<String, V> {
+
+    private final Cache<String, Supplier<V>> loaders;
+
+    RefreshAheadLoader(long expirySeconds, long maximumSize) {
+        loaders =
+                Caffeine.newBuilder()
+                        .expireAfterAccess(Math.max(1, expirySeconds), TimeUnit.SECONDS)
+                        .maximumSize(maximumSize)
+                        .build();
+    }
+
+    /** Registers how to compute the value of the key, replacing the previous loader. */
+    void register(String key, Supplier<V> loader) {
+        loaders.put(key, loader);
+    }
+
+    @Override
+    public V load(String key) {
+        Supplier<V> loader = loaders.getIfPresent(key);
+        if (loader == null) {
+            throw new IllegalStateException("No loader registered for cache key " + key);
+        }
+        return loader.get();
+    }
+}
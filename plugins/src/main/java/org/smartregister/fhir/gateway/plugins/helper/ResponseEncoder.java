@@ -0,0 +1,92 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.smartregister.fhir.gateway.plugins.Constants;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Opens the body of a custom endpoint response. The body is gzip compressed when the client lists
+ * gzip in its Accept-Encoding header, so resources encoded to the returned stream are compressed as
+ * they are written instead of being collected in a String first.
+ *
+ * <p>The gzip stream is flushed with {@link java.util.zip.Deflater#SYNC_FLUSH}, so a flush after a
+ * chunk of a streamed response still reaches the client straight away.
+ */
+public final class ResponseEncoder {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private ResponseEncoder() {}
+
+    /**
+     * Opens a UTF-8 writer on the response body with the given content type. The caller closes the
+     * writer once the body is written, which also completes the compressed stream.
+     */
+    public static Writer openWriter(
+            HttpServletRequest request, HttpServletResponse response, String contentType)
+            throws IOException {
+        response.setContentType(contentType);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        return new BufferedWriter(
+                new OutputStreamWriter(openOutputStream(request, response), StandardCharsets.UTF_8),
+                BUFFER_SIZE);
+    }
+
+    /** Opens the response body, compressed with gzip if the client accepts it. */
+    public static OutputStream openOutputStream(
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // The body depends on the Accept-Encoding header, caches must keep the variants apart
+        response.addHeader(Constants.VARY, Constants.ACCEPT_ENCODING);
+        if (!isGzipAccepted(request)) {
+            return response.getOutputStream();
+        }
+        response.setHeader(Constants.CONTENT_ENCODING, Constants.GZIP);
+        return new GZIPOutputStream(response.getOutputStream(), BUFFER_SIZE, true);
+    }
+
+    /**
+     * Whether the Accept-Encoding header of the request lists gzip, or its x-gzip alias, without a
+     * zero quality value.
+     */
+    public static boolean isGzipAccepted(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader(Constants.ACCEPT_ENCODING);
+        if (StringUtils.isBlank(acceptEncoding)) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (Constants.GZIP.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                return parts.length < 2 || !isZeroQuality(parts[1]);
+            }
+        }
+        return false;
+    }
+
+    /** Whether the client asked for indented JSON with {@code _pretty=true}. */
+    public static boolean isPrettyRequested(HttpServletRequest request) {
+        return Boolean.parseBoolean(request.getParameter(Constants.PRETTY));
+    }
+
+    private static boolean isZeroQuality(String parameter) {
+        String[] nameAndValue = parameter.split("=", 2);
+        if (nameAndValue.length < 2 || !"q".equalsIgnoreCase(nameAndValue[0].trim())) {
+            return false;
+        }
+        try {
+            return Double.parseDouble(nameAndValue[1].trim()) <= 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -1,19 +1,27 @@
 package org.smartregister.fhir.gateway.plugins.helper;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.function.BiFunction;
 
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smartregister.fhir.gateway.plugins.Constants;
 
 import ca.uhn.fhir.parser.IParser;
+import jakarta.annotation.Nullable;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
@@ -21,6 +29,15 @@ import jakarta.servlet.http.HttpServletResponse;
  * Helper class for streaming large responses to improve memory usage and response time. This is
  * particularly useful for large location datasets that would otherwise consume significant memory
  * when loaded entirely into memory.
+ *
+ * <p>Each resource is encoded straight to the response stream, compressed by {@link
+ * ResponseEncoder} if the client accepts gzip, and the stream is flushed after every chunk of
+ * entries. No content length is set, so the servlet container sends the response with chunked
+ * transfer encoding as the chunks are written.
+ *
+ * <p>Clients that ask for newline delimited JSON get one resource per line instead of a Bundle,
+ * with the pagination links in a Link header. The parser the helper is created with must not pretty
+ * print for the lines to stay intact.
  */
 public class StreamingResponseHelper {
     private static final Logger logger = LoggerFactory.getLogger(StreamingResponseHelper.class);
@@ -43,51 +60,21 @@ public class StreamingResponseHelper {
             int pageSize,
             int totalCount)
             throws IOException {
+        int start = Math.min(Math.max(0, (page - 1) * pageSize), locations.size());
+        int end = Math.min(start + pageSize, locations.size());
 
-        response.setContentType("application/json");
-        response.setCharacterEncoding("UTF-8");
-
-        try (OutputStream outputStream = response.getOutputStream();
-                OutputStreamWriter writer =
-                        new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
-                PrintWriter printWriter = new PrintWriter(writer)) {
-
-            // Start JSON object
-            printWriter.println("{");
-            printWriter.println("  \"resourceType\": \"Bundle\",");
-            printWriter.println("  \"id\": \"" + java.util.UUID.randomUUID().toString() + "\",");
-            printWriter.println("  \"type\": \"searchset\",");
-            printWriter.println("  \"total\": " + totalCount + ",");
-
-            // Add self link
-            printWriter.println("  \"link\": [");
-            printWriter.println("    {");
-            printWriter.println("      \"relation\": \"self\",");
-            String queryString = request.getQueryString();
-            printWriter.println(
-                    "      \"url\": \""
-                            + request.getRequestURL()
-                            + (queryString != null && !queryString.isEmpty()
-                                    ? "?" + queryString
-                                    : "")
-                            + "\"");
-            printWriter.println("    }");
-
-            // Add pagination links
-            addPaginationLinks(printWriter, request, page, totalCount, pageSize);
-            printWriter.println("  ],");
-
-            // Start entries array
-            printWriter.println("  \"entry\": [");
-
-            // Stream locations in chunks
-            streamLocationEntries(printWriter, locations, page, pageSize);
-
-            // End entries array and JSON object
-            printWriter.println("  ]");
-            printWriter.println("}");
-
-            printWriter.flush();
+        if (isNdjsonRequested(request)) {
+            setLinkHeader(response, getPaginationLinks(request, page, totalCount, pageSize, null));
+            writeNdjson(request, response, List.of(locations.subList(start, end)).iterator());
+            return;
+        }
+
+        try (Writer writer = ResponseEncoder.openWriter(request, response, "application/json")) {
+            writeBundleStart(writer, totalCount);
+            writeLinks(writer, request, page, totalCount, pageSize, null);
+            writer.write("  \"entry\": [");
+            writeEntries(writer, locations.subList(start, end), 0);
+            writer.write("\n  ]\n}\n");
         }
     }
 
@@ -100,164 +87,282 @@ public class StreamingResponseHelper {
             int page,
             int pageSize)
             throws IOException {
+        streamLocationBundleWithChunking(
+                request, response, locationProvider, totalCount, page, pageSize, null);
+    }
 
-        response.setContentType("application/json");
-        response.setCharacterEncoding("UTF-8");
-
-        try (OutputStream outputStream = response.getOutputStream();
-                OutputStreamWriter writer =
-                        new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
-                PrintWriter printWriter = new PrintWriter(writer)) {
-
-            // Start JSON object
-            printWriter.println("{");
-            printWriter.println("  \"resourceType\": \"Bundle\",");
-            printWriter.println("  \"id\": \"" + java.util.UUID.randomUUID().toString() + "\",");
-            printWriter.println("  \"type\": \"searchset\",");
-            printWriter.println("  \"total\": " + totalCount + ",");
-
-            // Add self link
-            printWriter.println("  \"link\": [");
-            printWriter.println("    {");
-            printWriter.println("      \"relation\": \"self\",");
-            StringBuilder selfUrlBuilder = new StringBuilder();
-            selfUrlBuilder.append(request.getRequestURL());
-            String queryString = request.getQueryString();
-            if (queryString != null && !queryString.isEmpty()) {
-                selfUrlBuilder.append("?").append(queryString);
-            }
-            printWriter.println("      \"url\": \"" + selfUrlBuilder.toString() + "\"");
-            printWriter.println("    }");
-
-            // Add pagination links
-            addPaginationLinks(printWriter, request, page, totalCount, pageSize);
-            printWriter.println("  ],");
-
-            // Start entries array
-            printWriter.println("  \"entry\": [");
+    /**
+     * Stream locations using a function that provides data in chunks. The page token, if any, is
+     * added to the next link so that the next page continues from the upstream page that follows.
+     */
+    public void streamLocationBundleWithChunking(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            BiFunction<Integer, Integer, List<Location>> locationProvider,
+            int totalCount,
+            int page,
+            int pageSize,
+            @Nullable String nextPageToken)
+            throws IOException {
+        if (isNdjsonRequested(request)) {
+            setLinkHeader(
+                    response,
+                    getPaginationLinks(request, page, totalCount, pageSize, nextPageToken));
+            List<Location> locations =
+                    locationProvider.apply(Math.max(0, page - 1) * pageSize, pageSize);
+            writeNdjson(
+                    request,
+                    response,
+                    List.of(locations != null ? locations : List.<Location>of()).iterator());
+            return;
+        }
 
-            // Stream locations in chunks
-            streamLocationEntriesWithChunking(printWriter, locationProvider, page, pageSize);
+        try (Writer writer = ResponseEncoder.openWriter(request, response, "application/json")) {
+            writeBundleStart(writer, totalCount);
+            writeLinks(writer, request, page, totalCount, pageSize, nextPageToken);
+            writer.write("  \"entry\": [");
+
+            // The page header is sent before the locations are fetched
+            writer.flush();
+            List<Location> locations =
+                    locationProvider.apply(Math.max(0, page - 1) * pageSize, pageSize);
+            if (locations != null) {
+                writeEntries(writer, locations, 0);
+            }
+            writer.write("\n  ]\n}\n");
+        }
+    }
 
-            // End entries array and JSON object
-            printWriter.println("  ]");
-            printWriter.println("}");
+    /**
+     * Streams the locations of all the pages as a single Bundle without pagination links. Each page
+     * is written and flushed before the next one is requested, so only the page being written is
+     * held in memory whatever the size of the export. The total is only known once the last page is
+     * written and is therefore the last element of the Bundle.
+     */
+    public void streamLocationExport(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            Iterator<List<Location>> locationPages)
+            throws IOException {
+        if (isNdjsonRequested(request)) {
+            writeNdjson(request, response, locationPages);
+            return;
+        }
 
-            printWriter.flush();
+        // Only closed once every page is written. A page that fails to load leaves the chunked
+        // response unterminated, so the client sees an aborted transfer, not a shorter export.
+        Writer writer = ResponseEncoder.openWriter(request, response, "application/json");
+        writeBundleStart(writer, null);
+        writer.write("  \"link\": [");
+        writeLink(writer, "self", getSelfUrl(request), true);
+        writer.write("\n  ],\n");
+        writer.write("  \"entry\": [");
+        writer.flush();
+
+        int written = 0;
+        while (locationPages.hasNext()) {
+            written = writeEntries(writer, locationPages.next(), written);
+            writer.flush();
         }
+        logger.debug("Streamed {} locations for export", written);
+
+        writer.write("\n  ],\n");
+        writer.write("  \"total\": " + written + "\n}\n");
+        writer.close();
     }
 
-    /** Stream location entries from a list */
-    private void streamLocationEntries(
-            PrintWriter printWriter, List<Location> locations, int page, int pageSize)
+    /**
+     * Writes the resources as newline delimited JSON, one resource per line. The next link, if any,
+     * is sent in a Link header since the lines carry no Bundle to hold it.
+     */
+    public void streamResourcesAsNdjson(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            List<? extends IBaseResource> resources,
+            @Nullable String nextUrl)
             throws IOException {
+        setLinkHeader(
+                response,
+                nextUrl != null ? Map.of(Bundle.LINK_NEXT, nextUrl) : Collections.emptyMap());
+        writeNdjson(request, response, List.of(resources).iterator());
+    }
 
-        int start = (page - 1) * pageSize;
-        int end = Math.min(start + pageSize, locations.size());
+    /**
+     * Writes the entries of the Bundle as newline delimited JSON. The links of the Bundle other
+     * than self are sent in a Link header.
+     */
+    public void streamBundleAsNdjson(
+            HttpServletRequest request, HttpServletResponse response, Bundle bundle)
+            throws IOException {
+        setLinkHeader(response, bundle);
 
-        boolean first = true;
-        for (int i = start; i < end; i++) {
-            if (!first) {
-                printWriter.println(",");
+        List<Resource> resources = new ArrayList<>(bundle.getEntry().size());
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() != null) {
+                resources.add(entry.getResource());
             }
-            first = false;
+        }
+        writeNdjson(request, response, List.of(resources).iterator());
+    }
 
-            Location location = locations.get(i);
-            streamLocationEntry(printWriter, location);
+    /**
+     * Whether the client asked for newline delimited JSON, either with {@code _format=ndjson} or
+     * with an ndjson Accept header. The {@code _format} parameter takes precedence over the header.
+     */
+    public static boolean isNdjsonRequested(HttpServletRequest request) {
+        String format = request.getParameter(Constants.FORMAT);
+        if (StringUtils.isNotBlank(format)) {
+            return Constants.NDJSON_FORMAT.equalsIgnoreCase(format.trim())
+                    || Constants.NDJSON_CONTENT_TYPE.equalsIgnoreCase(format.trim());
         }
+        // Matches application/fhir+ndjson as well as the generic application/x-ndjson
+        return StringUtils.containsIgnoreCase(
+                request.getHeader(Constants.ACCEPT), Constants.NDJSON_FORMAT);
     }
 
-    /** Stream location entries using chunked data provider */
-    private void streamLocationEntriesWithChunking(
-            PrintWriter printWriter,
-            BiFunction<Integer, Integer, List<Location>> locationProvider,
-            int page,
-            int pageSize)
+    /** Writes every resource of the pages on its own line, flushing after each page. */
+    private void writeNdjson(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            Iterator<? extends List<? extends IBaseResource>> pages)
             throws IOException {
+        // Not closed if a page fails, the lines written so far would otherwise pass for all of them
+        Writer writer =
+                ResponseEncoder.openWriter(request, response, Constants.NDJSON_CONTENT_TYPE);
+        // The parser flushes and closes the writer it is handed once the resource is encoded
+        Writer resourceWriter = new NonClosingWriter(writer);
+        int written = 0;
+        while (pages.hasNext()) {
+            for (IBaseResource resource : pages.next()) {
+                fhirJsonParser.encodeResourceToWriter(resource, resourceWriter);
+                writer.write("\n");
+                written++;
+                if (written % DEFAULT_CHUNK_SIZE == 0) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+        }
+        writer.close();
+    }
 
-        int offset = (page - 1) * pageSize;
-        int limit = pageSize;
+    /**
+     * Sends the links of the Bundle other than self in a Link header, for a body of newline
+     * delimited JSON that has no Bundle to hold them.
+     */
+    public void setLinkHeader(HttpServletResponse response, Bundle bundle) {
+        Map<String, String> links = new LinkedHashMap<>();
+        for (Bundle.BundleLinkComponent link : bundle.getLink()) {
+            if (!Bundle.LINK_SELF.equals(link.getRelation())) {
+                links.put(link.getRelation(), link.getUrl());
+            }
+        }
+        setLinkHeader(response, links);
+    }
 
-        // Fetch the page using offset and limit
-        List<Location> locations = locationProvider.apply(offset, limit);
-        if (locations == null || locations.isEmpty()) {
+    private void setLinkHeader(HttpServletResponse response, Map<String, String> links) {
+        if (links.isEmpty()) {
             return;
         }
+        List<String> values = new ArrayList<>(links.size());
+        links.forEach((relation, url) -> values.add("<" + url + ">; rel=\"" + relation + "\""));
+        response.setHeader(Constants.LINK, String.join(", ", values));
+    }
+
+    private void writeBundleStart(Writer writer, @Nullable Integer totalCount) throws IOException {
+        writer.write("{\n");
+        writer.write("  \"resourceType\": \"Bundle\",\n");
+        writer.write("  \"id\": " + toJsonString(UUID.randomUUID().toString()) + ",\n");
+        writer.write("  \"type\": \"searchset\",\n");
+        if (totalCount != null) {
+            writer.write("  \"total\": " + totalCount + ",\n");
+        }
+    }
 
-        // Stream all locations from the page
-        boolean first = true;
+    /**
+     * Writes the location entries, flushing after every {@link #DEFAULT_CHUNK_SIZE} entries.
+     *
+     * @param written the number of entries already written to the entry array
+     * @return the number of entries written to the entry array including these locations
+     */
+    private int writeEntries(Writer writer, List<Location> locations, int written)
+            throws IOException {
+        // The parser flushes and closes the writer it is handed once the resource is encoded
+        Writer resourceWriter = new NonClosingWriter(writer);
         for (Location location : locations) {
-            if (!first) {
-                printWriter.println(",");
+            writer.write(written == 0 ? "\n" : ",\n");
+            writer.write("    {\"resource\": ");
+            fhirJsonParser.encodeResourceToWriter(location, resourceWriter);
+            writer.write("}");
+            written++;
+            if (written % DEFAULT_CHUNK_SIZE == 0) {
+                writer.flush();
             }
-            first = false;
-
-            streamLocationEntry(printWriter, location);
         }
+        return written;
     }
 
-    /** Stream a single location entry */
-    private void streamLocationEntry(PrintWriter printWriter, Location location)
+    /** Writes the self link and the pagination links, followed by the end of the link array. */
+    private void writeLinks(
+            Writer writer,
+            HttpServletRequest request,
+            int page,
+            int totalCount,
+            int pageSize,
+            @Nullable String nextPageToken)
             throws IOException {
-        printWriter.println("    {");
-        printWriter.println(
-                "      \"resource\": " + fhirJsonParser.encodeResourceToString(location));
-        printWriter.print("    }");
+        writer.write("  \"link\": [");
+        writeLink(writer, "self", getSelfUrl(request), true);
+        for (Map.Entry<String, String> link :
+                getPaginationLinks(request, page, totalCount, pageSize, nextPageToken)
+                        .entrySet()) {
+            writeLink(writer, link.getKey(), link.getValue(), false);
+        }
+        writer.write("\n  ],\n");
     }
 
-    /** Add pagination links to the response */
-    private void addPaginationLinks(
-            PrintWriter printWriter,
+    /** Returns the URLs of the first, previous, next and last pages that exist by relation. */
+    private Map<String, String> getPaginationLinks(
             HttpServletRequest request,
             int page,
             int totalCount,
-            int pageSize) {
-
+            int pageSize,
+            @Nullable String nextPageToken) {
+        Map<String, String> links = new LinkedHashMap<>();
         int totalPages = (int) Math.ceil((double) totalCount / pageSize);
-
-        // Add first page link
         if (page > 1) {
-            printWriter.println(",");
-            printWriter.println("    {");
-            printWriter.println("      \"relation\": \"first\",");
-            printWriter.println(
-                    "      \"url\": \"" + buildPaginationUrl(request, 1, pageSize) + "\"");
-            printWriter.println("    }");
+            links.put("first", buildPaginationUrl(request, 1, pageSize, null));
+            links.put("previous", buildPaginationUrl(request, page - 1, pageSize, null));
         }
-
-        // Add previous page link
-        if (page > 1) {
-            printWriter.println(",");
-            printWriter.println("    {");
-            printWriter.println("      \"relation\": \"previous\",");
-            printWriter.println(
-                    "      \"url\": \"" + buildPaginationUrl(request, page - 1, pageSize) + "\"");
-            printWriter.println("    }");
-        }
-
-        // Add next page link
         if (page < totalPages) {
-            printWriter.println(",");
-            printWriter.println("    {");
-            printWriter.println("      \"relation\": \"next\",");
-            printWriter.println(
-                    "      \"url\": \"" + buildPaginationUrl(request, page + 1, pageSize) + "\"");
-            printWriter.println("    }");
+            links.put("next", buildPaginationUrl(request, page + 1, pageSize, nextPageToken));
+            links.put("last", buildPaginationUrl(request, totalPages, pageSize, null));
         }
+        return links;
+    }
 
-        // Add last page link
-        if (page < totalPages) {
-            printWriter.println(",");
-            printWriter.println("    {");
-            printWriter.println("      \"relation\": \"last\",");
-            printWriter.println(
-                    "      \"url\": \"" + buildPaginationUrl(request, totalPages, pageSize) + "\"");
-            printWriter.println("    }");
+    private void writeLink(Writer writer, String relation, String url, boolean first)
+            throws IOException {
+        writer.write(first ? "\n" : ",\n");
+        writer.write("    {\n");
+        writer.write("      \"relation\": " + toJsonString(relation) + ",\n");
+        writer.write("      \"url\": " + toJsonString(url) + "\n");
+        writer.write("    }");
+    }
+
+    private String getSelfUrl(HttpServletRequest request) {
+        StringBuilder selfUrlBuilder = new StringBuilder();
+        selfUrlBuilder.append(request.getRequestURL());
+        String queryString = request.getQueryString();
+        if (queryString != null && !queryString.isEmpty()) {
+            selfUrlBuilder.append("?").append(queryString);
         }
+        return selfUrlBuilder.toString();
     }
 
     /** Build pagination URL with updated page parameters */
-    private String buildPaginationUrl(HttpServletRequest request, int page, int pageSize) {
+    private String buildPaginationUrl(
+            HttpServletRequest request, int page, int pageSize, @Nullable String pageToken) {
         StringBuilder url = new StringBuilder(request.getRequestURL());
         url.append("?");
 
@@ -266,7 +371,8 @@ public class StreamingResponseHelper {
                 .forEach(
                         (key, values) -> {
                             if (!Constants.PAGINATION_PAGE_NUMBER.equals(key)
-                                    && !Constants.PAGINATION_PAGE_SIZE.equals(key)) {
+                                    && !Constants.PAGINATION_PAGE_SIZE.equals(key)
+                                    && !Constants.PAGINATION_PAGE_TOKEN.equals(key)) {
                                 for (String value : values) {
                                     url.append(key).append("=").append(value).append("&");
                                 }
@@ -276,10 +382,52 @@ public class StreamingResponseHelper {
         // Add pagination parameters
         url.append(Constants.PAGINATION_PAGE_NUMBER).append("=").append(page).append("&");
         url.append(Constants.PAGINATION_PAGE_SIZE).append("=").append(pageSize);
+        if (pageToken != null) {
+            url.append("&").append(Constants.PAGINATION_PAGE_TOKEN).append("=").append(pageToken);
+        }
 
         return url.toString();
     }
 
+    /** Returns the value as a quoted JSON string, escaping the characters JSON does not allow. */
+    static String toJsonString(String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2);
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                case '\b':
+                    json.append("\\b");
+                    break;
+                case '\f':
+                    json.append("\\f");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"').toString();
+    }
+
     /** Check if streaming should be used based on data size */
     public static boolean shouldUseStreaming(int dataSize, int threshold) {
         return dataSize > threshold;
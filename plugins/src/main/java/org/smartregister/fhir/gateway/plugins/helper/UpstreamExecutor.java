@@ -0,0 +1,227 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.utils.EnvUtil;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+
+/**
+ * Dedicated executor for fanning out blocking calls to the upstream FHIR server. Unlike {@code
+ * parallelStream()} it does not borrow the JVM wide common ForkJoinPool, its size is configurable
+ * and it is exported through Micrometer as {@value #METRIC_NAME}.
+ *
+ * <p>The pool size is set with {@link #OPENSRP_UPSTREAM_EXECUTOR_THREADS}. On JDK 21 or newer every
+ * task can instead run on its own virtual thread by enabling {@link
+ * #OPENSRP_UPSTREAM_EXECUTOR_VIRTUAL_THREADS}, the pool size then bounds the tasks in flight.
+ * Fan-out requested from a task that is already running on this executor is executed inline to
+ * avoid exhausting the pool with tasks waiting on each other.
+ */
+public enum UpstreamExecutor implements Executor {
+    INSTANCE;
+
+    public static final String OPENSRP_UPSTREAM_EXECUTOR_THREADS =
+            "OPENSRP_UPSTREAM_EXECUTOR_THREADS";
+    public static final String OPENSRP_UPSTREAM_EXECUTOR_VIRTUAL_THREADS =
+            "OPENSRP_UPSTREAM_EXECUTOR_VIRTUAL_THREADS";
+    static final String METRIC_NAME = "opensrp.upstream.executor";
+    private static final int MIN_VIRTUAL_THREADS_JAVA_VERSION = 21;
+
+    private static final ThreadLocal<Boolean> WORKER_THREAD =
+            ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    // Not static, enum constants are created before the static fields are initialised
+    private final Logger logger = LoggerFactory.getLogger(UpstreamExecutor.class);
+    private final int maxConcurrency;
+    private final Semaphore permits;
+    private final ExecutorService executorService;
+
+    UpstreamExecutor() {
+        maxConcurrency = getConfiguredThreads();
+        ExecutorService delegate =
+                isVirtualThreadsRequested() ? createVirtualThreadExecutor() : null;
+        if (delegate != null) {
+            permits = new Semaphore(maxConcurrency, true);
+            logger.info(
+                    "Upstream executor using virtual threads with at most {} tasks in flight",
+                    maxConcurrency);
+        } else {
+            permits = null;
+            delegate = Executors.newFixedThreadPool(maxConcurrency, new UpstreamThreadFactory());
+            logger.info("Upstream executor using {} platform threads", maxConcurrency);
+        }
+        executorService =
+                ExecutorServiceMetrics.monitor(Metrics.globalRegistry, delegate, METRIC_NAME);
+    }
+
+    /**
+     * Applies the function to every item concurrently and returns the results in the order of the
+     * items. A failure of any of the calls is rethrown to the caller.
+     */
+    public <T, R> List<R> mapAll(List<T> items, Function<T, R> function) {
+        return mapAll(items, function, maxConcurrency);
+    }
+
+    /**
+     * Same as {@link #mapAll(List, Function)} but with at most {@code maxInFlight} of the calls
+     * running at the same time for this invocation.
+     */
+    public <T, R> List<R> mapAll(List<T> items, Function<T, R> function, int maxInFlight) {
+        if (items == null || items.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (items.size() == 1 || maxInFlight <= 1 || WORKER_THREAD.get()) {
+            List<R> results = new ArrayList<>(items.size());
+            for (T item : items) {
+                results.add(function.apply(item));
+            }
+            return results;
+        }
+
+        List<Future<R>> futures = new ArrayList<>(items.size());
+        int window = Math.min(maxInFlight, items.size());
+        try {
+            for (int i = 0; i < window; i++) {
+                futures.add(submit(items.get(i), function));
+            }
+            List<R> results = new ArrayList<>(items.size());
+            for (int i = 0; i < items.size(); i++) {
+                results.add(await(futures.get(i)));
+                // Slide the window, keeping at most maxInFlight calls running
+                int next = i + window;
+                if (next < items.size()) {
+                    futures.add(submit(items.get(next), function));
+                }
+            }
+            return results;
+        } catch (RuntimeException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw e;
+        }
+    }
+
+    /** Runs the task asynchronously, e.g. for background cache refreshes. */
+    @Override
+    public void execute(Runnable task) {
+        executorService.execute(
+                () -> {
+                    if (permits != null) {
+                        permits.acquireUninterruptibly();
+                    }
+                    WORKER_THREAD.set(Boolean.TRUE);
+                    try {
+                        task.run();
+                    } finally {
+                        WORKER_THREAD.remove();
+                        if (permits != null) {
+                            permits.release();
+                        }
+                    }
+                });
+    }
+
+    private <T, R> Future<R> submit(T item, Function<T, R> function) {
+        return executorService.submit(
+                () -> {
+                    if (permits != null) {
+                        permits.acquire();
+                    }
+                    WORKER_THREAD.set(Boolean.TRUE);
+                    try {
+                        return function.apply(item);
+                    } finally {
+                        WORKER_THREAD.remove();
+                        if (permits != null) {
+                            permits.release();
+                        }
+                    }
+                });
+    }
+
+    private static <R> R await(Future<R> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for upstream call", e);
+        } catch (CancellationException e) {
+            throw new IllegalStateException("Upstream call was cancelled", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Upstream call failed", cause);
+        }
+    }
+
+    private int getConfiguredThreads() {
+        int defaultThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        String threads =
+                EnvUtil.getEnvironmentVar(
+                        OPENSRP_UPSTREAM_EXECUTOR_THREADS, String.valueOf(defaultThreads));
+        try {
+            return Math.max(1, Integer.parseInt(threads.trim()));
+        } catch (NumberFormatException e) {
+            logger.warn(
+                    "Invalid {} value '{}', using {}",
+                    OPENSRP_UPSTREAM_EXECUTOR_THREADS,
+                    threads,
+                    defaultThreads);
+            return defaultThreads;
+        }
+    }
+
+    private boolean isVirtualThreadsRequested() {
+        return Boolean.parseBoolean(
+                EnvUtil.getEnvironmentVar(OPENSRP_UPSTREAM_EXECUTOR_VIRTUAL_THREADS, "false")
+                        .trim());
+    }
+
+    private ExecutorService createVirtualThreadExecutor() {
+        if (Runtime.version().feature() < MIN_VIRTUAL_THREADS_JAVA_VERSION) {
+            logger.warn(
+                    "Virtual threads require Java {} or newer, falling back to platform threads",
+                    MIN_VIRTUAL_THREADS_JAVA_VERSION);
+            return null;
+        }
+        try {
+            // Looked up reflectively as the plugins are compiled for Java 17
+            return (ExecutorService)
+                    Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Unable to create a virtual thread executor", e);
+            return null;
+        }
+    }
+
+    private static final class UpstreamThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread =
+                    new Thread(runnable, "opensrp-upstream-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
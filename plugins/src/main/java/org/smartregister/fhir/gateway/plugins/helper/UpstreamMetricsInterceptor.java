@@ -0,0 +1,67 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.IRestfulClient;
+import ca.uhn.fhir.util.StopWatch;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * FHIR client interceptor that records the latency of every request to the upstream FHIR server as
+ * the {@value #METRIC_NAME} timer, tagged with the resource type, the HTTP method and the response
+ * status.
+ */
+@Interceptor
+public class UpstreamMetricsInterceptor {
+    static final String METRIC_NAME = "opensrp.upstream.requests";
+    static final String NO_RESOURCE_TYPE = "none";
+    // Keeps the tag cardinality bounded, e.g. for paging and operation requests
+    private static final Pattern RESOURCE_TYPE_PATTERN = Pattern.compile("[A-Z][A-Za-z]*");
+
+    private final MeterRegistry meterRegistry;
+
+    public UpstreamMetricsInterceptor(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Hook(Pointcut.CLIENT_RESPONSE)
+    public void recordResponse(
+            IHttpRequest request, IHttpResponse response, IRestfulClient client) {
+        StopWatch stopWatch = response.getRequestStopWatch();
+        if (stopWatch == null) {
+            return;
+        }
+        Timer.builder(METRIC_NAME)
+                .description("Latency of the requests to the upstream FHIR server")
+                .tag("resource_type", getResourceType(client.getServerBase(), request.getUri()))
+                .tag("method", request.getHttpVerbName())
+                .tag("status", String.valueOf(response.getStatus()))
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(stopWatch.getMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @VisibleForTesting
+    static String getResourceType(String serverBase, String uri) {
+        String path = StringUtils.defaultString(uri);
+        if (serverBase != null && path.startsWith(serverBase)) {
+            path = path.substring(serverBase.length());
+        }
+        path = StringUtils.substringBefore(path, "?");
+        String firstSegment = StringUtils.substringBefore(StringUtils.stripStart(path, "/"), "/");
+        return RESOURCE_TYPE_PATTERN.matcher(firstSegment).matches()
+                ? firstSegment
+                : NO_RESOURCE_TYPE;
+    }
+}
@@ -0,0 +1,354 @@
+package org.smartregister.fhir.gateway.plugins.implementation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartregister.fhir.gateway.plugins.interfaces.L2Cache;
+import org.smartregister.fhir.gateway.plugins.utils.EnvUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import jakarta.annotation.Nullable;
+
+/**
+ * {@link L2Cache} on a Redis compatible server, e.g. Redis, Valkey or KeyDB, speaking RESP over
+ * plain TCP. Only {@code GET}, {@code SET ... EX}, {@code DEL}, {@code SADD}, {@code EXPIRE},
+ * {@code INCRBY} and an {@code EVAL} script dropping the members of sets are used, plus {@code
+ * AUTH} and {@code SELECT} when a password or database is configured. The commands of a put are
+ * pipelined, so a put takes one round trip whatever the number of sets the key is added to.
+ *
+ * <p>Connections are pooled up to {@link #OPENSRP_L2_CACHE_MAX_CONNECTIONS}. Every call is bounded
+ * by {@link #OPENSRP_L2_CACHE_TIMEOUT_MS}, and a failing call is logged and treated as a cache
+ * miss, so the gateway keeps working when the server is unavailable.
+ */
+public class RedisL2Cache implements L2Cache {
+    private static final Logger logger = LoggerFactory.getLogger(RedisL2Cache.class);
+
+    public static final String OPENSRP_L2_CACHE_REDIS_HOST = "OPENSRP_L2_CACHE_REDIS_HOST";
+    public static final String OPENSRP_L2_CACHE_REDIS_PORT = "OPENSRP_L2_CACHE_REDIS_PORT";
+    public static final String OPENSRP_L2_CACHE_REDIS_PASSWORD = "OPENSRP_L2_CACHE_REDIS_PASSWORD";
+    public static final String OPENSRP_L2_CACHE_REDIS_DATABASE = "OPENSRP_L2_CACHE_REDIS_DATABASE";
+    public static final String OPENSRP_L2_CACHE_TIMEOUT_MS = "OPENSRP_L2_CACHE_TIMEOUT_MS";
+    public static final String OPENSRP_L2_CACHE_MAX_CONNECTIONS =
+            "OPENSRP_L2_CACHE_MAX_CONNECTIONS";
+    private static final int DEFAULT_PORT = 6379;
+    private static final int DEFAULT_TIMEOUT_MS = 500;
+    private static final int DEFAULT_MAX_CONNECTIONS = 8;
+    private static final byte[] CRLF = {'\r', '\n'};
+    // Drops the members of the sets, in chunks as unpack takes a limited number of values, and the
+    // sets. The script runs atomically, so a key added to a set meanwhile is not left behind.
+    private static final String INVALIDATE_MEMBERS_SCRIPT =
+            "for _, setKey in ipairs(KEYS) do\n"
+                    + "  local members = redis.call('SMEMBERS', setKey)\n"
+                    + "  for i = 1, #members, 5000 do\n"
+                    + "    redis.call('DEL', unpack(members, i, math.min(i + 4999, #members)))\n"
+                    + "  end\n"
+                    + "  redis.call('DEL', setKey)\n"
+                    + "end\n"
+                    + "return 0";
+
+    private final String host;
+    private final int port;
+    private final @Nullable String password;
+    private final int database;
+    private final int timeoutMs;
+    private final Semaphore connectionPermits;
+    private final Deque<Connection> idleConnections = new ConcurrentLinkedDeque<>();
+
+    public RedisL2Cache(
+            String host,
+            int port,
+            @Nullable String password,
+            int database,
+            int timeoutMs,
+            int maxConnections) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.database = database;
+        this.timeoutMs = timeoutMs;
+        this.connectionPermits = new Semaphore(Math.max(1, maxConnections));
+    }
+
+    /** Creates the cache if {@link #OPENSRP_L2_CACHE_REDIS_HOST} is set, returns null otherwise. */
+    public static @Nullable RedisL2Cache fromEnvironment() {
+        String host = System.getenv(OPENSRP_L2_CACHE_REDIS_HOST);
+        if (StringUtils.isBlank(host)) {
+            return null;
+        }
+        logger.info("Using the Redis server at {} as second level cache", host);
+        return new RedisL2Cache(
+                host.trim(),
+                getIntEnvironmentVar(OPENSRP_L2_CACHE_REDIS_PORT, DEFAULT_PORT),
+                StringUtils.trimToNull(System.getenv(OPENSRP_L2_CACHE_REDIS_PASSWORD)),
+                getIntEnvironmentVar(OPENSRP_L2_CACHE_REDIS_DATABASE, 0),
+                getIntEnvironmentVar(OPENSRP_L2_CACHE_TIMEOUT_MS, DEFAULT_TIMEOUT_MS),
+                getIntEnvironmentVar(OPENSRP_L2_CACHE_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS));
+    }
+
+    @Override
+    public @Nullable byte[] get(String key) {
+        return execute(connection -> connection.send(toBytes("GET"), toBytes(key)));
+    }
+
+    @Override
+    public void put(String key, byte[] value, long ttlSeconds, Collection<String> setKeys) {
+        byte[] ttl = toBytes(String.valueOf(Math.max(1, ttlSeconds)));
+        List<byte[][]> commands = new ArrayList<>();
+        commands.add(new byte[][] {toBytes("SET"), toBytes(key), value, toBytes("EX"), ttl});
+        for (String setKey : setKeys) {
+            commands.add(new byte[][] {toBytes("SADD"), toBytes(setKey), toBytes(key)});
+            commands.add(new byte[][] {toBytes("EXPIRE"), toBytes(setKey), ttl});
+        }
+        execute(connection -> connection.sendAll(commands));
+    }
+
+    @Override
+    public void invalidate(String key) {
+        execute(connection -> connection.send(toBytes("DEL"), toBytes(key)));
+    }
+
+    @Override
+    public void invalidateMembers(Collection<String> setKeys) {
+        if (setKeys.isEmpty()) {
+            return;
+        }
+        List<byte[]> arguments = new ArrayList<>(setKeys.size() + 3);
+        arguments.add(toBytes("EVAL"));
+        arguments.add(toBytes(INVALIDATE_MEMBERS_SCRIPT));
+        arguments.add(toBytes(String.valueOf(setKeys.size())));
+        for (String setKey : setKeys) {
+            arguments.add(toBytes(setKey));
+        }
+        execute(connection -> connection.send(arguments.toArray(new byte[0][])));
+    }
+
+    @Override
+    public @Nullable Long increment(String key, long delta) {
+        return execute(
+                connection -> {
+                    byte[] reply =
+                            connection.send(
+                                    toBytes("INCRBY"),
+                                    toBytes(key),
+                                    toBytes(String.valueOf(delta)));
+                    return parseInteger(reply);
+                });
+    }
+
+    /** Closes the idle connections, connections in use are closed once they are returned. */
+    public void close() {
+        Connection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    private @Nullable <T> T execute(Call<T> call) {
+        boolean acquired = false;
+        Connection connection = null;
+        try {
+            acquired = connectionPermits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                logger.warn("No connection to the second level cache available");
+                return null;
+            }
+            connection = idleConnections.poll();
+            if (connection == null) {
+                connection = connect();
+            }
+            T reply = call.apply(connection);
+            idleConnections.push(connection);
+            connection = null;
+            return reply;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (IOException e) {
+            logger.warn("Second level cache request failed: {}", e.getMessage());
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+            if (acquired) {
+                connectionPermits.release();
+            }
+        }
+    }
+
+    private Connection connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            socket.setTcpNoDelay(true);
+            Connection connection = new Connection(socket);
+            if (password != null) {
+                connection.send(toBytes("AUTH"), toBytes(password));
+            }
+            if (database != 0) {
+                connection.send(toBytes("SELECT"), toBytes(String.valueOf(database)));
+            }
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static byte[] toBytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int getIntEnvironmentVar(String envVariable, int defaultValue) {
+        String value = EnvUtil.getEnvironmentVar(envVariable, String.valueOf(defaultValue));
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid {} value '{}', using {}", envVariable, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /** A call made on a pooled connection. */
+    private interface Call<T> {
+        @Nullable
+        T apply(Connection connection) throws IOException;
+    }
+
+    /** A connection to the server, used by one request at a time. */
+    private static final class Connection implements Closeable {
+        private final Socket socket;
+        private final OutputStream outputStream;
+        private final InputStream inputStream;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.outputStream = new BufferedOutputStream(socket.getOutputStream());
+            this.inputStream = new BufferedInputStream(socket.getInputStream());
+        }
+
+        /**
+         * Sends the command and returns the bulk string reply, the text of a simple string or
+         * integer reply, or null for a null reply.
+         */
+        @Nullable
+        byte[] send(byte[]... arguments) throws IOException {
+            writeCommand(outputStream, arguments);
+            outputStream.flush();
+            return readReply(inputStream);
+        }
+
+        /** Sends the commands in one go, then reads their replies. */
+        @Nullable
+        Void sendAll(List<byte[][]> commands) throws IOException {
+            for (byte[][] arguments : commands) {
+                writeCommand(outputStream, arguments);
+            }
+            outputStream.flush();
+            for (int i = 0; i < commands.size(); i++) {
+                readReply(inputStream);
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close the second level cache connection", e);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static void writeCommand(OutputStream outputStream, byte[]... arguments) throws IOException {
+        outputStream.write(toBytes("*" + arguments.length));
+        outputStream.write(CRLF);
+        for (byte[] argument : arguments) {
+            outputStream.write(toBytes("$" + argument.length));
+            outputStream.write(CRLF);
+            outputStream.write(argument);
+            outputStream.write(CRLF);
+        }
+    }
+
+    @VisibleForTesting
+    static @Nullable byte[] readReply(InputStream inputStream) throws IOException {
+        int type = inputStream.read();
+        String line = readLine(inputStream);
+        switch (type) {
+            case '+':
+            case ':':
+                return toBytes(line);
+            case '-':
+                throw new IOException("Second level cache error: " + line);
+            case '$':
+                int length = parseLength(line);
+                if (length < 0) {
+                    return null;
+                }
+                byte[] value = inputStream.readNBytes(length);
+                if (value.length < length || !Arrays.equals(inputStream.readNBytes(2), CRLF)) {
+                    throw new EOFException("Incomplete bulk string reply");
+                }
+                return value;
+            default:
+                throw new IOException("Unsupported reply type '" + (char) type + "'");
+        }
+    }
+
+    private static long parseInteger(@Nullable byte[] reply) throws IOException {
+        String value = reply != null ? new String(reply, StandardCharsets.UTF_8) : null;
+        try {
+            return Long.parseLong(String.valueOf(value));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid integer reply '" + value + "'", e);
+        }
+    }
+
+    private static int parseLength(String line) throws IOException {
+        try {
+            return Integer.parseInt(line);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid reply length '" + line + "'", e);
+        }
+    }
+
+    private static String readLine(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int previous = -1;
+        int current;
+        while ((current = inputStream.read()) != -1) {
+            if (previous == '\r' && current == '\n') {
+                byte[] bytes = line.toByteArray();
+                return new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+            }
+            line.write(current);
+            previous = current;
+        }
+        throw new EOFException("Connection closed by the second level cache");
+    }
+}
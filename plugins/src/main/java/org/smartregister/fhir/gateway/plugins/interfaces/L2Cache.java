@@ -0,0 +1,42 @@
+package org.smartregister.fhir.gateway.plugins.interfaces;
+
+import java.util.Collection;
+import java.util.List;
+
+import jakarta.annotation.Nullable;
+
+/**
+ * Second level cache shared by the gateway replicas, behind the in-memory caches of each replica.
+ * Values are stored serialized. Implementations must not throw, an unavailable cache behaves like a
+ * cache miss so that requests fall back to the upstream FHIR server.
+ */
+public interface L2Cache {
+
+    /** Returns the value stored under the key, or null if there is none or the cache failed. */
+    @Nullable
+    byte[] get(String key);
+
+    /** Stores the value under the key for the given number of seconds. */
+    default void put(String key, byte[] value, long ttlSeconds) {
+        put(key, value, ttlSeconds, List.of());
+    }
+
+    /**
+     * Stores the value under the key for the given number of seconds, and adds the key to the sets
+     * stored under the set keys so that {@link #invalidateMembers} can drop it. The sets expire no
+     * earlier than the key.
+     */
+    void put(String key, byte[] value, long ttlSeconds, Collection<String> setKeys);
+
+    void invalidate(String key);
+
+    /** Drops the keys of the sets stored under the set keys, and the sets. */
+    void invalidateMembers(Collection<String> setKeys);
+
+    /**
+     * Adds the delta to the counter stored under the key, which starts at zero, and returns the new
+     * value. Returns null if the cache failed.
+     */
+    @Nullable
+    Long increment(String key, long delta);
+}
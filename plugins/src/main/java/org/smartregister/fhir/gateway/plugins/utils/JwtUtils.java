@@ -21,4 +21,16 @@ public class JwtUtils {
     public static String getApplicationIdFromJWT(DecodedJWT jwt) {
         return com.google.fhir.gateway.JwtUtil.getClaimOrDie(jwt, FHIR_CORE_APPLICATION_ID_CLAIM);
     }
+
+    /**
+     * Returns the subject, application id and realm roles of the token, which decide the data the
+     * user gets, so that responses can be cached per user independently of the token's lifetime.
+     */
+    public static String getAccessKeyFromJWT(DecodedJWT jwt) {
+        return String.join(
+                "|",
+                String.valueOf(jwt.getSubject()),
+                String.valueOf(jwt.getClaim(FHIR_CORE_APPLICATION_ID_CLAIM)),
+                String.valueOf(jwt.getClaim(REALM_ACCESS_CLAIM)));
+    }
 }
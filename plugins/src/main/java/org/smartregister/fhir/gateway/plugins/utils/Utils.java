@@ -24,6 +24,7 @@ import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.UriType;
 import org.slf4j.Logger;
 import org.smartregister.fhir.gateway.plugins.Constants;
+import org.smartregister.fhir.gateway.plugins.helper.FhirClientRegistry;
 
 import com.google.fhir.gateway.ExceptionUtil;
 import com.google.gson.Gson;
@@ -38,6 +39,8 @@ import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 
 public class Utils {
 
+    private static final Gson GSON = new Gson();
+
     public static Bundle addPaginationLinks(
             StringBuilder urlBuilder,
             Bundle resultBundle,
@@ -133,8 +136,7 @@ public class Utils {
     }
 
     public static IGenericClient createFhirClientForR4(FhirContext fhirContext) {
-        String fhirServer = System.getenv(Constants.PROXY_TO_ENV);
-        return fhirContext.newRestfulGenericClient(fhirServer);
+        return FhirClientRegistry.INSTANCE.getClient(fhirContext);
     }
 
     public static String getBinaryResourceReference(Composition composition, Logger logger) {
@@ -218,26 +220,43 @@ public class Utils {
     }
 
     public static String findSyncStrategy(Binary binary) {
-        byte[] bytes =
-                binary != null && binary.getDataElement() != null
-                        ? Base64.getDecoder().decode(binary.getDataElement().getValueAsString())
-                        : null;
-        return findSyncStrategy(bytes);
+        return findSyncStrategy(readApplicationConfig(binary));
     }
 
     public static String findSyncStrategy(byte[] binaryDataBytes) {
-        if (binaryDataBytes == null || binaryDataBytes.length == 0)
-            return org.smartregister.utils.Constants.EMPTY_STRING;
+        return findSyncStrategy(readApplicationConfig(binaryDataBytes));
+    }
+
+    public static String findSyncStrategy(JsonObject applicationConfig) {
         String syncStrategy = org.smartregister.utils.Constants.EMPTY_STRING;
-        String json = new String(binaryDataBytes);
-        JsonObject jsonObject = new Gson().fromJson(json, JsonObject.class);
-        JsonArray jsonArray = jsonObject.getAsJsonArray(Constants.AppConfigJsonKey.SYNC_STRATEGY);
+        if (applicationConfig == null) return syncStrategy;
+        JsonArray jsonArray =
+                applicationConfig.getAsJsonArray(Constants.AppConfigJsonKey.SYNC_STRATEGY);
         if (jsonArray != null && !jsonArray.isEmpty())
             syncStrategy = jsonArray.get(0).getAsString();
 
         return syncStrategy;
     }
 
+    /**
+     * Decodes and parses the application config JSON held by the Binary resource
+     *
+     * @param binary the application config Binary resource
+     * @return the parsed config or null if the Binary has no data
+     */
+    public static JsonObject readApplicationConfig(Binary binary) {
+        byte[] bytes =
+                binary != null && binary.getDataElement() != null
+                        ? Base64.getDecoder().decode(binary.getDataElement().getValueAsString())
+                        : null;
+        return readApplicationConfig(bytes);
+    }
+
+    public static JsonObject readApplicationConfig(byte[] binaryDataBytes) {
+        if (binaryDataBytes == null || binaryDataBytes.length == 0) return null;
+        return GSON.fromJson(new String(binaryDataBytes), JsonObject.class);
+    }
+
     public static String generateHash(String input) throws NoSuchAlgorithmException {
         MessageDigest digest = MessageDigest.getInstance("SHA-256");
         byte[] hashBytes = digest.digest(input.getBytes());
@@ -335,6 +354,19 @@ public class Utils {
         return url.substring(idStartIndex, idEndIndex);
     }
 
+    /**
+     * Whether the sync should be filtered by the lineage tags of the assigned locations only, i.e.
+     * {@code filter_mode_lineage=roots}. The resources carry a lineage tag for every ancestor
+     * location, so the descendants of the assigned locations do not need to be resolved.
+     */
+    public static boolean isFilterModeLineageRoots(Map<String, String[]> parameters) {
+        String[] values = parameters.get(Constants.FILTER_MODE_LINEAGE);
+        return values != null
+                && values.length > 0
+                && values[0] != null
+                && Constants.FILTER_MODE_LINEAGE_ROOTS.equalsIgnoreCase(values[0].trim());
+    }
+
     public static String getClientRole(List<String> roles, Logger logger) {
         List<String> matchedRoles = new ArrayList<>();
 
@@ -0,0 +1,167 @@
+package org.smartregister.fhir.gateway.plugins;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicStatusLine;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.smartregister.fhir.gateway.plugins.helper.CacheHelper;
+
+import com.google.fhir.gateway.interfaces.RequestDetailsReader;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+public class BundleAccessDecisionTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+    private final IParser parser = fhirContext.newJsonParser();
+    private BundleAccessDecision bundleAccessDecision;
+
+    @Before
+    public void setUp() {
+        Assume.assumeFalse(CacheHelper.INSTANCE.skipCache());
+        bundleAccessDecision = new BundleAccessDecision(fhirContext);
+    }
+
+    @Test
+    public void testTransactionInvalidatesTheWrittenResources() throws IOException {
+        CacheHelper.INSTANCE.cache.put("bad-user-1", Map.of("Location", List.of("bad-location-1")));
+        CacheHelper.INSTANCE.cache.put("bad-user-2", Map.of("Location", List.of("bad-location-2")));
+        CacheHelper.INSTANCE.cache.put("bad-user-3", Map.of("Location", List.of("bad-location-3")));
+        Bundle requestBundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        Location location = new Location();
+        location.setName("bad-name");
+        requestBundle
+                .addEntry()
+                .setResource(location)
+                .getRequest()
+                .setMethod(Bundle.HTTPVerb.POST)
+                .setUrl("Location");
+        requestBundle
+                .addEntry()
+                .getRequest()
+                .setMethod(Bundle.HTTPVerb.DELETE)
+                .setUrl("Location/bad-location-2");
+        requestBundle
+                .addEntry()
+                .setResource(new Patient())
+                .getRequest()
+                .setMethod(Bundle.HTTPVerb.POST)
+                .setUrl("Patient");
+        Bundle responseBundle = new Bundle().setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+        responseBundle
+                .addEntry()
+                .getResponse()
+                .setStatus("201 Created")
+                .setLocation("Location/bad-location-1/_history/1");
+        responseBundle.addEntry().getResponse().setStatus("204 No Content");
+        responseBundle
+                .addEntry()
+                .getResponse()
+                .setStatus("201 Created")
+                .setLocation("Patient/bad-location-3/_history/1");
+        String responseContent = parser.encodeResourceToString(responseBundle);
+
+        String resultContent =
+                bundleAccessDecision.postProcess(
+                        createRequest(requestBundle), createResponse(responseContent));
+
+        Assert.assertEquals(responseContent, resultContent);
+        Assert.assertNull(CacheHelper.INSTANCE.cache.getIfPresent("bad-user-1"));
+        Assert.assertNull(CacheHelper.INSTANCE.cache.getIfPresent("bad-user-2"));
+        Assert.assertNotNull(CacheHelper.INSTANCE.cache.getIfPresent("bad-user-3"));
+    }
+
+    @Test
+    public void testBundleWithoutCachedResourceTypesIsNotRead() throws IOException {
+        Bundle requestBundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        requestBundle
+                .addEntry()
+                .setResource(new Patient())
+                .getRequest()
+                .setMethod(Bundle.HTTPVerb.POST)
+                .setUrl("Patient");
+        HttpResponse response = createResponse("{}");
+
+        Assert.assertNull(bundleAccessDecision.postProcess(createRequest(requestBundle), response));
+
+        verify(response, never()).getEntity();
+    }
+
+    @Test
+    public void testFailedEntriesAreNotInvalidated() {
+        CacheHelper.INSTANCE.cache.put("bad-user-4", Map.of("Location", List.of("bad-location-4")));
+        Bundle requestBundle = new Bundle().setType(Bundle.BundleType.BATCH);
+        requestBundle
+                .addEntry()
+                .getRequest()
+                .setMethod(Bundle.HTTPVerb.DELETE)
+                .setUrl("Location/bad-location-4");
+        Bundle responseBundle = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+        responseBundle.addEntry().getResponse().setStatus("404 Not Found");
+
+        bundleAccessDecision.publishResourceChanges(requestBundle, responseBundle, null);
+
+        Assert.assertNotNull(CacheHelper.INSTANCE.cache.getIfPresent("bad-user-4"));
+    }
+
+    @Test
+    public void testCreatedResourcesGetTheirAssignedIds() {
+        Location district = new Location();
+        district.setPartOf(new Reference("Location/bad-root"));
+        Location village = new Location();
+        village.setPartOf(new Reference("urn:uuid:bad-district"));
+        Bundle requestBundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        requestBundle.addEntry().setFullUrl("urn:uuid:bad-district").setResource(district);
+        requestBundle.addEntry().setFullUrl("urn:uuid:bad-village").setResource(village);
+        Bundle responseBundle = new Bundle().setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+        responseBundle.addEntry().getResponse().setLocation("Location/bad-district/_history/1");
+        responseBundle.addEntry().getResponse().setLocation("Location/bad-village/_history/1");
+
+        Map<String, String> assignedIds =
+                BundleAccessDecision.getAssignedIds(
+                        requestBundle.getEntry(), responseBundle.getEntry());
+        Resource copy = BundleAccessDecision.withAssignedIds(village, "bad-village", assignedIds);
+
+        Assert.assertTrue(copy instanceof Location);
+        Assert.assertEquals("bad-village", copy.getIdElement().getIdPart());
+        Assert.assertEquals("Location/bad-district", ((Location) copy).getPartOf().getReference());
+        Assert.assertEquals("urn:uuid:bad-district", village.getPartOf().getReference());
+        Assert.assertFalse(village.getIdElement().hasIdPart());
+    }
+
+    private RequestDetailsReader createRequest(Bundle bundle) {
+        RequestDetailsReader request = mock(RequestDetailsReader.class);
+        when(request.loadRequestContents())
+                .thenReturn(parser.encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+
+    private static HttpResponse createResponse(String content) {
+        HttpResponse response = mock(HttpResponse.class);
+        when(response.getStatusLine())
+                .thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"));
+        when(response.getEntity()).thenReturn(new StringEntity(content, StandardCharsets.UTF_8));
+        return response;
+    }
+}
@@ -22,6 +22,7 @@ import org.apache.http.HttpResponse;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Patient;
 import org.jetbrains.annotations.NotNull;
 import org.junit.After;
@@ -126,6 +127,40 @@ public class SyncAccessDecisionTest {
         }
     }
 
+    @Test
+    public void preProcessShouldAddLineageTagFiltersWhenFilterModeLineageIsRoots() {
+        userRoles.add(Constants.ROLE_ANDROID_CLIENT);
+        locationIds.add("locationid12");
+        locationIds.add("locationid2");
+        testInstance = createSyncAccessDecisionTestInstance(Constants.SyncStrategy.LOCATION);
+
+        Map<String, String[]> parameters = new HashMap<>();
+        parameters.put(Constants.FILTER_MODE_LINEAGE, new String[] {"roots"});
+        RequestDetails requestDetails = getRequestDetails(new String[] {});
+        requestDetails.setParameters(parameters);
+
+        RequestMutation mutatedRequest =
+                testInstance.getRequestMutation(new TestRequestDetailsToReader(requestDetails));
+
+        assert mutatedRequest != null;
+        String tagParam =
+                mutatedRequest.getAdditionalQueryParams().get(Constants.TAG_SEARCH_PARAM).get(0);
+        for (String locationId : locationIds) {
+            Assert.assertTrue(
+                    tagParam.contains(
+                            Constants.Meta.Tag.SYSTEM_LOCATION_HIERARCHY
+                                    + Constants.CODE_URL_VALUE_SEPARATOR
+                                    + locationId));
+            Assert.assertTrue(
+                    tagParam.contains(
+                            Constants.DEFAULT_LOCATION_TAG_URL
+                                    + Constants.CODE_URL_VALUE_SEPARATOR
+                                    + locationId));
+        }
+        Assert.assertTrue(
+                mutatedRequest.getDiscardQueryParams().contains(Constants.FILTER_MODE_LINEAGE));
+    }
+
     @Test
     public void preProcessWhenNotOneClientRoleIsAddedShouldThrowError() throws IOException {
         // More than one
@@ -1257,7 +1292,6 @@ public class SyncAccessDecisionTest {
 
         Mockito.when(iGenericClient.transaction()).thenReturn(iTransaction);
         Mockito.when(iTransaction.withBundle(any(Bundle.class))).thenReturn(iClientExecutable);
-        Mockito.when(iGenericClient.getFhirContext()).thenReturn(fhirR4Context);
 
         Bundle transactionResult = new Bundle();
         transactionResult.setType(Bundle.BundleType.BATCHRESPONSE);
@@ -1298,6 +1332,97 @@ public class SyncAccessDecisionTest {
         }
     }
 
+    @Test
+    public void postProcessShouldMergeRelatedEntityLocationBatchesInOrder() throws IOException {
+        userRoles.add(Constants.ROLE_ANDROID_CLIENT);
+        // The first 20 ids are handled by the request itself, the rest is split in 3 batches
+        for (int i = 0; i < 270; i++) {
+            relatedEntityLocationIds.add("rel-location-" + i);
+        }
+
+        testInstance =
+                Mockito.spy(
+                        createSyncAccessDecisionTestInstance(
+                                Constants.SyncStrategy.RELATED_ENTITY_LOCATION));
+
+        IGenericClient iGenericClient = mock(IGenericClient.class);
+        ITransaction iTransaction = mock(ITransaction.class);
+
+        FhirContext fhirR4Context = FhirContext.forR4();
+        testInstance.setFhirR4Context(fhirR4Context);
+        testInstance.setFhirR4Client(iGenericClient);
+
+        Mockito.when(iGenericClient.transaction()).thenReturn(iTransaction);
+        Mockito.when(iTransaction.withBundle(any(Bundle.class)))
+                .thenAnswer(
+                        invocation -> {
+                            Bundle batchResponse =
+                                    createRelatedEntityLocationBatchResponse(
+                                            invocation.getArgument(0));
+                            return mock(ITransactionTyped.class, execution -> batchResponse);
+                        });
+
+        RequestDetailsReader requestDetailsSpy = Mockito.mock(RequestDetailsReader.class);
+        Mockito.when(requestDetailsSpy.getParameters()).thenReturn(new HashMap<>());
+        Mockito.when(requestDetailsSpy.getRequestPath()).thenReturn("Observation");
+        Mockito.when(requestDetailsSpy.getRequestType()).thenReturn(RequestTypeEnum.GET);
+        Mockito.when(requestDetailsSpy.getHeader(Constants.Header.FHIR_GATEWAY_MODE))
+                .thenReturn(null);
+
+        HttpResponse fhirResponseMock =
+                Mockito.mock(HttpResponse.class, Answers.RETURNS_DEEP_STUBS);
+        Bundle searchSet = new Bundle();
+        searchSet.setType(Bundle.BundleType.SEARCHSET);
+        TestUtil.setUpFhirResponseMock(
+                fhirResponseMock, fhirR4Context.newJsonParser().encodeResourceToString(searchSet));
+
+        String resultContent = testInstance.postProcess(requestDetailsSpy, fhirResponseMock);
+
+        Mockito.verify(iTransaction, Mockito.times(3)).withBundle(any(Bundle.class));
+        Bundle resultBundle = (Bundle) fhirR4Context.newJsonParser().parseResource(resultContent);
+        Assert.assertEquals(250, resultBundle.getTotal());
+        for (int i = 0; i < 250; i++) {
+            Assert.assertEquals(
+                    "obs-rel-location-" + (i + 20),
+                    resultBundle.getEntry().get(i).getResource().getIdElement().getIdPart());
+        }
+    }
+
+    private static Bundle createRelatedEntityLocationBatchResponse(Bundle requestBundle) {
+        Bundle batchResponse = new Bundle();
+        batchResponse.setType(Bundle.BundleType.BATCHRESPONSE);
+        for (Bundle.BundleEntryComponent requestEntry : requestBundle.getEntry()) {
+            String requestUrl = requestEntry.getRequest().getUrl();
+            String locationId = requestUrl.substring(requestUrl.lastIndexOf("%7C") + 3);
+
+            Observation observation = new Observation();
+            observation.setId("Observation/obs-" + locationId);
+            Bundle searchSet = new Bundle();
+            searchSet.setType(Bundle.BundleType.SEARCHSET);
+            searchSet.addEntry().setResource(observation);
+            batchResponse.addEntry().setResource(searchSet);
+        }
+        return batchResponse;
+    }
+
+    @Test
+    public void getIgnoredResourcesConfigFileConfigurationShouldReuseParsedConfig() {
+        SyncAccessDecision firstInstance =
+                createSyncAccessDecisionTestInstance(Constants.SyncStrategy.LOCATION);
+        SyncAccessDecision secondInstance =
+                createSyncAccessDecisionTestInstance(Constants.SyncStrategy.LOCATION);
+        String configFile =
+                Resources.getResource("hapi_sync_filter_ignored_queries.json").getPath();
+
+        SyncAccessDecision.IgnoredResourcesConfig config =
+                firstInstance.getIgnoredResourcesConfigFileConfiguration(configFile);
+
+        Assert.assertSame(
+                config, secondInstance.getIgnoredResourcesConfigFileConfiguration(configFile));
+        Assert.assertEquals(1, config.getEntriesByRequest().get("GET StructureMap").size());
+        Assert.assertNull(config.getEntriesByRequest().get("POST StructureMap"));
+    }
+
     @After
     public void cleanUp() {
         locationIds.clear();
@@ -0,0 +1,144 @@
+package org.smartregister.fhir.gateway.plugins.actuator;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.smartregister.fhir.gateway.plugins.Constants;
+import org.smartregister.fhir.gateway.plugins.helper.CacheHelper;
+import org.smartregister.fhir.gateway.plugins.helper.CachedResponse;
+import org.smartregister.fhir.gateway.plugins.helper.TestL2Cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+public class CacheAdminEndpointTest {
+
+    private Cache<String, String> eTagCache;
+    private Cache<String, String> weighedCache;
+    private CacheAdminEndpoint cacheAdminEndpoint;
+
+    @Before
+    public void setUp() {
+        eTagCache = Caffeine.newBuilder().maximumSize(10).recordStats().build();
+        weighedCache =
+                Caffeine.newBuilder()
+                        .maximumWeight(100)
+                        .weigher((String key, String value) -> value.length())
+                        .recordStats()
+                        .build();
+        Map<String, Cache<String, ?>> caches = new LinkedHashMap<>();
+        caches.put("etag", eTagCache);
+        caches.put("weighed", weighedCache);
+        cacheAdminEndpoint = new CacheAdminEndpoint(caches);
+    }
+
+    @Test
+    public void testCachesListsEveryCache() {
+        eTagCache.put("practitioner-1", "value");
+        eTagCache.getIfPresent("practitioner-1");
+        eTagCache.getIfPresent("practitioner-2");
+        weighedCache.put("location-1", "12345");
+        weighedCache.cleanUp();
+
+        Map<String, CacheAdminEndpoint.CacheDescriptor> descriptors = cacheAdminEndpoint.caches();
+
+        Assert.assertEquals(2, descriptors.size());
+        CacheAdminEndpoint.CacheDescriptor eTagDescriptor = descriptors.get("etag");
+        Assert.assertEquals(1, eTagDescriptor.getSize());
+        Assert.assertNull(eTagDescriptor.getWeight());
+        Assert.assertEquals(1, eTagDescriptor.getHitCount());
+        Assert.assertEquals(1, eTagDescriptor.getMissCount());
+        Assert.assertEquals(0.5, eTagDescriptor.getHitRate(), 0.001);
+        Assert.assertEquals(Long.valueOf(5), descriptors.get("weighed").getWeight());
+    }
+
+    @Test
+    public void testCacheReturnsNullForUnknownCache() {
+        Assert.assertNull(cacheAdminEndpoint.cache("unknown"));
+        Assert.assertEquals("etag", cacheAdminEndpoint.cache("etag").getName());
+    }
+
+    @Test
+    public void testInvalidateByKeyPrefixAndAll() {
+        eTagCache.put("location-1_a", "value");
+        eTagCache.put("location-1_b", "value");
+        eTagCache.put("location-2_a", "value");
+        eTagCache.put("practitioner-1", "value");
+
+        CacheAdminEndpoint.InvalidationResult result =
+                cacheAdminEndpoint.invalidate("etag", "practitioner-1", null);
+        Assert.assertEquals(1, result.getInvalidated());
+        Assert.assertNull(eTagCache.getIfPresent("practitioner-1"));
+
+        result = cacheAdminEndpoint.invalidate("etag", null, "location-1_");
+        Assert.assertEquals(2, result.getInvalidated());
+        Assert.assertNotNull(eTagCache.getIfPresent("location-2_a"));
+
+        result = cacheAdminEndpoint.invalidate("etag", null, null);
+        Assert.assertEquals(1, result.getInvalidated());
+        Assert.assertEquals(0, eTagCache.estimatedSize());
+        Assert.assertNull(cacheAdminEndpoint.invalidate("unknown", null, null));
+    }
+
+    @Test
+    public void testInvalidateDropsSharedEntries() {
+        Assume.assumeFalse(CacheHelper.INSTANCE.skipCache());
+        TestL2Cache l2Cache = new TestL2Cache();
+        CacheHelper.INSTANCE.setL2Cache(l2Cache);
+        try {
+            CacheAdminEndpoint defaultEndpoint = new CacheAdminEndpoint();
+            CachedResponse.cache("CacheAdminEndpointTest|key", createResponse(), List.of());
+
+            defaultEndpoint.invalidate(
+                    CacheHelper.RESPONSE_CACHE, "CacheAdminEndpointTest|key", null);
+            Assert.assertNull(CachedResponse.getCached("CacheAdminEndpointTest|key"));
+        } finally {
+            CacheHelper.INSTANCE.setL2Cache(null);
+        }
+    }
+
+    @Test
+    public void testInvalidatePrefixDropsSharedEntriesOfThePrefixOnly() {
+        Assume.assumeFalse(CacheHelper.INSTANCE.skipCache());
+        CacheHelper cacheHelper = CacheHelper.INSTANCE;
+        TestL2Cache l2Cache = new TestL2Cache();
+        cacheHelper.setL2Cache(l2Cache);
+        try {
+            CacheAdminEndpoint defaultEndpoint = new CacheAdminEndpoint();
+            String rootsKey = "cae-user-1_" + Constants.FILTER_MODE_LINEAGE_ROOTS;
+            Map<String, List<String>> oldIds = Map.of("Location", List.of("cae-old"));
+            cacheHelper.getSyncStrategyIds("cae-user-1", () -> oldIds);
+            cacheHelper.getSyncStrategyIds(rootsKey, () -> oldIds);
+            cacheHelper.getSyncStrategyIds("cae-user-2", () -> oldIds);
+            // Only held by another replica
+            cacheHelper.cache.invalidate(rootsKey);
+            cacheHelper.cache.invalidate("cae-user-2");
+
+            defaultEndpoint.invalidate(CacheHelper.SYNC_IDS_CACHE, null, "cae-user-1");
+
+            Map<String, List<String>> newIds = Map.of("Location", List.of("cae-new"));
+            Assert.assertEquals(newIds, cacheHelper.getSyncStrategyIds("cae-user-1", () -> newIds));
+            Assert.assertEquals(newIds, cacheHelper.getSyncStrategyIds(rootsKey, () -> newIds));
+            Assert.assertEquals(oldIds, cacheHelper.getSyncStrategyIds("cae-user-2", () -> newIds));
+        } finally {
+            CacheHelper.INSTANCE.setL2Cache(null);
+        }
+    }
+
+    @Test
+    public void testDefaultEndpointListsCacheHelperCaches() {
+        CacheAdminEndpoint defaultEndpoint = new CacheAdminEndpoint();
+
+        Assert.assertEquals(
+                CacheHelper.INSTANCE.getCaches().keySet(), defaultEndpoint.caches().keySet());
+    }
+
+    private static CachedResponse createResponse() {
+        return new CachedResponse(new byte[] {1}, "application/json", "\"abc\"", false);
+    }
+}
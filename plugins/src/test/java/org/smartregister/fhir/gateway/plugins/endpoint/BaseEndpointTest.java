@@ -1,9 +1,24 @@
 package org.smartregister.fhir.gateway.plugins.endpoint;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
 import java.io.IOException;
+import java.util.List;
 
+import org.apache.http.HttpStatus;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
+import org.smartregister.fhir.gateway.plugins.Constants;
+import org.smartregister.fhir.gateway.plugins.helper.CacheHelper;
+import org.smartregister.fhir.gateway.plugins.helper.CachedResponse;
+import org.smartregister.fhir.gateway.plugins.helper.ETagHelper;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 public class BaseEndpointTest {
 
@@ -14,6 +29,27 @@ public class BaseEndpointTest {
         Assert.assertNotNull(baseEndpoint);
     }
 
+    @Test
+    public void testSendCachedResponseAnswersNotModified() throws IOException {
+        Assume.assumeFalse(CacheHelper.INSTANCE.skipCache());
+        CachedResponse.cache(
+                "BaseEndpointTest|key|json",
+                new CachedResponse(new byte[] {1, 2, 3}, "application/json", "\"abc\"", false),
+                List.of());
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(request.getHeader(Constants.IF_NONE_MATCH)).thenReturn("\"abc\"");
+        TestBaseEndpoint baseEndpoint = new TestBaseEndpoint();
+
+        Assert.assertTrue(
+                baseEndpoint.sendCachedResponse(request, response, "BaseEndpointTest|key"));
+
+        verify(response).setHeader(Constants.ETAG, "\"abc\"");
+        verify(response).setStatus(HttpStatus.SC_NOT_MODIFIED);
+        verify(response, never()).getOutputStream();
+        Assert.assertEquals("\"abc\"", ETagHelper.getCachedETag("BaseEndpointTest|key|json"));
+    }
+
     static class TestBaseEndpoint extends BaseEndpoint {
 
         protected TestBaseEndpoint() throws IOException {}
@@ -10,6 +10,7 @@ import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.Arrays;
 
 import org.hl7.fhir.r4.model.Bundle;
@@ -80,7 +81,14 @@ public class PractitionerDetailEndpointTest {
                 BaseEndpoint.class.getDeclaredField("fhirR4JsonParser");
         parserField.setAccessible(true);
         ca.uhn.fhir.parser.IParser mockParser = mock(ca.uhn.fhir.parser.IParser.class);
-        when(mockParser.encodeResourceToString(any())).thenReturn("{\"resourceType\":\"Bundle\"}");
+        Mockito.doAnswer(
+                        invocation -> {
+                            Writer writer = invocation.getArgument(1);
+                            writer.write("{\"resourceType\":\"Bundle\"}");
+                            return null;
+                        })
+                .when(mockParser)
+                .encodeResourceToWriter(any(), any(Writer.class));
         parserField.set(endpoint, mockParser);
     }
 
@@ -140,6 +148,10 @@ public class PractitionerDetailEndpointTest {
             jwtUtilsMock
                     .when(() -> JwtUtils.getUserRolesFromJWT(mockDecodedJWT))
                     .thenReturn(Arrays.asList("USER"));
+            // Keeps the cached response of the supervisor test from being served here
+            jwtUtilsMock
+                    .when(() -> JwtUtils.getAccessKeyFromJWT(mockDecodedJWT))
+                    .thenReturn("test-user");
             endpoint.doGet(request, response);
 
             verify(response).setStatus(200);
@@ -231,6 +243,9 @@ public class PractitionerDetailEndpointTest {
             jwtUtilsMock
                     .when(() -> JwtUtils.getUserRolesFromJWT(mockDecodedJWT))
                     .thenReturn(Arrays.asList("SUPERVISOR"));
+            jwtUtilsMock
+                    .when(() -> JwtUtils.getAccessKeyFromJWT(mockDecodedJWT))
+                    .thenReturn("test-supervisor");
 
             // Mock the supervisor method to return a bundle
             Bundle mockBundle = new Bundle();
@@ -332,7 +347,7 @@ public class PractitionerDetailEndpointTest {
 
     /**
      * Create a real PractitionerDetails object for testing. This is needed because
-     * fhirR4JsonParser.encodeResourceToString() requires a real object that can be properly
+     * fhirR4JsonParser.encodeResourceToWriter() requires a real object that can be properly
      * serialized.
      */
     private PractitionerDetails createPractitionerDetails(String id) {
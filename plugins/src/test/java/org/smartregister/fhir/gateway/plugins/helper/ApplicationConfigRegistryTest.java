@@ -0,0 +1,58 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Composition;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.smartregister.fhir.gateway.plugins.Constants;
+import org.smartregister.fhir.gateway.plugins.utils.Utils;
+
+public class ApplicationConfigRegistryTest {
+
+    private static final String APPLICATION_ID = "test-app-id";
+
+    @After
+    public void tearDown() {
+        ApplicationConfigRegistry.INSTANCE.invalidate(APPLICATION_ID);
+    }
+
+    @Test
+    public void testApplicationConfigParsesSyncStrategy() {
+        Binary binary = new Binary();
+        binary.setData("{\"syncStrategy\":[\"Location\"]}".getBytes(StandardCharsets.UTF_8));
+
+        ApplicationConfigRegistry.ApplicationConfig applicationConfig =
+                new ApplicationConfigRegistry.ApplicationConfig(
+                        new Composition(), binary, Utils.readApplicationConfig(binary));
+
+        Assert.assertEquals(Constants.SyncStrategy.LOCATION, applicationConfig.getSyncStrategy());
+        Assert.assertSame(binary, applicationConfig.getBinary());
+    }
+
+    @Test
+    public void testGetSyncStrategyUsesRegisteredConfig() {
+        ApplicationConfigRegistry.ApplicationConfig applicationConfig =
+                new ApplicationConfigRegistry.ApplicationConfig(
+                        new Composition(),
+                        null,
+                        Utils.readApplicationConfig(
+                                "{\"syncStrategy\":[\"CareTeam\"]}"
+                                        .getBytes(StandardCharsets.UTF_8)));
+        ApplicationConfigRegistry.INSTANCE.put(APPLICATION_ID, applicationConfig);
+
+        Assert.assertSame(
+                applicationConfig,
+                ApplicationConfigRegistry.INSTANCE.getApplicationConfig(APPLICATION_ID));
+        Assert.assertEquals(
+                Constants.SyncStrategy.CARE_TEAM,
+                ApplicationConfigRegistry.INSTANCE.getSyncStrategy(APPLICATION_ID));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGetApplicationConfigWithBlankApplicationIdThrowsException() {
+        ApplicationConfigRegistry.INSTANCE.getApplicationConfig(" ");
+    }
+}
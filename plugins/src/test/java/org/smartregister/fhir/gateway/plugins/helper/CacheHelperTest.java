@@ -1,8 +1,19 @@
 package org.smartregister.fhir.gateway.plugins.helper;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Location;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
+import com.github.benmanes.caffeine.cache.Cache;
+
 public class CacheHelperTest {
 
     @Test
@@ -18,8 +29,133 @@ public class CacheHelperTest {
         Assert.assertNotNull("Cache should not be null", instance.cache);
         Assert.assertNotNull("Resource cache should not be null", instance.resourceCache);
         Assert.assertNotNull("Location list cache should not be null", instance.locationListCache);
-        Assert.assertNotNull("String cache should not be null", instance.stringCache);
         Assert.assertNotNull("List string cache should not be null", instance.listStringCache);
+        Assert.assertNotNull("Response cache should not be null", instance.responseCache);
+    }
+
+    @Test
+    public void testCachesAreNamedAndRecordStats() {
+        CacheHelper instance = CacheHelper.INSTANCE;
+
+        Assert.assertSame(instance.resourceCache, instance.getCaches().get("resource"));
+        Assert.assertSame(instance.responseCache, instance.getCaches().get("response"));
+        for (Cache<String, ?> cache : instance.getCaches().values()) {
+            Assert.assertTrue(cache.policy().isRecordingStats());
+        }
+        Assert.assertTrue(CacheHelper.getWeight(instance.responseCache).isPresent());
+        Assert.assertFalse(CacheHelper.getWeight(instance.eTagCache).isPresent());
+    }
+
+    @Test
+    public void testGetSyncStrategyIdsLoadsOnce() {
+        CacheHelper instance = CacheHelper.INSTANCE;
+        Map<String, List<String>> ids = Map.of("Location", List.of("1", "2"));
+        AtomicInteger loads = new AtomicInteger();
+
+        instance.getSyncStrategyIds(
+                "CacheHelperTest|user",
+                () -> {
+                    loads.incrementAndGet();
+                    return ids;
+                });
+        Map<String, List<String>> cachedIds =
+                instance.getSyncStrategyIds("CacheHelperTest|user", () -> Map.of());
+
+        Assert.assertEquals(ids, cachedIds);
+        Assert.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testManySyncStrategyIdsAreTaggedWithTheirUserOnly() {
+        Assume.assumeFalse(CacheHelper.INSTANCE.skipCache());
+        CacheHelper instance = CacheHelper.INSTANCE;
+        TestL2Cache l2Cache = new TestL2Cache();
+        instance.setL2Cache(l2Cache);
+        try {
+            List<String> locationIds =
+                    IntStream.range(0, 101)
+                            .mapToObj(i -> "location-" + i)
+                            .collect(Collectors.toList());
+            instance.getSyncStrategyIds(
+                    "CacheHelperTest|many", () -> Map.of("Location", locationIds));
+
+            instance.invalidateSharedTagged(CacheHelper.SYNC_IDS_CACHE, List.of("location-0"));
+            Assert.assertEquals(1, l2Cache.getEntries().size());
+
+            instance.invalidateSharedTagged(
+                    CacheHelper.SYNC_IDS_CACHE, List.of("CacheHelperTest|many"));
+            Assert.assertTrue(l2Cache.getEntries().isEmpty());
+        } finally {
+            instance.setL2Cache(null);
+        }
+    }
+
+    @Test
+    public void testResourceIsReadFromSecondLevelCacheAndDroppedByItsTags() {
+        Assume.assumeFalse(CacheHelper.INSTANCE.skipCache());
+        CacheHelper instance = CacheHelper.INSTANCE;
+        TestL2Cache l2Cache = new TestL2Cache();
+        instance.setL2Cache(l2Cache);
+        try {
+            Location location = new Location();
+            location.setId("cht-location");
+            location.setName("cht-name");
+            instance.getResource("location_cht-location", () -> location);
+            instance.resourceCache.invalidate("location_cht-location");
+
+            DomainResource sharedResource =
+                    instance.getResource("location_cht-location", () -> null);
+            Assert.assertTrue(sharedResource instanceof Location);
+            Assert.assertEquals("cht-name", ((Location) sharedResource).getName());
+
+            instance.invalidateSharedTagged(CacheHelper.RESOURCE_CACHE, List.of("cht-location"));
+            Assert.assertTrue(l2Cache.getEntries().isEmpty());
+        } finally {
+            instance.setL2Cache(null);
+            instance.resourceCache.invalidate("location_cht-location");
+        }
+    }
+
+    @Test
+    public void testInvalidateAllSharedHidesTheSharedEntries() {
+        Assume.assumeFalse(CacheHelper.INSTANCE.skipCache());
+        CacheHelper instance = CacheHelper.INSTANCE;
+        instance.setL2Cache(new TestL2Cache());
+        try {
+            instance.putShared(
+                    CacheHelper.RESPONSE_CACHE, "CacheHelperTest|all", new byte[] {1}, List.of());
+
+            instance.invalidateAllShared(CacheHelper.RESPONSE_CACHE);
+
+            Assert.assertNull(
+                    instance.getShared(
+                            CacheHelper.RESPONSE_CACHE, "CacheHelperTest|all", bytes -> bytes));
+        } finally {
+            instance.setL2Cache(null);
+        }
+    }
+
+    @Test
+    public void testInvalidateSharedTaggedDropsTheTaggedEntries() {
+        Assume.assumeFalse(CacheHelper.INSTANCE.skipCache());
+        CacheHelper instance = CacheHelper.INSTANCE;
+        instance.setL2Cache(new TestL2Cache());
+        try {
+            instance.putShared(
+                    CacheHelper.SYNC_IDS_CACHE, "user-1", new byte[] {1}, List.of("location-1"));
+            instance.putShared(
+                    CacheHelper.SYNC_IDS_CACHE, "user-2", new byte[] {2}, List.of("location-2"));
+
+            instance.invalidateSharedTagged(CacheHelper.SYNC_IDS_CACHE, List.of("location-1"));
+
+            Assert.assertNull(
+                    instance.getShared(CacheHelper.SYNC_IDS_CACHE, "user-1", bytes -> bytes));
+            Assert.assertArrayEquals(
+                    new byte[] {2},
+                    instance.getShared(CacheHelper.SYNC_IDS_CACHE, "user-2", bytes -> bytes));
+        } finally {
+            instance.setL2Cache(null);
+        }
     }
 
     @Test
@@ -0,0 +1,281 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.PractitionerRole;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.smartregister.fhir.gateway.plugins.Constants;
+import org.smartregister.model.location.LocationHierarchy;
+import org.smartregister.model.practitioner.FhirPractitionerDetails;
+import org.smartregister.model.practitioner.PractitionerDetails;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import jakarta.annotation.Nullable;
+
+public class CacheInvalidatorTest {
+
+    private final CacheHelper cacheHelper = CacheHelper.INSTANCE;
+
+    @Before
+    public void setUp() {
+        Assume.assumeFalse(cacheHelper.skipCache());
+        // The look ups and the second level cache are checked right after the change
+        CacheInvalidator.INSTANCE.setExecutor(Runnable::run);
+    }
+
+    @After
+    public void tearDown() {
+        CacheInvalidator.INSTANCE.setExecutor(UpstreamExecutor.INSTANCE);
+    }
+
+    @Test
+    public void testLocationChangeInvalidatesHierarchiesOfItsAncestors() {
+        cacheHelper.resourceCache.put("cit-root_1_2_false_null", new LocationHierarchy());
+        cacheHelper.resourceCache.put("cit-other_1_2_false_null", new LocationHierarchy());
+        cacheHelper.resourceCache.put("location_cit-village", new Location());
+        cacheHelper.locationListCache.put("cit-district", List.of(new Location()));
+        cacheHelper.locationListCache.put("cit-other", List.of(new Location()));
+        Location village = new Location();
+        village.setId("cit-village");
+        village.setPartOf(new Reference("Location/cit-district"));
+        village.getMeta().addTag(Constants.Meta.Tag.SYSTEM_LOCATION_HIERARCHY, "cit-root", null);
+
+        CacheInvalidator.INSTANCE.onResourceChanged(
+                null, Constants.ResourceType.LOCATION, "cit-village", village);
+
+        Assert.assertNull(cacheHelper.resourceCache.getIfPresent("cit-root_1_2_false_null"));
+        Assert.assertNull(cacheHelper.resourceCache.getIfPresent("location_cit-village"));
+        Assert.assertNull(cacheHelper.locationListCache.getIfPresent("cit-district"));
+        Assert.assertNotNull(cacheHelper.resourceCache.getIfPresent("cit-other_1_2_false_null"));
+        Assert.assertNotNull(cacheHelper.locationListCache.getIfPresent("cit-other"));
+    }
+
+    @Test
+    public void testPractitionerRoleChangeInvalidatesEntriesOfItsPractitionerOnly() {
+        cacheHelper.resourceCache.put(
+                "cit-practitioner-1",
+                createPractitionerDetails("cit-practitioner-1", "cit-user-1"));
+        cacheHelper.resourceCache.put(
+                "cit-practitioner-2",
+                createPractitionerDetails("cit-practitioner-2", "cit-user-2"));
+        cacheHelper.listStringCache.put("cit-user-1", List.of("cit-location-1"));
+        cacheHelper.listStringCache.put("cit-user-2", List.of("cit-location-2"));
+        cacheHelper.cache.put("cit-user-1", Map.of("Location", List.of("cit-location-1")));
+        cacheHelper.cache.put("cit-user-2", Map.of("Location", List.of("cit-location-2")));
+        cacheHelper.responseCache.put(
+                "PractitionerDetail|keycloak-uuid=cit-user-1|cit-user-1|app|roles|json",
+                createResponse());
+        cacheHelper.responseCache.put(
+                "PractitionerDetail|keycloak-uuid=cit-user-2|cit-user-2|app|roles|json",
+                createResponse());
+        PractitionerRole practitionerRole = new PractitionerRole();
+        practitionerRole.setId("cit-role-1");
+        practitionerRole.setPractitioner(new Reference("Practitioner/cit-practitioner-1"));
+        practitionerRole.setOrganization(new Reference("Organization/cit-organization-1"));
+
+        CacheInvalidator.INSTANCE.onResourceChanged(
+                null, Constants.ResourceType.PRACTITIONER_ROLE, "cit-role-1", practitionerRole);
+
+        Assert.assertNull(cacheHelper.resourceCache.getIfPresent("cit-practitioner-1"));
+        Assert.assertNull(cacheHelper.listStringCache.getIfPresent("cit-user-1"));
+        Assert.assertNull(cacheHelper.cache.getIfPresent("cit-user-1"));
+        Assert.assertNull(
+                cacheHelper.responseCache.getIfPresent(
+                        "PractitionerDetail|keycloak-uuid=cit-user-1|cit-user-1|app|roles|json"));
+        Assert.assertNotNull(cacheHelper.resourceCache.getIfPresent("cit-practitioner-2"));
+        Assert.assertNotNull(cacheHelper.listStringCache.getIfPresent("cit-user-2"));
+        Assert.assertNotNull(cacheHelper.cache.getIfPresent("cit-user-2"));
+        Assert.assertNotNull(
+                cacheHelper.responseCache.getIfPresent(
+                        "PractitionerDetail|keycloak-uuid=cit-user-2|cit-user-2|app|roles|json"));
+    }
+
+    @Test
+    public void testDeletedCareTeamInvalidatesSyncStrategyIdsHoldingIt() {
+        cacheHelper.cache.put("cit-user-3", Map.of("CareTeam", List.of("cit-care-team-1")));
+        cacheHelper.cache.put("cit-user-4", Map.of("CareTeam", List.of("cit-care-team-2")));
+
+        CacheInvalidator.INSTANCE.onResourceDeleted(
+                null, Constants.ResourceType.CARE_TEAM, "cit-care-team-1");
+
+        Assert.assertNull(cacheHelper.cache.getIfPresent("cit-user-3"));
+        Assert.assertNotNull(cacheHelper.cache.getIfPresent("cit-user-4"));
+    }
+
+    @Test
+    public void testPatchedLocationKeepsItsSubtreeInTheIndex() {
+        LocationGraphIndex.INSTANCE.load(
+                List.of(
+                        createLocation("cit-patch-root", null),
+                        createLocation("cit-patch-district", "cit-patch-root"),
+                        createLocation("cit-patch-village", "cit-patch-district")));
+        IGenericClient client = mock(IGenericClient.class, RETURNS_DEEP_STUBS);
+        Location patched = createLocation("cit-patch-district", "cit-patch-root");
+        patched.setName("cit-patched-name");
+        when(client.read().resource(Location.class).withId("cit-patch-district").execute())
+                .thenReturn(patched);
+        try {
+            CacheInvalidator.INSTANCE.onResourceChanged(
+                    client, Constants.ResourceType.LOCATION, "cit-patch-district", null);
+
+            List<Location> descendants =
+                    LocationGraphIndex.INSTANCE.getDescendants(
+                            client, "cit-patch-root", null, null);
+            Assert.assertNotNull(descendants);
+            Assert.assertEquals(2, descendants.size());
+            Assert.assertEquals("cit-patched-name", descendants.get(0).getName());
+            Assert.assertEquals("cit-patch-village", descendants.get(1).getIdElement().getIdPart());
+        } finally {
+            LocationGraphIndex.INSTANCE.invalidate();
+        }
+    }
+
+    @Test
+    public void testChangeInvalidatesSharedEntriesNotHeldLocally() {
+        TestL2Cache l2Cache = new TestL2Cache();
+        cacheHelper.setL2Cache(l2Cache);
+        try {
+            CachedResponse.cache(
+                    "LocationHierarchy|_id=cit-shared-root|cit-user-5|json",
+                    createResponse(),
+                    List.of("cit-user-5", "cit-shared-root"));
+            CachedResponse.cache(
+                    "LocationHierarchy|_id=cit-other-root|cit-user-5|json",
+                    createResponse(),
+                    List.of("cit-user-5", "cit-other-root"));
+            cacheHelper.responseCache.invalidateAll();
+
+            CacheInvalidator.INSTANCE.onResourceChanged(
+                    null, Constants.ResourceType.LOCATION, "cit-shared-root", null);
+
+            Assert.assertNull(
+                    CachedResponse.getCached(
+                            "LocationHierarchy|_id=cit-shared-root|cit-user-5|json"));
+            Assert.assertNotNull(
+                    CachedResponse.getCached(
+                            "LocationHierarchy|_id=cit-other-root|cit-user-5|json"));
+        } finally {
+            cacheHelper.setL2Cache(null);
+        }
+    }
+
+    @Test
+    public void testChangesAreInvalidatedTogetherAndSharedEntriesLater() {
+        List<Runnable> tasks = new ArrayList<>();
+        CacheInvalidator.INSTANCE.setExecutor(tasks::add);
+        TestL2Cache l2Cache = new TestL2Cache();
+        cacheHelper.setL2Cache(l2Cache);
+        try {
+            cacheHelper.cache.put("cit-user-6", Map.of("CareTeam", List.of("cit-care-team-3")));
+            cacheHelper.cache.put("cit-user-7", Map.of("Group", List.of("cit-group-1")));
+            CachedResponse.cache(
+                    "CareTeam|_id=cit-care-team-3|cit-user-6|json",
+                    createResponse(),
+                    List.of("cit-user-6", "cit-care-team-3"));
+
+            CacheInvalidator.INSTANCE.onResourcesChanged(
+                    null,
+                    List.of(
+                            CacheInvalidator.ResourceChange.deleted(
+                                    Constants.ResourceType.CARE_TEAM, "cit-care-team-3"),
+                            CacheInvalidator.ResourceChange.deleted(
+                                    Constants.ResourceType.GROUP, "cit-group-1")));
+
+            Assert.assertNull(cacheHelper.cache.getIfPresent("cit-user-6"));
+            Assert.assertNull(cacheHelper.cache.getIfPresent("cit-user-7"));
+            Assert.assertNull(
+                    cacheHelper.responseCache.getIfPresent(
+                            "CareTeam|_id=cit-care-team-3|cit-user-6|json"));
+            Assert.assertEquals(1, tasks.size());
+            Assert.assertEquals(1, l2Cache.getEntries().size());
+
+            tasks.get(0).run();
+
+            Assert.assertTrue(l2Cache.getEntries().isEmpty());
+        } finally {
+            cacheHelper.setL2Cache(null);
+        }
+    }
+
+    @Test
+    public void testAffectedEntriesAreRemovedFromEntriesNotCachedYet() {
+        cacheHelper.resourceCache.put("cit-root-2_1_2_false_null", new LocationHierarchy());
+        Location oldVillage = createLocation("cit-village-2", null);
+        oldVillage
+                .getMeta()
+                .addTag(Constants.Meta.Tag.SYSTEM_LOCATION_HIERARCHY, "cit-root-2", null);
+        Map<String, DomainResource> resources = new HashMap<>();
+        resources.put("cit-root-2_1_2_false_null", new LocationHierarchy());
+        resources.put("cit-root-3_1_2_false_null", new LocationHierarchy());
+        resources.put("cit-other-2_1_2_false_null", new LocationHierarchy());
+        resources.put("location_cit-village-2", oldVillage);
+        Map<String, List<String>> userLocationIds = new HashMap<>();
+        userLocationIds.put("cit-user-9", List.of("cit-village-2"));
+        userLocationIds.put("cit-user-10", List.of("cit-other-2"));
+        Map<String, Map<String, List<String>>> syncStrategyIds = new HashMap<>();
+        syncStrategyIds.put("cit-user-9", Map.of("Location", List.of("cit-other-2")));
+        Map<String, CachedResponse> responses = new HashMap<>();
+        responses.put("Location|_id=cit-other-2|cit-user-9|json", createResponse());
+        responses.put("Location|_id=cit-other-2|cit-user-10|json", createResponse());
+        Location movedVillage = createLocation("cit-village-2", "cit-root-3");
+
+        CacheInvalidator.INSTANCE.removeAffected(
+                null,
+                List.of(
+                        CacheInvalidator.ResourceChange.written(
+                                Constants.ResourceType.LOCATION, "cit-village-2", movedVillage)),
+                resources,
+                userLocationIds,
+                syncStrategyIds,
+                responses);
+
+        Assert.assertEquals(Set.of("cit-other-2_1_2_false_null"), resources.keySet());
+        Assert.assertEquals(Set.of("cit-user-10"), userLocationIds.keySet());
+        Assert.assertTrue(syncStrategyIds.isEmpty());
+        Assert.assertEquals(
+                Set.of("Location|_id=cit-other-2|cit-user-10|json"), responses.keySet());
+        Assert.assertNotNull(cacheHelper.resourceCache.getIfPresent("cit-root-2_1_2_false_null"));
+    }
+
+    private static PractitionerDetails createPractitionerDetails(
+            String practitionerId, String userId) {
+        Practitioner practitioner = new Practitioner();
+        practitioner.setId(practitionerId);
+        practitioner.addIdentifier(new Identifier().setValue(userId));
+        FhirPractitionerDetails fhirPractitionerDetails = new FhirPractitionerDetails();
+        fhirPractitionerDetails.setPractitioners(List.of(practitioner));
+        PractitionerDetails practitionerDetails = new PractitionerDetails();
+        practitionerDetails.setFhirPractitionerDetails(fhirPractitionerDetails);
+        return practitionerDetails;
+    }
+
+    private static Location createLocation(String id, @Nullable String parentId) {
+        Location location = new Location();
+        location.setId(id);
+        if (parentId != null) {
+            location.setPartOf(new Reference("Location/" + parentId));
+        }
+        return location;
+    }
+
+    private static CachedResponse createResponse() {
+        return new CachedResponse(new byte[] {1}, "application/json", "\"abc\"", false);
+    }
+}
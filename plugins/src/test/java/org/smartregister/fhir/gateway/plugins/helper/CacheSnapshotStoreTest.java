@@ -0,0 +1,182 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Location;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+
+public class CacheSnapshotStoreTest {
+
+    private final CacheHelper cacheHelper = CacheHelper.INSTANCE;
+    private Path directory;
+    private Path snapshotPath;
+    private IGenericClient client;
+    private CacheSnapshotStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeFalse(cacheHelper.skipCache());
+        directory = Files.createTempDirectory("cache-snapshot");
+        snapshotPath = directory.resolve("caches.snapshot");
+        client = mock(IGenericClient.class);
+        store = spy(new CacheSnapshotStore(snapshotPath, () -> client));
+        doReturn(true).when(store).removeChangedSince(any());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (directory != null) {
+            Files.deleteIfExists(snapshotPath);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void testSaveAndLoadRestoresEntries() throws IOException {
+        Location location = new Location();
+        location.setId("css-location");
+        location.setName("css-name");
+        cacheHelper.resourceCache.put("location_css-location", location);
+        cacheHelper.listStringCache.put("css-user", List.of("css-location"));
+        cacheHelper.cache.put("css-user", Map.of("Location", List.of("css-location")));
+        cacheHelper.responseCache.put(
+                "css-response",
+                new CachedResponse(new byte[] {1, 2}, "text/plain", "\"a\"", false));
+
+        Assert.assertTrue(store.save() >= 4);
+        cacheHelper.resourceCache.invalidate("location_css-location");
+        cacheHelper.listStringCache.invalidate("css-user");
+        cacheHelper.cache.invalidate("css-user");
+        cacheHelper.responseCache.invalidate("css-response");
+
+        Assert.assertTrue(store.load() >= 4);
+
+        Location restored =
+                (Location) cacheHelper.resourceCache.getIfPresent("location_css-location");
+        Assert.assertNotNull(restored);
+        Assert.assertEquals("css-name", restored.getName());
+        Assert.assertEquals(
+                List.of("css-location"), cacheHelper.listStringCache.getIfPresent("css-user"));
+        Assert.assertEquals(
+                Map.of("Location", List.of("css-location")),
+                cacheHelper.cache.getIfPresent("css-user"));
+        CachedResponse response = cacheHelper.responseCache.getIfPresent("css-response");
+        Assert.assertNotNull(response);
+        Assert.assertEquals("\"a\"", response.getETag());
+        verify(store).removeChangedSince(any());
+    }
+
+    @Test
+    public void testLoadKeepsEntriesCachedSinceTheSnapshot() throws IOException {
+        cacheHelper.listStringCache.put("css-kept", List.of("css-old"));
+        store.save();
+        cacheHelper.listStringCache.put("css-kept", List.of("css-new"));
+
+        store.load();
+
+        Assert.assertEquals(
+                List.of("css-new"), cacheHelper.listStringCache.getIfPresent("css-kept"));
+    }
+
+    @Test
+    public void testLoadSkipsEntriesOlderThanTheExpiry() throws IOException {
+        long expirySeconds =
+                CacheHelper.getExpirySeconds(cacheHelper.listStringCache).orElseThrow();
+        long nowMillis = Instant.now().toEpochMilli();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        outputStream.writeInt(CacheSnapshotStore.MAGIC);
+        outputStream.writeInt(CacheSnapshotStore.FORMAT_VERSION);
+        outputStream.writeLong(nowMillis);
+        outputStream.writeInt(1);
+        writeBytes(outputStream, "id_list");
+        outputStream.writeInt(2);
+        writeBytes(outputStream, "css-expired");
+        outputStream.writeLong(nowMillis - (expirySeconds + 1) * 1000);
+        writeBytes(outputStream, "[\"css-location\"]");
+        writeBytes(outputStream, "css-fresh");
+        outputStream.writeLong(nowMillis - (expirySeconds - 60) * 1000);
+        writeBytes(outputStream, "[\"css-location\"]");
+        Files.write(snapshotPath, bytes.toByteArray());
+        cacheHelper.listStringCache.invalidate("css-expired");
+        cacheHelper.listStringCache.invalidate("css-fresh");
+
+        Assert.assertEquals(1, store.load());
+
+        Assert.assertNull(cacheHelper.listStringCache.getIfPresent("css-expired"));
+        Assert.assertEquals(
+                List.of("css-location"), cacheHelper.listStringCache.getIfPresent("css-fresh"));
+    }
+
+    @Test
+    public void testNothingIsRestoredWhenTheChangesCannotBeRead() throws IOException {
+        cacheHelper.listStringCache.put("css-unread", List.of("css-location"));
+        store.save();
+        cacheHelper.listStringCache.invalidate("css-unread");
+        doCallRealMethod().when(store).removeChangedSince(any());
+        when(client.history()).thenThrow(new FhirClientConnectionException("Connection refused"));
+
+        Assert.assertEquals(0, store.load());
+
+        Assert.assertNull(cacheHelper.listStringCache.getIfPresent("css-unread"));
+    }
+
+    @Test
+    public void testCorruptSnapshotIsIgnored() throws IOException {
+        Files.write(snapshotPath, "not a snapshot".getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertEquals(0, store.load());
+
+        verify(store, never()).removeChangedSince(any());
+    }
+
+    @Test
+    public void testTruncatedSnapshotIsIgnored() throws IOException {
+        cacheHelper.listStringCache.put("css-truncated", List.of("css-location"));
+        store.save();
+        byte[] bytes = Files.readAllBytes(snapshotPath);
+        Files.write(snapshotPath, Arrays.copyOf(bytes, bytes.length - 1));
+        cacheHelper.listStringCache.invalidate("css-truncated");
+
+        Assert.assertEquals(0, store.load());
+
+        Assert.assertNull(cacheHelper.listStringCache.getIfPresent("css-truncated"));
+    }
+
+    @Test
+    public void testMissingSnapshotLoadsNothing() throws IOException {
+        Assert.assertEquals(0, store.load());
+    }
+
+    private static void writeBytes(DataOutputStream outputStream, String value)
+            throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+}
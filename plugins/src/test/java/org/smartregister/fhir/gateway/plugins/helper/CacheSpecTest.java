@@ -0,0 +1,59 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+
+public class CacheSpecTest {
+
+    @Test
+    public void testFromEnvironmentUsesDefaults() {
+        CacheSpec cacheSpec = CacheSpec.fromEnvironment("CACHE_SPEC_TEST", 60, 10, 100);
+
+        Assert.assertEquals("CACHE_SPEC_TEST", cacheSpec.getName());
+        Assert.assertEquals(60, cacheSpec.getExpirySeconds());
+        Assert.assertEquals(10, cacheSpec.getMaximumSize());
+        Assert.assertEquals(100, cacheSpec.getMaximumWeight());
+        Assert.assertEquals(0, cacheSpec.getRefreshSeconds());
+    }
+
+    @Test
+    public void testNewBuilderIsBoundedBySize() {
+        Cache<String, String> cache = new CacheSpec("size", 60, 10, 0, 0).newBuilder().build();
+
+        Assert.assertEquals(10, cache.policy().eviction().orElseThrow().getMaximum());
+        Assert.assertFalse(cache.policy().eviction().orElseThrow().isWeighted());
+    }
+
+    @Test
+    public void testNewWeightedBuilderIsBoundedByWeight() {
+        Cache<String, List<?>> cache =
+                new CacheSpec("weight", 60, 0, 100, 0)
+                        .newWeightedBuilder(CacheWeighers.LIST)
+                        .build();
+
+        Assert.assertEquals(100, cache.policy().eviction().orElseThrow().getMaximum());
+        Assert.assertTrue(cache.policy().eviction().orElseThrow().isWeighted());
+        Assert.assertTrue(cache.policy().expireAfterWrite().isPresent());
+    }
+
+    @Test
+    public void testWithRefreshOnlyRefreshesBeforeExpiry() {
+        LoadingCache<String, String> refreshing =
+                new CacheSpec("refresh", 60, 10, 0, 30)
+                        .withRefresh(Caffeine.newBuilder(), Runnable::run)
+                        .build(key -> key);
+        LoadingCache<String, String> notRefreshing =
+                new CacheSpec("refresh", 60, 10, 0, 60)
+                        .withRefresh(Caffeine.newBuilder(), Runnable::run)
+                        .build(key -> key);
+
+        Assert.assertTrue(refreshing.policy().refreshAfterWrite().isPresent());
+        Assert.assertFalse(notRefreshing.policy().refreshAfterWrite().isPresent());
+    }
+}
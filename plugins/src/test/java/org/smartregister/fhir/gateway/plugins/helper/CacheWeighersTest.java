@@ -0,0 +1,72 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.CareTeam;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Assert;
+import org.junit.Test;
+import org.smartregister.model.location.LocationHierarchy;
+import org.smartregister.model.practitioner.FhirPractitionerDetails;
+import org.smartregister.model.practitioner.PractitionerDetails;
+
+public class CacheWeighersTest {
+
+    @Test
+    public void testLocationHierarchyIsWeighedByItsNodes() {
+        LocationHierarchy emptyHierarchy = new LocationHierarchy();
+        LocationHierarchy hierarchy =
+                LocationHierarchyEndpointHelperTest.createLocationHierarchy(
+                        Arrays.asList(
+                                createLocation("1", null),
+                                createLocation("2", "1"),
+                                createLocation("3", "1")));
+
+        Assert.assertEquals(1, CacheWeighers.RESOURCE.weigh("empty", emptyHierarchy));
+        Assert.assertTrue(CacheWeighers.RESOURCE.weigh("hierarchy", hierarchy) > 1);
+    }
+
+    @Test
+    public void testPractitionerDetailsIsWeighedByItsResources() {
+        FhirPractitionerDetails fhirPractitionerDetails = new FhirPractitionerDetails();
+        fhirPractitionerDetails.setPractitioners(Collections.singletonList(new Practitioner()));
+        fhirPractitionerDetails.setCareTeams(Arrays.asList(new CareTeam(), new CareTeam()));
+        PractitionerDetails practitionerDetails = new PractitionerDetails();
+        practitionerDetails.setFhirPractitionerDetails(fhirPractitionerDetails);
+
+        Assert.assertEquals(4, CacheWeighers.RESOURCE.weigh("practitioner", practitionerDetails));
+    }
+
+    @Test
+    public void testListsAndIdsAreWeighedByTheirSize() {
+        Assert.assertEquals(1, CacheWeighers.LIST.weigh("empty", Collections.emptyList()));
+        Assert.assertEquals(3, CacheWeighers.LIST.weigh("ids", Arrays.asList("1", "2")));
+
+        Map<String, List<String>> idsByStrategy =
+                Map.of("Location", Arrays.asList("1", "2"), "CareTeam", List.of("3"));
+        Assert.assertEquals(4, CacheWeighers.ID_MAP.weigh("user", idsByStrategy));
+    }
+
+    @Test
+    public void testResponseIsWeighedByItsBody() {
+        CachedResponse cachedResponse =
+                new CachedResponse(new byte[1024], "application/json", "\"abc\"", false);
+
+        Assert.assertEquals(
+                cachedResponse.getWeight(), CacheWeighers.RESPONSE.weigh("key", cachedResponse));
+    }
+
+    private static Location createLocation(String id, String parentId) {
+        Location location = new Location();
+        location.setId(id);
+        if (parentId != null) {
+            location.setPartOf(new Reference("Location/" + parentId));
+        }
+        return location;
+    }
+}
@@ -0,0 +1,195 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.smartregister.fhir.gateway.plugins.utils.TestUtil.createServletOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Location;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.smartregister.fhir.gateway.plugins.Constants;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import jakarta.servlet.http.HttpServletResponse;
+
+public class CachedResponseTest {
+
+    private final IParser parser = FhirContext.forR4Cached().newJsonParser();
+
+    @Test
+    public void testEncodeAndWritePlainBody() throws IOException {
+        CachedResponse cachedResponse =
+                CachedResponse.encode(parser, createLocation(), "application/json", false);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(createServletOutputStream(outputStream));
+
+        cachedResponse.writeTo(response);
+
+        String body = outputStream.toString(StandardCharsets.UTF_8);
+        Assert.assertEquals(parser.encodeResourceToString(createLocation()), body);
+        Assert.assertTrue(cachedResponse.getWeight() > cachedResponse.getBody().length);
+        Assert.assertTrue(cachedResponse.getETag().matches("\"[0-9a-f]{32}\""));
+        verify(response).setHeader(Constants.ETAG, cachedResponse.getETag());
+        verify(response).setContentType("application/json");
+        verify(response).setContentLength(cachedResponse.getBody().length);
+        verify(response, never())
+                .setHeader(Mockito.eq(Constants.CONTENT_ENCODING), Mockito.anyString());
+    }
+
+    @Test
+    public void testEncodeAndWriteGzippedBody() throws IOException {
+        CachedResponse cachedResponse =
+                CachedResponse.encode(parser, createLocation(), "application/json", true);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(createServletOutputStream(outputStream));
+
+        cachedResponse.writeTo(response);
+
+        verify(response).setHeader(Constants.CONTENT_ENCODING, Constants.GZIP);
+        Assert.assertTrue(cachedResponse.getETag().matches("\"[0-9a-f]{32}-gzip\""));
+        try (GZIPInputStream inputStream =
+                new GZIPInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            Assert.assertEquals(
+                    parser.encodeResourceToString(createLocation()),
+                    new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testCachedResponse() {
+        Assert.assertNull(CachedResponse.getCached("CachedResponseTest|missing"));
+
+        CachedResponse cachedResponse =
+                new CachedResponse(new byte[] {1, 2, 3}, "application/json", "\"abc\"", false);
+        CachedResponse.cache("CachedResponseTest|key", cachedResponse, List.of());
+
+        if (!CacheHelper.INSTANCE.skipCache()) {
+            Assert.assertSame(cachedResponse, CachedResponse.getCached("CachedResponseTest|key"));
+        }
+    }
+
+    @Test
+    public void testBytesRoundTrip() {
+        CachedResponse cachedResponse =
+                new CachedResponse(new byte[] {1, 2, 3}, "application/fhir+json", "\"abc\"", true);
+
+        CachedResponse copy = CachedResponse.fromBytes(cachedResponse.toBytes());
+
+        Assert.assertArrayEquals(cachedResponse.getBody(), copy.getBody());
+        Assert.assertEquals("application/fhir+json", copy.getContentType());
+        Assert.assertEquals("\"abc\"", copy.getETag());
+        Assert.assertTrue(copy.isGzipped());
+    }
+
+    @Test
+    public void testCachedResponseIsReadFromSecondLevelCache() {
+        TestL2Cache l2Cache = new TestL2Cache();
+        CacheHelper.INSTANCE.setL2Cache(l2Cache);
+        try {
+            CachedResponse cachedResponse =
+                    new CachedResponse(new byte[] {1, 2, 3}, "application/json", "\"abc\"", false);
+            CachedResponse.cache("CachedResponseTest|shared", cachedResponse, List.of());
+            CacheHelper.INSTANCE.responseCache.invalidate("CachedResponseTest|shared");
+
+            if (!CacheHelper.INSTANCE.skipCache()) {
+                Assert.assertTrue(
+                        l2Cache.getEntries()
+                                .containsKey("opensrp:response:0:CachedResponseTest|shared"));
+                CachedResponse sharedResponse =
+                        CachedResponse.getCached("CachedResponseTest|shared");
+                Assert.assertNotNull(sharedResponse);
+                Assert.assertArrayEquals(new byte[] {1, 2, 3}, sharedResponse.getBody());
+                Assert.assertEquals("\"abc\"", sharedResponse.getETag());
+            }
+        } finally {
+            CacheHelper.INSTANCE.setL2Cache(null);
+        }
+    }
+
+    @Test
+    public void testSharedResponseIsTaggedWithItsDependencyIdsOnly() {
+        Assume.assumeFalse(CacheHelper.INSTANCE.skipCache());
+        TestL2Cache l2Cache = new TestL2Cache();
+        CacheHelper.INSTANCE.setL2Cache(l2Cache);
+        try {
+            CachedResponse.cache(
+                    "CachedResponseTest|_id=location-1|json",
+                    new CachedResponse(new byte[] {1}, "application/json", "\"abc\"", false),
+                    List.of("location-1"));
+
+            CacheHelper.INSTANCE.invalidateSharedTagged(
+                    CacheHelper.RESPONSE_CACHE, List.of("CachedResponseTest", "_id", "json"));
+            Assert.assertEquals(1, l2Cache.getEntries().size());
+
+            CacheHelper.INSTANCE.invalidateSharedTagged(
+                    CacheHelper.RESPONSE_CACHE, List.of("location-1"));
+            Assert.assertTrue(l2Cache.getEntries().isEmpty());
+        } finally {
+            CacheHelper.INSTANCE.setL2Cache(null);
+        }
+    }
+
+    @Test
+    public void testEncodeNdjsonWritesOneResourcePerLine() {
+        Bundle bundle = createBundle("Nairobi");
+        bundle.addEntry().setResource(createLocation());
+
+        CachedResponse cachedResponse = CachedResponse.encodeNdjson(parser, bundle, false);
+
+        String line = parser.encodeResourceToString(createLocation());
+        Assert.assertEquals(
+                line + "\n" + line + "\n",
+                new String(cachedResponse.getBody(), StandardCharsets.UTF_8));
+        Assert.assertEquals(Constants.NDJSON_CONTENT_TYPE, cachedResponse.getContentType());
+        Assert.assertTrue(cachedResponse.getETag().matches("\"[0-9a-f]{32}\""));
+    }
+
+    @Test
+    public void testEncodeNdjsonETagOnlyChangesWithTheResources() {
+        Bundle sameResources = createBundle("Nairobi");
+        sameResources.setId("another-bundle-id");
+        sameResources.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://test/next");
+
+        String eTag = CachedResponse.encodeNdjson(parser, createBundle("Nairobi"), false).getETag();
+
+        Assert.assertEquals(
+                eTag, CachedResponse.encodeNdjson(parser, sameResources, false).getETag());
+        Assert.assertNotEquals(
+                eTag,
+                CachedResponse.encodeNdjson(parser, createBundle("Mombasa"), false).getETag());
+        Assert.assertEquals(
+                eTag.substring(0, 33) + "-gzip\"",
+                CachedResponse.encodeNdjson(parser, createBundle("Nairobi"), true).getETag());
+    }
+
+    private static Bundle createBundle(String locationName) {
+        Bundle bundle = new Bundle();
+        bundle.setId("bundle-id");
+        Location location = createLocation();
+        location.setName(locationName);
+        bundle.addEntry().setResource(location);
+        return bundle;
+    }
+
+    private static Location createLocation() {
+        Location location = new Location();
+        location.setId("location-1");
+        location.setName("Nairobi");
+        return location;
+    }
+}
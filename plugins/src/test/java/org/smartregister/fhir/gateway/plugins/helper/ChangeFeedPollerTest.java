@@ -0,0 +1,139 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.smartregister.fhir.gateway.plugins.Constants;
+import org.smartregister.model.location.LocationHierarchy;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+public class ChangeFeedPollerTest {
+
+    private static final Instant SINCE = Instant.parse("2026-01-01T00:00:00Z");
+
+    private final CacheHelper cacheHelper = CacheHelper.INSTANCE;
+    private final IGenericClient client = mock(IGenericClient.class);
+    private ChangeFeedPoller poller;
+
+    @Before
+    public void setUp() {
+        Assume.assumeFalse(cacheHelper.skipCache());
+        poller = spy(new ChangeFeedPoller(() -> client, SINCE));
+        doReturn(new Bundle()).when(poller).fetchHistory(any(), anyString(), any());
+    }
+
+    @Test
+    public void testPollAppliesLocationChangesAndAdvances() {
+        cacheHelper.resourceCache.put("cfp-root_1_2_false_null", new LocationHierarchy());
+        cacheHelper.resourceCache.put("cfp-other_1_2_false_null", new LocationHierarchy());
+        Instant changedAt = SINCE.plusSeconds(60);
+        Location village = new Location();
+        village.setId("Location/cfp-village/_history/2");
+        village.setPartOf(new Reference("Location/cfp-root"));
+        village.getMeta().setLastUpdated(Date.from(changedAt));
+        Bundle history = new Bundle();
+        history.addEntry().setResource(village);
+        doReturn(history)
+                .when(poller)
+                .fetchHistory(any(), eq(Constants.ResourceType.LOCATION), any());
+
+        Assert.assertEquals(1, poller.poll());
+
+        Assert.assertNull(cacheHelper.resourceCache.getIfPresent("cfp-root_1_2_false_null"));
+        Assert.assertNotNull(cacheHelper.resourceCache.getIfPresent("cfp-other_1_2_false_null"));
+
+        poller.poll();
+
+        verify(poller).fetchHistory(client, Constants.ResourceType.LOCATION, Date.from(changedAt));
+    }
+
+    @Test
+    public void testPollAppliesDeletions() {
+        cacheHelper.cache.put("cfp-user-1", Map.of("CareTeam", List.of("cfp-care-team-1")));
+        cacheHelper.cache.put("cfp-user-2", Map.of("CareTeam", List.of("cfp-care-team-2")));
+        Bundle history = new Bundle();
+        history.addEntry()
+                .getRequest()
+                .setMethod(Bundle.HTTPVerb.DELETE)
+                .setUrl("CareTeam/cfp-care-team-1/_history/3");
+        doReturn(history)
+                .when(poller)
+                .fetchHistory(any(), eq(Constants.ResourceType.CARE_TEAM), any());
+
+        Assert.assertEquals(1, poller.poll());
+
+        Assert.assertNull(cacheHelper.cache.getIfPresent("cfp-user-1"));
+        Assert.assertNotNull(cacheHelper.cache.getIfPresent("cfp-user-2"));
+    }
+
+    @Test
+    public void testTooManyChangesInvalidateAllCaches() {
+        cacheHelper.eTagCache.put("cfp-key", "\"etag\"");
+        Bundle history = new Bundle();
+        history.addEntry().setResource(new Location().setName("cfp-location"));
+        history.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://fhir/next");
+        doReturn(history)
+                .when(poller)
+                .fetchHistory(any(), eq(Constants.ResourceType.LOCATION), any());
+        doReturn(history).when(poller).loadNextPage(any(), any());
+
+        poller.poll();
+
+        Assert.assertNull(cacheHelper.eTagCache.getIfPresent("cfp-key"));
+    }
+
+    @Test
+    public void testPollAfterTooManyChangesStartsFromTheServerTime() {
+        Instant readAt = SINCE.plusSeconds(600);
+        Bundle history = new Bundle();
+        history.getMeta().setLastUpdated(Date.from(readAt));
+        history.addEntry().setResource(new Location().setName("cfp-location"));
+        history.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://fhir/next");
+        doReturn(history)
+                .when(poller)
+                .fetchHistory(any(), eq(Constants.ResourceType.LOCATION), eq(Date.from(SINCE)));
+        doReturn(history).when(poller).loadNextPage(any(), any());
+
+        poller.poll();
+        poller.poll();
+
+        verify(poller).fetchHistory(client, Constants.ResourceType.LOCATION, Date.from(readAt));
+    }
+
+    @Test
+    public void testFirstPollStartsFromTheServerTime() {
+        Instant serverTime = SINCE.plusSeconds(3600);
+        Bundle latestHistory = new Bundle();
+        latestHistory.getMeta().setLastUpdated(Date.from(serverTime));
+        poller = spy(new ChangeFeedPoller(() -> client, null));
+        doReturn(latestHistory).when(poller).fetchLatestHistory(any());
+        doReturn(new Bundle()).when(poller).fetchHistory(any(), anyString(), any());
+
+        Assert.assertEquals(0, poller.poll());
+        verify(poller, never()).fetchHistory(any(), anyString(), any());
+
+        poller.poll();
+
+        verify(poller)
+                .fetchHistory(client, Constants.ResourceType.LOCATION, Date.from(serverTime));
+    }
+}
@@ -0,0 +1,30 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ETagHelperTest {
+
+    @Test
+    public void testMatches() {
+        String eTag = "\"abc\"";
+
+        Assert.assertFalse(ETagHelper.matches(null, eTag));
+        Assert.assertFalse(ETagHelper.matches("\"def\"", eTag));
+        Assert.assertTrue(ETagHelper.matches("\"abc\"", eTag));
+        Assert.assertTrue(ETagHelper.matches("W/\"abc\"", eTag));
+        Assert.assertTrue(ETagHelper.matches("\"def\", \"abc\"", eTag));
+        Assert.assertTrue(ETagHelper.matches("*", eTag));
+    }
+
+    @Test
+    public void testCachedETag() {
+        Assert.assertNull(ETagHelper.getCachedETag("ETagHelperTest|missing"));
+
+        ETagHelper.cacheETag("ETagHelperTest|key", "\"abc\"");
+
+        if (!CacheHelper.INSTANCE.skipCache()) {
+            Assert.assertEquals("\"abc\"", ETagHelper.getCachedETag("ETagHelperTest|key"));
+        }
+    }
+}
@@ -1,18 +1,28 @@
 package org.smartregister.fhir.gateway.plugins.helper;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Mockito.mock;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 public class FhirClientPoolTest {
 
+    private static final String TEST_BASE_URL = "http://localhost:8080/fhir";
+
     private FhirContext fhirContext;
 
     @Before
@@ -120,4 +130,66 @@ public class FhirClientPoolTest {
         instance.returnClient(client1);
         instance.returnClient(client2);
     }
+
+    @Test
+    public void testReturnClientMakesClientAvailableAgain() {
+        FhirClientPool pool = new FhirClientPool(fhirContext, TEST_BASE_URL);
+
+        IGenericClient client = pool.getClient();
+        assertEquals(1, pool.getStats().getActiveClients());
+
+        pool.returnClient(client);
+        assertEquals(0, pool.getStats().getActiveClients());
+        assertSame(client, pool.getClient());
+    }
+
+    @Test
+    public void testReturnClientTwiceIsIgnored() {
+        FhirClientPool pool = new FhirClientPool(fhirContext, TEST_BASE_URL);
+        FhirClientPool.Lease lease = pool.acquire();
+
+        lease.close();
+        pool.returnClient(lease.getClient());
+
+        assertEquals(0, pool.getStats().getActiveClients());
+        assertEquals(pool.getStats().getTotalClients(), pool.getStats().getAvailableClients());
+    }
+
+    @Test
+    public void testWaitingCallerReceivesReturnedClient() throws Exception {
+        FhirClientPool pool = new FhirClientPool(fhirContext, TEST_BASE_URL);
+        List<FhirClientPool.Lease> leases = new ArrayList<>();
+        // Exhaust the pool
+        for (int i = 0; i < 10; i++) {
+            leases.add(pool.acquire());
+        }
+
+        CompletableFuture<IGenericClient> waiter = CompletableFuture.supplyAsync(pool::getClient);
+        Thread.sleep(100);
+        assertFalse(waiter.isDone());
+
+        leases.get(0).close();
+        assertSame(leases.get(0).getClient(), waiter.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testLeasesAreRecordedInMetrics() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        FhirClientPool pool = new FhirClientPool(fhirContext, TEST_BASE_URL, meterRegistry);
+
+        FhirClientPool.Lease lease = pool.acquire();
+        assertEquals(
+                1.0,
+                meterRegistry.get(FhirClientPool.METRIC_PREFIX + ".active").gauge().value(),
+                0.0);
+
+        lease.close();
+        assertEquals(
+                0.0,
+                meterRegistry.get(FhirClientPool.METRIC_PREFIX + ".active").gauge().value(),
+                0.0);
+        assertEquals(
+                1, meterRegistry.get(FhirClientPool.METRIC_PREFIX + ".acquire").timer().count());
+        assertEquals(1, meterRegistry.get(FhirClientPool.METRIC_PREFIX + ".lease").timer().count());
+    }
 }
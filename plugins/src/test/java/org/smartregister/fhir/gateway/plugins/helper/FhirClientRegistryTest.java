@@ -0,0 +1,39 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+public class FhirClientRegistryTest {
+
+    private static final String SERVER_BASE = "http://localhost:8080/fhir";
+
+    @Test
+    public void testGetClientReturnsSharedClientPerServerBase() {
+        FhirContext fhirContext = FhirContext.forR4Cached();
+
+        IGenericClient client = FhirClientRegistry.INSTANCE.getClient(fhirContext, SERVER_BASE);
+
+        Assert.assertSame(client, FhirClientRegistry.INSTANCE.getClient(fhirContext, SERVER_BASE));
+        Assert.assertNotSame(
+                client,
+                FhirClientRegistry.INSTANCE.getClient(fhirContext, "http://localhost:9090/fhir"));
+        Assert.assertEquals(SERVER_BASE, client.getServerBase());
+    }
+
+    @Test
+    public void testNewClientReturnsDistinctClients() {
+        FhirContext fhirContext = FhirContext.forR4Cached();
+
+        Assert.assertNotSame(
+                FhirClientRegistry.INSTANCE.newClient(fhirContext, SERVER_BASE),
+                FhirClientRegistry.INSTANCE.newClient(fhirContext, SERVER_BASE));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testGetClientWithoutServerBaseThrowsException() {
+        FhirClientRegistry.INSTANCE.getClient(FhirContext.forR4Cached(), null);
+    }
+}
@@ -0,0 +1,143 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import static org.mockito.Mockito.mock;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.smartregister.fhir.gateway.plugins.Constants;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+public class LocationGraphIndexTest {
+
+    private IGenericClient client;
+
+    @Before
+    public void setUp() {
+        client = mock(IGenericClient.class);
+        // root -> (district-1 -> village-1, district-2 -> facility-1 -> village-2)
+        LocationGraphIndex.INSTANCE.load(
+                List.of(
+                        createLocation("root", null, "1"),
+                        createLocation("district-1", "root", "2"),
+                        createLocation("district-2", "root", "2"),
+                        createLocation("village-1", "district-1", "3"),
+                        createLocation("facility-1", "district-2", "4"),
+                        createLocation("village-2", "facility-1", "3")));
+    }
+
+    @After
+    public void tearDown() {
+        LocationGraphIndex.INSTANCE.invalidate();
+    }
+
+    @Test
+    public void testGetDescendantsReturnsParentFollowedByAllDescendants() {
+        Location parent = createLocation("root", null, "1");
+
+        List<Location> descendants =
+                LocationGraphIndex.INSTANCE.getDescendants(client, "root", parent, null);
+
+        Assert.assertNotNull(descendants);
+        Assert.assertEquals(6, descendants.size());
+        Assert.assertSame(parent, descendants.get(0));
+    }
+
+    @Test
+    public void testGetDescendantsOnlyWalksThroughMatchingAdminLevels() {
+        List<Location> descendants =
+                LocationGraphIndex.INSTANCE.getDescendants(client, "root", null, List.of("2", "3"));
+
+        Assert.assertNotNull(descendants);
+        Assert.assertEquals(List.of("district-1", "district-2", "village-1"), getIds(descendants));
+    }
+
+    @Test
+    public void testGetLineageDescendantsFiltersEveryLevel() {
+        List<Location> descendants =
+                LocationGraphIndex.INSTANCE.getLineageDescendants(
+                        client, Collections.singletonList("root"), List.of("3"));
+
+        Assert.assertNotNull(descendants);
+        Assert.assertEquals(List.of("village-1", "village-2"), getIds(descendants));
+    }
+
+    @Test
+    public void testUnknownLocationReturnsNull() {
+        Assert.assertNull(
+                LocationGraphIndex.INSTANCE.getDescendants(client, "unknown", null, null));
+        Assert.assertNull(
+                LocationGraphIndex.INSTANCE.getLineageDescendants(
+                        client, List.of("root", "unknown"), null));
+    }
+
+    @Test
+    public void testGetParentId() {
+        Assert.assertEquals(
+                "district-2", LocationGraphIndex.INSTANCE.getParentId(client, "facility-1"));
+        Assert.assertNull(LocationGraphIndex.INSTANCE.getParentId(client, "root"));
+    }
+
+    @Test
+    public void testGetAncestorIds() {
+        Assert.assertEquals(
+                List.of("facility-1", "district-2", "root"),
+                LocationGraphIndex.INSTANCE.getAncestorIds("village-2"));
+        Assert.assertEquals(List.of(), LocationGraphIndex.INSTANCE.getAncestorIds("root"));
+    }
+
+    @Test
+    public void testUpdateMovesLocationWithoutRebuild() {
+        LocationGraphIndex.INSTANCE.update(createLocation("village-1", "district-2", "3"));
+        LocationGraphIndex.INSTANCE.update(createLocation("village-3", "district-1", "3"));
+
+        Assert.assertEquals(
+                "district-2", LocationGraphIndex.INSTANCE.getParentId(client, "village-1"));
+        Assert.assertEquals(
+                List.of("village-3"),
+                getIds(
+                        LocationGraphIndex.INSTANCE.getLineageDescendants(
+                                client, List.of("district-1"), null)));
+    }
+
+    @Test
+    public void testRemove() {
+        LocationGraphIndex.INSTANCE.remove("village-1");
+
+        Assert.assertNull(LocationGraphIndex.INSTANCE.getLocation(client, "village-1"));
+        Assert.assertEquals(
+                List.of(),
+                getIds(
+                        LocationGraphIndex.INSTANCE.getLineageDescendants(
+                                client, List.of("district-1"), null)));
+    }
+
+    private static List<String> getIds(List<Location> locations) {
+        return locations.stream()
+                .map(location -> location.getIdElement().getIdPart())
+                .collect(Collectors.toList());
+    }
+
+    private static Location createLocation(String id, String parentId, String adminLevel) {
+        Location location = new Location();
+        location.setId(id);
+        if (parentId != null) {
+            location.setPartOf(new Reference("Location/" + parentId));
+        }
+        CodeableConcept type = new CodeableConcept();
+        type.addCoding(
+                new Coding().setSystem(Constants.DEFAULT_ADMIN_LEVEL_TYPE_URL).setCode(adminLevel));
+        location.addType(type);
+        return location;
+    }
+}
@@ -3,21 +3,27 @@ package org.smartregister.fhir.gateway.plugins.helper;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.smartregister.fhir.gateway.plugins.utils.TestUtil.createServletOutputStream;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
@@ -28,6 +34,7 @@ import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.Location;
 import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.StringType;
 import org.junit.Assert;
 import org.junit.Before;
@@ -39,6 +46,7 @@ import org.mockito.Mockito;
 import org.mockito.internal.stubbing.defaultanswers.ReturnsDeepStubs;
 import org.smartregister.fhir.gateway.plugins.Constants;
 import org.smartregister.fhir.gateway.plugins.SyncAccessDecision;
+import org.smartregister.fhir.gateway.plugins.utils.EnvUtil;
 import org.smartregister.fhir.gateway.plugins.utils.JwtUtils;
 import org.smartregister.fhir.gateway.plugins.utils.Utils;
 import org.smartregister.model.location.LocationHierarchy;
@@ -46,9 +54,11 @@ import org.smartregister.model.location.LocationHierarchyTree;
 
 import com.auth0.jwt.interfaces.DecodedJWT;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.api.SearchStyleEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.ICriterionInternal;
 import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.gclient.IUntypedQuery;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
@@ -97,6 +107,7 @@ public class LocationHierarchyEndpointHelperTest {
     public void setUp() {
         client = mock(IGenericClient.class, new ReturnsDeepStubs());
         locationHierarchyEndpointHelper = new LocationHierarchyEndpointHelper(client);
+        CacheHelper.INSTANCE.inventoryCache.invalidateAll();
     }
 
     @Test
@@ -256,17 +267,74 @@ public class LocationHierarchyEndpointHelperTest {
         Assert.assertTrue(resultBundle.hasTotal());
         Assert.assertEquals(2, resultBundle.getEntry().size());
         Assert.assertEquals(3, resultBundle.getLink().size());
+        String cursor =
+                StringUtils.substringAfter(
+                        resultBundle.getLink("next").getUrl(), Constants.PAGINATION_CURSOR + "=");
+        Assert.assertFalse(cursor.isEmpty());
         Assert.assertEquals(
-                "http://test:8080/LocationHierarchy?filter_mode_lineage=true&_page=1&_count=2&_id=12345",
+                "http://test:8080/LocationHierarchy?filter_mode_lineage=true&_page=1&_count=2&_id=12345&_cursor="
+                        + cursor,
                 resultBundle.getLink("previous").getUrl());
         Assert.assertEquals(
-                "http://test:8080/LocationHierarchy?filter_mode_lineage=true&_page=2&_count=2&_id=12345",
+                "http://test:8080/LocationHierarchy?filter_mode_lineage=true&_page=2&_count=2&_id=12345&_cursor="
+                        + cursor,
                 resultBundle.getLink("self").getUrl());
         Assert.assertEquals(
-                "http://test:8080/LocationHierarchy?filter_mode_lineage=true&_page=3&_count=2&_id=12345",
+                "http://test:8080/LocationHierarchy?filter_mode_lineage=true&_page=3&_count=2&_id=12345&_cursor="
+                        + cursor,
                 resultBundle.getLink("next").getUrl());
     }
 
+    @Test
+    public void testGetPaginatedLocationsServesNextPageFromSnapshot() {
+        LocationHierarchyEndpointHelper helperSpy = Mockito.spy(locationHierarchyEndpointHelper);
+        Mockito.doReturn(Utils.createBundle(createTestLocationList(6, false, false)))
+                .when(helperSpy)
+                .fetchAllDescendants(Mockito.anyList(), Mockito.any(), Mockito.any());
+        Mockito.doReturn(Utils.createBundle(Collections.emptyList()))
+                .when(helperSpy)
+                .getLocationsById(Mockito.anyList());
+
+        HttpServletRequest firstPageRequest = mock(HttpServletRequest.class);
+        Mockito.doReturn("2").when(firstPageRequest).getParameter(Constants.PAGINATION_PAGE_SIZE);
+        Mockito.doReturn(new StringBuffer("http://test:8080/LocationHierarchy"))
+                .when(firstPageRequest)
+                .getRequestURL();
+        Map<String, String[]> parameters = new HashMap<>();
+        parameters.put(Constants.PAGINATION_PAGE_SIZE, new String[] {"2"});
+        Mockito.doReturn(parameters).when(firstPageRequest).getParameterMap();
+
+        Bundle firstPage =
+                helperSpy.getPaginatedLocations(
+                        firstPageRequest, Collections.singletonList("parent"), null);
+        String cursor =
+                StringUtils.substringAfter(
+                        firstPage.getLink("next").getUrl(), Constants.PAGINATION_CURSOR + "=");
+        Assert.assertFalse(cursor.isEmpty());
+
+        HttpServletRequest secondPageRequest = mock(HttpServletRequest.class);
+        Mockito.doReturn("2").when(secondPageRequest).getParameter(Constants.PAGINATION_PAGE_SIZE);
+        Mockito.doReturn("2")
+                .when(secondPageRequest)
+                .getParameter(Constants.PAGINATION_PAGE_NUMBER);
+        Mockito.doReturn(cursor).when(secondPageRequest).getParameter(Constants.PAGINATION_CURSOR);
+        Mockito.doReturn(new StringBuffer("http://test:8080/LocationHierarchy"))
+                .when(secondPageRequest)
+                .getRequestURL();
+        Mockito.doReturn(parameters).when(secondPageRequest).getParameterMap();
+
+        Bundle secondPage =
+                helperSpy.getPaginatedLocations(
+                        secondPageRequest, Collections.singletonList("parent"), null);
+
+        Assert.assertEquals(6, secondPage.getTotal());
+        Assert.assertEquals(2, secondPage.getEntry().size());
+        Assert.assertEquals("2", secondPage.getEntry().get(0).getResource().getIdPart());
+        Assert.assertEquals("3", secondPage.getEntry().get(1).getResource().getIdPart());
+        Mockito.verify(helperSpy, times(1))
+                .fetchAllDescendants(Mockito.anyList(), Mockito.any(), Mockito.any());
+    }
+
     @Test
     public void testExtractSyncLocations() {
         String syncLocationsParam = "loc1,loc2,loc3";
@@ -475,6 +543,65 @@ public class LocationHierarchyEndpointHelperTest {
         verify(queryMock, times(2)).execute();
     }
 
+    @Test
+    public void testGetDescendantsSearchesOneLevelAtATime() {
+        Location parentLocation = new Location();
+        parentLocation.setId("root");
+        Location districtA = createChildLocation("district-a", "root");
+        Location districtB = createChildLocation("district-b", "root");
+        Location village = createChildLocation("village", "district-a");
+        // root is also returned as a child of district-b, a partOf cycle
+        Location cycle = createChildLocation("root", "district-b");
+
+        IUntypedQuery<IBaseBundle> untypedQueryMock = mock(IUntypedQuery.class);
+        IQuery<IBaseBundle> queryMock = mock(IQuery.class);
+        Mockito.doReturn(untypedQueryMock).when(client).search();
+        Mockito.doReturn(queryMock).when(untypedQueryMock).forResource(Location.class);
+        Mockito.doReturn(queryMock).when(queryMock).where(any(ICriterion.class));
+        Mockito.doReturn(queryMock).when(queryMock).usingStyle(SearchStyleEnum.POST);
+        Mockito.doReturn(queryMock)
+                .when(queryMock)
+                .count(SyncAccessDecision.SyncAccessDecisionConstants.REL_LOCATION_CHUNK_SIZE);
+        Mockito.doReturn(queryMock).when(queryMock).returnBundle(Bundle.class);
+        Mockito.doReturn(
+                        Utils.createBundle(List.of(districtA, districtB)),
+                        Utils.createBundle(List.of(village, cycle)),
+                        Utils.createBundle(Collections.emptyList()))
+                .when(queryMock)
+                .execute();
+
+        List<Location> descendants =
+                locationHierarchyEndpointHelper.getDescendants("root", parentLocation, null);
+
+        List<String> descendantIds = new ArrayList<>();
+        for (Location descendant : descendants) {
+            descendantIds.add(descendant.getIdElement().getIdPart());
+        }
+        Assert.assertEquals(List.of("root", "district-a", "district-b", "village"), descendantIds);
+        Assert.assertSame(parentLocation, descendants.get(0));
+
+        // One partof search per level, carrying every id of the level
+        ArgumentCaptor<ICriterion> criterionCaptor = ArgumentCaptor.forClass(ICriterion.class);
+        verify(queryMock, times(3)).where(criterionCaptor.capture());
+        List<Set<String>> searchedIds = new ArrayList<>();
+        for (ICriterion<?> criterion : criterionCaptor.getAllValues()) {
+            ICriterionInternal internal = (ICriterionInternal) criterion;
+            Assert.assertEquals(Location.SP_PARTOF, internal.getParameterName());
+            String value = internal.getParameterValue(FhirContext.forR4Cached());
+            searchedIds.add(new HashSet<>(Arrays.asList(value.split(","))));
+        }
+        Assert.assertEquals(
+                List.of(Set.of("root"), Set.of("district-a", "district-b"), Set.of("village")),
+                searchedIds);
+    }
+
+    private static Location createChildLocation(String locationId, String parentId) {
+        Location location = new Location();
+        location.setId(locationId);
+        location.setPartOf(new Reference("Location/" + parentId));
+        return location;
+    }
+
     @Test
     public void testFilterLocationsByAdminLevelsBasic() {
         List<Location> locations = createTestLocationList(5, true, false);
@@ -505,22 +632,15 @@ public class LocationHierarchyEndpointHelperTest {
 
     @Test
     public void testFilterLocationsByInventoryWithInventory() {
-        IUntypedQuery<IBaseBundle> untypedQueryMock = mock(IUntypedQuery.class);
-        IQuery<IBaseBundle> queryMock = mock(IQuery.class);
+        IQuery<IBaseBundle> queryMock = mockInventoryQuery();
 
         Bundle bundleWithInventory = new Bundle();
-        List<Bundle.BundleEntryComponent> entriesWithInventory = new ArrayList<>();
-
-        ListResource resource1 = new ListResource();
-        resource1.setId("1");
-        entriesWithInventory.add(new Bundle.BundleEntryComponent().setResource(resource1));
-        bundleWithInventory.setEntry(entriesWithInventory);
-
-        Mockito.doReturn(untypedQueryMock).when(client).search();
-        Mockito.doReturn(queryMock).when(untypedQueryMock).forResource(ListResource.class);
-        Mockito.doReturn(queryMock).when(queryMock).where(any(ICriterion.class));
-        Mockito.doReturn(queryMock).when(queryMock).usingStyle(SearchStyleEnum.POST);
-        Mockito.doReturn(queryMock).when(queryMock).returnBundle(Bundle.class);
+        for (int i = 0; i < 5; i++) {
+            ListResource inventoryList = new ListResource();
+            inventoryList.setId("list-" + i);
+            inventoryList.setSubject(new Reference("Location/" + i));
+            bundleWithInventory.addEntry().setResource(inventoryList);
+        }
         Mockito.doReturn(bundleWithInventory).when(queryMock).execute();
 
         List<Location> locations = createTestLocationList(5, true, false);
@@ -533,16 +653,9 @@ public class LocationHierarchyEndpointHelperTest {
 
     @Test
     public void testFilterLocationsByInventoryNoInventory() {
-        IUntypedQuery<IBaseBundle> untypedQueryMock = mock(IUntypedQuery.class);
-        IQuery<IBaseBundle> queryMock = mock(IQuery.class);
+        IQuery<IBaseBundle> queryMock = mockInventoryQuery();
 
         Bundle bundleWithInventory = new Bundle();
-
-        Mockito.doReturn(untypedQueryMock).when(client).search();
-        Mockito.doReturn(queryMock).when(untypedQueryMock).forResource(ListResource.class);
-        Mockito.doReturn(queryMock).when(queryMock).where(any(ICriterion.class));
-        Mockito.doReturn(queryMock).when(queryMock).usingStyle(SearchStyleEnum.POST);
-        Mockito.doReturn(queryMock).when(queryMock).returnBundle(Bundle.class);
         Mockito.doReturn(bundleWithInventory).when(queryMock).execute();
 
         List<Location> locations = createTestLocationList(5, true, false);
@@ -553,6 +666,45 @@ public class LocationHierarchyEndpointHelperTest {
         Assert.assertEquals(0, filteredLocations.size());
     }
 
+    @Test
+    public void testFilterLocationsByInventoryBatchesAndCachesSubjectSearches() {
+        IQuery<IBaseBundle> queryMock = mockInventoryQuery();
+
+        Bundle bundleWithInventory = new Bundle();
+        ListResource inventoryList = new ListResource();
+        inventoryList.setSubject(new Reference("Location/7"));
+        bundleWithInventory.addEntry().setResource(inventoryList);
+        Mockito.doReturn(bundleWithInventory).when(queryMock).execute();
+
+        List<Location> locations = createTestLocationList(250, false, false);
+        List<Location> filteredLocations =
+                locationHierarchyEndpointHelper.postFetchFilters(locations, null, true, "");
+
+        Assert.assertEquals(1, filteredLocations.size());
+        Assert.assertEquals("7", filteredLocations.get(0).getIdElement().getIdPart());
+        verify(queryMock, times(3)).execute();
+
+        // Found inventories are served from the cache, missing ones are searched again
+        Assert.assertTrue(locationHierarchyEndpointHelper.inventoryFilter(locations.get(7)));
+        verify(queryMock, times(3)).execute();
+        Assert.assertFalse(locationHierarchyEndpointHelper.inventoryFilter(locations.get(8)));
+        verify(queryMock, times(4)).execute();
+    }
+
+    private IQuery<IBaseBundle> mockInventoryQuery() {
+        IUntypedQuery<IBaseBundle> untypedQueryMock = mock(IUntypedQuery.class);
+        IQuery<IBaseBundle> queryMock = mock(IQuery.class);
+
+        Mockito.doReturn(untypedQueryMock).when(client).search();
+        Mockito.doReturn(queryMock).when(untypedQueryMock).forResource(ListResource.class);
+        Mockito.doReturn(queryMock).when(queryMock).where(any(ICriterion.class));
+        Mockito.doReturn(queryMock).when(queryMock).usingStyle(SearchStyleEnum.POST);
+        Mockito.doReturn(queryMock).when(queryMock).elementsSubset(Constants.SUBJECT);
+        Mockito.doReturn(queryMock).when(queryMock).count(anyInt());
+        Mockito.doReturn(queryMock).when(queryMock).returnBundle(Bundle.class);
+        return queryMock;
+    }
+
     @Test
     @SuppressWarnings("removal")
     public void testGetPaginatedLocationsSummaryReturnsSummary() {
@@ -1464,8 +1616,9 @@ public class LocationHierarchyEndpointHelperTest {
                     .getPaginatedLocations(
                             Mockito.eq(request), Mockito.anyList(), tagCaptor.capture());
 
-            StringWriter writer = new StringWriter();
-            Mockito.doReturn(new PrintWriter(writer)).when(response).getWriter();
+            Mockito.doReturn(createServletOutputStream(new ByteArrayOutputStream()))
+                    .when(response)
+                    .getOutputStream();
 
             helperSpy.streamPaginatedLocations(request, response, locationIds, decodedJWT);
 
@@ -1473,6 +1626,206 @@ public class LocationHierarchyEndpointHelperTest {
         }
     }
 
+    @Test
+    public void testStreamPaginatedLocationsContinuesFromUpstreamNextLink() throws IOException {
+        LocationHierarchyEndpointHelper helperSpy = Mockito.spy(locationHierarchyEndpointHelper);
+        Mockito.doReturn(Utils.createBundle(createTestLocationList(1001, false, false)))
+                .when(helperSpy)
+                .fetchAllDescendants(Mockito.anyList(), Mockito.any(), Mockito.any());
+        Mockito.doReturn(Utils.createBundle(Collections.emptyList()))
+                .when(helperSpy)
+                .getLocationsById(Mockito.anyList());
+
+        String upstreamNextUrl = "http://upstream/fhir?_getpages=search-id&_getpagesoffset=2";
+        Bundle firstPage = Utils.createBundle(createTestLocationList(2, false, false));
+        firstPage.setTotal(1001);
+        firstPage.addLink().setRelation(Bundle.LINK_NEXT).setUrl(upstreamNextUrl);
+        IUntypedQuery<IBaseBundle> untypedQueryMock = mock(IUntypedQuery.class);
+        IQuery<IBaseBundle> queryMock = mock(IQuery.class);
+        Mockito.doReturn(untypedQueryMock).when(client).search();
+        Mockito.doReturn(queryMock).when(untypedQueryMock).byUrl(anyString());
+        Mockito.doReturn(firstPage).when(queryMock).execute();
+
+        Map<String, String[]> parameters = new HashMap<>();
+        parameters.put(Constants.PAGINATION_PAGE_SIZE, new String[] {"2"});
+        HttpServletRequest firstPageRequest = mock(HttpServletRequest.class);
+        Mockito.doReturn("2").when(firstPageRequest).getParameter(Constants.PAGINATION_PAGE_SIZE);
+        Mockito.doReturn(new StringBuffer("http://test:8080/LocationHierarchy"))
+                .when(firstPageRequest)
+                .getRequestURL();
+        Mockito.doReturn(parameters).when(firstPageRequest).getParameterMap();
+        HttpServletResponse firstPageResponse = mock(HttpServletResponse.class);
+        ByteArrayOutputStream firstPageOutput = new ByteArrayOutputStream();
+        Mockito.doReturn(createServletOutputStream(firstPageOutput))
+                .when(firstPageResponse)
+                .getOutputStream();
+
+        helperSpy.streamPaginatedLocations(
+                firstPageRequest, firstPageResponse, List.of("parent"), null);
+
+        Matcher pageTokenMatcher =
+                Pattern.compile(Constants.PAGINATION_PAGE_TOKEN + "=([0-9a-f-]+)")
+                        .matcher(firstPageOutput.toString());
+        Assert.assertTrue(pageTokenMatcher.find());
+
+        Location nextPageLocation = new Location();
+        nextPageLocation.setId("next-page-location");
+        Bundle secondPage = new Bundle();
+        secondPage.addEntry().setResource(nextPageLocation);
+        Mockito.doReturn(secondPage)
+                .when(client.loadPage().byUrl(upstreamNextUrl).andReturnBundle(Bundle.class))
+                .execute();
+
+        HttpServletRequest secondPageRequest = mock(HttpServletRequest.class);
+        Mockito.doReturn("2").when(secondPageRequest).getParameter(Constants.PAGINATION_PAGE_SIZE);
+        Mockito.doReturn("2")
+                .when(secondPageRequest)
+                .getParameter(Constants.PAGINATION_PAGE_NUMBER);
+        Mockito.doReturn(pageTokenMatcher.group(1))
+                .when(secondPageRequest)
+                .getParameter(Constants.PAGINATION_PAGE_TOKEN);
+        Mockito.doReturn(new StringBuffer("http://test:8080/LocationHierarchy"))
+                .when(secondPageRequest)
+                .getRequestURL();
+        Mockito.doReturn(parameters).when(secondPageRequest).getParameterMap();
+        HttpServletResponse secondPageResponse = mock(HttpServletResponse.class);
+        ByteArrayOutputStream secondPageOutput = new ByteArrayOutputStream();
+        Mockito.doReturn(createServletOutputStream(secondPageOutput))
+                .when(secondPageResponse)
+                .getOutputStream();
+
+        helperSpy.streamPaginatedLocations(
+                secondPageRequest, secondPageResponse, List.of("parent"), null);
+
+        String secondPageResult = secondPageOutput.toString();
+        Assert.assertTrue(secondPageResult.contains("next-page-location"));
+        Assert.assertTrue(secondPageResult.contains("\"total\": 1001"));
+        // Only the first page fetched the whole hierarchy
+        Mockito.verify(helperSpy, times(1))
+                .fetchAllDescendants(Mockito.anyList(), Mockito.any(), Mockito.any());
+        ArgumentCaptor<String> urlCaptor = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(untypedQueryMock, times(1)).byUrl(urlCaptor.capture());
+        Assert.assertTrue(urlCaptor.getValue().contains("_total=accurate"));
+        Assert.assertFalse(urlCaptor.getValue().contains("_offset"));
+    }
+
+    @Test
+    public void testStreamPaginatedLocationsExportFollowsUpstreamPages() throws IOException {
+        LocationHierarchyEndpointHelper helperSpy = Mockito.spy(locationHierarchyEndpointHelper);
+        Location parentLocation = new Location();
+        parentLocation.setId("parent");
+        Mockito.doReturn(Utils.createBundle(List.of(parentLocation)))
+                .when(helperSpy)
+                .getLocationsById(Mockito.anyList());
+
+        // The requested location is also tagged with its own lineage upstream
+        String upstreamNextUrl = "http://upstream/fhir?_getpages=export-id&_getpagesoffset=2";
+        Bundle firstPage = Utils.createBundle(createTestLocationList(2, false, false));
+        firstPage.addEntry().setResource(parentLocation);
+        firstPage.addLink().setRelation(Bundle.LINK_NEXT).setUrl(upstreamNextUrl);
+        IUntypedQuery<IBaseBundle> untypedQueryMock = mock(IUntypedQuery.class);
+        IQuery<IBaseBundle> queryMock = mock(IQuery.class);
+        Mockito.doReturn(untypedQueryMock).when(client).search();
+        Mockito.doReturn(queryMock).when(untypedQueryMock).byUrl(anyString());
+        Mockito.doReturn(firstPage).when(queryMock).execute();
+
+        Location nextPageLocation = new Location();
+        nextPageLocation.setId("next-page-location");
+        Bundle secondPage = new Bundle();
+        secondPage.addEntry().setResource(nextPageLocation);
+        Mockito.doReturn(secondPage)
+                .when(client.loadPage().byUrl(upstreamNextUrl).andReturnBundle(Bundle.class))
+                .execute();
+
+        HttpServletRequest exportRequest = mock(HttpServletRequest.class);
+        Mockito.doReturn("true").when(exportRequest).getParameter(Constants.EXPORT);
+        Mockito.doReturn(new StringBuffer("http://test:8080/LocationHierarchy"))
+                .when(exportRequest)
+                .getRequestURL();
+        HttpServletResponse exportResponse = mock(HttpServletResponse.class);
+        ByteArrayOutputStream exportOutput = new ByteArrayOutputStream();
+        Mockito.doReturn(createServletOutputStream(exportOutput))
+                .when(exportResponse)
+                .getOutputStream();
+
+        helperSpy.streamPaginatedLocations(exportRequest, exportResponse, List.of("parent"), null);
+
+        Bundle exportBundle =
+                FhirContext.forR4Cached()
+                        .newJsonParser()
+                        .parseResource(Bundle.class, exportOutput.toString());
+        List<String> exportedIds = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : exportBundle.getEntry()) {
+            exportedIds.add(entry.getResource().getIdElement().getIdPart());
+        }
+        Assert.assertEquals(List.of("parent", "0", "1", "next-page-location"), exportedIds);
+        Assert.assertEquals(4, exportBundle.getTotal());
+        Assert.assertNull(exportBundle.getLink(Bundle.LINK_NEXT));
+        // The export does not load the whole hierarchy before it starts writing
+        Mockito.verify(helperSpy, Mockito.never())
+                .fetchAllDescendants(Mockito.anyList(), Mockito.any(), Mockito.any());
+        ArgumentCaptor<String> urlCaptor = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(untypedQueryMock, times(1)).byUrl(urlCaptor.capture());
+        Assert.assertTrue(urlCaptor.getValue().contains("_count=500"));
+    }
+
+    @Test
+    public void testStreamPaginatedLocationsWithSyncLocationsUsesLocationIndex()
+            throws IOException {
+        LocationHierarchyEndpointHelper helperSpy = Mockito.spy(locationHierarchyEndpointHelper);
+        Mockito.doReturn(Constants.SyncStrategy.LOCATION)
+                .when(helperSpy)
+                .getSyncStrategyByAppId(Mockito.any());
+        Location root = new Location();
+        root.setId("root");
+        Location village = new Location();
+        village.setId("village");
+        village.setPartOf(new Reference("Location/root"));
+        LocationGraphIndex.INSTANCE.load(List.of(root, village));
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        Mockito.doReturn("root").when(request).getParameter(Constants.SYNC_LOCATIONS_SEARCH_PARAM);
+        Mockito.doReturn(new StringBuffer("http://test:8080/LocationHierarchy"))
+                .when(request)
+                .getRequestURL();
+        Map<String, String[]> parameters = new HashMap<>();
+        parameters.put(Constants.SYNC_LOCATIONS_SEARCH_PARAM, new String[] {"root"});
+        Mockito.doReturn(parameters).when(request).getParameterMap();
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Mockito.doReturn(createServletOutputStream(output)).when(response).getOutputStream();
+        String indexEnabled = LocationGraphIndex.OPENSRP_LOCATION_INDEX_ENABLED;
+
+        try (MockedStatic<JwtUtils> mockJwtUtils = Mockito.mockStatic(JwtUtils.class);
+                MockedStatic<EnvUtil> mockEnvUtil =
+                        Mockito.mockStatic(EnvUtil.class, Mockito.CALLS_REAL_METHODS)) {
+            mockJwtUtils
+                    .when(() -> JwtUtils.getApplicationIdFromJWT(any(DecodedJWT.class)))
+                    .thenReturn("test-app-id");
+            mockEnvUtil
+                    .when(() -> EnvUtil.getEnvironmentVar(Mockito.eq(indexEnabled), anyString()))
+                    .thenReturn("true");
+
+            helperSpy.streamPaginatedLocations(
+                    request, response, List.of("root"), mock(DecodedJWT.class));
+        } finally {
+            LocationGraphIndex.INSTANCE.invalidate();
+        }
+
+        // _syncLocations selects the lineage tag, which the index resolves without a tag search
+        Mockito.verify(helperSpy, Mockito.never())
+                .fetchAllDescendants(Mockito.anyList(), Mockito.any(), Mockito.any());
+        Bundle bundle =
+                FhirContext.forR4Cached()
+                        .newJsonParser()
+                        .parseResource(Bundle.class, output.toString());
+        List<String> ids = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            ids.add(entry.getResource().getIdElement().getIdPart());
+        }
+        Assert.assertTrue(ids.containsAll(List.of("root", "village")));
+    }
+
     @Test
     public void testFetchAllDescendantsWithEmptyLocationIds() {
         IUntypedQuery<IBaseBundle> untypedQueryMock = mock(IUntypedQuery.class);
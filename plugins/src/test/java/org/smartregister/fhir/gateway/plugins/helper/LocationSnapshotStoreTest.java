@@ -0,0 +1,65 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Location;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LocationSnapshotStoreTest {
+
+    @After
+    public void tearDown() {
+        LocationSnapshotStore.INSTANCE.invalidateAll();
+    }
+
+    @Test
+    public void testSnapshotDeduplicatesLocationsInOrder() {
+        List<Location> locations =
+                List.of(createLocation("b"), createLocation("a"), createLocation("b"));
+
+        LocationSnapshotStore.LocationSnapshot snapshot =
+                new LocationSnapshotStore.LocationSnapshot("query", locations);
+
+        Assert.assertEquals(2, snapshot.size());
+        Assert.assertEquals("b", snapshot.getLocations(0, 1).get(0).getIdPart());
+        Assert.assertEquals("a", snapshot.getLocations(1, 1).get(0).getIdPart());
+        Assert.assertTrue(snapshot.getLocations(5, 10).isEmpty());
+    }
+
+    @Test
+    public void testGetReturnsSnapshotOfTheSameQuery() {
+        LocationSnapshotStore.LocationSnapshot snapshot =
+                new LocationSnapshotStore.LocationSnapshot("query", List.of(createLocation("a")));
+
+        Assert.assertTrue(LocationSnapshotStore.INSTANCE.put(snapshot));
+
+        Assert.assertSame(
+                snapshot, LocationSnapshotStore.INSTANCE.get(snapshot.getToken(), "query"));
+        Assert.assertNull(LocationSnapshotStore.INSTANCE.get(snapshot.getToken(), "other-query"));
+        Assert.assertNull(LocationSnapshotStore.INSTANCE.get("unknown-cursor", "query"));
+        Assert.assertNull(LocationSnapshotStore.INSTANCE.get(null, "query"));
+    }
+
+    @Test
+    public void testGetPageLinkReturnsLinkOfTheSameQuery() {
+        String pageToken =
+                LocationSnapshotStore.INSTANCE.putPageLink(
+                        "query", "http://localhost/fhir?_getpages=search-id", 42);
+
+        LocationSnapshotStore.PageLink pageLink =
+                LocationSnapshotStore.INSTANCE.getPageLink(pageToken, "query");
+        Assert.assertNotNull(pageLink);
+        Assert.assertEquals("http://localhost/fhir?_getpages=search-id", pageLink.getUpstreamUrl());
+        Assert.assertEquals(42, pageLink.getTotal());
+        Assert.assertNull(LocationSnapshotStore.INSTANCE.getPageLink(pageToken, "other-query"));
+        Assert.assertNull(LocationSnapshotStore.INSTANCE.getPageLink(null, "query"));
+    }
+
+    private static Location createLocation(String id) {
+        Location location = new Location();
+        location.setId(id);
+        return location;
+    }
+}
@@ -0,0 +1,50 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+
+public class RefreshAheadLoaderTest {
+
+    @Test
+    public void testLoadUsesTheRegisteredLoader() {
+        RefreshAheadLoader<String> loader = new RefreshAheadLoader<>(60, 10);
+        loader.register("key", () -> "first");
+        loader.register("key", () -> "second");
+
+        Assert.assertEquals("second", loader.load("key"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLoadWithoutLoaderFails() {
+        new RefreshAheadLoader<String>(60, 10).load("key");
+    }
+
+    @Test
+    public void testRefreshServesTheOldValueAndReloadsInTheBackground() {
+        AtomicLong nanos = new AtomicLong();
+        AtomicInteger loads = new AtomicInteger();
+        RefreshAheadLoader<Integer> loader = new RefreshAheadLoader<>(60, 10);
+        LoadingCache<String, Integer> cache =
+                Caffeine.newBuilder()
+                        .ticker(nanos::get)
+                        .expireAfterWrite(60, TimeUnit.SECONDS)
+                        .refreshAfterWrite(30, TimeUnit.SECONDS)
+                        .executor(Runnable::run)
+                        .build(loader);
+        loader.register("user", loads::incrementAndGet);
+
+        Assert.assertEquals(Integer.valueOf(1), cache.get("user"));
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(40));
+
+        Assert.assertEquals(Integer.valueOf(1), cache.get("user"));
+        Assert.assertEquals(Integer.valueOf(2), cache.get("user"));
+        Assert.assertEquals(2, loads.get());
+    }
+}
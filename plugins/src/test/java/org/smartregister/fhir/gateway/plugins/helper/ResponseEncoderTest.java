@@ -0,0 +1,94 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.smartregister.fhir.gateway.plugins.utils.TestUtil.createServletOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.smartregister.fhir.gateway.plugins.Constants;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+public class ResponseEncoderTest {
+
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private ByteArrayOutputStream outputStream;
+
+    @Before
+    public void setUp() throws IOException {
+        request = mock(HttpServletRequest.class);
+        response = mock(HttpServletResponse.class);
+        outputStream = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(createServletOutputStream(outputStream));
+    }
+
+    @Test
+    public void testIsGzipAccepted() {
+        Assert.assertFalse(ResponseEncoder.isGzipAccepted(request));
+
+        when(request.getHeader(Constants.ACCEPT_ENCODING)).thenReturn("deflate, gzip;q=0.8");
+        Assert.assertTrue(ResponseEncoder.isGzipAccepted(request));
+
+        when(request.getHeader(Constants.ACCEPT_ENCODING)).thenReturn("x-gzip");
+        Assert.assertTrue(ResponseEncoder.isGzipAccepted(request));
+
+        when(request.getHeader(Constants.ACCEPT_ENCODING)).thenReturn("gzip;q=0, identity");
+        Assert.assertFalse(ResponseEncoder.isGzipAccepted(request));
+
+        when(request.getHeader(Constants.ACCEPT_ENCODING)).thenReturn("br, deflate");
+        Assert.assertFalse(ResponseEncoder.isGzipAccepted(request));
+    }
+
+    @Test
+    public void testOpenWriterCompressesWhenGzipIsAccepted() throws IOException {
+        when(request.getHeader(Constants.ACCEPT_ENCODING)).thenReturn("gzip, deflate");
+
+        try (Writer writer = ResponseEncoder.openWriter(request, response, "application/json")) {
+            writer.write("{\"resourceType\":\"Bundle\"}");
+        }
+
+        verify(response).setHeader(Constants.CONTENT_ENCODING, Constants.GZIP);
+        verify(response).addHeader(Constants.VARY, Constants.ACCEPT_ENCODING);
+        verify(response).setContentType("application/json");
+        try (GZIPInputStream inputStream =
+                new GZIPInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            Assert.assertEquals(
+                    "{\"resourceType\":\"Bundle\"}",
+                    new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testOpenWriterWritesPlainBodyWithoutGzip() throws IOException {
+        try (Writer writer = ResponseEncoder.openWriter(request, response, "application/json")) {
+            writer.write("{\"resourceType\":\"Bundle\"}");
+        }
+
+        verify(response, never())
+                .setHeader(Mockito.eq(Constants.CONTENT_ENCODING), Mockito.anyString());
+        Assert.assertEquals(
+                "{\"resourceType\":\"Bundle\"}", outputStream.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testIsPrettyRequested() {
+        Assert.assertFalse(ResponseEncoder.isPrettyRequested(request));
+
+        when(request.getParameter(Constants.PRETTY)).thenReturn("true");
+        Assert.assertTrue(ResponseEncoder.isPrettyRequested(request));
+    }
+}
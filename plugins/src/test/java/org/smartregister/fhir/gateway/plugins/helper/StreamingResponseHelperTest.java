@@ -1,7 +1,9 @@
 package org.smartregister.fhir.gateway.plugins.helper;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.smartregister.fhir.gateway.plugins.utils.TestUtil.createServletOutputStream;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -10,14 +12,19 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.function.BiFunction;
 
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Location;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.smartregister.fhir.gateway.plugins.Constants;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
@@ -266,6 +273,149 @@ public class StreamingResponseHelperTest {
         Assert.assertTrue("Result should contain pagination links", result.contains("link"));
     }
 
+    @Test
+    public void testStreamLocationBundleEscapesLinksAndEncodesCompactEntries() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(createServletOutputStream(outputStream));
+        when(request.getRequestURL())
+                .thenReturn(new StringBuffer("http://test:8080/LocationHierarchy"));
+        when(request.getQueryString()).thenReturn("name=\"quoted\"&path=a\\b");
+        Map<String, String[]> params = new HashMap<>();
+        params.put("name", new String[] {"\"quoted\""});
+        when(request.getParameterMap()).thenReturn(params);
+
+        streamingResponseHelper.streamLocationBundle(
+                request, response, createTestLocations(25), 1, 10, 25);
+
+        String result = outputStream.toString();
+        Assert.assertTrue(result.contains("name=\\\"quoted\\\"&path=a\\\\b"));
+        Assert.assertTrue(result.contains("{\"resource\": {\"resourceType\":\"Location\""));
+        Bundle bundle = fhirJsonParser.parseResource(Bundle.class, result);
+        Assert.assertEquals(10, bundle.getEntry().size());
+        Assert.assertEquals(
+                "http://test:8080/LocationHierarchy?name=\"quoted\"&path=a\\b",
+                bundle.getLink(Bundle.LINK_SELF).getUrl());
+        Assert.assertNotNull(bundle.getLink(Bundle.LINK_NEXT));
+    }
+
+    @Test
+    public void testStreamLocationExportWritesEveryPage() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(createServletOutputStream(outputStream));
+        when(request.getRequestURL())
+                .thenReturn(new StringBuffer("http://test:8080/LocationHierarchy"));
+        when(request.getQueryString()).thenReturn("_export=true");
+        List<List<Location>> locationPages =
+                List.of(createTestLocations(150), Collections.emptyList(), createTestLocations(3));
+
+        streamingResponseHelper.streamLocationExport(request, response, locationPages.iterator());
+
+        String result = outputStream.toString();
+        Assert.assertTrue(result.contains("\"total\": 153"));
+        Bundle bundle = fhirJsonParser.parseResource(Bundle.class, result);
+        Assert.assertEquals(153, bundle.getTotal());
+        Assert.assertEquals(153, bundle.getEntry().size());
+        Assert.assertEquals(1, bundle.getLink().size());
+        Assert.assertNull(bundle.getLink(Bundle.LINK_NEXT));
+    }
+
+    @Test
+    public void testStreamLocationExportIsNotEndedWhenAPageFails() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(createServletOutputStream(outputStream));
+        when(request.getRequestURL())
+                .thenReturn(new StringBuffer("http://test:8080/LocationHierarchy"));
+        Iterator<List<Location>> locationPages =
+                new Iterator<>() {
+                    private int pages;
+
+                    @Override
+                    public boolean hasNext() {
+                        return true;
+                    }
+
+                    @Override
+                    public List<Location> next() {
+                        if (pages++ > 0) {
+                            throw new IllegalStateException("Upstream page failed");
+                        }
+                        return createTestLocations(3);
+                    }
+                };
+
+        try {
+            streamingResponseHelper.streamLocationExport(request, response, locationPages);
+            Assert.fail("The failed page should abort the export");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Upstream page failed", e.getMessage());
+        }
+
+        String result = outputStream.toString();
+        Assert.assertTrue(result.contains("\"resourceType\":\"Location\""));
+        Assert.assertFalse(result.contains("\"total\""));
+    }
+
+    @Test
+    public void testStreamLocationBundleWritesNdjsonWhenRequested() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(createServletOutputStream(outputStream));
+        when(request.getRequestURL())
+                .thenReturn(new StringBuffer("http://test:8080/LocationHierarchy"));
+        when(request.getParameter(Constants.FORMAT)).thenReturn(Constants.NDJSON_FORMAT);
+        when(request.getParameterMap()).thenReturn(new HashMap<>());
+
+        streamingResponseHelper.streamLocationBundle(
+                request, response, createTestLocations(25), 1, 10, 25);
+
+        String[] lines = outputStream.toString().split("\n");
+        Assert.assertEquals(10, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            Location location = fhirJsonParser.parseResource(Location.class, lines[i]);
+            Assert.assertEquals("loc-" + i, location.getIdElement().getIdPart());
+        }
+        verify(response).setContentType(Constants.NDJSON_CONTENT_TYPE);
+        ArgumentCaptor<String> linkCaptor = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(Mockito.eq(Constants.LINK), linkCaptor.capture());
+        String expectedNextLink =
+                "<http://test:8080/LocationHierarchy?_page=2&_count=10>; rel=\"next\"";
+        Assert.assertTrue(linkCaptor.getValue().contains(expectedNextLink));
+    }
+
+    @Test
+    public void testStreamBundleAsNdjsonWritesEntriesAndLinks() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(createServletOutputStream(outputStream));
+        Bundle bundle = new Bundle();
+        bundle.addLink().setRelation(Bundle.LINK_SELF).setUrl("http://test/self");
+        bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://test/next");
+        for (Location location : createTestLocations(3)) {
+            bundle.addEntry().setResource(location);
+        }
+
+        streamingResponseHelper.streamBundleAsNdjson(request, response, bundle);
+
+        String[] lines = outputStream.toString().split("\n");
+        Assert.assertEquals(3, lines.length);
+        Assert.assertFalse(lines[0].contains("Bundle"));
+        verify(response).setHeader(Constants.LINK, "<http://test/next>; rel=\"next\"");
+    }
+
+    @Test
+    public void testIsNdjsonRequested() {
+        Assert.assertFalse(StreamingResponseHelper.isNdjsonRequested(request));
+
+        when(request.getHeader(Constants.ACCEPT)).thenReturn("application/fhir+ndjson");
+        Assert.assertTrue(StreamingResponseHelper.isNdjsonRequested(request));
+
+        // The format parameter takes precedence over the Accept header
+        when(request.getParameter(Constants.FORMAT)).thenReturn("json");
+        Assert.assertFalse(StreamingResponseHelper.isNdjsonRequested(request));
+
+        when(request.getHeader(Constants.ACCEPT)).thenReturn("application/json");
+        when(request.getParameter(Constants.FORMAT)).thenReturn(Constants.NDJSON_CONTENT_TYPE);
+        Assert.assertTrue(StreamingResponseHelper.isNdjsonRequested(request));
+    }
+
     private List<Location> createTestLocations(int count) {
         List<Location> locations = new ArrayList<>();
         for (int i = 0; i < count; i++) {
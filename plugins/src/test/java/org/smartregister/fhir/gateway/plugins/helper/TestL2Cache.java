@@ -0,0 +1,54 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.smartregister.fhir.gateway.plugins.interfaces.L2Cache;
+
+/** In-memory {@link L2Cache} for tests, entries do not expire. */
+public class TestL2Cache implements L2Cache {
+
+    private final Map<String, byte[]> entries = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> sets = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] get(String key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public void put(String key, byte[] value, long ttlSeconds, Collection<String> setKeys) {
+        entries.put(key, value);
+        for (String setKey : setKeys) {
+            sets.computeIfAbsent(setKey, it -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+    }
+
+    @Override
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    @Override
+    public void invalidateMembers(Collection<String> setKeys) {
+        for (String setKey : setKeys) {
+            Set<String> members = sets.remove(setKey);
+            if (members != null) {
+                members.forEach(entries::remove);
+            }
+        }
+    }
+
+    @Override
+    public Long increment(String key, long delta) {
+        return counters.computeIfAbsent(key, it -> new AtomicLong()).addAndGet(delta);
+    }
+
+    public Map<String, byte[]> getEntries() {
+        return entries;
+    }
+}
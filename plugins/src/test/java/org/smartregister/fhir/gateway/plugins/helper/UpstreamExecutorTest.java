@@ -0,0 +1,62 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UpstreamExecutorTest {
+
+    @Test
+    public void testMapAllPreservesItemOrder() {
+        List<Integer> items = IntStream.range(0, 50).boxed().collect(Collectors.toList());
+
+        List<String> results = UpstreamExecutor.INSTANCE.mapAll(items, item -> "item-" + item, 4);
+
+        Assert.assertEquals(50, results.size());
+        for (int i = 0; i < items.size(); i++) {
+            Assert.assertEquals("item-" + i, results.get(i));
+        }
+    }
+
+    @Test
+    public void testMapAllWithEmptyItemsReturnsEmptyList() {
+        Assert.assertTrue(
+                UpstreamExecutor.INSTANCE.mapAll(Collections.emptyList(), item -> item).isEmpty());
+    }
+
+    @Test
+    public void testMapAllRethrowsFailure() {
+        IllegalArgumentException failure = new IllegalArgumentException("upstream failed");
+
+        IllegalArgumentException thrown =
+                Assert.assertThrows(
+                        IllegalArgumentException.class,
+                        () ->
+                                UpstreamExecutor.INSTANCE.mapAll(
+                                        List.of(1, 2, 3),
+                                        item -> {
+                                            if (item == 2) {
+                                                throw failure;
+                                            }
+                                            return item;
+                                        }));
+
+        Assert.assertSame(failure, thrown);
+    }
+
+    @Test
+    public void testNestedMapAllRunsInlineOnWorkerThreads() {
+        List<List<Integer>> results =
+                UpstreamExecutor.INSTANCE.mapAll(
+                        List.of(1, 2),
+                        outer ->
+                                UpstreamExecutor.INSTANCE.mapAll(
+                                        List.of(10, 20), inner -> outer * inner));
+
+        Assert.assertEquals(List.of(List.of(10, 20), List.of(20, 40)), results);
+    }
+}
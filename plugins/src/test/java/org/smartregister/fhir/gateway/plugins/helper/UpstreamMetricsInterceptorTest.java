@@ -0,0 +1,72 @@
+package org.smartregister.fhir.gateway.plugins.helper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.IRestfulClient;
+import ca.uhn.fhir.util.StopWatch;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class UpstreamMetricsInterceptorTest {
+
+    private static final String SERVER_BASE = "http://localhost:8080/fhir";
+
+    @Test
+    public void testGetResourceType() {
+        Assert.assertEquals(
+                "Location",
+                UpstreamMetricsInterceptor.getResourceType(
+                        SERVER_BASE, SERVER_BASE + "/Location?_id=1,2"));
+        Assert.assertEquals(
+                "Location",
+                UpstreamMetricsInterceptor.getResourceType(
+                        SERVER_BASE, SERVER_BASE + "/Location/_search"));
+        Assert.assertEquals(
+                "Practitioner",
+                UpstreamMetricsInterceptor.getResourceType(
+                        SERVER_BASE, SERVER_BASE + "/Practitioner/123"));
+        Assert.assertEquals(
+                UpstreamMetricsInterceptor.NO_RESOURCE_TYPE,
+                UpstreamMetricsInterceptor.getResourceType(
+                        SERVER_BASE, SERVER_BASE + "?_getpages=abc&_getpagesoffset=20"));
+        Assert.assertEquals(
+                UpstreamMetricsInterceptor.NO_RESOURCE_TYPE,
+                UpstreamMetricsInterceptor.getResourceType(SERVER_BASE, SERVER_BASE + "/"));
+    }
+
+    @Test
+    public void testRecordResponseRecordsLatencyPerResourceType() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        UpstreamMetricsInterceptor interceptor = new UpstreamMetricsInterceptor(meterRegistry);
+        IHttpRequest request = mock(IHttpRequest.class);
+        IHttpResponse response = mock(IHttpResponse.class);
+        IRestfulClient client = mock(IRestfulClient.class);
+        StopWatch stopWatch = mock(StopWatch.class);
+        when(request.getUri()).thenReturn(SERVER_BASE + "/Location?partof=1");
+        when(request.getHttpVerbName()).thenReturn("GET");
+        when(response.getStatus()).thenReturn(200);
+        when(response.getRequestStopWatch()).thenReturn(stopWatch);
+        when(stopWatch.getMillis()).thenReturn(25L);
+        when(client.getServerBase()).thenReturn(SERVER_BASE);
+
+        interceptor.recordResponse(request, response, client);
+
+        Timer timer =
+                meterRegistry
+                        .get(UpstreamMetricsInterceptor.METRIC_NAME)
+                        .tag("resource_type", "Location")
+                        .tag("method", "GET")
+                        .tag("status", "200")
+                        .timer();
+        Assert.assertEquals(1, timer.count());
+        Assert.assertEquals(25.0, timer.totalTime(TimeUnit.MILLISECONDS), 0.0);
+    }
+}
@@ -0,0 +1,239 @@
+package org.smartregister.fhir.gateway.plugins.implementation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisL2CacheTest {
+
+    private final Map<String, byte[]> entries = new ConcurrentHashMap<>();
+    private final Map<String, String> ttls = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> sets = new ConcurrentHashMap<>();
+    private final Map<String, Long> counters = new ConcurrentHashMap<>();
+    private ServerSocket serverSocket;
+    private RedisL2Cache l2Cache;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread serverThread = new Thread(this::serve, "fake-redis");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        l2Cache = new RedisL2Cache("localhost", serverSocket.getLocalPort(), null, 0, 2000, 2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        l2Cache.close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testPutAndGet() {
+        byte[] value = {0, 1, 2, '\r', '\n', 3};
+
+        l2Cache.put("opensrp:response:key", value, 60);
+
+        assertArrayEquals(value, l2Cache.get("opensrp:response:key"));
+        assertEquals("60", ttls.get("opensrp:response:key"));
+    }
+
+    @Test
+    public void testGetMissingKeyReturnsNull() {
+        assertNull(l2Cache.get("opensrp:response:missing"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        l2Cache.put("opensrp:response:key", new byte[] {1}, 60);
+
+        l2Cache.invalidate("opensrp:response:key");
+
+        assertNull(l2Cache.get("opensrp:response:key"));
+    }
+
+    @Test
+    public void testPutAddsTheKeyToTheSetsAndInvalidateMembersDropsThem() {
+        l2Cache.put("opensrp:response:1", new byte[] {1}, 60, List.of("tag:a", "tag:b"));
+        l2Cache.put("opensrp:response:2", new byte[] {2}, 60, List.of("tag:b"));
+        l2Cache.put("opensrp:response:3", new byte[] {3}, 60, List.of("tag:c"));
+
+        assertEquals(Set.of("opensrp:response:1", "opensrp:response:2"), sets.get("tag:b"));
+        assertEquals("60", ttls.get("tag:b"));
+
+        l2Cache.invalidateMembers(List.of("tag:b", "tag:d"));
+
+        assertNull(l2Cache.get("opensrp:response:1"));
+        assertNull(l2Cache.get("opensrp:response:2"));
+        assertArrayEquals(new byte[] {3}, l2Cache.get("opensrp:response:3"));
+        assertNull(sets.get("tag:b"));
+        assertTrue(sets.containsKey("tag:c"));
+    }
+
+    @Test
+    public void testIncrement() {
+        assertEquals(Long.valueOf(0), l2Cache.increment("opensrp:response:generation", 0));
+        assertEquals(Long.valueOf(1), l2Cache.increment("opensrp:response:generation", 1));
+        assertEquals(Long.valueOf(1), l2Cache.increment("opensrp:response:generation", 0));
+    }
+
+    @Test
+    public void testUnreachableServerIsTreatedAsMiss() throws IOException {
+        int port;
+        try (ServerSocket closedSocket = new ServerSocket(0)) {
+            port = closedSocket.getLocalPort();
+        }
+        RedisL2Cache unreachableCache = new RedisL2Cache("localhost", port, null, 0, 200, 1);
+
+        unreachableCache.put("key", new byte[] {1}, 60);
+
+        assertNull(unreachableCache.get("key"));
+        assertNull(unreachableCache.increment("generation", 1));
+    }
+
+    @Test
+    public void testWriteCommandAndReadReply() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        RedisL2Cache.writeCommand(outputStream, bytes("GET"), bytes("key"));
+
+        assertEquals(
+                "*2\r\n$3\r\nGET\r\n$3\r\nkey\r\n", outputStream.toString(StandardCharsets.UTF_8));
+        assertArrayEquals(bytes("OK"), RedisL2Cache.readReply(input("+OK\r\n")));
+        assertArrayEquals(bytes("1"), RedisL2Cache.readReply(input(":1\r\n")));
+        assertArrayEquals(bytes("value"), RedisL2Cache.readReply(input("$5\r\nvalue\r\n")));
+        assertNull(RedisL2Cache.readReply(input("$-1\r\n")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadErrorReply() throws IOException {
+        RedisL2Cache.readReply(input("-ERR wrong type\r\n"));
+    }
+
+    private void serve() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread connectionThread = new Thread(() -> handle(socket), "fake-redis-client");
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket) {
+            InputStream inputStream = socket.getInputStream();
+            OutputStream outputStream = socket.getOutputStream();
+            List<byte[]> command;
+            while ((command = readCommand(inputStream)) != null) {
+                outputStream.write(bytes(reply(command)));
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            // The client closed the connection
+        }
+    }
+
+    private String reply(List<byte[]> command) {
+        String name = new String(command.get(0), StandardCharsets.UTF_8);
+        String key = command.size() > 1 ? new String(command.get(1), StandardCharsets.UTF_8) : "";
+        switch (name) {
+            case "GET":
+                byte[] value = entries.get(key);
+                return value == null
+                        ? "$-1\r\n"
+                        : "$"
+                                + value.length
+                                + "\r\n"
+                                + new String(value, StandardCharsets.ISO_8859_1)
+                                + "\r\n";
+            case "SET":
+                entries.put(key, command.get(2));
+                ttls.put(key, new String(command.get(4), StandardCharsets.UTF_8));
+                return "+OK\r\n";
+            case "DEL":
+                int deleted = 0;
+                for (byte[] argument : command.subList(1, command.size())) {
+                    String deletedKey = new String(argument, StandardCharsets.UTF_8);
+                    boolean deletedEntry = entries.remove(deletedKey) != null;
+                    boolean deletedSet = sets.remove(deletedKey) != null;
+                    if (deletedEntry || deletedSet) {
+                        deleted++;
+                    }
+                }
+                return ":" + deleted + "\r\n";
+            case "SADD":
+                sets.computeIfAbsent(key, it -> ConcurrentHashMap.newKeySet())
+                        .add(new String(command.get(2), StandardCharsets.UTF_8));
+                return ":1\r\n";
+            case "EVAL":
+                // Only the script dropping the members of the sets is sent
+                int keyCount = Integer.parseInt(new String(command.get(2), StandardCharsets.UTF_8));
+                for (byte[] argument : command.subList(3, 3 + keyCount)) {
+                    Set<String> members = sets.remove(new String(argument, StandardCharsets.UTF_8));
+                    if (members != null) {
+                        members.forEach(entries::remove);
+                    }
+                }
+                return ":0\r\n";
+            case "EXPIRE":
+                ttls.put(key, new String(command.get(2), StandardCharsets.UTF_8));
+                return ":1\r\n";
+            case "INCRBY":
+                long delta = Long.parseLong(new String(command.get(2), StandardCharsets.UTF_8));
+                return ":" + counters.merge(key, delta, Long::sum) + "\r\n";
+            default:
+                return "-ERR unknown command\r\n";
+        }
+    }
+
+    private static List<byte[]> readCommand(InputStream inputStream) throws IOException {
+        if (inputStream.read() != '*') {
+            return null;
+        }
+        StringBuilder count = new StringBuilder();
+        int current;
+        while ((current = inputStream.read()) != '\r') {
+            if (current == -1) {
+                return null;
+            }
+            count.append((char) current);
+        }
+        inputStream.read();
+        List<byte[]> command = new ArrayList<>();
+        for (int i = 0; i < Integer.parseInt(count.toString()); i++) {
+            command.add(RedisL2Cache.readReply(inputStream));
+        }
+        return command;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static InputStream input(String value) {
+        return new ByteArrayInputStream(bytes(value));
+    }
+}
@@ -2,6 +2,7 @@ package org.smartregister.fhir.gateway.plugins.utils;
 
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
 
 import org.apache.http.HttpResponse;
@@ -12,6 +13,9 @@ import org.mockito.Mockito;
 
 import com.google.common.base.Preconditions;
 
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
 public class TestUtil {
 
     public static final String JWT_NORMAL_USER =
@@ -27,4 +31,24 @@ public class TestUtil {
         when(statusLineMock.getStatusCode()).thenReturn(HttpStatus.SC_OK);
         when(fhirResponseMock.getEntity()).thenReturn(testEntity);
     }
+
+    public static ServletOutputStream createServletOutputStream(
+            ByteArrayOutputStream outputStream) {
+        return new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                outputStream.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+                // No-op for testing
+            }
+        };
+    }
 }
@@ -418,6 +418,23 @@ public class UtilsTest {
         mockUtils.close();
     }
 
+    @Test
+    public void testGenerateSyncStrategyIdsCacheKeyWithSyncLocationsWithoutAllLocationsRole() {
+        Map<String, String[]> parameters = new HashMap<>();
+        parameters.put(Constants.SYNC_LOCATIONS_SEARCH_PARAM, new String[] {"location1"});
+        parameters.put(Constants.FILTER_MODE_LINEAGE, new String[] {"roots"});
+
+        String result =
+                PermissionAccessChecker.generateSyncStrategyIdsCacheKey(
+                        "user123",
+                        Constants.SyncStrategy.RELATED_ENTITY_LOCATION,
+                        parameters,
+                        false);
+
+        // The assigned locations of the user are synced, not the requested ones
+        Assert.assertEquals("user123_roots", result);
+    }
+
     @Test
     public void testGenerateSyncStrategyIdsCacheKeyDefaultStrategy() {
         String userId = "user123";
@@ -432,6 +449,33 @@ public class UtilsTest {
         Assert.assertEquals(userId, result);
     }
 
+    @Test
+    public void testGenerateSyncStrategyIdsCacheKeyFilterModeLineageRoots() {
+        String userId = "user123";
+        Map<String, String[]> parameters = new HashMap<>();
+        parameters.put(Constants.FILTER_MODE_LINEAGE, new String[] {"roots"});
+
+        String result =
+                PermissionAccessChecker.generateSyncStrategyIdsCacheKey(
+                        userId, Constants.SyncStrategy.LOCATION, parameters);
+
+        Assert.assertEquals("user123_roots", result);
+    }
+
+    @Test
+    public void testIsFilterModeLineageRoots() {
+        Assert.assertTrue(
+                Utils.isFilterModeLineageRoots(
+                        Map.of(Constants.FILTER_MODE_LINEAGE, new String[] {"Roots "})));
+        Assert.assertFalse(
+                Utils.isFilterModeLineageRoots(
+                        Map.of(Constants.FILTER_MODE_LINEAGE, new String[] {"true"})));
+        Assert.assertFalse(
+                Utils.isFilterModeLineageRoots(
+                        Map.of(Constants.FILTER_MODE_LINEAGE, new String[] {})));
+        Assert.assertFalse(Utils.isFilterModeLineageRoots(new HashMap<>()));
+    }
+
     @Test
     public void testExtractLogicalIdExtractsValueFromURL() {
 